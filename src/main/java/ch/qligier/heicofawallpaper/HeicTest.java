@@ -1,7 +1,11 @@
 package ch.qligier.heicofawallpaper;
 
 import ch.qligier.heicofawallpaper.service.DynamicWallpaperService;
+import ch.qligier.heicofawallpaper.service.FileHashCache;
+import ch.qligier.heicofawallpaper.service.FileSystemService;
 import ch.qligier.heicofawallpaper.utils.heic.MetadataExtractor;
+import ch.qligier.heicofawallpaper.utils.process.ProcessRunner;
+import com.google.gson.Gson;
 
 import java.io.File;
 
@@ -13,7 +17,8 @@ import java.io.File;
 public class HeicTest {
     public static void main(String[] args) throws Exception {
         final var e = new MetadataExtractor();
-        final var s = new DynamicWallpaperService(e);
+        final var c = new FileHashCache(FileSystemService.getFileHashCachePath(), new Gson());
+        final var s = new DynamicWallpaperService(e, c, new ProcessRunner());
         e.start();
 
         final var heicFile = new File(
@@ -6,50 +6,65 @@ import ch.qligier.heicofawallpaper.configuration.UserConfiguration;
 import ch.qligier.heicofawallpaper.gui.TrayIconManager;
 import ch.qligier.heicofawallpaper.gui.main.MainWindow;
 import ch.qligier.heicofawallpaper.model.CachedDynWallDefinition;
-import ch.qligier.heicofawallpaper.model.CurrentEnvironment;
 import ch.qligier.heicofawallpaper.model.DynWallDefinition;
 import ch.qligier.heicofawallpaper.model.DynWallSelection;
+import ch.qligier.heicofawallpaper.model.DynWallSummary;
+import ch.qligier.heicofawallpaper.model.DynWallType;
 import ch.qligier.heicofawallpaper.model.events.WallpaperDefinitionsChanged;
 import ch.qligier.heicofawallpaper.service.DynamicWallpaperService;
+import ch.qligier.heicofawallpaper.service.FileHashCache;
 import ch.qligier.heicofawallpaper.service.FileSystemService;
+import ch.qligier.heicofawallpaper.service.FrameCacheManager;
+import ch.qligier.heicofawallpaper.service.ImportPipeline;
+import ch.qligier.heicofawallpaper.service.LibraryCatalog;
 import ch.qligier.heicofawallpaper.service.PhaseEvaluator;
+import ch.qligier.heicofawallpaper.service.PhasePlan;
+import ch.qligier.heicofawallpaper.service.PreviewAtlas;
+import ch.qligier.heicofawallpaper.service.PreviewScheduler;
+import ch.qligier.heicofawallpaper.service.ScheduleSimulator;
+import ch.qligier.heicofawallpaper.service.StaticThemeSource;
+import ch.qligier.heicofawallpaper.service.ThemeSource;
+import ch.qligier.heicofawallpaper.service.WallpaperScheduler;
 import ch.qligier.heicofawallpaper.utils.LocalTimeAdapter;
 import ch.qligier.heicofawallpaper.utils.Utils;
 import ch.qligier.heicofawallpaper.utils.heic.MetadataExtractor;
-import ch.qligier.heicofawallpaper.utils.heic.PreviewGenerator;
+import ch.qligier.heicofawallpaper.utils.heic.ThumbnailExtractor;
+import ch.qligier.heicofawallpaper.utils.process.ProcessRunner;
 import ch.qligier.heicofawallpaper.utils.win32.DesktopWallpaperManager;
-import ch.qligier.heicofawallpaper.utils.win32.RegistryManager;
+import ch.qligier.heicofawallpaper.utils.win32.RegistryThemeSource;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.sun.jna.Platform;
 import com.sun.jna.Pointer;
 import com.sun.jna.platform.win32.COM.COMUtils;
 import com.sun.jna.platform.win32.Ole32;
 import com.sun.jna.platform.win32.WinNT;
 import javafx.application.Application;
 import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
 import javafx.scene.Scene;
 import javafx.stage.Modality;
+import javafx.stage.Screen;
 import javafx.stage.Stage;
 import javafx.stage.StageStyle;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.greenrobot.eventbus.EventBus;
 
-import javax.imageio.ImageIO;
 import java.awt.*;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.time.Instant;
-import java.time.LocalTime;
-import java.time.ZoneId;
+import java.time.*;
 import java.util.List;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -62,8 +77,6 @@ import java.util.stream.Stream;
 public class HoawApplication extends Application {
     private static final Logger LOG = Logger.getLogger("HoawApplication");
 
-    private static final int REFRESH_DELAY_MS = 1000 * 60;
-
     /**
      * A JSON de/serializer.
      */
@@ -76,13 +89,120 @@ public class HoawApplication extends Application {
      */
     private final MetadataExtractor metadataExtractor = new MetadataExtractor();
 
+    /**
+     * The runner of the external processes.
+     */
+    private final ProcessRunner processRunner = new ProcessRunner();
+
+    /**
+     * The persistent cache of wallpaper file hashes.
+     */
+    private final FileHashCache fileHashCache = new FileHashCache(FileSystemService.getFileHashCachePath(), this.gson);
+
     /**
      *
      */
-    private final DynamicWallpaperService dynamicWallpaperService = new DynamicWallpaperService(this.metadataExtractor);
+    private final DynamicWallpaperService dynamicWallpaperService =
+        new DynamicWallpaperService(this.metadataExtractor, this.fileHashCache, this.processRunner);
+
+    /**
+     * The manager of the extracted frames, that keeps them under the disk quota.
+     */
+    private final FrameCacheManager frameCacheManager = new FrameCacheManager(this.dynamicWallpaperService,
+                                                                              FileSystemService.getFrameUsagePath(),
+                                                                              this.gson,
+                                                                              UserConfiguration.DEFAULT_FRAME_CACHE_QUOTA_MB
+                                                                                  * 1024L * 1024);
+
+    /**
+     * The catalog of the cached wallpaper definitions.
+     */
+    private final LibraryCatalog libraryCatalog = new LibraryCatalog(FileSystemService.getLibraryCatalogPath());
+
+    /**
+     * The atlas of the wallpaper previews, that the wallpaper list displays.
+     */
+    private final PreviewAtlas previewAtlas = new PreviewAtlas(FileSystemService.getPreviewAtlasPath());
+
+    /**
+     * The scheduler of the preview generations, that bounds the memory they use.
+     */
+    private final PreviewScheduler previewScheduler = new PreviewScheduler(this.previewAtlas);
+
+    /**
+     * The lock that prevents concurrent wallpaper refreshes.
+     */
+    private final Object refreshLock = new Object();
+
+    /**
+     * The evaluator of the wallpaper phases, that holds the current environment.
+     */
+    private final PhaseEvaluator phaseEvaluator = new PhaseEvaluator(ZoneId.systemDefault());
+
+    /**
+     * The compiled phases of the wallpaper definitions, by filename. They're compiled when they're first needed, or
+     * when a definition is imported.
+     */
+    private final Map<String, PhasePlan> phasePlans = new ConcurrentHashMap<>(64);
+
+    /**
+     * The phase plans and frames that have been evaluated for each monitor, by monitor index. The arrays are reused
+     * by the refreshes, under the refresh lock.
+     */
+    private PhasePlan[] requestedPlans = new PhasePlan[0];
+    private short[] requestedFrames = new short[0];
+
+    /**
+     * The phase plans and frames that are applied to each monitor, by monitor index. They are guarded by the refresh
+     * lock.
+     */
+    private PhasePlan[] appliedPlans = new PhasePlan[0];
+    private short[] appliedFrames = new short[0];
+
+    /**
+     * Whether the displays have changed since the runtime configuration was loaded.
+     */
+    private volatile boolean displaysChanged = false;
 
+    /**
+     * The scheduler of the wallpaper refreshes, that wakes up at the next phase transition.
+     */
+    private final WallpaperScheduler wallpaperScheduler = new WallpaperScheduler(this::refreshWallpaper,
+                                                                                 this::computeNextTransition,
+                                                                                 Clock.systemDefaultZone());
+
+    /**
+     * The source of the system theme, that notifies its changes. The field is assigned in {@link #start(Stage)}.
+     */
     @MonotonicNonNull
-    private final ObservableList<DynWallDefinition> wallpaperDefinitions =
+    private ThemeSource themeSource;
+
+    /**
+     * The executor of the background frame extractions.
+     */
+    private final ExecutorService frameExtractionExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "HoawApplication-frames");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * The hashes of the wallpapers whose frames are being extracted in the background.
+     */
+    private final Set<String> backgroundFrameExtractions = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The import pipeline of new wallpaper files. The field is assigned in {@link #start(Stage)}.
+     */
+    @MonotonicNonNull
+    private ImportPipeline importPipeline;
+
+    /**
+     * The summaries of the wallpapers, that the wallpaper list shows. Their definitions are decoded when they're
+     * needed, see {@link #getPhasePlan(String)}.
+     */
+    private final ObservableList<DynWallSummary> wallpaperSummaries =
         FXCollections.observableList(new ArrayList<>(8));
 
     /**
@@ -150,18 +270,36 @@ public class HoawApplication extends Application {
         this.desktopWallpaperManager = DesktopWallpaperManager.create();
         this.runtimeConfiguration = this.loadRuntimeConfiguration();
         FileSystemService.ensureDataPathExists();
+        this.libraryCatalog.load();
+        this.frameCacheManager.load();
+        this.previewAtlas.load();
         this.userConfiguration = this.loadUserConfiguration();
+        this.metadataExtractor.setIdleTimeout(this.userConfiguration.getExifToolIdleTimeout());
+        this.dynamicWallpaperService.setMaxDecoderProcesses(this.userConfiguration.getMaxDecoderProcesses());
+        this.frameCacheManager.setQuotaBytes(this.userConfiguration.getFrameCacheQuotaBytes());
+        this.importPipeline = new ImportPipeline(this.dynamicWallpaperService,
+                                                 this.metadataExtractor,
+                                                 this.fileHashCache,
+                                                 new ThumbnailExtractor(this.processRunner),
+                                                 this.previewScheduler,
+                                                 this.libraryCatalog,
+                                                 this::addWallpaperDefinition,
+                                                 this.userConfiguration.getScanBatchSize());
+        // The verification of the hash cache may report a mismatch as soon as it's loaded, to the import pipeline
+        this.fileHashCache.setMismatchListener(this::onWallpaperContentMismatch);
+        this.fileHashCache.load();
 
         new Thread(this::loadWallpapersFromFolder).start();
 
-        final Timer timer = new Timer();
-        final Runnable refresh = this::refreshWallpaper;
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                refresh.run();
-            }
-        }, 500, REFRESH_DELAY_MS);
+        this.themeSource = Platform.isWindows() ? new RegistryThemeSource() : new StaticThemeSource(true);
+        this.phaseEvaluator.setLightThemeEnabled(this.themeSource.isLightThemeEnabled());
+        this.phaseEvaluator.setLocation(this.userConfiguration.getLatitude(), this.userConfiguration.getLongitude());
+        this.wallpaperScheduler.start();
+        Screen.getScreens().addListener((ListChangeListener<Screen>) change -> {
+            this.displaysChanged = true;
+            this.wallpaperScheduler.trigger("display");
+        });
+        this.themeSource.start(this::onThemeChanged);
 
         this.openAppWindow();
     }
@@ -171,7 +309,19 @@ public class HoawApplication extends Application {
      */
     @Override
     public void stop() {
+        this.wallpaperScheduler.close();
+        if (this.themeSource != null) {
+            this.themeSource.close();
+        }
+        LOG.info(() -> "Wallpaper scheduler: " + this.wallpaperScheduler.getMetrics());
+        this.processRunner.cancelAll();
+        LOG.info(() -> "External processes: " + this.processRunner.getMetrics());
         this.metadataExtractor.close();
+        this.previewScheduler.close();
+        this.fileHashCache.close();
+        this.fileHashCache.save();
+        this.frameCacheManager.save();
+        LOG.info(() -> "Frame cache: " + this.frameCacheManager.getMetrics());
         if (this.desktopWallpaperManager != null) {
             this.desktopWallpaperManager.Release();
             this.desktopWallpaperManager = null;
@@ -255,17 +405,105 @@ public class HoawApplication extends Application {
         );
     }
 
+    /**
+     * Computes the next transition of the selected wallpapers, across all monitors.
+     *
+     * @param now The current time.
+     * @return the instant of the next transition, or {@code null} if no selected wallpaper changes by itself.
+     */
+    @Nullable
+    private Instant computeNextTransition(final ZonedDateTime now) {
+        Instant next = null;
+        for (final DynWallSelection selection : this.userConfiguration.getWallpaperChoices().values()) {
+            final PhasePlan plan = this.getPhasePlan(selection.filename());
+            if (plan == null) {
+                continue;
+            }
+            final Instant transition = switch (selection.type()) {
+                case TIME -> {
+                    final long nextMillis =
+                        this.phaseEvaluator.getNextTimeTransition(plan, now.toInstant().toEpochMilli());
+                    yield (nextMillis != Long.MAX_VALUE) ? Instant.ofEpochMilli(nextMillis) : null;
+                }
+                case SOLAR -> Instant.ofEpochMilli(
+                    this.phaseEvaluator.getNextSolarTransition(plan, now.toInstant().toEpochMilli()));
+                // The theme changes are notified by the theme source
+                case APPEARANCE -> null;
+            };
+            if (transition != null && (next == null || transition.isBefore(next))) {
+                next = transition;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Handles a change of the system theme, from the notifying thread of the theme source. Only the monitors that
+     * show an appearance wallpaper are evaluated again; the other wallpapers don't depend on the theme, and the next
+     * transition of the scheduler doesn't change.
+     *
+     * @param lightThemeEnabled Whether the light or dark theme is enabled.
+     */
+    private void onThemeChanged(final boolean lightThemeEnabled) {
+        LOG.fine(() -> "The theme has changed, light theme: " + lightThemeEnabled);
+        this.phaseEvaluator.setLightThemeEnabled(lightThemeEnabled);
+        synchronized (this.refreshLock) {
+            this.refreshWallpaperLocked(DynWallType.APPEARANCE);
+        }
+    }
+
     private void refreshWallpaper() {
-        System.out.println("refreshWallpaper");
-        this.runtimeConfiguration = this.loadRuntimeConfiguration();
+        synchronized (this.refreshLock) {
+            this.refreshWallpaperLocked(null);
+        }
+    }
 
-        final CurrentEnvironment currentEnv = new CurrentEnvironment(
-            LocalTime.from(Instant.now().atZone(ZoneId.systemDefault())),
-            RegistryManager.isLightThemeEnabled(),
-            null,
-            null
-        );
-        final PhaseEvaluator evaluator = new PhaseEvaluator(currentEnv);
+    /**
+     * Refreshes the wallpapers. The frames of the monitors are evaluated first, without allocating; the wallpapers
+     * are only set if a frame has changed.
+     *
+     * @param onlyType The type of the wallpapers to evaluate, or {@code null} to evaluate all monitors. The monitors
+     *                 whose selection is of another type keep their applied frame.
+     */
+    private void refreshWallpaperLocked(@Nullable final DynWallType onlyType) {
+        if (this.displaysChanged) {
+            this.displaysChanged = false;
+            this.runtimeConfiguration = this.loadRuntimeConfiguration();
+            this.appliedPlans = new PhasePlan[0];
+        }
+        final List<RuntimeConfiguration.Monitor> monitors = this.runtimeConfiguration.monitors();
+        final int numberOfMonitors = monitors.size();
+        if (this.appliedPlans.length != numberOfMonitors) {
+            this.requestedPlans = new PhasePlan[numberOfMonitors];
+            this.requestedFrames = new short[numberOfMonitors];
+            this.appliedPlans = new PhasePlan[numberOfMonitors];
+            this.appliedFrames = new short[numberOfMonitors];
+            // No frame has been applied yet
+            Arrays.fill(this.appliedFrames, Short.MIN_VALUE);
+        }
+
+        final long now = System.currentTimeMillis();
+        boolean hasChanged = false;
+        for (int i = 0; i < numberOfMonitors; ++i) {
+            final DynWallSelection selection =
+                this.userConfiguration.getWallpaperChoices().get(monitors.get(i).devicePath());
+            if (onlyType != null && (selection == null || selection.type() != onlyType)) {
+                this.requestedPlans[i] = this.appliedPlans[i];
+                this.requestedFrames[i] = this.appliedFrames[i];
+                continue;
+            }
+            // The user may not have set a wallpaper for that screen, or it may not be in the library anymore
+            final PhasePlan plan = (selection != null) ? this.getPhasePlan(selection.filename()) : null;
+            this.requestedPlans[i] = plan;
+            this.requestedFrames[i] = (plan != null)
+                ? this.phaseEvaluator.evaluateFrame(plan, selection.type(), now)
+                : PhasePlan.NO_FRAME;
+            hasChanged |= (plan != this.appliedPlans[i] || this.requestedFrames[i] != this.appliedFrames[i]);
+        }
+        if (!hasChanged) {
+            return;
+        }
+        System.out.println("refreshWallpaper");
 
         // Create an instance to bind the COM channel to the current thread
         final WinNT.HRESULT result = Ole32.INSTANCE.CoInitializeEx(Pointer.NULL, Ole32.COINIT_MULTITHREADED);
@@ -273,178 +511,333 @@ public class HoawApplication extends Application {
         DesktopWallpaperManager manager = null;
         try {
             manager = DesktopWallpaperManager.create();
-            for (final RuntimeConfiguration.Monitor monitor : this.runtimeConfiguration.monitors()) {
-                final DynWallSelection selection =
-                    this.userConfiguration.getWallpaperChoices().get(monitor.devicePath());
-                if (selection == null) {
-                    // The user has not set a wallpaper for that screen
+            for (int i = 0; i < numberOfMonitors; ++i) {
+                final PhasePlan plan = this.requestedPlans[i];
+                final short requestedFrame = this.requestedFrames[i];
+                if (plan == this.appliedPlans[i] && requestedFrame == this.appliedFrames[i]) {
                     continue;
                 }
-
-                // Find the definition of the given wallpaper
-                final DynWallDefinition definition = this.wallpaperDefinitions.stream()
-                    .filter(otherDefinition -> selection.filename().equals(otherDefinition.filename()))
-                    .findAny().orElse(null);
-                if (definition == null) {
-                    // Can't find, must delete from choice
+                if (plan == null || requestedFrame == PhasePlan.NO_FRAME) {
+                    this.appliedPlans[i] = plan;
+                    this.appliedFrames[i] = requestedFrame;
                     continue;
                 }
-                final String fileHash = definition.fileHash();
 
-                final int requestedFrame = switch (selection.type()) {
-                    case APPEARANCE -> {
-                        assert definition.appearancePhase() != null;
-                        yield evaluator.evaluateAppearanceFrame(definition.appearancePhase());
-                    }
-                    case SOLAR -> {
-                        assert definition.solarPhases() != null;
-                        yield evaluator.evaluateSolarFrame(definition.solarPhases());
-                    }
-                    case TIME -> {
-                        assert definition.timePhases() != null;
-                        yield evaluator.evaluateTimeFrame(definition.timePhases());
-                    }
-                };
-                final String frameFilename = String.format("%s-%d.jpg",
-                                                           fileHash.substring(0, fileHash.length() - 5),
-                                                           requestedFrame);
+                final DynWallDefinition definition = plan.getDefinition();
                 final File wallpaperFile = Path.of(this.userConfiguration.getWallpaperFolderPath())
-                    .resolve(fileHash)
+                    .resolve(definition.filename())
                     .toFile();
-                final String hash = FileSystemService.sha256File(wallpaperFile);
-                final Path framePath = FileSystemService.getDataPath()
-                    .resolve(hash)
-                    .resolve(frameFilename);
-                if (!framePath.toFile().exists()) {
-                    LOG.warning("The frame path does not exist");
+                final String hash = this.fileHashCache.getIdentity(wallpaperFile);
+                final Path framePath = this.ensureFrameIsExtracted(wallpaperFile,
+                                                                   hash,
+                                                                   definition.numberOfFrames(),
+                                                                   requestedFrame);
+                this.extractRemainingFramesInBackground(wallpaperFile, hash, definition.numberOfFrames());
+                if (framePath == null) {
+                    // It will be tried again at the next refresh
+                    LOG.warning("The frame can't be extracted");
                     continue;
                 }
 
-                final String monitorPath = manager.getMonitorDevicePathAt(monitor.index());
+                final String monitorPath = manager.getMonitorDevicePathAt(monitors.get(i).index());
                 final Path currentWallpaper = Path.of(manager.getJpgWallpaper(monitorPath));
                 if (framePath.equals(currentWallpaper)) {
                     LOG.finest("The requested frame is already used");
-                    continue;
+                } else {
+                    System.out.println("Setting wallpaper: " + framePath);
+                    manager.setJpgWallpaper(monitorPath, framePath);
                 }
-                System.out.println("Setting wallpaper: " + framePath);
-                manager.setJpgWallpaper(monitorPath, framePath);
+                this.appliedPlans[i] = plan;
+                this.appliedFrames[i] = requestedFrame;
             }
         } finally {
             if (manager != null) {
                 manager.Release();
             }
             Ole32.INSTANCE.CoUninitialize();
+            this.fileHashCache.save();
         }
+        this.enforceFrameCacheQuota();
+        LOG.fine(() -> "File hash cache: " + this.fileHashCache.getHits() + " hits, "
+            + this.fileHashCache.getMisses() + " misses");
     }
 
     private void loadWallpapersFromFolder() {
-        // First, we load wallpaper definitions from the cache
-        final List<DynWallDefinition> allDefinitions = new ArrayList<>(8);
+        // First, we load wallpaper definitions from the library catalog
+        if (this.libraryCatalog.isEmpty()) {
+            this.migrateCachedDefinitions();
+        }
+        // Their details are only decoded when they're needed
+        final List<DynWallSummary> allSummaries = this.libraryCatalog.getSummaries().stream()
+            .map(LibraryCatalog.Summary::toWallpaperSummary)
+            .toList();
+        this.addWallpaperSummaries(allSummaries);
+        allSummaries.forEach(summary -> this.frameCacheManager.track(summary.fileHash(), summary.numberOfFrames()));
+        final Set<String> cachedFilenames = allSummaries.stream()
+            .map(DynWallSummary::filename)
+            .collect(Collectors.toSet());
+
+        // Then, we list the file in the source folder
+        final List<File> wallpaperToExtract = new ArrayList<>(8);
+        try (final var stream = FileSystemService.findHeicFilesInPath(Path.of(this.getUserConfiguration().getWallpaperFolderPath()))) {
+            stream.parallel()
+                .map(Path::toFile)
+                .filter(file -> !cachedFilenames.contains(file.getName()))
+                .forEach(wallpaperToExtract::add);
+        } catch (final IOException exception) {
+            LOG.warning(exception.toString());
+            exception.printStackTrace(System.out);
+        }
+
+        // We import the wallpapers that are not in the cache
+        try {
+            final ImportPipeline.Report report = this.runImport(wallpaperToExtract);
+            for (final ImportPipeline.Failure failure : report.failures()) {
+                if (failure.cause() != null) {
+                    failure.cause().printStackTrace(System.out);
+                }
+            }
+        } catch (final InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        } finally {
+            this.fileHashCache.save();
+        }
+
+        // The frames of the imported wallpapers are not needed anymore, once their previews and pyramids exist
+        this.enforceFrameCacheQuota();
+        this.wallpaperScheduler.trigger("library");
+        this.submitMissingPreviews(allSummaries);
+    }
+
+    /**
+     * Pins the frames of the selected wallpapers in the frame cache, and evicts other frames if the quota is
+     * exceeded.
+     */
+    private void enforceFrameCacheQuota() {
+        final Set<String> selectedFilenames = this.userConfiguration.getWallpaperChoices().values().stream()
+            .map(DynWallSelection::filename)
+            .collect(Collectors.toSet());
+        final List<String> selectedHashes;
+        synchronized (this) {
+            selectedHashes = this.wallpaperSummaries.stream()
+                .filter(summary -> selectedFilenames.contains(summary.filename()))
+                .map(DynWallSummary::fileHash)
+                .toList();
+        }
+        this.frameCacheManager.setPinned(selectedHashes);
+        this.frameCacheManager.enforceQuota();
+        this.frameCacheManager.save();
+    }
+
+    /**
+     * Moves the definitions that have been cached by a previous version of the application, in a definition file per
+     * cache directory, to the library catalog. It's only done when the catalog is empty.
+     */
+    private void migrateCachedDefinitions() {
+        final Map<String, CachedDynWallDefinition> definitions = new ConcurrentHashMap<>(64);
         try (final Stream<Path> stream = Files.list(FileSystemService.getDataPath())) {
             stream.parallel()
-                .filter(path -> path.toFile().isDirectory())
                 .filter(path -> path.resolve(FileSystemService.CACHE_DEFINITION_FILE_NAME).toFile().isFile())
-                .map(path -> {
+                .forEach(path -> {
                     try {
-                        final String hash = path.toFile().getName();
                         final String content = Files.readString(path.resolve(FileSystemService.CACHE_DEFINITION_FILE_NAME),
                                                                 StandardCharsets.UTF_8);
-                        final CachedDynWallDefinition cached = this.gson.fromJson(content,
-                                                                                  CachedDynWallDefinition.class);
-                        return cached.toDynamicWallpaperDefinition(hash);
+                        definitions.put(path.toFile().getName(),
+                                        this.gson.fromJson(content, CachedDynWallDefinition.class));
                     } catch (final Exception exception) {
                         LOG.warning(exception.toString());
                         exception.printStackTrace(System.out);
-                        return null;
                     }
-                })
-                .filter(Objects::nonNull)
-                .forEach(definition -> {
-                    allDefinitions.add(definition);
-                    this.addWallpaperDefinition(definition);
                 });
+            this.libraryCatalog.putAll(definitions);
         } catch (final IOException exception) {
             LOG.warning(exception.toString());
             exception.printStackTrace(System.out);
         }
-        final Set<String> cachedFilenames = allDefinitions.parallelStream()
-            .map(DynWallDefinition::filename)
-            .collect(Collectors.toSet());
+        LOG.info(() -> "Migrated " + definitions.size() + " cached definitions to the library catalog");
+    }
 
-        // Then, we list the file in the source folder
-        final List<File> wallpaperToExtract = new ArrayList<>(8);
-        try (final var stream = FileSystemService.findHeicFilesInPath(Path.of(this.getUserConfiguration().getWallpaperFolderPath()))) {
-            stream.parallel()
-                .map(Path::toFile)
-                .filter(file -> !cachedFilenames.contains(file.getName()))
-                .forEach(wallpaperToExtract::add);
+    /**
+     * Repairs the previews of the cached wallpapers in the background, after the import of the new files: the previews
+     * that are missing in the atlas (e.g. generated by a previous version) are added to it, and the wallpapers that
+     * have none (e.g. it has been deleted) are generated again, one after the other, after having decoded their
+     * definitions and extracted their evicted frames. The list is refreshed after each repaired preview, to show it.
+     */
+    private void submitMissingPreviews(final List<DynWallSummary> summaries) {
+        for (final DynWallSummary summary : summaries) {
+            final Path previewPath = FileSystemService.getDataPath()
+                .resolve(summary.fileHash())
+                .resolve(FileSystemService.PREVIEW_FILE_NAME);
+            if (previewPath.toFile().isFile() && this.previewAtlas.contains(summary.fileHash())) {
+                continue;
+            }
+            this.frameExtractionExecutor.execute(() -> {
+                try {
+                    if (previewPath.toFile().isFile()) {
+                        try {
+                            this.previewAtlas.putFile(summary.fileHash(), previewPath);
+                            EventBus.getDefault().post(new WallpaperDefinitionsChanged());
+                            return;
+                        } catch (final IOException exception) {
+                            LOG.warning(() -> "Unable to add the preview of " + summary.filename()
+                                + " to the atlas: " + exception);
+                        }
+                    }
+                    final DynWallDefinition definition = this.libraryCatalog.getDefinition(summary.fileHash());
+                    if (definition == null) {
+                        return;
+                    }
+                    this.frameCacheManager.holdEviction();
+                    try {
+                        this.ensureFramesAreExtracted(definition);
+                        this.previewScheduler.generate(definition);
+                    } finally {
+                        this.frameCacheManager.releaseEviction();
+                    }
+                    EventBus.getDefault().post(new WallpaperDefinitionsChanged());
+                } catch (final InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                } catch (final IOException | RuntimeException exception) {
+                    LOG.warning(() -> "Unable to generate the preview of " + summary.filename() + ": "
+                        + exception);
+                }
+            });
+        }
+    }
+
+    /**
+     * Called from the hash verification thread when the provisional identity of a wallpaper file was wrong. Its
+     * definition, which was borrowed from another content, is replaced by a fresh import.
+     */
+    private void onWallpaperContentMismatch(final File heicFile) {
+        this.removeWallpaperDefinition(heicFile.getName());
+        try {
+            this.runImport(List.of(heicFile));
+        } catch (final InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        this.enforceFrameCacheQuota();
+    }
+
+    /**
+     * Runs the import pipeline. The frame cache eviction is held meanwhile, so that the refreshes don't evict the
+     * frames that the pipeline has just extracted, before it generates their previews.
+     */
+    private ImportPipeline.Report runImport(final List<File> files) throws InterruptedException {
+        this.frameCacheManager.holdEviction();
+        try {
+            return this.importPipeline.run(files);
+        } finally {
+            this.frameCacheManager.releaseEviction();
+        }
+    }
+
+    /**
+     * Returns the path of a frame, after having extracted it if needed (e.g. it has been evicted from the frame
+     * cache).
+     *
+     * @return the frame path, or {@code null} if it can't be extracted.
+     */
+    @Nullable
+    private Path ensureFrameIsExtracted(final File wallpaperFile,
+                                        final String hash,
+                                        final int numberOfFrames,
+                                        final int frameIndex) {
+        try {
+            return this.frameCacheManager.getFrame(wallpaperFile, hash, numberOfFrames, frameIndex);
+        } catch (final InterruptedException exception) {
+            Thread.currentThread().interrupt();
         } catch (final IOException exception) {
             LOG.warning(exception.toString());
-            exception.printStackTrace(System.out);
         }
+        return null;
+    }
 
-        // We compare and find wallpapers that have not been extracted
+    /**
+     * Extracts again the frames of a wallpaper that have been evicted from the frame cache.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting for ImageMagick.
+     */
+    private void ensureFramesAreExtracted(final DynWallDefinition definition) throws InterruptedException {
+        final File wallpaperFile = Path.of(this.userConfiguration.getWallpaperFolderPath())
+            .resolve(definition.filename())
+            .toFile();
         try {
-            this.metadataExtractor.start();
-            // TODO: parallel
-            for (final File heicFile : wallpaperToExtract) {
-                final var definition = this.dynamicWallpaperService.loadDefinitionFromFile(heicFile);
-
-                final Path cacheDirectory = FileSystemService.getDataPath().resolve(definition.fileHash());
-                cacheDirectory.toFile().mkdirs();
-
-                // Extract the wallpaper
-                this.dynamicWallpaperService.extract(heicFile, definition.fileHash());
-
-                // Create the thumbnail
-                final BufferedImage previewImage = PreviewGenerator.generate(definition);
-                final File previewFile = cacheDirectory.resolve("preview.png").toFile();
-                ImageIO.write(previewImage, "png", previewFile);
-
-                // Put the definition in a cache
-                final var cacheWallpaperDefinition =
-                    CachedDynWallDefinition.fromDynamicWallpaperDefinition(definition);
-                final Path cacheDefinitionFile = cacheDirectory.resolve("definition.json");
-                Files.writeString(cacheDefinitionFile,
-                                  this.gson.toJson(cacheWallpaperDefinition),
-                                  StandardOpenOption.WRITE,
-                                  StandardOpenOption.TRUNCATE_EXISTING,
-                                  StandardOpenOption.CREATE);
-
-                this.addWallpaperDefinition(definition);
-            }
-        } catch (final Exception exception) {
+            this.frameCacheManager.ensureFrames(wallpaperFile, definition.fileHash(), definition.numberOfFrames());
+        } catch (final IOException exception) {
             LOG.warning(exception.toString());
-            exception.printStackTrace(System.out);
-        } finally {
-            this.metadataExtractor.close();
         }
     }
 
-    private void ensureWallpaperIsExtracted(final String wallpaperFilename) {
-        System.out.println("ensureWallpaperIsExtracted");
-        final File dynamicWallpaperFile =
-            Path.of(this.userConfiguration.getWallpaperFolderPath()).resolve(wallpaperFilename).toFile();
-        if (!dynamicWallpaperFile.isFile() || !dynamicWallpaperFile.canRead()) {
-            LOG.info(() -> "The wallpaper at ' " + dynamicWallpaperFile.getAbsolutePath() + " ' is not readable");
-            return;
-        }
-        final String hash = FileSystemService.sha256File(dynamicWallpaperFile);
-        final File extractionFolder = FileSystemService.getDataPath().resolve(hash).toFile();
-        if (extractionFolder.exists()) {
+    /**
+     * Generates the missing levels of the frame pyramids of a wallpaper in the background, after having extracted its
+     * evicted frames.
+     */
+    public void submitPyramids(final DynWallDefinition definition) {
+        this.frameExtractionExecutor.execute(() -> {
+            try {
+                this.frameCacheManager.holdEviction();
+                try {
+                    this.ensureFramesAreExtracted(definition);
+                    this.previewScheduler.generatePyramids(definition);
+                } finally {
+                    this.frameCacheManager.releaseEviction();
+                }
+            } catch (final InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            } catch (final IOException exception) {
+                LOG.warning(() -> "Unable to generate the frame pyramids of " + definition.filename() + ": "
+                    + exception);
+            }
+        });
+    }
+
+    /**
+     * Simulates the upcoming transitions of a dynamic wallpaper, in the current environment.
+     *
+     * @param definition The definition of the dynamic wallpaper.
+     * @param horizon    The duration of the simulation.
+     * @return the timelines of each type of the definition.
+     */
+    public List<ScheduleSimulator.Timeline> simulateUpcomingTransitions(final DynWallDefinition definition,
+                                                                        final Duration horizon) {
+        final var simulator = new ScheduleSimulator(Clock.systemDefaultZone(),
+                                                    this.userConfiguration.getLatitude(),
+                                                    this.userConfiguration.getLongitude(),
+                                                    this.phaseEvaluator.isLightThemeEnabled());
+        return simulator.simulateUpcoming(List.of(definition), horizon);
+    }
+
+    /**
+     * Extracts the other frames of a wallpaper in the background, if it's not already being done.
+     */
+    private void extractRemainingFramesInBackground(final File wallpaperFile,
+                                                    final String hash,
+                                                    final int numberOfFrames) {
+        if (!this.backgroundFrameExtractions.add(hash)) {
             return;
         }
-        try {
-            this.dynamicWallpaperService.extract(dynamicWallpaperFile, hash);
-        } catch (final Exception exception) {
-            Utils.showException(exception);
-        }
+        this.frameExtractionExecutor.execute(() -> {
+            try {
+                this.dynamicWallpaperService.extractMissingFrames(wallpaperFile, hash, numberOfFrames);
+            } catch (final InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            } catch (final IOException exception) {
+                LOG.warning(exception.toString());
+            } finally {
+                this.backgroundFrameExtractions.remove(hash);
+            }
+        });
     }
 
     public MetadataExtractor getMetadataExtractor() {
         return this.metadataExtractor;
     }
 
+    public FileHashCache getFileHashCache() {
+        return this.fileHashCache;
+    }
+
     public DynamicWallpaperService getDynamicWallpaperService() {
         return this.dynamicWallpaperService;
     }
@@ -465,8 +858,28 @@ public class HoawApplication extends Application {
         return this.desktopWallpaperManager;
     }
 
-    public ObservableList<DynWallDefinition> getWallpaperDefinitions() {
-        return this.wallpaperDefinitions;
+    public PreviewAtlas getPreviewAtlas() {
+        return this.previewAtlas;
+    }
+
+    public PreviewScheduler getPreviewScheduler() {
+        return this.previewScheduler;
+    }
+
+    public ObservableList<DynWallSummary> getWallpaperSummaries() {
+        return this.wallpaperSummaries;
+    }
+
+    /**
+     * Returns the definition of a wallpaper, after having decoded it if needed, or {@code null} if it's not in the
+     * library.
+     *
+     * @param filename The wallpaper filename.
+     */
+    @Nullable
+    public DynWallDefinition getWallpaperDefinition(final String filename) {
+        final PhasePlan plan = this.getPhasePlan(filename);
+        return (plan != null) ? plan.getDefinition() : null;
     }
 
     public void setWallpaperFolderPath(final String wallpaperFolderPath) {
@@ -481,12 +894,88 @@ public class HoawApplication extends Application {
             LOG.info(() -> "The wallpaper filename '" + wallpaperFilename + "' is not present in the folder");
             return;
         }*/
-        this.ensureWallpaperIsExtracted(selection.filename());
         this.userConfiguration.getWallpaperChoices().put(monitorDevicePath, selection);
+        // Apply it now: only the current frame is extracted before, the others follow in the background
+        this.wallpaperScheduler.trigger("wallpaper choice");
     }
 
+    /**
+     * Adds a wallpaper definition, or replaces the definition of the same file (e.g. a definition published early
+     * during its import).
+     */
     public synchronized void addWallpaperDefinition(final DynWallDefinition definition) {
-        this.wallpaperDefinitions.add(definition);
+        final DynWallSummary summary = DynWallSummary.of(definition);
+        final int index = this.indexOfWallpaper(definition.filename());
+        if (index >= 0) {
+            this.wallpaperSummaries.set(index, summary);
+        } else {
+            this.wallpaperSummaries.add(summary);
+        }
+        this.phasePlans.put(definition.filename(), PhasePlan.compile(definition));
+        EventBus.getDefault().post(new WallpaperDefinitionsChanged());
+    }
+
+    /**
+     * Adds the summaries of many wallpapers at once, or replaces the summaries of the same files. Their definitions
+     * will be decoded when they're needed.
+     */
+    public synchronized void addWallpaperSummaries(final Collection<DynWallSummary> summaries) {
+        final Map<String, DynWallSummary> byFilename =
+            new LinkedHashMap<>(this.wallpaperSummaries.size() + summaries.size());
+        this.wallpaperSummaries.forEach(summary -> byFilename.put(summary.filename(), summary));
+        for (final DynWallSummary summary : summaries) {
+            byFilename.put(summary.filename(), summary);
+            this.phasePlans.remove(summary.filename());
+        }
+        this.wallpaperSummaries.setAll(byFilename.values());
         EventBus.getDefault().post(new WallpaperDefinitionsChanged());
     }
+
+    public synchronized void removeWallpaperDefinition(final String filename) {
+        this.phasePlans.remove(filename);
+        if (this.wallpaperSummaries.removeIf(summary -> filename.equals(summary.filename()))) {
+            EventBus.getDefault().post(new WallpaperDefinitionsChanged());
+        }
+    }
+
+    /**
+     * Returns the phase plan of a wallpaper, after having decoded its definition and compiled it if needed, or
+     * {@code null} if it's not in the library.
+     *
+     * @param filename The wallpaper filename.
+     */
+    @Nullable
+    private PhasePlan getPhasePlan(final String filename) {
+        final PhasePlan plan = this.phasePlans.get(filename);
+        if (plan != null) {
+            return plan;
+        }
+        final String fileHash;
+        synchronized (this) {
+            final int index = this.indexOfWallpaper(filename);
+            if (index < 0) {
+                return null;
+            }
+            fileHash = this.wallpaperSummaries.get(index).fileHash();
+        }
+        final DynWallDefinition definition = this.libraryCatalog.getDefinition(fileHash);
+        if (definition == null) {
+            return null;
+        }
+        // The catalog stores a single definition per content, that may be of another file
+        return this.phasePlans.computeIfAbsent(filename, key -> PhasePlan.compile(
+            filename.equals(definition.filename()) ? definition : definition.withFilename(filename)));
+    }
+
+    /**
+     * Returns the index of a wallpaper in the summaries, or -1. The caller shall hold the lock of this instance.
+     */
+    private int indexOfWallpaper(final String filename) {
+        for (int i = 0; i < this.wallpaperSummaries.size(); ++i) {
+            if (filename.equals(this.wallpaperSummaries.get(i).filename())) {
+                return i;
+            }
+        }
+        return -1;
+    }
 }
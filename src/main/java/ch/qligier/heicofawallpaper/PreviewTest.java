@@ -2,9 +2,12 @@ package ch.qligier.heicofawallpaper;
 
 import ch.qligier.heicofawallpaper.model.DynWallDefinition;
 import ch.qligier.heicofawallpaper.service.DynamicWallpaperService;
+import ch.qligier.heicofawallpaper.service.FileHashCache;
 import ch.qligier.heicofawallpaper.service.FileSystemService;
 import ch.qligier.heicofawallpaper.utils.heic.MetadataExtractor;
 import ch.qligier.heicofawallpaper.utils.heic.PreviewGenerator;
+import ch.qligier.heicofawallpaper.utils.process.ProcessRunner;
+import com.google.gson.Gson;
 
 import java.io.File;
 
@@ -23,7 +26,10 @@ public class PreviewTest {
 
         final MetadataExtractor metadataExtractor = new MetadataExtractor();
         metadataExtractor.start();
-        final DynamicWallpaperService dynamicWallpaperService = new DynamicWallpaperService(metadataExtractor);
+        final FileHashCache fileHashCache = new FileHashCache(FileSystemService.getFileHashCachePath(), new Gson());
+        final DynamicWallpaperService dynamicWallpaperService = new DynamicWallpaperService(metadataExtractor,
+                                                                                            fileHashCache,
+                                                                                            new ProcessRunner());
 
         final File heicFile = new File(
             "D:\\Programmation\\Java\\HeicOfAWallpaper\\src\\main\\resources\\heic\\Catalina.heic");
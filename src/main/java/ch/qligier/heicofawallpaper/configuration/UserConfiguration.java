@@ -1,7 +1,9 @@
 package ch.qligier.heicofawallpaper.configuration;
 
 import ch.qligier.heicofawallpaper.model.DynWallSelection;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
+import java.time.Duration;
 import java.util.Map;
 import java.util.Objects;
 
@@ -18,11 +20,60 @@ public class UserConfiguration {
      */
     private final Map<String, DynWallSelection> wallpaperChoices;
 
+    /**
+     * The default number of files whose metadata are read together during a folder scan.
+     */
+    public static final int DEFAULT_SCAN_BATCH_SIZE = 64;
+
+    /**
+     * The default idle period, in seconds, after which the ExifTool pool is closed.
+     */
+    public static final int DEFAULT_EXIFTOOL_IDLE_TIMEOUT_S = 300;
+
+    /**
+     * The default disk quota, in megabytes, of the extracted frames.
+     */
+    public static final int DEFAULT_FRAME_CACHE_QUOTA_MB = 2048;
+
     /**
      *
      */
     private String wallpaperFolderPath;
 
+    /**
+     * The number of files whose metadata are read together during a folder scan, or 0 for the default value.
+     */
+    private int scanBatchSize;
+
+    /**
+     * The idle period, in seconds, after which the ExifTool pool is closed, or 0 for the default value.
+     */
+    private int exifToolIdleTimeoutS;
+
+    /**
+     * The maximum number of decoder processes that extract the frames of one wallpaper, or 0 for the default value
+     * (half of the available cores).
+     */
+    private int maxDecoderProcesses;
+
+    /**
+     * The disk quota, in megabytes, of the extracted frames, or 0 for the default value.
+     */
+    private int frameCacheQuotaMb;
+
+    /**
+     * The latitude of the user location, in degrees (positive to the north), or {@code null} if it's unknown. It's
+     * used to compute the sun position for the solar wallpapers.
+     */
+    @Nullable
+    private Double latitude;
+
+    /**
+     * The longitude of the user location, in degrees (positive to the east), or {@code null} if it's unknown.
+     */
+    @Nullable
+    private Double longitude;
+
     /**
      * Constructor.
      *
@@ -42,6 +93,67 @@ public class UserConfiguration {
         this.wallpaperFolderPath = wallpaperFolderPath;
     }
 
+    public int getScanBatchSize() {
+        return this.scanBatchSize > 0 ? this.scanBatchSize : DEFAULT_SCAN_BATCH_SIZE;
+    }
+
+    public void setScanBatchSize(final int scanBatchSize) {
+        this.scanBatchSize = scanBatchSize;
+    }
+
+    public Duration getExifToolIdleTimeout() {
+        return Duration.ofSeconds(this.exifToolIdleTimeoutS > 0
+                                      ? this.exifToolIdleTimeoutS : DEFAULT_EXIFTOOL_IDLE_TIMEOUT_S);
+    }
+
+    public void setExifToolIdleTimeout(final Duration exifToolIdleTimeout) {
+        this.exifToolIdleTimeoutS = (int) exifToolIdleTimeout.toSeconds();
+    }
+
+    public int getMaxDecoderProcesses() {
+        return this.maxDecoderProcesses > 0
+            ? this.maxDecoderProcesses : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    }
+
+    public void setMaxDecoderProcesses(final int maxDecoderProcesses) {
+        this.maxDecoderProcesses = maxDecoderProcesses;
+    }
+
+    public long getFrameCacheQuotaBytes() {
+        return 1024L * 1024 * (this.frameCacheQuotaMb > 0 ? this.frameCacheQuotaMb : DEFAULT_FRAME_CACHE_QUOTA_MB);
+    }
+
+    public void setFrameCacheQuotaMb(final int frameCacheQuotaMb) {
+        this.frameCacheQuotaMb = frameCacheQuotaMb;
+    }
+
+    @Nullable
+    public Double getLatitude() {
+        return this.latitude;
+    }
+
+    @Nullable
+    public Double getLongitude() {
+        return this.longitude;
+    }
+
+    /**
+     * Sets the user location.
+     *
+     * @param latitude  The latitude, in degrees (positive to the north), or {@code null}.
+     * @param longitude The longitude, in degrees (positive to the east), or {@code null}.
+     */
+    public void setLocation(@Nullable final Double latitude, @Nullable final Double longitude) {
+        if (latitude != null && (latitude < -90 || latitude > 90)) {
+            throw new IllegalArgumentException("The latitude must be between -90 and 90 degrees");
+        }
+        if (longitude != null && (longitude < -180 || longitude > 180)) {
+            throw new IllegalArgumentException("The longitude must be between -180 and 180 degrees");
+        }
+        this.latitude = latitude;
+        this.longitude = longitude;
+    }
+
     public Map<String, DynWallSelection> getWallpaperChoices() {
         return this.wallpaperChoices;
     }
@@ -0,0 +1,15 @@
+package ch.qligier.heicofawallpaper.exception;
+
+import java.io.IOException;
+
+/**
+ * Exception thrown, when an external process has not completed within its timeout. The process has been killed.
+ *
+ * @author Quentin Ligier
+ **/
+public class ProcessTimeoutException extends IOException {
+
+    public ProcessTimeoutException(final String message) {
+        super(message);
+    }
+}
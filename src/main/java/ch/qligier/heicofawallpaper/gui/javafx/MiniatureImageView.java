@@ -4,14 +4,15 @@ import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 
 /**
- * A specialisation of the JavaFX ImageView that displays a miniature of a given image path.
+ * A specialisation of the JavaFX ImageView that displays a miniature of a given image path. The image is loaded in the
+ * background, it's displayed once decoded.
  *
  * @author Quentin Ligier
  **/
 public class MiniatureImageView extends ImageView {
 
     public MiniatureImageView(final String imagePath, final int width, final int height) {
-        super(new Image(imagePath, width, height, false, true, false));
+        super(new Image(imagePath, width, height, false, true, true));
         this.setFitWidth(width);
         this.setFitHeight(height);
     }
@@ -0,0 +1,133 @@
+package ch.qligier.heicofawallpaper.gui.javafx;
+
+import ch.qligier.heicofawallpaper.service.PreviewAtlas;
+import ch.qligier.heicofawallpaper.utils.heic.PreviewGenerator;
+import javafx.application.Platform;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelBuffer;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * The JavaFX images of the preview atlas pages. Each page is a {@link WritableImage} backed by a {@link PixelBuffer}
+ * that wraps the mapped page file: the previews are displayed through viewports of the page images, without copy nor
+ * decoding. The images are updated when a preview is put in the atlas: the pixels of a displayed page are only written
+ * in the {@link PixelBuffer#updateBuffer} callback, on the JavaFX application thread.
+ * <p>
+ * It shall only be used from the JavaFX application thread.
+ *
+ * @author Quentin Ligier
+ **/
+public class PreviewAtlasImages {
+    private static final Logger LOG = Logger.getLogger("PreviewAtlasImages");
+
+    private final PreviewAtlas previewAtlas;
+
+    /**
+     * The pixel buffers of the pages that have been displayed, keyed by page number.
+     */
+    private final Map<Integer, PixelBuffer<IntBuffer>> pixelBuffers = new HashMap<>(4);
+
+    /**
+     * The images of the pages that have been displayed, keyed by page number.
+     */
+    private final Map<Integer, WritableImage> images = new HashMap<>(4);
+
+    /**
+     * Constructor. It listens to the atlas updates until it's closed.
+     *
+     * @param previewAtlas The preview atlas.
+     */
+    public PreviewAtlasImages(final PreviewAtlas previewAtlas) {
+        this.previewAtlas = previewAtlas;
+        this.previewAtlas.setSlotWriter(this::writeSlot);
+    }
+
+    /**
+     * Shows the preview of a wallpaper content in an image view, or clears the view if the atlas does not contain it.
+     *
+     * @param imageView The image view.
+     * @param fileHash  The wallpaper file hash.
+     */
+    public void show(final ImageView imageView, final String fileHash) {
+        final PreviewAtlas.Slot slot = this.previewAtlas.getSlot(fileHash);
+        final WritableImage image = (slot != null) ? this.getPageImage(slot.page()) : null;
+        if (slot == null || image == null) {
+            imageView.setImage(null);
+            return;
+        }
+        imageView.setImage(image);
+        imageView.setViewport(new Rectangle2D(slot.x(), slot.y(), PreviewGenerator.WIDTH, PreviewGenerator.HEIGHT));
+    }
+
+    /**
+     * Stops listening to the atlas updates.
+     */
+    public void close() {
+        this.previewAtlas.setSlotWriter(null);
+    }
+
+    /**
+     * Returns the image of a page, that is created if needed, or {@code null} if the page can't be mapped.
+     */
+    @Nullable
+    private WritableImage getPageImage(final int page) {
+        final WritableImage image = this.images.get(page);
+        if (image != null) {
+            return image;
+        }
+        try {
+            final PixelBuffer<IntBuffer> pixelBuffer = new PixelBuffer<>(PreviewAtlas.PAGE_WIDTH,
+                                                                         PreviewAtlas.PAGE_HEIGHT,
+                                                                         this.previewAtlas.getPagePixels(page),
+                                                                         PixelFormat.getIntArgbPreInstance());
+            final WritableImage pageImage = new WritableImage(pixelBuffer);
+            this.pixelBuffers.put(page, pixelBuffer);
+            this.images.put(page, pageImage);
+            return pageImage;
+        } catch (final IOException exception) {
+            LOG.warning("Unable to map the preview atlas page " + page + ": " + exception);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the pixels of a slot from the JavaFX application thread, without waiting for the write: the thread that
+     * puts the preview in the atlas may block the JavaFX application thread (e.g. a folder import).
+     */
+    private void writeSlot(final PreviewAtlas.Slot slot, final Runnable write) {
+        if (Platform.isFxApplicationThread()) {
+            this.writeSlotInFxThread(slot, write);
+            return;
+        }
+        try {
+            Platform.runLater(() -> this.writeSlotInFxThread(slot, write));
+        } catch (final IllegalStateException exception) {
+            // The JavaFX toolkit has exited, nothing displays the page anymore
+            write.run();
+        }
+    }
+
+    /**
+     * Writes the pixels of a slot, in the update callback of its page buffer if the page is displayed.
+     */
+    private void writeSlotInFxThread(final PreviewAtlas.Slot slot, final Runnable write) {
+        final PixelBuffer<IntBuffer> pixelBuffer = this.pixelBuffers.get(slot.page());
+        if (pixelBuffer == null) {
+            write.run();
+            return;
+        }
+        pixelBuffer.updateBuffer(buffer -> {
+            write.run();
+            return new Rectangle2D(slot.x(), slot.y(), PreviewGenerator.WIDTH, PreviewGenerator.HEIGHT);
+        });
+    }
+}
@@ -2,8 +2,8 @@ package ch.qligier.heicofawallpaper.gui.main;
 
 import ch.qligier.heicofawallpaper.HoawApplication;
 import ch.qligier.heicofawallpaper.configuration.RuntimeConfiguration;
-import ch.qligier.heicofawallpaper.model.DynWallDefinition;
 import ch.qligier.heicofawallpaper.model.DynWallSelection;
+import ch.qligier.heicofawallpaper.model.DynWallSummary;
 import ch.qligier.heicofawallpaper.model.DynWallType;
 import ch.qligier.heicofawallpaper.utils.Utils;
 import javafx.fxml.FXML;
@@ -48,8 +48,8 @@ public class ScreensTab extends AbstractContentTab {
 
     @FXML
     protected void onListRefresh() {
-        final Set<String> heicFilenames = this.app.getWallpaperDefinitions().stream()
-            .map(DynWallDefinition::filename)
+        final Set<String> heicFilenames = this.app.getWallpaperSummaries().stream()
+            .map(DynWallSummary::filename)
             .collect(Collectors.toSet());
         final var choices = this.app.getUserConfiguration().getWallpaperChoices();
 
@@ -1,12 +1,11 @@
 package ch.qligier.heicofawallpaper.gui.main;
 
 import ch.qligier.heicofawallpaper.HoawApplication;
-import ch.qligier.heicofawallpaper.gui.javafx.MiniatureImageView;
+import ch.qligier.heicofawallpaper.gui.javafx.PreviewAtlasImages;
 import ch.qligier.heicofawallpaper.gui.javafx.SvgUtils;
 import ch.qligier.heicofawallpaper.gui.wallpaper_detail.WallpaperDetailWindow;
-import ch.qligier.heicofawallpaper.model.DynWallDefinition;
+import ch.qligier.heicofawallpaper.model.DynWallSummary;
 import ch.qligier.heicofawallpaper.model.events.WallpaperDefinitionsChanged;
-import ch.qligier.heicofawallpaper.service.FileSystemService;
 import ch.qligier.heicofawallpaper.utils.Utils;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
@@ -28,7 +27,6 @@ import org.greenrobot.eventbus.Subscribe;
 import org.greenrobot.eventbus.ThreadMode;
 
 import java.io.File;
-import java.nio.file.Path;
 import java.util.function.Function;
 import java.util.logging.Logger;
 
@@ -41,6 +39,10 @@ import java.util.logging.Logger;
 public class WallpapersTab extends AbstractContentTab {
     private static final Logger LOG = Logger.getLogger("WallpapersTab");
     private final Image searchIcon;
+    /**
+     * The images of the preview atlas pages, shared by the cells.
+     */
+    private final PreviewAtlasImages previewAtlasImages;
     /**
      * The input field to select the wallpaper directory. Read-only display.
      */
@@ -76,7 +78,7 @@ public class WallpapersTab extends AbstractContentTab {
      */
     @FXML
     @MonotonicNonNull
-    protected ListView<DynWallDefinition> wallpaperList;
+    protected ListView<DynWallSummary> wallpaperList;
     /**
      * The type filter currently selected.
      */
@@ -98,6 +100,7 @@ public class WallpapersTab extends AbstractContentTab {
         EventBus.getDefault().register(this);
 
         this.searchIcon = SvgUtils.loadFromResource("/icon/search.svg");
+        this.previewAtlasImages = new PreviewAtlasImages(this.app.getPreviewAtlas());
 
         // GUI configuration
         this.typeChooser.getItems().addAll(TypeFilter.values());
@@ -136,7 +139,7 @@ public class WallpapersTab extends AbstractContentTab {
 
     @FXML
     protected void onListRefresh() {
-        final var allWallpapers = this.app.getWallpaperDefinitions();
+        final var allWallpapers = this.app.getWallpaperSummaries();
         final var filteredWallpapers = allWallpapers
             .stream()
             .filter(entry -> this.typeFilter.getFilter().apply(entry))
@@ -159,10 +162,16 @@ public class WallpapersTab extends AbstractContentTab {
     @Override
     public void close() {
         EventBus.getDefault().unregister(this);
+        this.previewAtlasImages.close();
     }
 
-    protected void openWallpaperDetailWindow(final DynWallDefinition definition) {
+    protected void openWallpaperDetailWindow(final DynWallSummary summary) {
         LOG.info("Opening wallpaper detail window");
+        final var definition = this.app.getWallpaperDefinition(summary.filename());
+        if (definition == null) {
+            LOG.warning("The wallpaper definition can't be decoded");
+            return;
+        }
         final var stage = new Stage();
         stage.setTitle("Details of X");
         stage.initModality(Modality.NONE);
@@ -180,15 +189,15 @@ public class WallpapersTab extends AbstractContentTab {
      */
     private enum TypeFilter {
         ALL("All", wallpaper -> true),
-        SOLAR("Solar", DynWallDefinition::isSolar),
-        TIME("Time", DynWallDefinition::isTime),
-        APPEARANCE("Appearance", DynWallDefinition::isAppearance);
+        SOLAR("Solar", DynWallSummary::isSolar),
+        TIME("Time", DynWallSummary::isTime),
+        APPEARANCE("Appearance", DynWallSummary::isAppearance);
 
         private final String display;
-        private final Function<DynWallDefinition, Boolean> filter;
+        private final Function<DynWallSummary, Boolean> filter;
 
         TypeFilter(final String display,
-                   final Function<DynWallDefinition, Boolean> filter) {
+                   final Function<DynWallSummary, Boolean> filter) {
             this.display = display;
             this.filter = filter;
         }
@@ -197,7 +206,7 @@ public class WallpapersTab extends AbstractContentTab {
             return this.display;
         }
 
-        public Function<DynWallDefinition, Boolean> getFilter() {
+        public Function<DynWallSummary, Boolean> getFilter() {
             return this.filter;
         }
 
@@ -207,21 +216,37 @@ public class WallpapersTab extends AbstractContentTab {
         }
     }
 
-    private class WallpaperCell extends ListCell<DynWallDefinition> {
+    /**
+     * The cell of a wallpaper. Its nodes are created once and reused for the successive items; the preview is a
+     * viewport of an atlas page image.
+     */
+    private class WallpaperCell extends ListCell<DynWallSummary> {
+        private final HBox hBox = new HBox();
+        private final ImageView previewView = new ImageView();
+        private final Text filenameText = new Text();
+
+        private WallpaperCell() {
+            this.previewView.setFitWidth(128);
+            this.previewView.setFitHeight(72);
+            this.previewView.setSmooth(true);
+
+            final var searchIconView = new ImageView(WallpapersTab.this.searchIcon);
+            searchIconView.setFitHeight(32);
+            searchIconView.setFitWidth(32);
+            this.hBox.getChildren().addAll(this.previewView, this.filenameText, searchIconView);
+        }
+
         @Override
-        protected void updateItem(final @Nullable DynWallDefinition entry,
+        protected void updateItem(final @Nullable DynWallSummary entry,
                                   final boolean empty) {
             super.updateItem(entry, empty);
             if (empty || entry == null) {
                 setGraphic(null);
                 return;
             }
-            final HBox hBox = new HBox();
-            final Path cachePath = FileSystemService.getDataPath().resolve(entry.fileHash());
 
             // Display the preview thumbnail
-            final String previewUrl = cachePath.resolve(FileSystemService.PREVIEW_FILE_NAME).toString();
-            hBox.getChildren().add(new MiniatureImageView(previewUrl, 128, 72));
+            WallpapersTab.this.previewAtlasImages.show(this.previewView, entry.fileHash());
 
             // Wallpaper type
             /*final String iconName = switch (entry.type()) {
@@ -236,14 +261,9 @@ public class WallpapersTab extends AbstractContentTab {
             hBox.getChildren().add(imageView);*/
 
             // Wallpaper filename
-            hBox.getChildren().add(new Text(entry.filename()));
-
-            final var searchIconView = new ImageView(SvgUtils.loadFromResource("/icon/search.svg"));
-            searchIconView.setFitHeight(32);
-            searchIconView.setFitWidth(32);
-            hBox.getChildren().add(searchIconView);
+            this.filenameText.setText(entry.filename());
 
-            setGraphic(hBox);
+            setGraphic(this.hBox);
         }
     }
 }
@@ -3,7 +3,11 @@ package ch.qligier.heicofawallpaper.gui.wallpaper_detail;
 import ch.qligier.heicofawallpaper.HoawApplication;
 import ch.qligier.heicofawallpaper.gui.javafx.MiniatureImageView;
 import ch.qligier.heicofawallpaper.model.DynWallDefinition;
+import ch.qligier.heicofawallpaper.model.DynWallType;
 import ch.qligier.heicofawallpaper.service.FileSystemService;
+import ch.qligier.heicofawallpaper.service.ScheduleSimulator;
+import ch.qligier.heicofawallpaper.utils.heic.FramePyramid;
+import ch.qligier.heicofawallpaper.utils.heic.ThumbnailExtractor;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.geometry.Bounds;
@@ -18,6 +22,9 @@ import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.nio.file.Path;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.logging.Logger;
 
 import static java.util.Objects.requireNonNull;
@@ -32,6 +39,18 @@ public class WallpaperDetailWindow extends AnchorPane {
 
     private static final String HIGHLIGHTED_CLASS = "highlighted";
 
+    /**
+     * The width of the frame miniatures, in pixels.
+     */
+    private static final int FRAME_MINIATURE_WIDTH = 128;
+
+    /**
+     * The duration of the simulation of the upcoming transitions.
+     */
+    private static final Duration UPCOMING_HORIZON = Duration.ofDays(1);
+
+    private static final DateTimeFormatter UPCOMING_TIME_FORMATTER = DateTimeFormatter.ofPattern("HH:mm");
+
     private final HoawApplication app;
 
     private final DynWallDefinition definition;
@@ -56,6 +75,10 @@ public class WallpaperDetailWindow extends AnchorPane {
     @MonotonicNonNull
     protected VBox appearanceList;
 
+    @FXML
+    @MonotonicNonNull
+    protected VBox upcomingList;
+
     @FXML
     @MonotonicNonNull
     protected Tab solarTab;
@@ -89,13 +112,24 @@ public class WallpaperDetailWindow extends AnchorPane {
 
         // Prepare the lists
         this.frameList.setFocusTraversable(false);
+        final Path cachePath = FileSystemService.getDataPath().resolve(this.definition.fileHash());
+        boolean missingPyramid = false;
         for (int i = 0; i < this.definition.numberOfFrames(); i++) {
-            final String frameFilename = String.format("frame-%d.jpg", i);
-            final Path framePath = FileSystemService.getDataPath()
-                .resolve(this.definition.fileHash())
-                .resolve(frameFilename);
+            // The smallest pyramid level that fits is shown; the embedded thumbnail or the full frame are only shown
+            // while the pyramid is not generated
+            Path framePath = FramePyramid.getLevelPathFor(cachePath, i, FRAME_MINIATURE_WIDTH);
+            if (!framePath.toFile().isFile()) {
+                missingPyramid = true;
+                framePath = ThumbnailExtractor.getThumbnailPath(cachePath, i);
+                if (!framePath.toFile().isFile()) {
+                    framePath = cachePath.resolve(String.format(FileSystemService.FRAME_FILE_NAME_FORMAT, i));
+                }
+            }
             this.addFrame(i, framePath.toString());
         }
+        if (missingPyramid) {
+            this.app.submitPyramids(this.definition);
+        }
         LOG.info("Frame list prepared");
 
         // Prepare the phases lists
@@ -133,6 +167,20 @@ public class WallpaperDetailWindow extends AnchorPane {
             this.appearanceTab.setDisable(true);
         }
         LOG.info("Appearance list prepared");
+
+        // Prepare the upcoming transitions list
+        for (final ScheduleSimulator.Timeline timeline : this.app.simulateUpcomingTransitions(definition,
+                                                                                              UPCOMING_HORIZON)) {
+            for (int i = 0; i < timeline.size(); ++i) {
+                final ScheduleSimulator.Transition transition = timeline.getTransition(i);
+                // The first transition is the start of the simulation
+                this.addUpcomingTransition(transition.frameIndex(),
+                                           timeline.getType(),
+                                           (i == 0) ? "now" : UPCOMING_TIME_FORMATTER.format(
+                                               transition.instant().atZone(ZoneId.systemDefault())));
+            }
+        }
+        LOG.info("Upcoming list prepared");
     }
 
     private void highlightFrame(final @Nullable Integer frameIndex) {
@@ -158,7 +206,7 @@ public class WallpaperDetailWindow extends AnchorPane {
         hBox.setAlignment(Pos.CENTER_LEFT);
 
         // Show the frame
-        hBox.getChildren().add(new MiniatureImageView(framePath, 128, 72));
+        hBox.getChildren().add(new MiniatureImageView(framePath, FRAME_MINIATURE_WIDTH, 72));
 
         // Show the frame index
         final var text = new Text("Frame %d".formatted(frameIndex));
@@ -181,6 +229,20 @@ public class WallpaperDetailWindow extends AnchorPane {
         this.timeList.getChildren().add(text);
     }
 
+    private void addUpcomingTransition(final int frameIndex,
+                                       final DynWallType type,
+                                       final String time) {
+        final String typeName = switch (type) {
+            case SOLAR -> "Solar";
+            case TIME -> "Time";
+            case APPEARANCE -> "Appearance";
+        };
+        final var text = new Text("%s, %s: showing frame %d".formatted(typeName, time, frameIndex));
+        text.setOnMouseEntered(event -> this.highlightFrame(frameIndex));
+        text.setOnMouseExited(event -> this.highlightFrame(null));
+        this.upcomingList.getChildren().add(text);
+    }
+
     private void addAppearancePhase(final int frameIndex,
                                     final String appearanceName) {
         final var text = new Text("%s: showing frame %d".formatted(appearanceName, frameIndex));
@@ -9,12 +9,12 @@ import java.time.LocalTime;
  *
  * @param currentTime         The current time.
  * @param isLightThemeEnabled Whether the light or dark theme is enabled.
- * @param latitude            The location latitude, or {@code null}.
- * @param longitude           The location longitude, or {@code null}.
+ * @param latitude            The location latitude, in degrees (positive to the north), or {@code null}.
+ * @param longitude           The location longitude, in degrees (positive to the east), or {@code null}.
  * @author Quentin Ligier
  */
 public record CurrentEnvironment(LocalTime currentTime,
                                  boolean isLightThemeEnabled,
-                                 @Nullable Long latitude,
-                                 @Nullable Long longitude) {
+                                 @Nullable Double latitude,
+                                 @Nullable Double longitude) {
 }
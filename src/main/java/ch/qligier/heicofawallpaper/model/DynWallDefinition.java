@@ -2,6 +2,7 @@ package ch.qligier.heicofawallpaper.model;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -70,6 +71,24 @@ public record DynWallDefinition(short height,
         }
     }
 
+    /**
+     * Returns a copy of this definition for another file with the same content.
+     *
+     * @param filename The other wallpaper filename.
+     * @return the definition of the other file.
+     */
+    public DynWallDefinition withFilename(final String filename) {
+        return new DynWallDefinition(this.height,
+                                     this.width,
+                                     this.fileHash,
+                                     filename,
+                                     this.bplist,
+                                     this.numberOfFrames,
+                                     this.appearancePhase,
+                                     this.solarPhases != null ? new ArrayList<>(this.solarPhases) : null,
+                                     this.timePhases != null ? new ArrayList<>(this.timePhases) : null);
+    }
+
     public boolean isAppearance() {
         return this.appearancePhase != null;
     }
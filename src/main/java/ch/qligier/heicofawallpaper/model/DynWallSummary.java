@@ -0,0 +1,67 @@
+package ch.qligier.heicofawallpaper.model;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The summary of a dynamic wallpaper definition: what the wallpaper list shows, without the bplist and phases.
+ *
+ * @param fileHash       The wallpaper file hash.
+ * @param filename       The wallpaper filename.
+ * @param types          The types of the wallpaper.
+ * @param width          The wallpaper image width.
+ * @param height         The wallpaper image height.
+ * @param numberOfFrames The number of frames in the wallpaper.
+ * @author Quentin Ligier
+ **/
+public record DynWallSummary(String fileHash,
+                             String filename,
+                             Set<DynWallType> types,
+                             short width,
+                             short height,
+                             short numberOfFrames) {
+
+    public DynWallSummary {
+        Objects.requireNonNull(fileHash);
+        Objects.requireNonNull(filename);
+        Objects.requireNonNull(types);
+    }
+
+    /**
+     * Returns the summary of a definition.
+     *
+     * @param definition The wallpaper definition.
+     */
+    public static DynWallSummary of(final DynWallDefinition definition) {
+        final Set<DynWallType> types = EnumSet.noneOf(DynWallType.class);
+        if (definition.isAppearance()) {
+            types.add(DynWallType.APPEARANCE);
+        }
+        if (definition.isSolar()) {
+            types.add(DynWallType.SOLAR);
+        }
+        if (definition.isTime()) {
+            types.add(DynWallType.TIME);
+        }
+        return new DynWallSummary(definition.fileHash(),
+                                  definition.filename(),
+                                  Collections.unmodifiableSet(types),
+                                  definition.width(),
+                                  definition.height(),
+                                  definition.numberOfFrames());
+    }
+
+    public boolean isAppearance() {
+        return this.types.contains(DynWallType.APPEARANCE);
+    }
+
+    public boolean isSolar() {
+        return this.types.contains(DynWallType.SOLAR);
+    }
+
+    public boolean isTime() {
+        return this.types.contains(DynWallType.TIME);
+    }
+}
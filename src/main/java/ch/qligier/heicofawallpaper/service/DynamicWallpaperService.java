@@ -3,26 +3,23 @@ package ch.qligier.heicofawallpaper.service;
 import ch.qligier.heicofawallpaper.exception.InvalidDynamicWallpaperException;
 import ch.qligier.heicofawallpaper.model.*;
 import ch.qligier.heicofawallpaper.utils.heic.BplistParser;
-import ch.qligier.heicofawallpaper.utils.heic.CustomTag;
+import ch.qligier.heicofawallpaper.utils.heic.HeifMetadata;
 import ch.qligier.heicofawallpaper.utils.heic.MetadataExtractor;
-import com.dd.plist.PropertyListFormatException;
+import ch.qligier.heicofawallpaper.utils.process.ProcessResult;
+import ch.qligier.heicofawallpaper.utils.process.ProcessRunner;
 import com.google.gson.Gson;
-import com.thebuzzmedia.exiftool.Tag;
-import com.thebuzzmedia.exiftool.core.StandardTag;
 import org.checkerframework.checker.nullness.qual.Nullable;
-import org.xml.sax.SAXException;
 
-import javax.xml.parsers.ParserConfigurationException;
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.text.ParseException;
-import java.util.Arrays;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.Executors;
-import java.util.function.Consumer;
+import java.util.concurrent.*;
 import java.util.logging.Logger;
 
 /**
@@ -33,33 +30,277 @@ public class DynamicWallpaperService {
 
     private final MetadataExtractor metadataExtractor;
 
-    public DynamicWallpaperService(final MetadataExtractor metadataExtractor) {
+    private final FileHashCache fileHashCache;
+
+    private final ProcessRunner processRunner;
+
+    /**
+     * The maximum time given to ImageMagick to decode a frame.
+     */
+    private static final Duration FRAME_DECODE_TIMEOUT = Duration.ofSeconds(60);
+
+    /**
+     * The limit of decoder processes that run concurrently, all extractions included.
+     */
+    private final Semaphore decoderSlots = new Semaphore(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The threads that wait for the decoder processes of the frame ranges.
+     */
+    private final ExecutorService decoderExecutor = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "DynamicWallpaperService-decoder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The frame manifests of the wallpapers, keyed by hash.
+     */
+    private final Map<String, FrameManifest> manifests = new ConcurrentHashMap<>(16);
+
+    /**
+     * The listener of the published frames, or {@code null}.
+     */
+    @Nullable
+    private volatile FrameListener frameListener;
+
+    /**
+     * The maximum number of decoder processes that extract the frames of one wallpaper.
+     */
+    private volatile int maxDecoderProcesses = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    public DynamicWallpaperService(final MetadataExtractor metadataExtractor,
+                                   final FileHashCache fileHashCache,
+                                   final ProcessRunner processRunner) {
         this.metadataExtractor = Objects.requireNonNull(metadataExtractor);
+        this.fileHashCache = Objects.requireNonNull(fileHashCache);
+        this.processRunner = Objects.requireNonNull(processRunner);
+    }
+
+    /**
+     * Sets the maximum number of decoder processes that extract the frames of one wallpaper.
+     *
+     * @param maxDecoderProcesses The maximum number of processes.
+     */
+    public void setMaxDecoderProcesses(final int maxDecoderProcesses) {
+        if (maxDecoderProcesses < 1) {
+            throw new IllegalArgumentException("The number of decoder processes shall be positive");
+        }
+        this.maxDecoderProcesses = maxDecoderProcesses;
     }
 
+    /**
+     * Sets the listener of the published frames. It's called from the thread that has extracted the frame.
+     */
+    public void setFrameListener(@Nullable final FrameListener frameListener) {
+        this.frameListener = frameListener;
+    }
+
+    /**
+     * Extracts all frames of a dynamic wallpaper. The frames are split in contiguous ranges, each one decoded by its
+     * own ImageMagick process, up to the configured maximum number of processes.
+     *
+     * @param dynamicWallpaperFile The dynamic wallpaper file.
+     * @param hash                 The wallpaper file hash.
+     * @param numberOfFrames       The number of frames of the wallpaper.
+     * @throws IOException          if the extraction has failed.
+     * @throws InterruptedException if the thread is interrupted while waiting for ImageMagick.
+     */
     public void extract(final File dynamicWallpaperFile,
-                        final String hash) throws IOException, InterruptedException {
-        final File destinationFolder = FileSystemService.getDataPath().resolve(hash).toFile();
-        destinationFolder.mkdirs();
+                        final String hash,
+                        final int numberOfFrames) throws IOException, InterruptedException {
+        this.extract(dynamicWallpaperFile, hash, numberOfFrames, this.maxDecoderProcesses);
+    }
+
+    /**
+     * Extracts the missing frames of a dynamic wallpaper with the given number of decoder processes. The frames that
+     * are already in the wallpaper manifest are not extracted again, so an interrupted extraction is resumed.
+     *
+     * @param dynamicWallpaperFile The dynamic wallpaper file.
+     * @param hash                 The wallpaper file hash.
+     * @param numberOfFrames       The number of frames of the wallpaper.
+     * @param decoderProcesses     The number of decoder processes to use.
+     * @throws IOException          if the extraction has failed.
+     * @throws InterruptedException if the thread is interrupted while waiting for ImageMagick.
+     */
+    public void extract(final File dynamicWallpaperFile,
+                        final String hash,
+                        final int numberOfFrames,
+                        final int decoderProcesses) throws IOException, InterruptedException {
+        final FrameManifest manifest = this.getManifest(hash, numberOfFrames);
+        final List<Integer> missingFrames = manifest.getMissingFrames();
+        if (missingFrames.isEmpty()) {
+            return;
+        }
+        final int processes = Math.max(1, Math.min(decoderProcesses, missingFrames.size()));
+        final long start = System.nanoTime();
+        final List<Future<?>> futures = new ArrayList<>(processes);
+        for (int i = 0; i < processes; ++i) {
+            final List<Integer> frames = missingFrames.subList(i * missingFrames.size() / processes,
+                                                               (i + 1) * missingFrames.size() / processes);
+            futures.add(this.decoderExecutor.submit(() -> {
+                this.decoderSlots.acquire();
+                try {
+                    this.extractFrames(dynamicWallpaperFile, manifest, frames);
+                } finally {
+                    this.decoderSlots.release();
+                }
+                return null;
+            }));
+        }
+
+        IOException failure = null;
+        try {
+            for (final Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (final ExecutionException exception) {
+                    if (failure == null) {
+                        failure = exception.getCause() instanceof final IOException cause
+                            ? cause : new IOException(exception.getCause());
+                    }
+                }
+            }
+        } catch (final InterruptedException exception) {
+            futures.forEach(future -> future.cancel(true));
+            throw exception;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        LOG.info(() -> "Extracted " + missingFrames.size() + " of " + numberOfFrames + " frames of '"
+            + dynamicWallpaperFile + "' with " + processes + " processes in "
+            + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
 
-        final String[] commands = new String[6];
+    /**
+     * Extracts a single frame of a dynamic wallpaper, with ImageMagick's frame indexing ({@code file.heic[N]}), so
+     * that only that frame is decoded. Nothing is done if the frame has already been extracted.
+     *
+     * @param dynamicWallpaperFile The dynamic wallpaper file.
+     * @param hash                 The wallpaper file hash.
+     * @param numberOfFrames       The number of frames of the wallpaper.
+     * @param frameIndex           The index of the frame to extract.
+     * @return the path of the extracted frame.
+     * @throws IOException          if the extraction has failed.
+     * @throws InterruptedException if the thread is interrupted while waiting for ImageMagick.
+     */
+    public Path extractFrame(final File dynamicWallpaperFile,
+                             final String hash,
+                             final int numberOfFrames,
+                             final int frameIndex) throws IOException, InterruptedException {
+        final FrameManifest manifest = this.getManifest(hash, numberOfFrames);
+        if (!manifest.isExtracted(frameIndex)) {
+            final long start = System.nanoTime();
+            this.extractRange(dynamicWallpaperFile, manifest, frameIndex, frameIndex);
+            LOG.fine(() -> "Extracted frame " + frameIndex + " of '" + dynamicWallpaperFile + "' in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+        }
+        return manifest.getFramePath(frameIndex);
+    }
+
+    /**
+     * Extracts the frames of a dynamic wallpaper that have not been extracted yet, with a single decoder process.
+     *
+     * @param dynamicWallpaperFile The dynamic wallpaper file.
+     * @param hash                 The wallpaper file hash.
+     * @param numberOfFrames       The number of frames of the wallpaper.
+     * @throws IOException          if an extraction has failed.
+     * @throws InterruptedException if the thread is interrupted while waiting for ImageMagick.
+     */
+    public void extractMissingFrames(final File dynamicWallpaperFile,
+                                     final String hash,
+                                     final int numberOfFrames) throws IOException, InterruptedException {
+        this.extract(dynamicWallpaperFile, hash, numberOfFrames, 1);
+    }
+
+    /**
+     * Returns the frame manifest of a wallpaper. The manifest instances are shared, so that concurrent extractions of
+     * the same wallpaper publish their frames in the same manifest.
+     *
+     * @param hash           The wallpaper file hash.
+     * @param numberOfFrames The number of frames of the wallpaper.
+     */
+    public FrameManifest getManifest(final String hash, final int numberOfFrames) {
+        return this.manifests.computeIfAbsent(hash, key -> FrameManifest.load(FileSystemService.getDataPath()
+                                                                                    .resolve(key), numberOfFrames));
+    }
+
+    /**
+     * Extracts a list of frames (in increasing order), with one ImageMagick process per contiguous range.
+     */
+    private void extractFrames(final File dynamicWallpaperFile,
+                               final FrameManifest manifest,
+                               final List<Integer> frames) throws IOException, InterruptedException {
+        int rangeStart = 0;
+        for (int i = 1; i <= frames.size(); ++i) {
+            if (i == frames.size() || frames.get(i) != frames.get(i - 1) + 1) {
+                this.extractRange(dynamicWallpaperFile, manifest, frames.get(rangeStart), frames.get(i - 1));
+                rangeStart = i;
+            }
+        }
+    }
+
+    /**
+     * Extracts a range of frames with one ImageMagick process ({@code file.heic[first-last]}). The frames are decoded
+     * in a staging directory of their own, then published in the manifest one by one.
+     *
+     * @param dynamicWallpaperFile The dynamic wallpaper file.
+     * @param manifest             The wallpaper frame manifest.
+     * @param firstFrame           The index of the first frame to extract.
+     * @param lastFrame            The index of the last frame to extract (inclusive).
+     * @throws IOException          if the extraction has failed.
+     * @throws InterruptedException if the thread is interrupted while waiting for ImageMagick.
+     */
+    private void extractRange(final File dynamicWallpaperFile,
+                              final FrameManifest manifest,
+                              final int firstFrame,
+                              final int lastFrame) throws IOException, InterruptedException {
+        final Path stagingFolder = manifest.createExtractionDirectory();
+        try {
+            this.extractRange(dynamicWallpaperFile, manifest, firstFrame, lastFrame, stagingFolder);
+        } finally {
+            FrameManifest.deleteStagingDirectories(stagingFolder);
+        }
+    }
+
+    private void extractRange(final File dynamicWallpaperFile,
+                              final FrameManifest manifest,
+                              final int firstFrame,
+                              final int lastFrame,
+                              final Path stagingFolder) throws IOException, InterruptedException {
+
+        final String[] commands = new String[8];
         commands[0] = "magick";
         commands[1] = "convert";
-        commands[2] = '"' + dynamicWallpaperFile.getAbsolutePath() + '"';
-        commands[3] = "-quality";
-        commands[4] = "85";
-        commands[5] = '"' + destinationFolder.toPath().resolve("frame.jpg").toString() + '"';
-
-        System.out.println(Arrays.toString(commands));
-
-        final ProcessBuilder builder = new ProcessBuilder();
-        builder.command(commands);
-        final Process process = builder.start();
-        final StreamConsumer streamConsumer =
-            new StreamConsumer(process.getInputStream(), System.out::println);
-        Executors.newSingleThreadExecutor().submit(streamConsumer);
-        int exitCode = process.waitFor();
-        System.out.println("Process exit code: " + exitCode);
+        commands[2] = '"' + dynamicWallpaperFile.getAbsolutePath() + "[" + firstFrame + "-" + lastFrame + "]" + '"';
+        commands[3] = "-scene";
+        commands[4] = Integer.toString(firstFrame);
+        commands[5] = "-quality";
+        commands[6] = "85";
+        commands[7] = '"' + stagingFolder.resolve(FileSystemService.FRAME_FILE_NAME_FORMAT).toString() + '"';
+
+        final ProcessResult result = this.processRunner.run(List.of(commands),
+                                                            FRAME_DECODE_TIMEOUT.multipliedBy(lastFrame - firstFrame + 1));
+        if (!result.isSuccess()) {
+            throw new IOException("ImageMagick has failed to extract the frames " + firstFrame + "-" + lastFrame
+                                      + " of '" + dynamicWallpaperFile + "' (exit code " + result.exitCode() + "): "
+                                      + result.stderr().strip());
+        }
+
+        for (int frameIndex = firstFrame; frameIndex <= lastFrame; ++frameIndex) {
+            final Path stagedPath = stagingFolder.resolve(String.format(FileSystemService.FRAME_FILE_NAME_FORMAT,
+                                                                        frameIndex));
+            if (!stagedPath.toFile().isFile()) {
+                throw new IOException("ImageMagick has not extracted the frame " + frameIndex + " of '"
+                                          + dynamicWallpaperFile + "'");
+            }
+            manifest.publish(frameIndex, stagedPath);
+            final FrameListener listener = this.frameListener;
+            if (listener != null) {
+                listener.onFramePublished(manifest, frameIndex);
+            }
+        }
     }
 
     /**
@@ -95,68 +336,55 @@ public class DynamicWallpaperService {
     }
 
     /**
-     * This method loads the definition of a dynamic wallpaper from its original HEIC file. It is slow and should be
-     * done the first time only. Afterwards, definitions should be loaded from the created cache (see
+     * This method loads the definition of a dynamic wallpaper from its original HEIC file. It should be done the first
+     * time only. Afterwards, definitions should be loaded from the created cache (see
      * {@link #loadDefinitionFromCache(Path, Gson)}.
      *
      * @param dynamicWallpaperFile
      * @return
      * @throws IOException
-     * @throws PropertyListFormatException
      * @throws InvalidDynamicWallpaperException
-     * @throws ParseException
-     * @throws ParserConfigurationException
-     * @throws SAXException
-     * @implSpec The caller must ensure the {@code metadataExtractor} has been started and will be closed.
-     */
-    public DynWallDefinition loadDefinitionFromFile(final File dynamicWallpaperFile) throws Exception {
-        assert this.metadataExtractor.isStarted();
-        final Map<Tag, String> metadata = this.metadataExtractor.getMetadata(dynamicWallpaperFile);
-
-        final short width = Short.parseShort(metadata.get(StandardTag.IMAGE_WIDTH));
-        final short height = Short.parseShort(metadata.get(StandardTag.IMAGE_HEIGHT));
-
-        final short numberOfFrames;
-        if (metadata.containsKey(CustomTag.QUICKTIME_METAIMAGESIZE)) {
-            final String[] metaImageSizes = metadata.get(CustomTag.QUICKTIME_METAIMAGESIZE).split(" ");
-            if (metaImageSizes.length % 4 != 0) {
-                throw new InvalidDynamicWallpaperException("The MetaImageSize has a number of values not divisible by 4");
-            }
-            numberOfFrames = (short) (metaImageSizes.length / 4);
-            for (int i = 0; i < numberOfFrames; ) {
-                i = i + 2;
-                if (Short.parseShort(metaImageSizes[i]) != width) {
-                    throw new InvalidDynamicWallpaperException("One of the frame has a different width");
-                }
-                ++i;
-                if (Short.parseShort(metaImageSizes[i]) != height) {
-                    throw new InvalidDynamicWallpaperException("One of the frame has a different height");
-                }
-                ++i;
-            }
-        } else {
-            numberOfFrames = 0;
-        }
+     */
+    public DynWallDefinition loadDefinitionFromFile(final File dynamicWallpaperFile)
+        throws IOException, InvalidDynamicWallpaperException {
+        return this.loadDefinitionFromMetadata(dynamicWallpaperFile,
+                                               this.metadataExtractor.getMetadata(dynamicWallpaperFile));
+    }
+
+    /**
+     * This method creates the definition of a dynamic wallpaper from its already extracted metadata, e.g. from a batch
+     * of {@link MetadataExtractor#getMetadata(java.util.Collection)}.
+     *
+     * @param dynamicWallpaperFile The dynamic wallpaper file.
+     * @param metadata             The metadata of the file.
+     * @return the wallpaper definition.
+     * @throws IOException                      if the file identity can't be computed.
+     * @throws InvalidDynamicWallpaperException if the metadata don't describe a dynamic wallpaper.
+     */
+    public DynWallDefinition loadDefinitionFromMetadata(final File dynamicWallpaperFile,
+                                                        final HeifMetadata metadata)
+        throws IOException, InvalidDynamicWallpaperException {
+        final short numberOfFrames = metadata.numberOfFrames();
 
         List<PhaseSolar> solarPhases = null;
         List<PhaseTime> timePhases = null;
         final String bplist;
-        if (metadata.containsKey(CustomTag.XMP_SOLAR)) {
-            bplist = metadata.get(CustomTag.XMP_SOLAR);
+        if (metadata.solarBplist() != null) {
+            bplist = metadata.solarBplist();
             solarPhases = BplistParser.parseSolarBplist(bplist, numberOfFrames);
-        } else if (metadata.containsKey(CustomTag.XMP_H24)) {
-            bplist = metadata.get(CustomTag.XMP_H24);
+        } else if (metadata.h24Bplist() != null) {
+            bplist = metadata.h24Bplist();
             timePhases = BplistParser.parseTimeBplist(bplist, numberOfFrames);
-        } else if (metadata.containsKey(CustomTag.XMP_APR)) {
-            bplist = metadata.get(CustomTag.XMP_APR);
+        } else if (metadata.aprBplist() != null) {
+            bplist = metadata.aprBplist();
         } else {
             throw new InvalidDynamicWallpaperException("The dynamic wallpaper has no Solar, H24 or Apr metadata");
         }
         final PhaseAppearance appearancePhase = BplistParser.parseAppearanceBplist(bplist, numberOfFrames);
 
-        return new DynWallDefinition(height,
-                                     width,
-                                     FileSystemService.sha256File(dynamicWallpaperFile),
+        return new DynWallDefinition(metadata.height(),
+                                     metadata.width(),
+                                     this.fileHashCache.getIdentity(dynamicWallpaperFile),
                                      dynamicWallpaperFile.getName(),
                                      bplist,
                                      numberOfFrames,
@@ -166,18 +394,17 @@ public class DynamicWallpaperService {
     }
 
     /**
-     * A runnable that streams an {@link InputStream} into a consumer.
-     *
-     * @param inputStream
-     * @param consumer
+     * A listener of the frames that are published in the frame manifests.
      */
-    private record StreamConsumer(InputStream inputStream, Consumer<String> consumer) implements Runnable {
+    @FunctionalInterface
+    public interface FrameListener {
 
-        @Override
-        public void run() {
-            new BufferedReader(new InputStreamReader(this.inputStream))
-                .lines()
-                .forEach(this.consumer);
-        }
+        /**
+         * Called when a frame has been extracted and published.
+         *
+         * @param manifest   The frame manifest of the wallpaper.
+         * @param frameIndex The frame index.
+         */
+        void onFramePublished(FrameManifest manifest, int frameIndex);
     }
 }
@@ -0,0 +1,406 @@
+package ch.qligier.heicofawallpaper.service;
+
+import com.google.gson.Gson;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * A persistent cache of file hashes. A file is identified by its fingerprint (absolute path, size, last modification
+ * time and file key); its content is only hashed again when the fingerprint changes.
+ * <p>
+ * In the fast identity mode (see {@link #getIdentity(File)}), a file whose fingerprint is unknown is identified by its
+ * quick hash (see {@link FileSystemService#quickHashFile(File)}): it's given the identity of the known content with the
+ * same quick hash, or the quick hash itself if the content is new. Such an identity is provisional: the full SHA-256 is
+ * computed later by a low-priority background thread, and the mismatch listener is notified if the identity turns out
+ * to belong to another content.
+ *
+ * @author Quentin Ligier
+ **/
+public class FileHashCache {
+    private static final Logger LOG = Logger.getLogger("FileHashCache");
+
+    /**
+     * The path of the file where the cache is persisted.
+     */
+    private final Path storePath;
+
+    /**
+     * A JSON de/serializer.
+     */
+    private final Gson gson;
+
+    /**
+     * The cache entries, keyed by absolute file path.
+     */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>(64);
+
+    /**
+     * The identities of known contents, keyed by their quick hash. A quick hash belongs to the first content that has
+     * been verified with it.
+     */
+    private final Map<String, String> hashesByQuickHash = new ConcurrentHashMap<>(64);
+
+    /**
+     * The SHA-256 hashes of known contents, keyed by their identity.
+     */
+    private final Map<String, String> fullHashesByIdentity = new ConcurrentHashMap<>(64);
+
+    /**
+     * The low-priority executor that verifies provisional identities.
+     */
+    private final ExecutorService verificationExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "FileHashCache-verification");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * The number of hashes found in the cache.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * The number of hashes that had to be computed.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * The number of provisional identities given by quick hash.
+     */
+    private final AtomicLong quickHits = new AtomicLong();
+
+    /**
+     * The number of provisional identities that turned out to be wrong.
+     */
+    private final AtomicLong mismatches = new AtomicLong();
+
+    /**
+     * Whether the cache has changed since it was last loaded or saved.
+     */
+    private volatile boolean dirty = false;
+
+    /**
+     * Whether the fast identity mode is enabled.
+     */
+    private volatile boolean fastIdentityEnabled = true;
+
+    /**
+     * The listener notified when a provisional identity turns out to be wrong, or {@code null}.
+     */
+    @Nullable
+    private volatile Consumer<File> mismatchListener;
+
+    /**
+     * Constructor.
+     *
+     * @param storePath The path of the file where the cache is persisted.
+     * @param gson      A JSON de/serializer.
+     */
+    public FileHashCache(final Path storePath,
+                         final Gson gson) {
+        this.storePath = Objects.requireNonNull(storePath);
+        this.gson = Objects.requireNonNull(gson);
+    }
+
+    /**
+     * Loads the persisted cache entries, if any.
+     */
+    public void load() {
+        if (!Files.isRegularFile(this.storePath)) {
+            return;
+        }
+        try {
+            final String content = Files.readString(this.storePath, StandardCharsets.UTF_8);
+            final Entry[] storedEntries = this.gson.fromJson(content, Entry[].class);
+            if (storedEntries != null) {
+                for (final Entry entry : storedEntries) {
+                    this.putEntry(entry);
+                }
+            }
+            this.dirty = false;
+            LOG.fine(() -> "Loaded " + this.entries.size() + " file hashes");
+        } catch (final Exception exception) {
+            LOG.warning("Unable to load the file hash cache: " + exception);
+        }
+
+        // Provisional hashes that were not verified before the application quit
+        for (final Entry entry : this.entries.values()) {
+            if (entry.provisional()) {
+                this.scheduleVerification(new File(entry.path()));
+            }
+        }
+    }
+
+    /**
+     * Persists the cache entries if they have changed. The file is replaced atomically.
+     */
+    public synchronized void save() {
+        if (!this.dirty) {
+            return;
+        }
+        this.dirty = false;
+        try {
+            final Path temporaryPath = this.storePath.resolveSibling(this.storePath.getFileName() + ".tmp");
+            Files.writeString(temporaryPath,
+                              this.gson.toJson(this.entries.values().toArray(new Entry[0])),
+                              StandardCharsets.UTF_8,
+                              StandardOpenOption.WRITE,
+                              StandardOpenOption.TRUNCATE_EXISTING,
+                              StandardOpenOption.CREATE);
+            Files.move(temporaryPath, this.storePath, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException exception) {
+            this.dirty = true;
+            LOG.warning("Unable to save the file hash cache: " + exception);
+        }
+    }
+
+    /**
+     * Returns the SHA-256 hash of a file. It is read from the cache if the file fingerprint has not changed (it's then
+     * the identity of the file, see {@link #getIdentity(File)}), or computed otherwise.
+     *
+     * @param file The file to hash.
+     * @return the hexadecimal representation of the file hash.
+     */
+    public String getHash(final File file) {
+        final Fingerprint fingerprint = fingerprint(file);
+        final String path = file.getAbsolutePath();
+        final Entry entry = this.entries.get(path);
+        if (fingerprint != null && entry != null && entry.matches(fingerprint)) {
+            this.hits.incrementAndGet();
+            return entry.hash();
+        }
+
+        this.misses.incrementAndGet();
+        final String hash = FileSystemService.sha256File(file);
+        if (fingerprint != null) {
+            this.putEntry(new Entry(path,
+                                    fingerprint.size(),
+                                    fingerprint.lastModified(),
+                                    fingerprint.fileKey(),
+                                    FileSystemService.quickHashFile(file),
+                                    hash,
+                                    false,
+                                    hash));
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the content identity of a file, that keys its definition and frames. If the fast identity mode is
+     * disabled, this is the same as {@link #getHash(File)}.
+     * <p>
+     * Otherwise, if the file fingerprint is unknown, the file is identified by its quick hash: if it matches a known
+     * content, the identity of that content is returned, else the quick hash itself. New contents are not fully hashed
+     * before their import; their SHA-256 is computed in the background, to verify the identity.
+     *
+     * @param file The file to identify.
+     * @return the hexadecimal representation of the (possibly provisional) content identity.
+     */
+    public String getIdentity(final File file) {
+        final Fingerprint fingerprint = fingerprint(file);
+        if (!this.fastIdentityEnabled || fingerprint == null) {
+            return this.getHash(file);
+        }
+        final String path = file.getAbsolutePath();
+        final Entry entry = this.entries.get(path);
+        if (entry != null && entry.matches(fingerprint)) {
+            this.hits.incrementAndGet();
+            return entry.hash();
+        }
+
+        final String quickHash = FileSystemService.quickHashFile(file);
+        final String identity = this.hashesByQuickHash.getOrDefault(quickHash, quickHash);
+        this.quickHits.incrementAndGet();
+        this.putEntry(new Entry(path,
+                                fingerprint.size(),
+                                fingerprint.lastModified(),
+                                fingerprint.fileKey(),
+                                quickHash,
+                                identity,
+                                true,
+                                null));
+        this.scheduleVerification(file);
+        return identity;
+    }
+
+    /**
+     * Enables or disables the fast identity mode.
+     */
+    public void setFastIdentityEnabled(final boolean fastIdentityEnabled) {
+        this.fastIdentityEnabled = fastIdentityEnabled;
+    }
+
+    /**
+     * Sets the listener that is notified when the provisional identity of a file turns out to be wrong. The cache has
+     * already been corrected when it is called, from the verification thread.
+     */
+    public void setMismatchListener(@Nullable final Consumer<File> mismatchListener) {
+        this.mismatchListener = mismatchListener;
+    }
+
+    /**
+     * Stops the background verification. Pending verifications will resume when the cache is loaded again.
+     */
+    public void close() {
+        this.verificationExecutor.shutdownNow();
+    }
+
+    /**
+     * Returns the number of hashes found in the cache.
+     */
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    /**
+     * Returns the number of hashes that had to be computed.
+     */
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * Returns the number of provisional identities given by quick hash.
+     */
+    public long getQuickHits() {
+        return this.quickHits.get();
+    }
+
+    /**
+     * Returns the number of provisional hashes that turned out to be wrong.
+     */
+    public long getMismatches() {
+        return this.mismatches.get();
+    }
+
+    private void putEntry(final Entry entry) {
+        this.entries.put(entry.path(), entry);
+        if (!entry.provisional()) {
+            if (entry.quickHash() != null) {
+                // The first content keeps its quick hash, a colliding content is only identified by its own entry
+                this.hashesByQuickHash.putIfAbsent(entry.quickHash(), entry.hash());
+            }
+            this.fullHashesByIdentity.put(entry.hash(),
+                                          (entry.fullHash() != null) ? entry.fullHash() : entry.hash());
+        }
+        this.dirty = true;
+    }
+
+    private void scheduleVerification(final File file) {
+        this.verificationExecutor.execute(() -> this.verify(file));
+    }
+
+    /**
+     * Computes the full hash of a file whose entry is provisional, and corrects the cache if its identity belongs to
+     * another content. A new content takes its identity for itself.
+     */
+    private void verify(final File file) {
+        final Entry entry = this.entries.get(file.getAbsolutePath());
+        if (entry == null || !entry.provisional()) {
+            return;
+        }
+        final String fullHash;
+        try {
+            fullHash = FileSystemService.sha256File(file);
+        } catch (final RuntimeException exception) {
+            // The file has been removed or is unreadable, forget it
+            this.entries.remove(entry.path());
+            this.dirty = true;
+            return;
+        }
+        final String ownerFullHash = this.fullHashesByIdentity.putIfAbsent(entry.hash(), fullHash);
+        final boolean isCorrect = ownerFullHash == null || ownerFullHash.equals(fullHash);
+        // The content is identified by its full hash if its quick hash is already taken
+        this.putEntry(new Entry(entry.path(),
+                                entry.size(),
+                                entry.lastModified(),
+                                entry.fileKey(),
+                                entry.quickHash(),
+                                isCorrect ? entry.hash() : fullHash,
+                                false,
+                                fullHash));
+        if (!isCorrect) {
+            this.mismatches.incrementAndGet();
+            LOG.warning(() -> "The provisional identity of '" + file + "' was wrong");
+            final Consumer<File> listener = this.mismatchListener;
+            if (listener != null) {
+                listener.accept(file);
+            }
+        }
+    }
+
+    /**
+     * Reads the fingerprint of a file, or returns {@code null} if its attributes can't be read.
+     */
+    @Nullable
+    private static Fingerprint fingerprint(final File file) {
+        try {
+            final BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            final Object fileKey = attributes.fileKey();
+            return new Fingerprint(attributes.size(),
+                                   attributes.lastModifiedTime().toMillis(),
+                                   fileKey != null ? fileKey.toString() : null);
+        } catch (final IOException exception) {
+            return null;
+        }
+    }
+
+    /**
+     * The fingerprint of a file.
+     *
+     * @param size         The file size in bytes.
+     * @param lastModified The last modification time, in milliseconds since the epoch.
+     * @param fileKey      The file key, or {@code null} if the file system does not provide one.
+     */
+    private record Fingerprint(long size,
+                               long lastModified,
+                               @Nullable String fileKey) {
+    }
+
+    /**
+     * A persisted cache entry.
+     *
+     * @param path         The absolute file path.
+     * @param size         The file size in bytes.
+     * @param lastModified The last modification time, in milliseconds since the epoch.
+     * @param fileKey      The file key, or {@code null} if the file system does not provide one.
+     * @param quickHash    The quick hash of the file content, or {@code null} for older entries.
+     * @param hash         The identity of the file content: its SHA-256 hash, or its quick hash.
+     * @param provisional  Whether the identity has been given by quick hash and not verified yet.
+     * @param fullHash     The SHA-256 hash of the file content, or {@code null} if it's provisional or if the entry is
+     *                     older (its identity is then its SHA-256 hash).
+     */
+    private record Entry(String path,
+                         long size,
+                         long lastModified,
+                         @Nullable String fileKey,
+                         @Nullable String quickHash,
+                         String hash,
+                         boolean provisional,
+                         @Nullable String fullHash) {
+
+        boolean matches(final Fingerprint fingerprint) {
+            return this.size == fingerprint.size()
+                && this.lastModified == fingerprint.lastModified()
+                && Objects.equals(this.fileKey, fingerprint.fileKey());
+        }
+    }
+}
@@ -1,13 +1,19 @@
 package ch.qligier.heicofawallpaper.service;
 
+import ch.qligier.heicofawallpaper.utils.XxHash64;
 import ch.qligier.heicofawallpaper.utils.win32.Shell32Manager;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
 
@@ -27,11 +33,41 @@ import java.util.stream.Stream;
 public class FileSystemService {
     public static final String CACHE_DEFINITION_FILE_NAME = "definition.json";
     public static final String PREVIEW_FILE_NAME = "preview.png";
+    public static final String FRAME_FILE_NAME_FORMAT = "frame-%d.jpg";
+    public static final String THUMBNAIL_FILE_NAME_FORMAT = "thumbnail-%d.jpg";
     private static final Logger LOG = Logger.getLogger("FileSystemService");
     private static final String DATA_PATH = "qligier/HeicOfAWallpaper";
     private static final String CONFIGURATION_FILE_NAME = "configuration.json";
+    private static final String FILE_HASH_CACHE_FILE_NAME = "file-hashes.json";
+    private static final String FRAME_USAGE_FILE_NAME = "frame-usage.json";
+    private static final String LIBRARY_CATALOG_FILE_NAME = "library.catalog";
+    private static final String PREVIEW_ATLAS_FOLDER_NAME = "atlas";
     private static final String WALLPAPERS_FOLDER_NAME = "wallpapers";
 
+    /**
+     * The size of the buffer used to stream files into the hash digest.
+     */
+    private static final int HASH_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * A direct buffer per thread, reused by every call to {@link #sha256File(File)}.
+     */
+    private static final ThreadLocal<ByteBuffer> HASH_BUFFER =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(HASH_BUFFER_SIZE));
+
+    /**
+     * The size of each block (head, middle and tail) read by {@link #quickHashFile(File)}.
+     */
+    private static final int QUICK_HASH_BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * A direct buffer per thread, reused by every call to {@link #quickHashFile(File)}. It holds the file size and
+     * the three sampled blocks.
+     */
+    private static final ThreadLocal<ByteBuffer> QUICK_HASH_BUFFER =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(Long.BYTES + 3 * QUICK_HASH_BLOCK_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN));
+
     /**
      * This class is not instantiable.
      */
@@ -53,6 +89,22 @@ public class FileSystemService {
         return getDataPath().resolve(CONFIGURATION_FILE_NAME);
     }
 
+    public static Path getFileHashCachePath() {
+        return getDataPath().resolve(FILE_HASH_CACHE_FILE_NAME);
+    }
+
+    public static Path getFrameUsagePath() {
+        return getDataPath().resolve(FRAME_USAGE_FILE_NAME);
+    }
+
+    public static Path getLibraryCatalogPath() {
+        return getDataPath().resolve(LIBRARY_CATALOG_FILE_NAME);
+    }
+
+    public static Path getPreviewAtlasPath() {
+        return getDataPath().resolve(PREVIEW_ATLAS_FOLDER_NAME);
+    }
+
     public static Stream<Path> findHeicFilesInPath(final Path folderPath) throws IOException {
         final File folder = folderPath.toFile();
         if (!folder.exists() || !folder.isDirectory()) {
@@ -63,25 +115,82 @@ public class FileSystemService {
             .filter(path -> path.toFile().getName().endsWith(".heic"));
     }
 
+    /**
+     * Computes the SHA-256 hash of a file. The file is streamed through a reusable direct buffer, so the heap usage
+     * does not depend on the file size.
+     *
+     * @param file The file to hash.
+     * @return the hexadecimal representation of the file hash.
+     */
     public static String sha256File(final File file) {
         final MessageDigest digest;
-        final byte[] bytes;
         try {
             digest = MessageDigest.getInstance("SHA-256");
-            bytes = Files.readAllBytes(file.toPath());
         } catch (final NoSuchAlgorithmException exception) {
             LOG.severe("SHA-256 is not available");
             throw new RuntimeException(exception);
+        }
+
+        final ByteBuffer buffer = HASH_BUFFER.get();
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer.clear();
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
         } catch (final IOException exception) {
             LOG.severe("Can't read file");
             throw new RuntimeException(exception);
         }
-        final byte[] hash = digest.digest(bytes);
+        return HexFormat.of().formatHex(digest.digest());
+    }
 
-        final StringBuilder result = new StringBuilder();
-        for (final byte b : hash) {
-            result.append(String.format("%02x", b));
+    /**
+     * Computes a quick fingerprint of a file content. Only the file size and three blocks (at the head, middle and tail
+     * of the file) are hashed with {@link XxHash64}, so the cost does not depend on the file size. It is not a
+     * substitute for {@link #sha256File(File)}: two files with the same quick hash may still differ.
+     *
+     * @param file The file to fingerprint.
+     * @return the hexadecimal representation of the fingerprint.
+     */
+    public static String quickHashFile(final File file) {
+        final ByteBuffer buffer = QUICK_HASH_BUFFER.get();
+        buffer.clear();
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            buffer.putLong(size);
+            if (size <= 3L * QUICK_HASH_BLOCK_SIZE) {
+                readFully(channel, buffer, 0, (int) size);
+            } else {
+                readFully(channel, buffer, 0, QUICK_HASH_BLOCK_SIZE);
+                readFully(channel, buffer, size / 2 - QUICK_HASH_BLOCK_SIZE / 2, QUICK_HASH_BLOCK_SIZE);
+                readFully(channel, buffer, size - QUICK_HASH_BLOCK_SIZE, QUICK_HASH_BLOCK_SIZE);
+            }
+        } catch (final IOException exception) {
+            LOG.severe("Can't read file");
+            throw new RuntimeException(exception);
+        }
+        buffer.flip();
+        return HexFormat.of().toHexDigits(XxHash64.hash(buffer, 0));
+    }
+
+    /**
+     * Reads {@code length} bytes of a channel, starting at {@code position}, into the buffer.
+     */
+    private static void readFully(final FileChannel channel,
+                                  final ByteBuffer buffer,
+                                  long position,
+                                  final int length) throws IOException {
+        final int limit = buffer.position() + length;
+        buffer.limit(limit);
+        while (buffer.position() < limit) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += read;
         }
-        return result.toString();
+        buffer.limit(buffer.capacity());
     }
 }
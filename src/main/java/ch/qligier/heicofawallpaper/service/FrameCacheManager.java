@@ -0,0 +1,503 @@
+package ch.qligier.heicofawallpaper.service;
+
+import com.google.gson.Gson;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * The manager of the extracted frames, that keeps them under a disk quota.
+ * <p>
+ * The size, last use and number of uses of each frame are tracked, and persisted in the data folder. When the quota is
+ * exceeded, frames are evicted until the cache is back under {@link #LOW_WATERMARK} of the quota: the least recently
+ * used first, and the least frequently used among frames of the same age. The frames of the pinned wallpapers (the
+ * ones that are currently selected) are never evicted. The definitions, previews and frame pyramids are kept, only the
+ * full-size frames are evicted; they are extracted again when they're requested through
+ * {@link #getFrame(File, String, int, int)} or {@link #ensureFrames(File, String, int)}.
+ * <p>
+ * The eviction is held while frames are being extracted and read by other threads (e.g. during an import, see
+ * {@link #holdEviction()}); the quota is enforced again once they're done.
+ *
+ * @author Quentin Ligier
+ **/
+public class FrameCacheManager implements DynamicWallpaperService.FrameListener {
+    private static final Logger LOG = Logger.getLogger("FrameCacheManager");
+
+    /**
+     * The ratio of the quota at which the eviction stops.
+     */
+    private static final double LOW_WATERMARK = 0.9;
+
+    private final DynamicWallpaperService dynamicWallpaperService;
+
+    /**
+     * The path of the file where the frame usage is persisted.
+     */
+    private final Path storePath;
+
+    /**
+     * A JSON de/serializer.
+     */
+    private final Gson gson;
+
+    /**
+     * The clock of the frame uses.
+     */
+    private final Clock clock;
+
+    /**
+     * The frame usage of the wallpapers, keyed by hash.
+     */
+    private final Map<String, Usage> usages = new HashMap<>(256);
+
+    /**
+     * The hashes of the pinned wallpapers.
+     */
+    private final Set<String> pinned = new HashSet<>(4);
+
+    /**
+     * The number of requested frames that were extracted.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * The number of requested frames that had to be extracted.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * The number of evicted frames.
+     */
+    private final AtomicLong evictedFrames = new AtomicLong();
+
+    /**
+     * The total size of the evicted frames.
+     */
+    private final AtomicLong evictedBytes = new AtomicLong();
+
+    /**
+     * The disk quota, in bytes.
+     */
+    private volatile long quotaBytes;
+
+    /**
+     * Whether the frame usage has changed since it was last loaded or saved.
+     */
+    private boolean dirty = false;
+
+    /**
+     * The number of holders of the eviction, that is only done when it's zero.
+     */
+    private int evictionHolds = 0;
+
+    /**
+     * Constructor. The manager listens to the frames extracted by the dynamic wallpaper service.
+     *
+     * @param dynamicWallpaperService The dynamic wallpaper service.
+     * @param storePath               The path of the file where the frame usage is persisted.
+     * @param gson                    A JSON de/serializer.
+     * @param quotaBytes              The disk quota, in bytes.
+     */
+    public FrameCacheManager(final DynamicWallpaperService dynamicWallpaperService,
+                             final Path storePath,
+                             final Gson gson,
+                             final long quotaBytes) {
+        this(dynamicWallpaperService, storePath, gson, quotaBytes, Clock.systemUTC());
+    }
+
+    /**
+     * Constructor. The manager listens to the frames extracted by the dynamic wallpaper service.
+     *
+     * @param dynamicWallpaperService The dynamic wallpaper service.
+     * @param storePath               The path of the file where the frame usage is persisted.
+     * @param gson                    A JSON de/serializer.
+     * @param quotaBytes              The disk quota, in bytes.
+     * @param clock                   The clock of the frame uses.
+     */
+    public FrameCacheManager(final DynamicWallpaperService dynamicWallpaperService,
+                             final Path storePath,
+                             final Gson gson,
+                             final long quotaBytes,
+                             final Clock clock) {
+        this.dynamicWallpaperService = Objects.requireNonNull(dynamicWallpaperService);
+        this.storePath = Objects.requireNonNull(storePath);
+        this.gson = Objects.requireNonNull(gson);
+        this.clock = Objects.requireNonNull(clock);
+        this.setQuotaBytes(quotaBytes);
+        this.dynamicWallpaperService.setFrameListener(this);
+    }
+
+    /**
+     * Sets the disk quota. It's enforced at the next call to {@link #enforceQuota()}.
+     *
+     * @param quotaBytes The disk quota, in bytes.
+     */
+    public void setQuotaBytes(final long quotaBytes) {
+        if (quotaBytes < 0) {
+            throw new IllegalArgumentException("The frame cache quota shall not be negative");
+        }
+        this.quotaBytes = quotaBytes;
+    }
+
+    /**
+     * Loads the persisted frame usage, if any.
+     */
+    public synchronized void load() {
+        if (!Files.isRegularFile(this.storePath)) {
+            return;
+        }
+        try {
+            final Stored[] stored = this.gson.fromJson(Files.readString(this.storePath, StandardCharsets.UTF_8),
+                                                       Stored[].class);
+            if (stored != null) {
+                for (final Stored usage : stored) {
+                    if (usage.sizes().length == usage.numberOfFrames()
+                        && usage.lastUses().length == usage.numberOfFrames()
+                        && usage.uses().length == usage.numberOfFrames()) {
+                        this.usages.put(usage.hash(), new Usage(usage.sizes(), usage.lastUses(), usage.uses()));
+                    }
+                }
+            }
+            this.dirty = false;
+            LOG.fine(() -> "Loaded the frame usage of " + this.usages.size() + " wallpapers");
+        } catch (final Exception exception) {
+            LOG.warning("Unable to load the frame usage: " + exception);
+        }
+    }
+
+    /**
+     * Persists the frame usage if it has changed. The file is replaced atomically.
+     */
+    public synchronized void save() {
+        if (!this.dirty) {
+            return;
+        }
+        final List<Stored> stored = new ArrayList<>(this.usages.size());
+        this.usages.forEach((hash, usage) -> stored.add(new Stored(hash,
+                                                                   usage.sizes.length,
+                                                                   usage.sizes,
+                                                                   usage.lastUses,
+                                                                   usage.uses)));
+        try {
+            final Path temporaryPath = this.storePath.resolveSibling(this.storePath.getFileName() + ".tmp");
+            Files.writeString(temporaryPath,
+                              this.gson.toJson(stored.toArray(new Stored[0])),
+                              StandardCharsets.UTF_8,
+                              StandardOpenOption.WRITE,
+                              StandardOpenOption.TRUNCATE_EXISTING,
+                              StandardOpenOption.CREATE);
+            Files.move(temporaryPath, this.storePath, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            this.dirty = false;
+        } catch (final IOException exception) {
+            LOG.warning("Unable to save the frame usage: " + exception);
+        }
+    }
+
+    /**
+     * Starts tracking the frames of a wallpaper. If it's not tracked yet (e.g. its frames have been extracted by a
+     * previous version of the application), the sizes of its frames are read from its frame manifest.
+     *
+     * @param hash           The wallpaper file hash.
+     * @param numberOfFrames The number of frames of the wallpaper.
+     */
+    public synchronized void track(final String hash, final int numberOfFrames) {
+        final Usage usage = this.usages.get(hash);
+        if (usage != null && usage.sizes.length == numberOfFrames) {
+            return;
+        }
+        final FrameManifest manifest = this.dynamicWallpaperService.getManifest(hash, numberOfFrames);
+        final Usage newUsage = new Usage(numberOfFrames);
+        for (int frameIndex = 0; frameIndex < numberOfFrames; ++frameIndex) {
+            newUsage.sizes[frameIndex] = manifest.getFrameSize(frameIndex);
+        }
+        this.usages.put(hash, newUsage);
+        this.dirty = true;
+    }
+
+    /**
+     * Sets the pinned wallpapers, whose frames are never evicted. The previously pinned wallpapers are unpinned.
+     *
+     * @param hashes The hashes of the pinned wallpapers.
+     */
+    public synchronized void setPinned(final Collection<String> hashes) {
+        this.pinned.clear();
+        this.pinned.addAll(hashes);
+    }
+
+    /**
+     * Holds the eviction, until {@link #releaseEviction()} is called: {@link #enforceQuota()} does nothing meanwhile, so
+     * that the frames that are being extracted or read are not deleted.
+     */
+    public synchronized void holdEviction() {
+        ++this.evictionHolds;
+    }
+
+    /**
+     * Releases a hold of the eviction.
+     */
+    public synchronized void releaseEviction() {
+        if (this.evictionHolds == 0) {
+            throw new IllegalStateException("The eviction is not held");
+        }
+        --this.evictionHolds;
+    }
+
+    /**
+     * Returns the path of a frame, after having extracted it again if it has been evicted. The use of the frame is
+     * recorded.
+     *
+     * @param wallpaperFile  The dynamic wallpaper file.
+     * @param hash           The wallpaper file hash.
+     * @param numberOfFrames The number of frames of the wallpaper.
+     * @param frameIndex     The frame index.
+     * @return the frame path.
+     * @throws IOException          if the frame can't be extracted.
+     * @throws InterruptedException if the thread is interrupted while waiting for ImageMagick.
+     */
+    public Path getFrame(final File wallpaperFile,
+                         final String hash,
+                         final int numberOfFrames,
+                         final int frameIndex) throws IOException, InterruptedException {
+        final FrameManifest manifest = this.dynamicWallpaperService.getManifest(hash, numberOfFrames);
+        if (manifest.isExtracted(frameIndex)) {
+            this.hits.incrementAndGet();
+        } else {
+            this.misses.incrementAndGet();
+        }
+        final Path framePath = this.dynamicWallpaperService.extractFrame(wallpaperFile,
+                                                                         hash,
+                                                                         numberOfFrames,
+                                                                         frameIndex);
+        this.recordUse(hash, numberOfFrames, frameIndex);
+        return framePath;
+    }
+
+    /**
+     * Extracts again the evicted frames of a wallpaper, e.g. before its preview or frame pyramids are generated. The
+     * use of the frames is recorded.
+     *
+     * @param wallpaperFile  The dynamic wallpaper file.
+     * @param hash           The wallpaper file hash.
+     * @param numberOfFrames The number of frames of the wallpaper.
+     * @throws IOException          if a frame can't be extracted.
+     * @throws InterruptedException if the thread is interrupted while waiting for ImageMagick.
+     */
+    public void ensureFrames(final File wallpaperFile,
+                             final String hash,
+                             final int numberOfFrames) throws IOException, InterruptedException {
+        final int missingFrames = this.dynamicWallpaperService.getManifest(hash, numberOfFrames)
+            .getMissingFrames()
+            .size();
+        this.hits.addAndGet(numberOfFrames - missingFrames);
+        this.misses.addAndGet(missingFrames);
+        this.dynamicWallpaperService.extract(wallpaperFile, hash, numberOfFrames);
+        for (int frameIndex = 0; frameIndex < numberOfFrames; ++frameIndex) {
+            this.recordUse(hash, numberOfFrames, frameIndex);
+        }
+    }
+
+    /**
+     * Records the size of a frame that has been extracted.
+     */
+    @Override
+    public synchronized void onFramePublished(final FrameManifest manifest, final int frameIndex) {
+        final String hash = manifest.getDirectory().getFileName().toString();
+        this.track(hash, manifest.getNumberOfFrames());
+        final Usage usage = this.usages.get(hash);
+        usage.sizes[frameIndex] = manifest.getFrameSize(frameIndex);
+        // A new frame is as recent as a used one, so that it's not evicted before it's used
+        usage.lastUses[frameIndex] = this.clock.millis();
+        this.dirty = true;
+    }
+
+    /**
+     * Evicts frames until the cache is under the low watermark of the quota, if it exceeds the quota and the eviction
+     * is not held.
+     *
+     * @return the number of evicted bytes.
+     */
+    public synchronized long enforceQuota() {
+        long usedBytes = this.getUsedBytes();
+        final long quota = this.quotaBytes;
+        if (usedBytes <= quota) {
+            return 0;
+        }
+        if (this.evictionHolds > 0) {
+            LOG.fine("The eviction is held, the quota will be enforced later");
+            return 0;
+        }
+
+        final List<Candidate> candidates = new ArrayList<>(256);
+        this.usages.forEach((hash, usage) -> {
+            if (this.pinned.contains(hash)) {
+                return;
+            }
+            for (int frameIndex = 0; frameIndex < usage.sizes.length; ++frameIndex) {
+                if (usage.sizes[frameIndex] > 0) {
+                    candidates.add(new Candidate(hash, frameIndex, usage.lastUses[frameIndex], usage.uses[frameIndex]));
+                }
+            }
+        });
+        candidates.sort(Comparator.comparingLong(Candidate::lastUse).thenComparingInt(Candidate::uses));
+
+        final long target = (long) (quota * LOW_WATERMARK);
+        final long start = System.nanoTime();
+        long evicted = 0;
+        int frames = 0;
+        for (final Candidate candidate : candidates) {
+            if (usedBytes <= target) {
+                break;
+            }
+            final Usage usage = this.usages.get(candidate.hash());
+            try {
+                this.dynamicWallpaperService.getManifest(candidate.hash(), usage.sizes.length)
+                    .evict(candidate.frameIndex());
+            } catch (final IOException exception) {
+                LOG.warning("Unable to evict the frame " + candidate.frameIndex() + " of " + candidate.hash() + ": "
+                                + exception);
+                continue;
+            }
+            final long size = usage.sizes[candidate.frameIndex()];
+            usage.sizes[candidate.frameIndex()] = 0;
+            usedBytes -= size;
+            evicted += size;
+            ++frames;
+        }
+        this.evictedFrames.addAndGet(frames);
+        this.evictedBytes.addAndGet(evicted);
+        this.dirty = true;
+        final long evictedBytes = evicted;
+        final int evictedFrames = frames;
+        LOG.info(() -> "Evicted " + evictedFrames + " frames (" + evictedBytes / 1024 / 1024 + " MB) in "
+            + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return evicted;
+    }
+
+    /**
+     * Returns the total size of the tracked frames, in bytes.
+     */
+    public synchronized long getUsedBytes() {
+        long usedBytes = 0;
+        for (final Usage usage : this.usages.values()) {
+            for (final long size : usage.sizes) {
+                usedBytes += size;
+            }
+        }
+        return usedBytes;
+    }
+
+    /**
+     * Returns the metrics of the frame cache.
+     */
+    public Metrics getMetrics() {
+        return new Metrics(this.hits.get(),
+                           this.misses.get(),
+                           this.evictedFrames.get(),
+                           this.evictedBytes.get(),
+                           this.getUsedBytes(),
+                           this.quotaBytes);
+    }
+
+    /**
+     * Records the use of a frame.
+     */
+    private synchronized void recordUse(final String hash, final int numberOfFrames, final int frameIndex) {
+        this.track(hash, numberOfFrames);
+        final Usage usage = this.usages.get(hash);
+        usage.lastUses[frameIndex] = this.clock.millis();
+        ++usage.uses[frameIndex];
+        this.dirty = true;
+    }
+
+    /**
+     * The frame usage of a wallpaper, indexed by frame index.
+     */
+    private static final class Usage {
+
+        /**
+         * The sizes of the extracted frames, or 0 for the frames that are not extracted.
+         */
+        private final long[] sizes;
+
+        /**
+         * The times of the last uses, in milliseconds since the epoch, or 0 for the frames that have never been used.
+         */
+        private final long[] lastUses;
+
+        /**
+         * The numbers of uses.
+         */
+        private final int[] uses;
+
+        private Usage(final int numberOfFrames) {
+            this(new long[numberOfFrames], new long[numberOfFrames], new int[numberOfFrames]);
+        }
+
+        private Usage(final long[] sizes, final long[] lastUses, final int[] uses) {
+            this.sizes = sizes;
+            this.lastUses = lastUses;
+            this.uses = uses;
+        }
+    }
+
+    /**
+     * A frame that may be evicted.
+     */
+    private record Candidate(String hash,
+                             int frameIndex,
+                             long lastUse,
+                             int uses) {
+    }
+
+    /**
+     * The persisted form of the frame usage of a wallpaper.
+     *
+     * @param hash           The wallpaper file hash.
+     * @param numberOfFrames The number of frames of the wallpaper.
+     * @param sizes          The sizes of the extracted frames.
+     * @param lastUses       The times of the last uses, in milliseconds since the epoch.
+     * @param uses           The numbers of uses.
+     */
+    private record Stored(String hash,
+                          int numberOfFrames,
+                          long[] sizes,
+                          long[] lastUses,
+                          int[] uses) {
+    }
+
+    /**
+     * The metrics of the frame cache.
+     *
+     * @param hits          The number of requested frames that were extracted.
+     * @param misses        The number of requested frames that had to be extracted (again).
+     * @param evictedFrames The number of evicted frames.
+     * @param evictedBytes  The total size of the evicted frames.
+     * @param usedBytes     The total size of the extracted frames.
+     * @param quotaBytes    The disk quota.
+     */
+    public record Metrics(long hits,
+                          long misses,
+                          long evictedFrames,
+                          long evictedBytes,
+                          long usedBytes,
+                          long quotaBytes) {
+
+        /**
+         * Returns the ratio of requested frames that were extracted, or 1 if no frame has been requested.
+         */
+        public double getHitRate() {
+            final long requests = this.hits + this.misses;
+            return (requests == 0) ? 1 : (double) this.hits / requests;
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package ch.qligier.heicofawallpaper.service;
+
+import ch.qligier.heicofawallpaper.utils.XxHash64;
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * The manifest of the extracted frames of a wallpaper, persisted in its cache directory.
+ * <p>
+ * The frames are decoded into a staging directory, then published one by one: the frame file is moved atomically to
+ * its final name, and its size and checksum are recorded in the manifest, that is itself replaced atomically. A frame
+ * is only considered extracted if it's listed in the manifest with the size of its file, and its checksum is verified
+ * the first time it's reused; after a crash, only the missing or damaged frames have to be extracted again. Each
+ * extraction has its own staging directory, as the same frames may be extracted concurrently (e.g. by the import and
+ * by a wallpaper refresh).
+ *
+ * @author Quentin Ligier
+ **/
+public class FrameManifest {
+    private static final Logger LOG = Logger.getLogger("FrameManifest");
+
+    public static final String FILE_NAME = "manifest.json";
+    public static final String STAGING_FOLDER_NAME = "staging";
+
+    private static final Gson GSON = new Gson();
+
+    /**
+     * The size of the buffer that the frame files are read with.
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The cache directory of the wallpaper.
+     */
+    private final Path directory;
+
+    /**
+     * The number of frames of the wallpaper.
+     */
+    private final int numberOfFrames;
+
+    /**
+     * The published frames, keyed by frame index.
+     */
+    private final Map<Integer, Frame> frames = new TreeMap<>();
+
+    /**
+     * The indexes of the published frames whose checksum has been verified since the manifest was loaded.
+     */
+    private final BitSet verifiedFrames = new BitSet();
+
+    private FrameManifest(final Path directory, final int numberOfFrames) {
+        this.directory = directory;
+        this.numberOfFrames = numberOfFrames;
+    }
+
+    /**
+     * Loads the manifest of a wallpaper cache directory. Frame files that are not listed in the manifest (e.g. from a
+     * previous version of the application) are adopted if they are complete JPEG files.
+     *
+     * @param directory      The cache directory of the wallpaper.
+     * @param numberOfFrames The number of frames of the wallpaper.
+     * @return the manifest, possibly empty.
+     */
+    public static FrameManifest load(final Path directory, final int numberOfFrames) {
+        final FrameManifest manifest = new FrameManifest(directory, numberOfFrames);
+        final Path manifestPath = directory.resolve(FILE_NAME);
+        if (Files.isRegularFile(manifestPath)) {
+            try {
+                final Stored stored = GSON.fromJson(Files.readString(manifestPath, StandardCharsets.UTF_8),
+                                                    Stored.class);
+                if (stored != null && stored.frames() != null) {
+                    for (final Frame frame : stored.frames()) {
+                        manifest.frames.put(frame.index(), frame);
+                    }
+                }
+            } catch (final Exception exception) {
+                LOG.warning("Unable to load the frame manifest of '" + directory + "': " + exception);
+            }
+        }
+
+        // The staging directories of the extractions that have been interrupted by a crash
+        deleteStagingDirectories(manifest.getStagingDirectory());
+
+        boolean adopted = false;
+        for (int frameIndex = 0; frameIndex < numberOfFrames; ++frameIndex) {
+            final Path framePath = manifest.getFramePath(frameIndex);
+            if (!manifest.frames.containsKey(frameIndex) && Files.isRegularFile(framePath)) {
+                try {
+                    final FileDigest digest = digest(framePath);
+                    if (digest.isCompleteJpeg()) {
+                        manifest.frames.put(frameIndex, new Frame(frameIndex, digest.size(), digest.checksum()));
+                        manifest.verifiedFrames.set(frameIndex);
+                        adopted = true;
+                    }
+                } catch (final IOException exception) {
+                    LOG.warning("Unable to read the frame '" + framePath + "': " + exception);
+                }
+            }
+        }
+        if (adopted) {
+            try {
+                manifest.save();
+            } catch (final IOException exception) {
+                LOG.warning("Unable to save the frame manifest of '" + directory + "': " + exception);
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Returns whether a frame has been published and its file is still there, with the recorded size. The first time
+     * a frame is checked since the manifest was loaded, its checksum is verified too; a damaged frame is removed from
+     * the manifest.
+     *
+     * @param frameIndex The frame index.
+     */
+    public synchronized boolean isExtracted(final int frameIndex) {
+        final Frame frame = this.frames.get(frameIndex);
+        if (frame == null) {
+            return false;
+        }
+        final Path framePath = this.getFramePath(frameIndex);
+        try {
+            if (!Files.isRegularFile(framePath) || Files.size(framePath) != frame.size()) {
+                return false;
+            }
+            if (this.verifiedFrames.get(frameIndex)) {
+                return true;
+            }
+            if (digest(framePath).checksum().equals(frame.checksum())) {
+                this.verifiedFrames.set(frameIndex);
+                return true;
+            }
+            LOG.warning("The frame '" + framePath + "' is damaged, it will be extracted again");
+            this.frames.remove(frameIndex);
+            this.save();
+            return false;
+        } catch (final IOException exception) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the indexes of the frames that are not extracted, in increasing order.
+     */
+    public synchronized List<Integer> getMissingFrames() {
+        final List<Integer> missingFrames = new ArrayList<>(this.numberOfFrames);
+        for (int frameIndex = 0; frameIndex < this.numberOfFrames; ++frameIndex) {
+            if (!this.isExtracted(frameIndex)) {
+                missingFrames.add(frameIndex);
+            }
+        }
+        return missingFrames;
+    }
+
+    /**
+     * Returns whether all frames are extracted.
+     */
+    public boolean isComplete() {
+        return this.getMissingFrames().isEmpty();
+    }
+
+    /**
+     * Returns the path of the staging directory, where each extraction creates its own directory to decode the frames
+     * before they are published.
+     */
+    public Path getStagingDirectory() {
+        return this.directory.resolve(STAGING_FOLDER_NAME);
+    }
+
+    /**
+     * Creates the staging directory of an extraction. It shall be deleted by the extraction once it's done.
+     *
+     * @return the path of the new directory.
+     * @throws IOException if the directory can't be created.
+     */
+    public Path createExtractionDirectory() throws IOException {
+        return Files.createTempDirectory(Files.createDirectories(this.getStagingDirectory()), "extraction");
+    }
+
+    /**
+     * Publishes a frame that has been decoded in a staging directory: it's moved to its final name and recorded in the
+     * manifest.
+     *
+     * @param frameIndex The frame index.
+     * @param stagedPath The path of the decoded frame.
+     * @throws IOException if the staged frame is incomplete or can't be moved.
+     */
+    public synchronized void publish(final int frameIndex, final Path stagedPath) throws IOException {
+        final FileDigest digest = digest(stagedPath);
+        if (!digest.isCompleteJpeg()) {
+            Files.deleteIfExists(stagedPath);
+            throw new IOException("The decoded frame " + frameIndex + " in '" + this.directory + "' is incomplete");
+        }
+        Files.move(stagedPath,
+                   this.getFramePath(frameIndex),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+        this.frames.put(frameIndex, new Frame(frameIndex, digest.size(), digest.checksum()));
+        this.verifiedFrames.set(frameIndex);
+        this.save();
+    }
+
+    /**
+     * Deletes a staging directory and its content, up to two levels deep. The failures are ignored.
+     *
+     * @param stagingDirectory The staging directory.
+     */
+    public static void deleteStagingDirectories(final Path stagingDirectory) {
+        if (!Files.isDirectory(stagingDirectory)) {
+            return;
+        }
+        try (final var stagedPaths = Files.list(stagingDirectory)) {
+            stagedPaths.forEach(path -> {
+                if (Files.isDirectory(path)) {
+                    deleteStagingDirectories(path);
+                } else {
+                    path.toFile().delete();
+                }
+            });
+        } catch (final IOException exception) {
+            LOG.fine(() -> "Unable to list the staging directory '" + stagingDirectory + "': " + exception);
+        }
+        stagingDirectory.toFile().delete();
+    }
+
+    /**
+     * Evicts a published frame: its file is deleted and it's removed from the manifest. It will be extracted again
+     * when it's needed.
+     *
+     * @param frameIndex The frame index.
+     * @return the size of the deleted file, or 0 if the frame was not published.
+     * @throws IOException if the frame file can't be deleted.
+     */
+    public synchronized long evict(final int frameIndex) throws IOException {
+        final Frame frame = this.frames.remove(frameIndex);
+        if (frame == null) {
+            return 0;
+        }
+        this.verifiedFrames.clear(frameIndex);
+        Files.deleteIfExists(this.getFramePath(frameIndex));
+        this.save();
+        return frame.size();
+    }
+
+    /**
+     * Returns the recorded size of a published frame, or 0 if the frame is not published.
+     *
+     * @param frameIndex The frame index.
+     */
+    public synchronized long getFrameSize(final int frameIndex) {
+        final Frame frame = this.frames.get(frameIndex);
+        return (frame != null) ? frame.size() : 0;
+    }
+
+    /**
+     * Returns the number of frames of the wallpaper.
+     */
+    public int getNumberOfFrames() {
+        return this.numberOfFrames;
+    }
+
+    /**
+     * Returns the cache directory of the wallpaper.
+     */
+    public Path getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * Returns the path of a published frame.
+     *
+     * @param frameIndex The frame index.
+     */
+    public Path getFramePath(final int frameIndex) {
+        return this.directory.resolve(String.format(FileSystemService.FRAME_FILE_NAME_FORMAT, frameIndex));
+    }
+
+    /**
+     * Persists the manifest. The file is replaced atomically.
+     */
+    private void save() throws IOException {
+        final Path manifestPath = this.directory.resolve(FILE_NAME);
+        final Path temporaryPath = manifestPath.resolveSibling(FILE_NAME + ".tmp");
+        Files.writeString(temporaryPath,
+                          GSON.toJson(new Stored(this.numberOfFrames, List.copyOf(this.frames.values()))),
+                          StandardCharsets.UTF_8,
+                          StandardOpenOption.WRITE,
+                          StandardOpenOption.TRUNCATE_EXISTING,
+                          StandardOpenOption.CREATE);
+        Files.move(temporaryPath, manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a frame file by chunks, and computes its size, checksum and first and last bytes.
+     */
+    private static FileDigest digest(final Path framePath) throws IOException {
+        final XxHash64.Streaming hash = new XxHash64.Streaming(0);
+        final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        long size = 0;
+        int head = 0;
+        int tail = 0;
+        try (final FileChannel channel = FileChannel.open(framePath, StandardOpenOption.READ)) {
+            int read;
+            while ((read = channel.read(buffer.clear())) >= 0) {
+                buffer.flip();
+                hash.update(buffer);
+                for (int i = 0; i < read && size + i < 2; ++i) {
+                    head = (head << 8) | (buffer.get(i) & 0xFF);
+                }
+                for (int i = Math.max(0, read - 2); i < read; ++i) {
+                    tail = ((tail << 8) | (buffer.get(i) & 0xFF)) & 0xFFFF;
+                }
+                size += read;
+            }
+        }
+        // A complete JPEG file starts with the SOI marker and ends with the EOI marker
+        final boolean isCompleteJpeg = size >= 4 && head == 0xFFD8 && tail == 0xFFD9;
+        return new FileDigest(size, HexFormat.of().toHexDigits(hash.digest()), isCompleteJpeg);
+    }
+
+    /**
+     * The digest of a frame file.
+     *
+     * @param size           The file size.
+     * @param checksum       The XXH64 checksum of the file.
+     * @param isCompleteJpeg Whether the file starts with the JPEG SOI marker and ends with the EOI marker.
+     */
+    private record FileDigest(long size,
+                              String checksum,
+                              boolean isCompleteJpeg) {
+    }
+
+    /**
+     * A published frame.
+     *
+     * @param index    The frame index.
+     * @param size     The frame file size.
+     * @param checksum The XXH64 checksum of the frame file.
+     */
+    public record Frame(int index,
+                        long size,
+                        String checksum) {
+    }
+
+    /**
+     * The persisted form of the manifest.
+     *
+     * @param numberOfFrames The number of frames of the wallpaper.
+     * @param frames         The published frames.
+     */
+    private record Stored(int numberOfFrames,
+                          List<Frame> frames) {
+    }
+}
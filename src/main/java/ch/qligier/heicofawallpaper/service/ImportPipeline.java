@@ -0,0 +1,382 @@
+package ch.qligier.heicofawallpaper.service;
+
+import ch.qligier.heicofawallpaper.model.CachedDynWallDefinition;
+import ch.qligier.heicofawallpaper.model.DynWallDefinition;
+import ch.qligier.heicofawallpaper.utils.heic.MetadataExtractor;
+import ch.qligier.heicofawallpaper.utils.heic.PreviewGenerator;
+import ch.qligier.heicofawallpaper.utils.heic.ThumbnailExtractor;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * The import pipeline of new dynamic wallpaper files. Each file goes through five stages:
+ * <ol>
+ *     <li>identity and metadata: the cached definition is reused if the content is already known, otherwise the
+ *     metadata are read (by batches) and the definition is created;</li>
+ *     <li>generation of a first preview from the thumbnails that are embedded in the file, and publication of the
+ *     definition, so that the wallpaper is shown immediately;</li>
+ *     <li>extraction of the frames with ImageMagick;</li>
+ *     <li>generation of the preview and of the frame pyramids;</li>
+ *     <li>persistence of the definition in the library catalog, and publication to the definition consumer.</li>
+ * </ol>
+ * Each stage has its own executor, whose queue is bounded: when a stage is saturated, the previous stage waits for it.
+ * The queue of the extraction stage is large, so that the first previews don't wait for the extractions of the other
+ * files.
+ * The stages of different files overlap, e.g. the metadata of a file are read while the previous file is extracted. A
+ * file that fails in any stage, with any throwable, is reported and skipped: each file is counted once as imported,
+ * reused or failed, so that a run always ends.
+ *
+ * @author Quentin Ligier
+ **/
+public class ImportPipeline {
+    private static final Logger LOG = Logger.getLogger("ImportPipeline");
+
+    /**
+     * The capacity of the queue of the extraction stage. A queued extraction only holds a definition.
+     */
+    private static final int EXTRACTION_QUEUE_CAPACITY = 1024;
+
+    private final DynamicWallpaperService dynamicWallpaperService;
+    private final MetadataExtractor metadataExtractor;
+    private final FileHashCache fileHashCache;
+    private final ThumbnailExtractor thumbnailExtractor;
+    private final PreviewScheduler previewScheduler;
+    private final LibraryCatalog libraryCatalog;
+
+    /**
+     * The consumer of the imported or reused definitions. It's called from the pipeline threads.
+     */
+    private final Consumer<DynWallDefinition> definitionConsumer;
+
+    /**
+     * The number of files whose metadata are read together.
+     */
+    private final int batchSize;
+
+    /**
+     * The number of threads of the thumbnail, extraction and preview stages.
+     */
+    private final int workerThreads;
+
+    /**
+     * Constructor.
+     *
+     * @param dynamicWallpaperService The dynamic wallpaper service.
+     * @param metadataExtractor       The metadata extractor.
+     * @param fileHashCache           The file hash cache.
+     * @param thumbnailExtractor      The extractor of the embedded thumbnails.
+     * @param previewScheduler        The scheduler of the preview generations.
+     * @param libraryCatalog          The catalog of the cached definitions.
+     * @param definitionConsumer      The consumer of the imported or reused definitions.
+     * @param batchSize               The number of files whose metadata are read together.
+     */
+    public ImportPipeline(final DynamicWallpaperService dynamicWallpaperService,
+                          final MetadataExtractor metadataExtractor,
+                          final FileHashCache fileHashCache,
+                          final ThumbnailExtractor thumbnailExtractor,
+                          final PreviewScheduler previewScheduler,
+                          final LibraryCatalog libraryCatalog,
+                          final Consumer<DynWallDefinition> definitionConsumer,
+                          final int batchSize) {
+        this.dynamicWallpaperService = Objects.requireNonNull(dynamicWallpaperService);
+        this.metadataExtractor = Objects.requireNonNull(metadataExtractor);
+        this.fileHashCache = Objects.requireNonNull(fileHashCache);
+        this.thumbnailExtractor = Objects.requireNonNull(thumbnailExtractor);
+        this.previewScheduler = Objects.requireNonNull(previewScheduler);
+        this.libraryCatalog = Objects.requireNonNull(libraryCatalog);
+        this.definitionConsumer = Objects.requireNonNull(definitionConsumer);
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("The batch size shall be positive");
+        }
+        this.batchSize = batchSize;
+        this.workerThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    }
+
+    /**
+     * Imports the given files and waits until all of them have been imported or have failed.
+     *
+     * @param heicFiles The dynamic wallpaper files to import.
+     * @return the import report.
+     * @throws InterruptedException if the thread is interrupted while waiting; the pending imports are cancelled.
+     */
+    public Report run(final Collection<File> heicFiles) throws InterruptedException {
+        final long start = System.nanoTime();
+        final Run run = new Run(heicFiles.size());
+        try {
+            final List<File> files = List.copyOf(heicFiles);
+            for (int from = 0; from < files.size(); from += this.batchSize) {
+                final List<File> batch = files.subList(from, Math.min(from + this.batchSize, files.size()));
+                run.metadataStage.execute(() -> this.identifyBatch(run, batch));
+            }
+            run.remaining.await();
+        } finally {
+            run.shutdown();
+        }
+        final Report report = new Report(run.imported.get(),
+                                         run.reused.get(),
+                                         List.copyOf(run.failures),
+                                         (System.nanoTime() - start) / 1_000_000);
+        LOG.info(() -> String.format("Imported %d files and reused %d in %d ms, %d failed",
+                                     report.imported(),
+                                     report.reused(),
+                                     report.durationMs(),
+                                     report.failures().size()));
+        return report;
+    }
+
+    /**
+     * Stage 1: reuses the cached definitions of the known contents, and creates the definitions of the others from
+     * their metadata.
+     */
+    private void identifyBatch(final Run run, final List<File> batch) {
+        final List<File> unknownFiles = new ArrayList<>(batch.size());
+        for (final File heicFile : batch) {
+            try {
+                if (!this.reuseCachedDefinition(heicFile)) {
+                    unknownFiles.add(heicFile);
+                    continue;
+                }
+                run.reused.incrementAndGet();
+                run.remaining.countDown();
+            } catch (final Throwable throwable) {
+                run.fail(heicFile, "identity", throwable);
+            }
+        }
+        if (unknownFiles.isEmpty()) {
+            return;
+        }
+
+        final List<MetadataExtractor.Result> results;
+        try {
+            results = this.metadataExtractor.getMetadata(unknownFiles);
+        } catch (final Throwable throwable) {
+            unknownFiles.forEach(heicFile -> run.fail(heicFile, "metadata", throwable));
+            return;
+        }
+        final Set<File> pendingFiles = new HashSet<>(unknownFiles);
+        for (final MetadataExtractor.Result result : results) {
+            if (!pendingFiles.remove(result.file())) {
+                continue;
+            }
+            if (result.metadata() == null) {
+                run.fail(result.file(), "metadata", result.exception());
+                continue;
+            }
+            try {
+                final DynWallDefinition definition =
+                    this.dynamicWallpaperService.loadDefinitionFromMetadata(result.file(), result.metadata());
+                run.thumbnailStage.execute(() -> this.previewThumbnails(run, result.file(), definition));
+            } catch (final Throwable throwable) {
+                run.fail(result.file(), "metadata", throwable);
+            }
+        }
+        // The files without a result would never be counted
+        pendingFiles.forEach(heicFile -> run.fail(heicFile, "metadata", null));
+    }
+
+    /**
+     * Adds the cached definition of a wallpaper file whose content is already in the cache (e.g. the file has been
+     * renamed).
+     *
+     * @return {@code true} if the cached definition has been reused, {@code false} if the file has to be imported.
+     */
+    private boolean reuseCachedDefinition(final File heicFile) throws IOException {
+        final DynWallDefinition cached = this.libraryCatalog.getDefinition(this.fileHashCache.getIdentity(heicFile));
+        if (cached != null) {
+            this.definitionConsumer.accept(cached.withFilename(heicFile.getName()));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stage 2: generates a first preview from the embedded thumbnails and publishes the definition.
+     */
+    private void previewThumbnails(final Run run, final File heicFile, final DynWallDefinition definition) {
+        try {
+            FileSystemService.getDataPath().resolve(definition.fileHash()).toFile().mkdirs();
+            this.publishThumbnailPreview(heicFile, definition);
+            run.extractionStage.execute(() -> this.extract(run, heicFile, definition));
+        } catch (final InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            run.fail(heicFile, "thumbnails", exception);
+        } catch (final Throwable throwable) {
+            run.fail(heicFile, "thumbnails", throwable);
+        }
+    }
+
+    /**
+     * Stage 3: extracts the wallpaper frames.
+     */
+    private void extract(final Run run, final File heicFile, final DynWallDefinition definition) {
+        try {
+            this.dynamicWallpaperService.extract(heicFile, definition.fileHash(), definition.numberOfFrames());
+            run.previewStage.execute(() -> this.generatePreview(run, heicFile, definition));
+        } catch (final InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            run.fail(heicFile, "extraction", exception);
+        } catch (final Throwable throwable) {
+            run.fail(heicFile, "extraction", throwable);
+        }
+    }
+
+    /**
+     * Generates a first preview from the embedded thumbnails, and publishes the definition. It's replaced by the
+     * preview of the extracted frames at the end of the import; a failure is not fatal.
+     */
+    private void publishThumbnailPreview(final File heicFile,
+                                         final DynWallDefinition definition) throws InterruptedException {
+        final Path cacheDirectory = FileSystemService.getDataPath().resolve(definition.fileHash());
+        try {
+            final Map<Integer, Path> thumbnails = this.thumbnailExtractor.extract(heicFile.toPath(), cacheDirectory);
+            if (!thumbnails.containsKey(0)) {
+                LOG.fine(() -> "No embedded thumbnail for the first frame of " + heicFile);
+                return;
+            }
+            this.previewScheduler.store(definition, PreviewGenerator.generateFromThumbnails(definition, thumbnails));
+            this.definitionConsumer.accept(definition);
+        } catch (final InterruptedException exception) {
+            throw exception;
+        } catch (final Exception exception) {
+            LOG.warning(() -> "Unable to generate the preview of " + heicFile + " from its thumbnails: " + exception);
+        }
+    }
+
+    /**
+     * Stage 4: generates the wallpaper preview and the frame pyramids, once the preview scheduler admits them in its
+     * memory budget.
+     */
+    private void generatePreview(final Run run, final File heicFile, final DynWallDefinition definition) {
+        try {
+            this.previewScheduler.generate(definition);
+            this.previewScheduler.generatePyramids(definition);
+            run.persistenceStage.execute(() -> this.persist(run, heicFile, definition));
+        } catch (final InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            run.fail(heicFile, "preview", exception);
+        } catch (final Throwable throwable) {
+            run.fail(heicFile, "preview", throwable);
+        }
+    }
+
+    /**
+     * Stage 5: puts the definition in the library catalog and publishes it.
+     */
+    private void persist(final Run run, final File heicFile, final DynWallDefinition definition) {
+        try {
+            this.libraryCatalog.put(definition.fileHash(),
+                                    CachedDynWallDefinition.fromDynamicWallpaperDefinition(definition));
+            this.definitionConsumer.accept(definition);
+            run.imported.incrementAndGet();
+            run.remaining.countDown();
+        } catch (final Throwable throwable) {
+            run.fail(heicFile, "persistence", throwable);
+        }
+    }
+
+    /**
+     * Creates the executor of a stage. Its queue is bounded; a submission to a full queue blocks the submitting
+     * thread, which is a thread of the previous stage.
+     */
+    private static ThreadPoolExecutor newStage(final String name, final int threads, final int queueCapacity) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return new ThreadPoolExecutor(threads,
+                                      threads,
+                                      0L,
+                                      TimeUnit.MILLISECONDS,
+                                      new ArrayBlockingQueue<>(queueCapacity),
+                                      runnable -> {
+                                          final Thread thread = new Thread(runnable,
+                                                                           "ImportPipeline-" + name + "-"
+                                                                               + threadCount.incrementAndGet());
+                                          thread.setDaemon(true);
+                                          return thread;
+                                      },
+                                      (runnable, executor) -> {
+                                          if (executor.isShutdown()) {
+                                              throw new RejectedExecutionException("The stage " + name + " is shut "
+                                                                                       + "down");
+                                          }
+                                          try {
+                                              executor.getQueue().put(runnable);
+                                          } catch (final InterruptedException exception) {
+                                              Thread.currentThread().interrupt();
+                                              throw new RejectedExecutionException(exception);
+                                          }
+                                      });
+    }
+
+    /**
+     * The state of a pipeline run.
+     */
+    private final class Run {
+        private final ThreadPoolExecutor metadataStage = newStage("metadata", 1, 4);
+        private final ThreadPoolExecutor thumbnailStage =
+            newStage("thumbnails", ImportPipeline.this.workerThreads, ImportPipeline.this.workerThreads * 2);
+        private final ThreadPoolExecutor extractionStage =
+            newStage("extraction", ImportPipeline.this.workerThreads, EXTRACTION_QUEUE_CAPACITY);
+        private final ThreadPoolExecutor previewStage =
+            newStage("preview", ImportPipeline.this.workerThreads, ImportPipeline.this.workerThreads * 2);
+        private final ThreadPoolExecutor persistenceStage = newStage("persistence", 1, 16);
+
+        /**
+         * The number of files that have not been imported, reused or reported as failed yet.
+         */
+        private final CountDownLatch remaining;
+        private final AtomicInteger imported = new AtomicInteger();
+        private final AtomicInteger reused = new AtomicInteger();
+        private final Queue<Failure> failures = new ConcurrentLinkedQueue<>();
+
+        private Run(final int numberOfFiles) {
+            this.remaining = new CountDownLatch(numberOfFiles);
+        }
+
+        private void fail(final File heicFile, final String stage, @Nullable final Throwable cause) {
+            LOG.warning(() -> "Unable to import '" + heicFile + "' (" + stage + "): " + cause);
+            this.failures.add(new Failure(heicFile, stage, cause));
+            this.remaining.countDown();
+        }
+
+        private void shutdown() {
+            this.metadataStage.shutdownNow();
+            this.thumbnailStage.shutdownNow();
+            this.extractionStage.shutdownNow();
+            this.previewStage.shutdownNow();
+            this.persistenceStage.shutdownNow();
+        }
+    }
+
+    /**
+     * The report of a pipeline run.
+     *
+     * @param imported   The number of imported files.
+     * @param reused     The number of files whose cached definition has been reused.
+     * @param failures   The failed files.
+     * @param durationMs The duration of the run, in milliseconds.
+     */
+    public record Report(int imported,
+                         int reused,
+                         List<Failure> failures,
+                         long durationMs) {
+    }
+
+    /**
+     * A file that has failed to be imported.
+     *
+     * @param file  The dynamic wallpaper file.
+     * @param stage The name of the stage that has failed.
+     * @param cause The cause of the failure, or {@code null} if it's unknown.
+     */
+    public record Failure(File file,
+                          String stage,
+                          @Nullable Throwable cause) {
+    }
+}
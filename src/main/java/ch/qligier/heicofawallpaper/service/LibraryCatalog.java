@@ -0,0 +1,693 @@
+package ch.qligier.heicofawallpaper.service;
+
+import ch.qligier.heicofawallpaper.model.*;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalTime;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+/**
+ * The catalog of the cached wallpaper definitions. It's made of two append-only binary files:
+ * <ul>
+ *     <li>the summary file starts with a header ({@link #MAGIC} and {@link #VERSION}), followed by a compact record per
+ *     stored definition: its file hash, filename, types, dimensions and number of frames, and the position of its
+ *     details in the details file. This is the offset table, that is read entirely when the catalog is loaded;</li>
+ *     <li>the details file contains the bplist and phases of the definitions. It's memory-mapped, and the details are
+ *     decoded when a definition is first requested.</li>
+ * </ul>
+ * Storing a definition appends its details, then its summary record; the last record of a file hash wins. A record
+ * that has not been written completely (e.g. after a crash), or whose details are missing, ends the catalog, and is
+ * overwritten by the next one.
+ * <p>
+ * The replaced records stay in the files. When there are more of them than the compaction threshold, the catalog is
+ * compacted as it's loaded, before the details file is mapped: the live records are copied to new files, that replace
+ * the old ones.
+ *
+ * @author Quentin Ligier
+ **/
+public class LibraryCatalog {
+    private static final Logger LOG = Logger.getLogger("LibraryCatalog");
+
+    /**
+     * The first bytes of the summary file: 'HOAW'.
+     */
+    private static final int MAGIC = 0x484F4157;
+
+    /**
+     * The version of the catalog format.
+     */
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+
+    /**
+     * The extension of the details file, that is next to the summary file.
+     */
+    private static final String DETAILS_EXTENSION = ".details";
+
+    /**
+     * The extension of the files that are written by the compaction, before they replace the catalog files.
+     */
+    private static final String COMPACTION_EXTENSION = ".compact";
+
+    /**
+     * The default number of replaced records above which the catalog is compacted.
+     */
+    private static final int DEFAULT_COMPACTION_THRESHOLD = 256;
+
+    private static final byte FLAG_APPEARANCE = 1;
+    private static final byte FLAG_SOLAR = 1 << 1;
+    private static final byte FLAG_TIME = 1 << 2;
+
+    /**
+     * The sets of types, indexed by their flags. They're shared by all summaries.
+     */
+    private static final List<Set<DynWallType>> TYPES = IntStream.range(0, 8)
+        .mapToObj(LibraryCatalog::toTypes)
+        .toList();
+
+    /**
+     * The summary file.
+     */
+    private final Path path;
+
+    /**
+     * The details file.
+     */
+    private final Path detailsPath;
+
+    /**
+     * The number of replaced records above which the catalog is compacted when it's loaded.
+     */
+    private final int compactionThreshold;
+
+    /**
+     * The summaries of the stored definitions, keyed by file hash, in storage order.
+     */
+    private final Map<String, Summary> summaries = new LinkedHashMap<>(256);
+
+    /**
+     * The definitions that have been decoded or stored, keyed by file hash.
+     */
+    private final Map<String, DynWallDefinition> definitions = new HashMap<>(256);
+
+    /**
+     * The mapped details file, as it was when the catalog was loaded, or {@code null} if it's not mapped yet.
+     */
+    @Nullable
+    private ByteBuffer mappedDetails;
+
+    /**
+     * The length of the valid part of the summary file, where the next record is written. It's zero if the header
+     * has to be written.
+     */
+    private long length;
+
+    /**
+     * The length of the valid part of the details file, where the next details are written.
+     */
+    private long detailsLength;
+
+    /**
+     * The length of the valid part of the details file when the catalog was loaded; the details after it have been
+     * stored later, their definitions are kept in {@link #definitions}.
+     */
+    private long loadedDetailsLength;
+
+    /**
+     * Constructor, with the default compaction threshold.
+     *
+     * @param path The summary file; the details file is next to it.
+     */
+    public LibraryCatalog(final Path path) {
+        this(path, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param path                The summary file; the details file is next to it.
+     * @param compactionThreshold The number of replaced records above which the catalog is compacted when it's
+     *                            loaded.
+     */
+    public LibraryCatalog(final Path path, final int compactionThreshold) {
+        this.path = path;
+        this.detailsPath = path.resolveSibling(path.getFileName() + DETAILS_EXTENSION);
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * Reads the summaries of the stored definitions, and compacts the catalog if it has too many replaced records. The
+     * details file is mapped when a definition is first requested.
+     */
+    public synchronized void load() {
+        // A mapped details file can't be replaced
+        final boolean isMapped = this.mappedDetails != null;
+        final int replacedRecords = this.readSummaries();
+        if (replacedRecords > this.compactionThreshold && !isMapped) {
+            try {
+                this.compact();
+                LOG.info(() -> "Compacted the library catalog, " + replacedRecords + " replaced records removed");
+            } catch (final IOException exception) {
+                LOG.warning("Unable to compact the library catalog: " + exception);
+                // The catalog files may have been replaced or not
+                this.readSummaries();
+            }
+        }
+    }
+
+    /**
+     * Reads the summary file.
+     *
+     * @return the number of replaced records.
+     */
+    private int readSummaries() {
+        this.summaries.clear();
+        this.definitions.clear();
+        this.mappedDetails = null;
+        this.length = 0;
+        this.detailsLength = 0;
+        this.loadedDetailsLength = 0;
+        if (!Files.isRegularFile(this.path)) {
+            return 0;
+        }
+        final long start = System.nanoTime();
+        // The summary file is not mapped, so that it can be replaced by the compaction
+        final ByteBuffer buffer;
+        final long detailsSize;
+        try {
+            final long size = Files.size(this.path);
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                LOG.warning("The library catalog has an invalid size, it's discarded");
+                return 0;
+            }
+            buffer = ByteBuffer.wrap(Files.readAllBytes(this.path));
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(Integer.BYTES) != VERSION) {
+                LOG.warning("The library catalog has an unknown format, it's discarded");
+                return 0;
+            }
+            detailsSize = Files.isRegularFile(this.detailsPath) ? Files.size(this.detailsPath) : 0;
+        } catch (final IOException exception) {
+            LOG.warning("Unable to read the library catalog: " + exception);
+            return 0;
+        }
+
+        int replacedRecords = 0;
+        int offset = HEADER_SIZE;
+        while (offset + Integer.BYTES <= buffer.limit()) {
+            final int recordLength = buffer.getInt(offset);
+            final int recordStart = offset + Integer.BYTES;
+            if (recordLength <= 0 || recordLength > buffer.limit() - recordStart) {
+                break;
+            }
+            try {
+                final Summary summary = readSummary(buffer.position(recordStart));
+                if (buffer.position() != recordStart + recordLength
+                    || summary.detailsOffset() + summary.detailsLength() > detailsSize) {
+                    break;
+                }
+                if (this.summaries.put(summary.fileHash(), summary) != null) {
+                    // The replaced definition moves to the end, in storage order
+                    this.summaries.remove(summary.fileHash());
+                    this.summaries.put(summary.fileHash(), summary);
+                    ++replacedRecords;
+                }
+                this.detailsLength = Math.max(this.detailsLength, summary.detailsOffset() + summary.detailsLength());
+            } catch (final BufferUnderflowException | IllegalArgumentException exception) {
+                break;
+            }
+            offset = recordStart + recordLength;
+        }
+        this.length = offset;
+        this.loadedDetailsLength = this.detailsLength;
+        if (offset < buffer.limit()) {
+            final int validLength = offset;
+            LOG.warning(() -> "The library catalog has an incomplete record at " + validLength + ", it's ignored");
+        }
+        LOG.fine(() -> "Loaded " + this.summaries.size() + " definitions from the library catalog in "
+            + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return replacedRecords;
+    }
+
+    /**
+     * Copies the live records to new files, that replace the catalog files. It's only called before the details file
+     * is mapped: a mapped file can't be replaced on Windows.
+     * <p>
+     * The summary file is deleted before the details file is replaced; if the compaction is interrupted, the catalog
+     * is lost, and the wallpapers are imported again.
+     */
+    private void compact() throws IOException {
+        final Path compactedPath = this.path.resolveSibling(this.path.getFileName() + COMPACTION_EXTENSION);
+        final Path compactedDetailsPath =
+            this.detailsPath.resolveSibling(this.detailsPath.getFileName() + COMPACTION_EXTENSION);
+        final List<Summary> compacted = new ArrayList<>(this.summaries.size());
+        long detailsOffset = 0;
+        try (final FileChannel details = FileChannel.open(this.detailsPath, StandardOpenOption.READ);
+             final FileChannel compactedDetails = FileChannel.open(compactedDetailsPath,
+                                                                   StandardOpenOption.CREATE,
+                                                                   StandardOpenOption.TRUNCATE_EXISTING,
+                                                                   StandardOpenOption.WRITE)) {
+            for (final Summary summary : this.summaries.values()) {
+                long copied = 0;
+                while (copied < summary.detailsLength()) {
+                    copied += details.transferTo(summary.detailsOffset() + copied,
+                                                 summary.detailsLength() - copied,
+                                                 compactedDetails);
+                }
+                compacted.add(summary.withDetails(detailsOffset));
+                detailsOffset += summary.detailsLength();
+            }
+            compactedDetails.force(false);
+        }
+
+        final List<byte[]> records = new ArrayList<>(compacted.size());
+        int recordsSize = HEADER_SIZE;
+        for (final Summary summary : compacted) {
+            final byte[] record = writeSummary(summary);
+            records.add(record);
+            recordsSize += Integer.BYTES + record.length;
+        }
+        final ByteBuffer recordsBuffer = ByteBuffer.allocate(recordsSize).putInt(MAGIC).putInt(VERSION);
+        for (final byte[] record : records) {
+            recordsBuffer.putInt(record.length).put(record);
+        }
+        Files.deleteIfExists(compactedPath);
+        write(compactedPath, 0, recordsBuffer.flip());
+
+        // Without summaries, the details file is not read
+        Files.delete(this.path);
+        Files.move(compactedDetailsPath, this.detailsPath, StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+        Files.move(compactedPath, this.path, StandardCopyOption.ATOMIC_MOVE);
+
+        this.summaries.clear();
+        compacted.forEach(summary -> this.summaries.put(summary.fileHash(), summary));
+        this.length = recordsSize;
+        this.detailsLength = detailsOffset;
+        this.loadedDetailsLength = detailsOffset;
+    }
+
+    /**
+     * Returns whether the catalog is empty, e.g. because it has just been created.
+     */
+    public synchronized boolean isEmpty() {
+        return this.summaries.isEmpty();
+    }
+
+    /**
+     * Returns whether the catalog contains the definition of a wallpaper content.
+     *
+     * @param fileHash The wallpaper file hash.
+     */
+    public synchronized boolean contains(final String fileHash) {
+        return this.summaries.containsKey(fileHash);
+    }
+
+    /**
+     * Returns the summaries of the stored definitions, in storage order.
+     */
+    public synchronized List<Summary> getSummaries() {
+        return List.copyOf(this.summaries.values());
+    }
+
+    /**
+     * Returns the definition of a wallpaper content, or {@code null} if the catalog does not contain it. Its details
+     * are decoded on the first call.
+     *
+     * @param fileHash The wallpaper file hash.
+     */
+    @Nullable
+    public synchronized DynWallDefinition getDefinition(final String fileHash) {
+        final DynWallDefinition decoded = this.definitions.get(fileHash);
+        if (decoded != null) {
+            return decoded;
+        }
+        final Summary summary = this.summaries.get(fileHash);
+        if (summary == null) {
+            return null;
+        }
+        final DynWallDefinition definition;
+        try {
+            definition = readDetails(summary, this.mapDetails().slice((int) summary.detailsOffset(),
+                                                                      summary.detailsLength()));
+        } catch (final IOException | RuntimeException exception) {
+            // A corrupt record may also be rejected by the definition itself, e.g. if it has no phase
+            LOG.warning("Unable to read the definition of " + summary.filename() + " from the library catalog: "
+                            + exception);
+            return null;
+        }
+        this.definitions.put(fileHash, definition);
+        return definition;
+    }
+
+    /**
+     * Returns the definitions of all wallpaper contents, in storage order. The details that haven't been decoded yet
+     * are decoded now, in a single pass over the mapped details file.
+     */
+    public synchronized List<DynWallDefinition> getDefinitions() {
+        final List<DynWallDefinition> all = new ArrayList<>(this.summaries.size());
+        for (final String fileHash : this.summaries.keySet()) {
+            final DynWallDefinition definition = this.getDefinition(fileHash);
+            if (definition != null) {
+                all.add(definition);
+            }
+        }
+        return all;
+    }
+
+    /**
+     * Stores the definition of a wallpaper content, replacing the previous one.
+     *
+     * @param fileHash   The wallpaper file hash.
+     * @param definition The definition to store.
+     * @throws IOException if the catalog can't be written.
+     */
+    public void put(final String fileHash, final CachedDynWallDefinition definition) throws IOException {
+        this.putAll(Map.of(fileHash, definition));
+    }
+
+    /**
+     * Stores the definitions of several wallpaper contents, with a single write per file.
+     *
+     * @param definitions The definitions to store, keyed by file hash.
+     * @throws IOException if the catalog can't be written.
+     */
+    public synchronized void putAll(final Map<String, CachedDynWallDefinition> definitions) throws IOException {
+        if (definitions.isEmpty()) {
+            return;
+        }
+        final List<byte[]> allDetails = new ArrayList<>(definitions.size());
+        final List<byte[]> records = new ArrayList<>(definitions.size());
+        final List<Summary> newSummaries = new ArrayList<>(definitions.size());
+        long detailsOffset = this.detailsLength;
+        int detailsSize = 0;
+        int recordsSize = (this.length == 0) ? HEADER_SIZE : 0;
+        for (final var entry : definitions.entrySet()) {
+            final byte[] details = writeDetails(entry.getValue());
+            final Summary summary = Summary.of(entry.getKey(), entry.getValue(), detailsOffset, details.length);
+            final byte[] record = writeSummary(summary);
+            allDetails.add(details);
+            records.add(record);
+            newSummaries.add(summary);
+            detailsOffset += details.length;
+            detailsSize += details.length;
+            recordsSize += Integer.BYTES + record.length;
+        }
+
+        final ByteBuffer detailsBuffer = ByteBuffer.allocate(detailsSize);
+        allDetails.forEach(detailsBuffer::put);
+        final ByteBuffer recordsBuffer = ByteBuffer.allocate(recordsSize);
+        if (this.length == 0) {
+            recordsBuffer.putInt(MAGIC).putInt(VERSION);
+        }
+        for (final byte[] record : records) {
+            recordsBuffer.putInt(record.length).put(record);
+        }
+
+        // The details are written first: a summary record is only valid if its details are complete
+        Files.createDirectories(this.path.getParent());
+        this.detailsLength = write(this.detailsPath, this.detailsLength, detailsBuffer.flip());
+        this.length = write(this.path, this.length, recordsBuffer.flip());
+
+        for (final Summary summary : newSummaries) {
+            final CachedDynWallDefinition cached = definitions.get(summary.fileHash());
+            // The phase lists are copied, the definition sorts them
+            final DynWallDefinition definition = new DynWallDefinition(cached.height(),
+                                                                       cached.width(),
+                                                                       summary.fileHash(),
+                                                                       cached.filename(),
+                                                                       cached.bplist(),
+                                                                       cached.numberOfFrames(),
+                                                                       cached.appearancePhase(),
+                                                                       copyOf(cached.solarPhases()),
+                                                                       copyOf(cached.timePhases()));
+            this.summaries.remove(summary.fileHash());
+            this.summaries.put(summary.fileHash(), summary);
+            this.definitions.put(summary.fileHash(), definition);
+        }
+    }
+
+    /**
+     * Maps the part of the details file that was valid when the catalog was loaded.
+     */
+    private ByteBuffer mapDetails() throws IOException {
+        if (this.mappedDetails == null) {
+            try (final FileChannel channel = FileChannel.open(this.detailsPath, StandardOpenOption.READ)) {
+                // The mapping outlives the channel
+                this.mappedDetails = channel.map(FileChannel.MapMode.READ_ONLY, 0, this.loadedDetailsLength);
+            }
+        }
+        return this.mappedDetails;
+    }
+
+    /**
+     * Writes a buffer in a file at the given position, and flushes it to the storage.
+     *
+     * @return the position after the written bytes.
+     */
+    private static long write(final Path path, final long position, final ByteBuffer buffer) throws IOException {
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long end = position;
+            while (buffer.hasRemaining()) {
+                end += channel.write(buffer, end);
+            }
+            channel.force(false);
+            return end;
+        }
+    }
+
+    /**
+     * Encodes a summary record, without its length.
+     */
+    private static byte[] writeSummary(final Summary summary) {
+        final byte[] hash = summary.fileHash().getBytes(StandardCharsets.US_ASCII);
+        final byte[] filename = summary.filename().getBytes(StandardCharsets.UTF_8);
+        final byte flags = (byte) TYPES.indexOf(summary.types());
+        return ByteBuffer.allocate(2 * Short.BYTES + hash.length + filename.length + 1 + 3 * Short.BYTES
+                                       + Long.BYTES + Integer.BYTES)
+            .putShort((short) hash.length).put(hash)
+            .putShort((short) filename.length).put(filename)
+            .put(flags)
+            .putShort(summary.width()).putShort(summary.height()).putShort(summary.numberOfFrames())
+            .putLong(summary.detailsOffset()).putInt(summary.detailsLength())
+            .array();
+    }
+
+    /**
+     * Encodes the details of a definition: its bplist and phases.
+     */
+    private static byte[] writeDetails(final CachedDynWallDefinition definition) {
+        final byte[] bplist = definition.bplist().getBytes(StandardCharsets.ISO_8859_1);
+        final var appearancePhase = definition.appearancePhase();
+        final var solarPhases = definition.solarPhases();
+        final var timePhases = definition.timePhases();
+
+        int size = Integer.BYTES + bplist.length;
+        if (appearancePhase != null) {
+            size += 2 * Short.BYTES;
+        }
+        if (solarPhases != null) {
+            size += Short.BYTES + solarPhases.size() * (Short.BYTES + 2 * Float.BYTES);
+        }
+        if (timePhases != null) {
+            size += Short.BYTES + timePhases.size() * (Short.BYTES + Long.BYTES);
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(bplist.length).put(bplist);
+        if (appearancePhase != null) {
+            buffer.putShort(appearancePhase.lightFrameIndex()).putShort(appearancePhase.darkFrameIndex());
+        }
+        if (solarPhases != null) {
+            buffer.putShort((short) solarPhases.size());
+            for (final PhaseSolar phase : solarPhases) {
+                buffer.putShort(phase.frameIndex()).putFloat(phase.elevation()).putFloat(phase.azimuth());
+            }
+        }
+        if (timePhases != null) {
+            buffer.putShort((short) timePhases.size());
+            for (final PhaseTime phase : timePhases) {
+                buffer.putShort(phase.frameIndex()).putLong(phase.time().toNanoOfDay());
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Decodes a summary record.
+     */
+    private static Summary readSummary(final ByteBuffer record) {
+        final String fileHash = readString(record, record.getShort(), StandardCharsets.US_ASCII);
+        final String filename = readString(record, record.getShort(), StandardCharsets.UTF_8);
+        final byte flags = record.get();
+        final short width = record.getShort();
+        final short height = record.getShort();
+        final short numberOfFrames = record.getShort();
+        final long detailsOffset = record.getLong();
+        final int detailsLength = record.getInt();
+        if (detailsOffset < 0 || detailsLength < 0) {
+            throw new IllegalArgumentException("Invalid details position");
+        }
+        return new Summary(fileHash,
+                           filename,
+                           TYPES.get(flags & 0b111),
+                           width,
+                           height,
+                           numberOfFrames,
+                           detailsOffset,
+                           detailsLength);
+    }
+
+    /**
+     * Decodes the details of a definition into the full definition.
+     */
+    private static DynWallDefinition readDetails(final Summary summary, final ByteBuffer details) {
+        final String bplist = readString(details, details.getInt(), StandardCharsets.ISO_8859_1);
+        PhaseAppearance appearancePhase = null;
+        if (summary.types().contains(DynWallType.APPEARANCE)) {
+            appearancePhase = new PhaseAppearance(details.getShort(), details.getShort());
+        }
+        List<PhaseSolar> solarPhases = null;
+        if (summary.types().contains(DynWallType.SOLAR)) {
+            final short count = details.getShort();
+            solarPhases = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                solarPhases.add(new PhaseSolar(details.getShort(), details.getFloat(), details.getFloat()));
+            }
+        }
+        List<PhaseTime> timePhases = null;
+        if (summary.types().contains(DynWallType.TIME)) {
+            final short count = details.getShort();
+            timePhases = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                timePhases.add(new PhaseTime(details.getShort(), LocalTime.ofNanoOfDay(details.getLong())));
+            }
+        }
+        return new DynWallDefinition(summary.height(),
+                                     summary.width(),
+                                     summary.fileHash(),
+                                     summary.filename(),
+                                     bplist,
+                                     summary.numberOfFrames(),
+                                     appearancePhase,
+                                     solarPhases,
+                                     timePhases);
+    }
+
+    /**
+     * Returns the set of types of the given flags.
+     */
+    private static Set<DynWallType> toTypes(final int flags) {
+        final Set<DynWallType> types = EnumSet.noneOf(DynWallType.class);
+        if ((flags & FLAG_APPEARANCE) != 0) {
+            types.add(DynWallType.APPEARANCE);
+        }
+        if ((flags & FLAG_SOLAR) != 0) {
+            types.add(DynWallType.SOLAR);
+        }
+        if ((flags & FLAG_TIME) != 0) {
+            types.add(DynWallType.TIME);
+        }
+        return Collections.unmodifiableSet(types);
+    }
+
+    @Nullable
+    private static <T> List<T> copyOf(@Nullable final List<T> list) {
+        return (list != null) ? new ArrayList<>(list) : null;
+    }
+
+    private static String readString(final ByteBuffer buffer,
+                                     final int length,
+                                     final Charset charset) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid string length: " + length);
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, charset);
+    }
+
+    /**
+     * The summary of a stored definition, that is read when the catalog is loaded.
+     *
+     * @param fileHash       The wallpaper file hash.
+     * @param filename       The wallpaper filename.
+     * @param types          The types of the wallpaper.
+     * @param width          The wallpaper image width.
+     * @param height         The wallpaper image height.
+     * @param numberOfFrames The number of frames in the wallpaper.
+     * @param detailsOffset  The position of the definition details in the details file.
+     * @param detailsLength  The length of the definition details.
+     */
+    public record Summary(String fileHash,
+                          String filename,
+                          Set<DynWallType> types,
+                          short width,
+                          short height,
+                          short numberOfFrames,
+                          long detailsOffset,
+                          int detailsLength) {
+
+        private static Summary of(final String fileHash,
+                                  final CachedDynWallDefinition definition,
+                                  final long detailsOffset,
+                                  final int detailsLength) {
+            int flags = 0;
+            if (definition.appearancePhase() != null) {
+                flags |= FLAG_APPEARANCE;
+            }
+            if (definition.solarPhases() != null) {
+                flags |= FLAG_SOLAR;
+            }
+            if (definition.timePhases() != null) {
+                flags |= FLAG_TIME;
+            }
+            return new Summary(fileHash,
+                               definition.filename(),
+                               TYPES.get(flags),
+                               definition.width(),
+                               definition.height(),
+                               definition.numberOfFrames(),
+                               detailsOffset,
+                               detailsLength);
+        }
+
+        /**
+         * Returns the summary of the wallpaper, as the wallpaper list shows it.
+         */
+        public DynWallSummary toWallpaperSummary() {
+            return new DynWallSummary(this.fileHash,
+                                      this.filename,
+                                      this.types,
+                                      this.width,
+                                      this.height,
+                                      this.numberOfFrames);
+        }
+
+        /**
+         * Returns a copy of this summary, whose details are at another position of the details file.
+         */
+        private Summary withDetails(final long detailsOffset) {
+            return new Summary(this.fileHash,
+                               this.filename,
+                               this.types,
+                               this.width,
+                               this.height,
+                               this.numberOfFrames,
+                               detailsOffset,
+                               this.detailsLength);
+        }
+    }
+}
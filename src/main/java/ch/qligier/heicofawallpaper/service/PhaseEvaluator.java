@@ -1,56 +1,238 @@
 package ch.qligier.heicofawallpaper.service;
 
 import ch.qligier.heicofawallpaper.model.CurrentEnvironment;
-import ch.qligier.heicofawallpaper.model.PhaseAppearance;
-import ch.qligier.heicofawallpaper.model.PhaseSolar;
-import ch.qligier.heicofawallpaper.model.PhaseTime;
+import ch.qligier.heicofawallpaper.model.DynWallType;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
-import java.util.List;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
 import java.util.Objects;
-import java.util.Random;
+import java.util.logging.Logger;
 
 /**
- * An evaluator of dynamic wallpaper phases with the current environment.
+ * An evaluator of dynamic wallpaper phases with the current environment. The evaluator is long-lived: the environment
+ * is updated in place, and the evaluations don't allocate in the steady state.
+ * <p>
+ * The solar phases are evaluated with the path of the sun during the current local day, that is computed once a day.
+ * If the location is unknown, it's approximated from the time zone: the meridian of its standard offset, at the
+ * latitude {@link #DEFAULT_LATITUDE}.
  *
  * @author Quentin Ligier
  **/
 public class PhaseEvaluator {
+    private static final Logger LOG = Logger.getLogger("PhaseEvaluator");
 
     /**
-     * The current environment.
+     * The number of seconds in a day.
      */
-    private final CurrentEnvironment currentEnvironment;
+    private static final int SECONDS_IN_DAY = 86_400;
+
+    /**
+     * The latitude of the approximated location, in degrees.
+     */
+    public static final double DEFAULT_LATITUDE = 45;
+
+    /**
+     * The time zone of the phases.
+     */
+    private final ZoneId zone;
+
+    /**
+     * The rules of the time zone of the phases.
+     */
+    private final ZoneRules zoneRules;
+
+    /**
+     * The longitude of the approximated location, in degrees: the meridian of the standard offset of the time zone.
+     */
+    private final double approximateLongitude;
+
+    /**
+     * Whether the light or dark theme is enabled.
+     */
+    private volatile boolean lightThemeEnabled;
+
+    /**
+     * The location latitude, in degrees, or {@code null}.
+     */
+    @Nullable
+    private Double latitude;
+
+    /**
+     * The location longitude, in degrees, or {@code null}.
+     */
+    @Nullable
+    private Double longitude;
+
+    /**
+     * The epoch second from which the cached offset is valid, i.e. the previous offset transition.
+     */
+    private long offsetValidFrom = Long.MAX_VALUE;
+
+    /**
+     * The epoch second until which the cached offset is valid (exclusive), i.e. the next offset transition.
+     */
+    private long offsetValidUntil = Long.MIN_VALUE;
+
+    /**
+     * The cached offset of the time zone, in seconds.
+     */
+    private int offsetSeconds;
+
+    /**
+     * The path of the sun during the current local day, or {@code null} if it has not been computed yet.
+     */
+    @Nullable
+    private SunPath sunPath;
 
     /**
      * Constructor.
      *
-     * @param currentEnvironment The current environment.
+     * @param zone The time zone of the phases.
      */
-    public PhaseEvaluator(final CurrentEnvironment currentEnvironment) {
-        this.currentEnvironment = Objects.requireNonNull(currentEnvironment);
+    public PhaseEvaluator(final ZoneId zone) {
+        this.zone = Objects.requireNonNull(zone);
+        this.zoneRules = zone.getRules();
+        this.approximateLongitude = this.zoneRules.getStandardOffset(Instant.now()).getTotalSeconds() / 240.0;
     }
 
-    public short evaluateAppearanceFrame(final PhaseAppearance appearancePhase) {
-        return currentEnvironment.isLightThemeEnabled() ? appearancePhase.lightFrameIndex() :
-            appearancePhase.darkFrameIndex();
+    public boolean isLightThemeEnabled() {
+        return this.lightThemeEnabled;
     }
 
-    public short evaluateSolarFrame(final List<PhaseSolar> solarPhases) {
-        return solarPhases.get(new Random().nextInt(0, solarPhases.size())).frameIndex();
+    public void setLightThemeEnabled(final boolean lightThemeEnabled) {
+        this.lightThemeEnabled = lightThemeEnabled;
     }
 
-    public short evaluateTimeFrame(final List<PhaseTime> timePhases) {
-        // Try to find the earliest phase whose changing time is now or in the past
-        Short currentFrame = timePhases.stream()
-            .filter(phase -> !phase.time().isAfter(this.currentEnvironment.currentTime()))
-            .findFirst()
-            .map(PhaseTime::frameIndex)
-            .orElse(null);
-        if (currentFrame != null) {
-            return currentFrame;
+    /**
+     * Sets the location of the solar phases.
+     *
+     * @param latitude  The location latitude, in degrees (positive to the north), or {@code null}.
+     * @param longitude The location longitude, in degrees (positive to the east), or {@code null}.
+     */
+    public synchronized void setLocation(@Nullable final Double latitude, @Nullable final Double longitude) {
+        if (latitude == null || longitude == null) {
+            LOG.fine("The location is not set, it's approximated from the time zone for the solar wallpapers");
         }
+        this.latitude = latitude;
+        this.longitude = longitude;
+    }
 
-        // If there is no phase before the current time, return the last phase of the day
-        return timePhases.get(timePhases.size() - 1).frameIndex();
+    /**
+     * Returns a snapshot of the current environment.
+     *
+     * @param epochMillis The current instant, in milliseconds since the epoch.
+     */
+    public synchronized CurrentEnvironment getEnvironment(final long epochMillis) {
+        return new CurrentEnvironment(LocalTime.ofSecondOfDay(this.getSecondOfDay(epochMillis)),
+                                      this.lightThemeEnabled,
+                                      this.latitude,
+                                      this.longitude);
+    }
+
+    /**
+     * Evaluates the frame of a dynamic wallpaper to show at the given instant.
+     *
+     * @param plan        The compiled phases of the dynamic wallpaper.
+     * @param type        The dynamic wallpaper type to evaluate.
+     * @param epochMillis The current instant, in milliseconds since the epoch.
+     * @return the frame index, or {@link PhasePlan#NO_FRAME} if the definition isn't of that type.
+     */
+    public short evaluateFrame(final PhasePlan plan, final DynWallType type, final long epochMillis) {
+        return switch (type) {
+            case APPEARANCE -> plan.evaluateAppearance(this.lightThemeEnabled);
+            case SOLAR -> {
+                final long epochSecond = Math.floorDiv(epochMillis, 1000L);
+                final SunPath path = this.getSunPath(epochSecond);
+                yield plan.evaluateSolar(path, path.getIndex(epochSecond));
+            }
+            case TIME -> plan.evaluateTime(this.getSecondOfDay(epochMillis));
+        };
+    }
+
+    /**
+     * Returns the instant of the next transition of the time phases of a dynamic wallpaper. If the offset of the time
+     * zone changes before it, it's the offset change: the local time jumps, and the frame has to be evaluated again.
+     *
+     * @param plan        The compiled phases of the dynamic wallpaper.
+     * @param epochMillis The current instant, in milliseconds since the epoch.
+     * @return the instant of the next transition, in milliseconds since the epoch, or {@link Long#MAX_VALUE} if the
+     * definition has no time phase.
+     */
+    public synchronized long getNextTimeTransition(final PhasePlan plan, final long epochMillis) {
+        final long epochSecond = Math.floorDiv(epochMillis, 1000L);
+        final int offset = this.getOffsetSeconds(epochSecond);
+        final int secondOfDay = (int) Math.floorMod(epochSecond + offset, SECONDS_IN_DAY);
+        final int nextSecondOfDay = plan.getNextTimeTransition(secondOfDay);
+        if (nextSecondOfDay < 0) {
+            return Long.MAX_VALUE;
+        }
+        final long nextEpochSecond = epochSecond - secondOfDay + nextSecondOfDay
+            + ((nextSecondOfDay <= secondOfDay) ? SECONDS_IN_DAY : 0);
+        return 1000 * Math.min(nextEpochSecond, this.offsetValidUntil);
+    }
+
+    /**
+     * Returns the instant of the next transition of the solar phases of a dynamic wallpaper. If the frame doesn't
+     * change until the end of the local day, it's the start of the next day, when the sun path is computed again.
+     *
+     * @param plan        The compiled phases of the dynamic wallpaper.
+     * @param epochMillis The current instant, in milliseconds since the epoch.
+     * @return the instant of the next transition, in milliseconds since the epoch.
+     */
+    public long getNextSolarTransition(final PhasePlan plan, final long epochMillis) {
+        final long epochSecond = Math.floorDiv(epochMillis, 1000L);
+        final SunPath path = this.getSunPath(epochSecond);
+        final int next = plan.getNextSolarTransition(path, path.getIndex(epochSecond));
+        return 1000 * ((next >= 0) ? path.getEpochSecond(next) : path.getEndEpochSecond());
+    }
+
+    /**
+     * Returns the local second-of-day of an instant. The offset of the time zone is cached until its next transition.
+     *
+     * @param epochMillis The instant, in milliseconds since the epoch.
+     * @return the local second-of-day.
+     */
+    public synchronized int getSecondOfDay(final long epochMillis) {
+        final long epochSecond = Math.floorDiv(epochMillis, 1000L);
+        return (int) Math.floorMod(epochSecond + this.getOffsetSeconds(epochSecond), SECONDS_IN_DAY);
+    }
+
+    /**
+     * Returns the path of the sun during the local day of an instant, after having computed it if needed.
+     *
+     * @param epochSecond The instant, in seconds since the epoch.
+     */
+    private synchronized SunPath getSunPath(final long epochSecond) {
+        final boolean hasLocation = this.latitude != null && this.longitude != null;
+        final double pathLatitude = hasLocation ? this.latitude : DEFAULT_LATITUDE;
+        final double pathLongitude = hasLocation ? this.longitude : this.approximateLongitude;
+        if (this.sunPath == null || !this.sunPath.covers(epochSecond, pathLatitude, pathLongitude)) {
+            final long epochDay = Math.floorDiv(epochSecond + this.getOffsetSeconds(epochSecond), SECONDS_IN_DAY);
+            this.sunPath = SunPath.compute(LocalDate.ofEpochDay(epochDay), this.zone, pathLatitude, pathLongitude);
+        }
+        return this.sunPath;
+    }
+
+    /**
+     * Returns the offset of the time zone at an instant, from the cache if it's still valid.
+     *
+     * @param epochSecond The instant, in seconds since the epoch.
+     * @return the offset, in seconds.
+     */
+    private int getOffsetSeconds(final long epochSecond) {
+        if (epochSecond < this.offsetValidFrom || epochSecond >= this.offsetValidUntil) {
+            final Instant instant = Instant.ofEpochSecond(epochSecond);
+            final ZoneOffsetTransition previousTransition = this.zoneRules.previousTransition(instant.plusSeconds(1));
+            final ZoneOffsetTransition nextTransition = this.zoneRules.nextTransition(instant);
+            this.offsetSeconds = this.zoneRules.getOffset(instant).getTotalSeconds();
+            this.offsetValidFrom = (previousTransition != null) ? previousTransition.toEpochSecond() : Long.MIN_VALUE;
+            this.offsetValidUntil = (nextTransition != null) ? nextTransition.toEpochSecond() : Long.MAX_VALUE;
+        }
+        return this.offsetSeconds;
     }
 }
@@ -0,0 +1,531 @@
+package ch.qligier.heicofawallpaper.service;
+
+import ch.qligier.heicofawallpaper.model.DynWallDefinition;
+import ch.qligier.heicofawallpaper.model.PhaseSolar;
+import ch.qligier.heicofawallpaper.model.PhaseTime;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The phases of a dynamic wallpaper definition, compiled into primitive arrays. The definition is compiled once, and
+ * the evaluations don't allocate, so that they can run on each refresh.
+ * <p>
+ * The solar phases are evaluated against the path of the sun: the frames of a day are computed once per day, by
+ * picking the nearest phase in the sky, with some hysteresis.
+ *
+ * @author Quentin Ligier
+ **/
+public final class PhasePlan {
+
+    /**
+     * The index of a missing frame.
+     */
+    public static final short NO_FRAME = -1;
+
+    /**
+     * The angle, in degrees, by which another solar phase must be nearer to the sun than the current one to replace
+     * it, compared as chords. It prevents the frames from alternating when two phases are about as near.
+     */
+    private static final double SOLAR_HYSTERESIS_DEGREES = 2;
+
+    /**
+     * The maximum angle, in degrees, by which the sun moves in the sky during a step of a sun path. The Earth rotates
+     * by a quarter of a degree a minute.
+     */
+    private static final double MAX_SUN_STEP_DEGREES = 0.26;
+
+    /**
+     * The number of steps of a sun path in a block, in which the solar phases that may be the nearest ones to the sun
+     * are selected once.
+     */
+    private static final int SOLAR_BLOCK_STEPS = 60;
+
+    /**
+     * The compiled definition.
+     */
+    private final DynWallDefinition definition;
+
+    /**
+     * The frame index of the light appearance, or {@link #NO_FRAME}.
+     */
+    private final short lightFrame;
+
+    /**
+     * The frame index of the dark appearance, or {@link #NO_FRAME}.
+     */
+    private final short darkFrame;
+
+    /**
+     * The frame indices of the solar phases, or {@code null}.
+     */
+    @Nullable
+    private final short[] solarFrames;
+
+    /**
+     * The unit vectors of the solar phase directions: east, north and zenith components, or {@code null}.
+     */
+    @Nullable
+    private final float[] solarEast;
+    @Nullable
+    private final float[] solarNorth;
+    @Nullable
+    private final float[] solarZenith;
+
+    /**
+     * The inverses of the chords between the solar phase directions, by pair of phases, or {@code null}. The phases
+     * in the same direction have the largest finite inverse instead, as any bound of their margin is valid.
+     */
+    @Nullable
+    private final float[] solarInverseChords;
+
+    /**
+     * The second-of-day of the time phases, in increasing order, or {@code null}.
+     */
+    @Nullable
+    private final int[] timeSeconds;
+
+    /**
+     * The frame indices of the time phases, in the same order as {@link #timeSeconds}, or {@code null}.
+     */
+    @Nullable
+    private final short[] timeFrames;
+
+    /**
+     * The sun path of the solar table, or {@code null} if it has not been computed yet.
+     */
+    @Nullable
+    private SunPath solarTablePath;
+
+    /**
+     * The solar table, as runs of steps of {@link #solarTablePath} that show the same frame: the index of the first
+     * step of each run, the first one being 0. The arrays are reused from a day to the next.
+     */
+    private int[] solarRunStarts = new int[16];
+
+    /**
+     * The frame indices of the runs of the solar table.
+     */
+    private short[] solarRunFrames = new short[16];
+
+    /**
+     * The number of runs of the solar table.
+     */
+    private int solarRunCount;
+
+    /**
+     * The index of the solar phase at the end of {@link #solarTablePath}, or {@code -1}.
+     */
+    private int solarTableLastPhase = -1;
+
+    /**
+     * Constructor.
+     *
+     * @param definition         The compiled definition.
+     * @param lightFrame         The frame index of the light appearance, or {@link #NO_FRAME}.
+     * @param darkFrame          The frame index of the dark appearance, or {@link #NO_FRAME}.
+     * @param solarFrames        The frame indices of the solar phases, or {@code null}.
+     * @param solarEast          The east components of the solar phase directions, or {@code null}.
+     * @param solarNorth         The north components of the solar phase directions, or {@code null}.
+     * @param solarZenith        The zenith components of the solar phase directions, or {@code null}.
+     * @param solarInverseChords The inverses of the chords between the solar phase directions, or {@code null}.
+     * @param timeSeconds        The second-of-day of the time phases, in increasing order, or {@code null}.
+     * @param timeFrames         The frame indices of the time phases, or {@code null}.
+     */
+    private PhasePlan(final DynWallDefinition definition,
+                      final short lightFrame,
+                      final short darkFrame,
+                      @Nullable final short[] solarFrames,
+                      @Nullable final float[] solarEast,
+                      @Nullable final float[] solarNorth,
+                      @Nullable final float[] solarZenith,
+                      @Nullable final float[] solarInverseChords,
+                      @Nullable final int[] timeSeconds,
+                      @Nullable final short[] timeFrames) {
+        this.definition = Objects.requireNonNull(definition);
+        this.lightFrame = lightFrame;
+        this.darkFrame = darkFrame;
+        this.solarFrames = solarFrames;
+        this.solarEast = solarEast;
+        this.solarNorth = solarNorth;
+        this.solarZenith = solarZenith;
+        this.solarInverseChords = solarInverseChords;
+        this.timeSeconds = timeSeconds;
+        this.timeFrames = timeFrames;
+    }
+
+    /**
+     * Compiles the phases of a dynamic wallpaper definition.
+     *
+     * @param definition The dynamic wallpaper definition.
+     * @return the compiled phase plan.
+     */
+    public static PhasePlan compile(final DynWallDefinition definition) {
+        short lightFrame = NO_FRAME;
+        short darkFrame = NO_FRAME;
+        if (definition.appearancePhase() != null) {
+            lightFrame = definition.appearancePhase().lightFrameIndex();
+            darkFrame = definition.appearancePhase().darkFrameIndex();
+        }
+
+        short[] solarFrames = null;
+        float[] solarEast = null;
+        float[] solarNorth = null;
+        float[] solarZenith = null;
+        float[] solarInverseChords = null;
+        final List<PhaseSolar> solarPhases = definition.solarPhases();
+        if (solarPhases != null) {
+            solarFrames = new short[solarPhases.size()];
+            solarEast = new float[solarPhases.size()];
+            solarNorth = new float[solarPhases.size()];
+            solarZenith = new float[solarPhases.size()];
+            final float[] vector = new float[3];
+            for (int i = 0; i < solarFrames.length; ++i) {
+                final PhaseSolar phase = solarPhases.get(i);
+                solarFrames[i] = phase.frameIndex();
+                SunPath.toVector(phase.elevation(), phase.azimuth(), vector);
+                solarEast[i] = vector[0];
+                solarNorth[i] = vector[1];
+                solarZenith[i] = vector[2];
+            }
+            solarInverseChords = new float[solarFrames.length * solarFrames.length];
+            for (int i = 0; i < solarFrames.length; ++i) {
+                for (int j = 0; j < solarFrames.length; ++j) {
+                    final double east = solarEast[i] - solarEast[j];
+                    final double north = solarNorth[i] - solarNorth[j];
+                    final double zenith = solarZenith[i] - solarZenith[j];
+                    final double chord = Math.sqrt(east * east + north * north + zenith * zenith);
+                    solarInverseChords[i * solarFrames.length + j] =
+                        (chord > 0) ? (float) (1 / chord) : Float.MAX_VALUE;
+                }
+            }
+        }
+
+        int[] timeSeconds = null;
+        short[] timeFrames = null;
+        final List<PhaseTime> timePhases = definition.timePhases();
+        if (timePhases != null) {
+            // The time phases are already sorted by increasing time
+            timeSeconds = new int[timePhases.size()];
+            timeFrames = new short[timePhases.size()];
+            for (int i = 0; i < timeSeconds.length; ++i) {
+                timeSeconds[i] = timePhases.get(i).time().toSecondOfDay();
+                timeFrames[i] = timePhases.get(i).frameIndex();
+            }
+        }
+        return new PhasePlan(definition,
+                             lightFrame,
+                             darkFrame,
+                             solarFrames,
+                             solarEast,
+                             solarNorth,
+                             solarZenith,
+                             solarInverseChords,
+                             timeSeconds,
+                             timeFrames);
+    }
+
+    /**
+     * Returns the compiled definition.
+     */
+    public DynWallDefinition getDefinition() {
+        return this.definition;
+    }
+
+    /**
+     * Evaluates the frame of the appearance phase.
+     *
+     * @param lightThemeEnabled Whether the light or dark theme is enabled.
+     * @return the frame index, or {@link #NO_FRAME} if the definition has no appearance phase.
+     */
+    public short evaluateAppearance(final boolean lightThemeEnabled) {
+        return lightThemeEnabled ? this.lightFrame : this.darkFrame;
+    }
+
+    /**
+     * Evaluates the frame of the solar phases.
+     *
+     * @param sunPath The path of the sun during the current day.
+     * @param index   The index of the current step of the sun path.
+     * @return the frame index, or {@link #NO_FRAME} if the definition has no solar phase.
+     */
+    public synchronized short evaluateSolar(final SunPath sunPath, final int index) {
+        if (this.solarFrames == null) {
+            return NO_FRAME;
+        }
+        this.computeSolarTable(sunPath);
+        return this.solarRunFrames[this.findSolarRun(index)];
+    }
+
+    /**
+     * Returns the step of the next transition of the solar phases during the day of the sun path.
+     *
+     * @param sunPath The path of the sun during the current day.
+     * @param index   The index of the current step of the sun path.
+     * @return the index of the step where the frame changes, or {@code -1} if it doesn't change until the end of the
+     * day or the definition has no solar phase.
+     */
+    public synchronized int getNextSolarTransition(final SunPath sunPath, final int index) {
+        if (this.solarFrames == null) {
+            return -1;
+        }
+        this.computeSolarTable(sunPath);
+        final int nextRun = this.findSolarRun(index) + 1;
+        return (nextRun < this.solarRunCount) ? this.solarRunStarts[nextRun] : -1;
+    }
+
+    /**
+     * Evaluates the frame of the time phases: the frame of the last phase whose time is now or in the past, or the
+     * frame of the last phase of the previous day.
+     *
+     * @param secondOfDay The current second-of-day.
+     * @return the frame index, or {@link #NO_FRAME} if the definition has no time phase.
+     */
+    public short evaluateTime(final int secondOfDay) {
+        if (this.timeSeconds == null) {
+            return NO_FRAME;
+        }
+        final int index = this.lastTimePhaseAtOrBefore(secondOfDay);
+        return this.timeFrames[index >= 0 ? index : this.timeFrames.length - 1];
+    }
+
+    /**
+     * Returns the second-of-day of the next transition of the time phases: the first phase time that is strictly after
+     * the given time, or the first phase time of the next day.
+     *
+     * @param secondOfDay The current second-of-day.
+     * @return the second-of-day of the next transition, or {@code -1} if the definition has no time phase.
+     */
+    public int getNextTimeTransition(final int secondOfDay) {
+        if (this.timeSeconds == null) {
+            return -1;
+        }
+        final int next = this.lastTimePhaseAtOrBefore(secondOfDay) + 1;
+        return this.timeSeconds[next < this.timeSeconds.length ? next : 0];
+    }
+
+    /**
+     * Computes the frames of the solar phases for each step of a sun path, if they're not computed yet. The
+     * frame of a step is the one of the nearest phase to the sun; the current phase is only replaced when another one
+     * is nearer by {@link #SOLAR_HYSTERESIS_DEGREES}. The current phase is carried over from the previous day.
+     * <p>
+     * As the sun moves slowly, the phases are not compared at each step: the margin before the current phase may be
+     * replaced gives the number of steps during which it's kept for sure. And in each block of
+     * {@link #SOLAR_BLOCK_STEPS} steps, only the phases that may be the nearest ones are compared.
+     */
+    private void computeSolarTable(final SunPath sunPath) {
+        assert this.solarFrames != null;
+        if (sunPath == this.solarTablePath) {
+            return;
+        }
+        int currentPhase = (this.solarTablePath != null && sunPath.follows(this.solarTablePath))
+            ? this.solarTableLastPhase : -1;
+        final double hysteresis = chord(SOLAR_HYSTERESIS_DEGREES);
+        final double maxSunStep = chord(MAX_SUN_STEP_DEGREES);
+        // The distances to two phases change by at most a sun step each, their difference by twice that
+        final double maxMarginChange = 2 * maxSunStep;
+        final double[] dots = new double[this.solarFrames.length];
+        final int[] candidates = new int[this.solarFrames.length];
+        final int size = sunPath.size();
+        this.solarRunCount = 0;
+        for (int blockStart = 0; blockStart < size; blockStart += SOLAR_BLOCK_STEPS) {
+            final int blockEnd = Math.min(size, blockStart + SOLAR_BLOCK_STEPS);
+            // The sun stays within half a block of steps from the middle one: a phase that is farther than the
+            // nearest one by a whole block of steps there is never the nearest one in the block
+            final int numberOfCandidates = this.findSolarCandidates(sunPath,
+                                                                    Math.min(blockStart + SOLAR_BLOCK_STEPS / 2,
+                                                                             size - 1),
+                                                                    SOLAR_BLOCK_STEPS * maxSunStep,
+                                                                    dots,
+                                                                    candidates);
+            if (numberOfCandidates == 1 && candidates[0] == currentPhase) {
+                // The current phase stays the nearest one during the whole block
+                this.addSolarRun(blockStart, this.solarFrames[currentPhase]);
+                continue;
+            }
+            int i = blockStart;
+            while (i < blockEnd) {
+                // The phases are compared by the dot products of their directions, that decrease with their distance
+                final float sunEast = sunPath.getEast(i);
+                final float sunNorth = sunPath.getNorth(i);
+                final float sunZenith = sunPath.getZenith(i);
+                int nearestPhase = -1;
+                double nearestDot = -2;
+                double secondDot = -2;
+                final double currentDot = (currentPhase >= 0)
+                    ? this.solarDot(sunEast, sunNorth, sunZenith, currentPhase) : -2;
+                for (int candidate = 0; candidate < numberOfCandidates; ++candidate) {
+                    final int phase = candidates[candidate];
+                    final double dot = this.solarDot(sunEast, sunNorth, sunZenith, phase);
+                    dots[phase] = dot;
+                    if (dot > nearestDot) {
+                        secondDot = nearestDot;
+                        nearestDot = dot;
+                        nearestPhase = phase;
+                    } else if (dot > secondDot) {
+                        secondDot = dot;
+                    }
+                }
+                double currentDistance = distance(currentDot);
+                double otherDot = secondDot;
+                if (currentPhase != nearestPhase) {
+                    final double nearestDistance = distance(nearestDot);
+                    if (currentPhase < 0 || nearestDistance + hysteresis < currentDistance) {
+                        currentPhase = nearestPhase;
+                        currentDistance = nearestDistance;
+                    } else {
+                        otherDot = nearestDot;
+                    }
+                }
+
+                // The margin before another phase replaces the current one, it's never negative
+                int keptSteps = blockEnd - i;
+                if (otherDot >= -1) {
+                    double steps = (distance(otherDot) + hysteresis - currentDistance) / maxMarginChange;
+                    // The difference of the squared distances to two phases is linear in the sun direction: it
+                    // changes by at most twice a sun step times the chord between the phases. It's a tighter bound
+                    // when the sun is far from both, and any bound that holds for all candidates can be kept
+                    final double keptDot = (currentPhase == nearestPhase) ? nearestDot : currentDot;
+                    final int chordsOffset = currentPhase * this.solarFrames.length;
+                    double pairMargin = Double.MAX_VALUE;
+                    for (int candidate = 0; candidate < numberOfCandidates; ++candidate) {
+                        final int phase = candidates[candidate];
+                        final double margin = (keptDot - dots[phase]) * this.solarInverseChords[chordsOffset + phase];
+                        if (phase != currentPhase && margin < pairMargin) {
+                            pairMargin = margin;
+                        }
+                    }
+                    final double pairSteps = (2 * pairMargin + hysteresis) / maxMarginChange;
+                    if (pairSteps > steps) {
+                        steps = pairSteps;
+                    }
+                    if (steps < keptSteps) {
+                        keptSteps = (int) steps + 1;
+                    }
+                }
+                this.addSolarRun(i, this.solarFrames[currentPhase]);
+                i += keptSteps;
+            }
+        }
+        this.solarTablePath = sunPath;
+        this.solarTableLastPhase = currentPhase;
+    }
+
+    /**
+     * Adds a run to the solar table, unless it shows the same frame as the last one.
+     *
+     * @param start The index of the first step of the run.
+     * @param frame The frame index.
+     */
+    private void addSolarRun(final int start, final short frame) {
+        if (this.solarRunCount > 0 && this.solarRunFrames[this.solarRunCount - 1] == frame) {
+            return;
+        }
+        if (this.solarRunCount == this.solarRunStarts.length) {
+            this.solarRunStarts = Arrays.copyOf(this.solarRunStarts, 2 * this.solarRunCount);
+            this.solarRunFrames = Arrays.copyOf(this.solarRunFrames, 2 * this.solarRunCount);
+        }
+        this.solarRunStarts[this.solarRunCount] = start;
+        this.solarRunFrames[this.solarRunCount] = frame;
+        ++this.solarRunCount;
+    }
+
+    /**
+     * Finds the run of the solar table that contains a step.
+     *
+     * @param index The index of the step.
+     * @return the index of the run.
+     */
+    private int findSolarRun(final int index) {
+        final int run = Arrays.binarySearch(this.solarRunStarts, 0, this.solarRunCount, index);
+        // Before an insertion point, the step is in the previous run
+        return (run >= 0) ? run : -run - 2;
+    }
+
+    /**
+     * Finds the solar phases that may be the nearest ones to the sun around a step: the phases that are not farther
+     * than the nearest one by more than a distance.
+     *
+     * @param sunPath    The path of the sun.
+     * @param index      The index of the step.
+     * @param tolerance  The distance by which the candidates may be farther than the nearest phase.
+     * @param dots       The array that receives the dot products of the phases, as a scratch space.
+     * @param candidates The array that receives the indices of the candidate phases.
+     * @return the number of candidate phases.
+     */
+    private int findSolarCandidates(final SunPath sunPath,
+                                    final int index,
+                                    final double tolerance,
+                                    final double[] dots,
+                                    final int[] candidates) {
+        final float sunEast = sunPath.getEast(index);
+        final float sunNorth = sunPath.getNorth(index);
+        final float sunZenith = sunPath.getZenith(index);
+        double nearestDot = -2;
+        for (int phase = 0; phase < dots.length; ++phase) {
+            dots[phase] = this.solarDot(sunEast, sunNorth, sunZenith, phase);
+            nearestDot = Math.max(nearestDot, dots[phase]);
+        }
+        // The distance of the farthest candidate, converted to a dot product
+        final double maxDistance = distance(nearestDot) + tolerance;
+        final double minDot = 1 - maxDistance * maxDistance / 2;
+        int numberOfCandidates = 0;
+        for (int phase = 0; phase < dots.length; ++phase) {
+            if (dots[phase] >= minDot) {
+                candidates[numberOfCandidates++] = phase;
+            }
+        }
+        return numberOfCandidates;
+    }
+
+    /**
+     * Returns the dot product of the sun direction at a step and the direction of a solar phase. It's called in the
+     * innermost loops of the solar table: it's kept small enough to always be inlined, the sun direction is read once
+     * per step by the callers and the solar phase directions are known not to be {@code null}.
+     */
+    private double solarDot(final float sunEast, final float sunNorth, final float sunZenith, final int phase) {
+        return sunEast * this.solarEast[phase]
+            + sunNorth * this.solarNorth[phase]
+            + sunZenith * this.solarZenith[phase];
+    }
+
+    /**
+     * Returns the distance between two unit vectors, from their dot product. It's the length of the chord between
+     * them rather than their angle, as it's cheaper to compute and still a distance: a sun step moves the sun by at
+     * most its chord from any phase.
+     */
+    private static double distance(final double dot) {
+        return Math.sqrt(Math.max(0, 2 - 2 * dot));
+    }
+
+    /**
+     * Returns the length of the chord of an angle on the unit sphere.
+     *
+     * @param degrees The angle, in degrees.
+     */
+    private static double chord(final double degrees) {
+        return 2 * Math.sin(Math.toRadians(degrees) / 2);
+    }
+
+    /**
+     * Finds the index of the last time phase whose time is at or before the given second-of-day.
+     *
+     * @param secondOfDay The second-of-day.
+     * @return the index of the time phase, or {@code -1} if all phases are after the given second-of-day.
+     */
+    private int lastTimePhaseAtOrBefore(final int secondOfDay) {
+        int low = 0;
+        int high = this.timeSeconds.length - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (this.timeSeconds[middle] <= secondOfDay) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high;
+    }
+}
@@ -0,0 +1,347 @@
+package ch.qligier.heicofawallpaper.service;
+
+import ch.qligier.heicofawallpaper.utils.heic.PreviewGenerator;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * The atlas of the wallpaper previews: all previews are packed as raw pixels in a few page files, that are memory-mapped
+ * and can be displayed without decoding anything (e.g. through a JavaFX {@code PixelBuffer} that wraps a page).
+ * <p>
+ * A page is a grid of {@link #COLUMNS}x{@link #ROWS} slots of {@link PreviewGenerator#WIDTH}x{@link
+ * PreviewGenerator#HEIGHT} pixels, stored as native-order premultiplied ARGB ints (the previews are opaque). Each
+ * wallpaper content (file hash) is given a slot once, that is recorded in an append-only index file. The index line is
+ * appended after the pixels have been written, so that an interrupted put leaves no slot without its preview.
+ *
+ * @author Quentin Ligier
+ **/
+public class PreviewAtlas {
+    private static final Logger LOG = Logger.getLogger("PreviewAtlas");
+
+    /**
+     * The number of slot columns of a page.
+     */
+    public static final int COLUMNS = 16;
+
+    /**
+     * The number of slot rows of a page.
+     */
+    public static final int ROWS = 16;
+
+    /**
+     * The page width, in pixels.
+     */
+    public static final int PAGE_WIDTH = COLUMNS * PreviewGenerator.WIDTH;
+
+    /**
+     * The page height, in pixels.
+     */
+    public static final int PAGE_HEIGHT = ROWS * PreviewGenerator.HEIGHT;
+
+    private static final String INDEX_FILE_NAME = "index.txt";
+    private static final String PAGE_FILE_NAME_FORMAT = "page-%d.bin";
+
+    /**
+     * The directory of the atlas files.
+     */
+    private final Path directory;
+
+    /**
+     * The slot numbers, keyed by file hash.
+     */
+    private final Map<String, Integer> slots = new HashMap<>(256);
+
+    /**
+     * The slot numbers that are being written, but aren't recorded in the index yet, keyed by file hash.
+     */
+    private final Map<String, Integer> reservedSlots = new HashMap<>(8);
+
+    /**
+     * The number of the next new slot, after all the used and reserved slots.
+     */
+    private int nextSlotNumber = 0;
+
+    /**
+     * The mapped pages.
+     */
+    private final List<MappedByteBuffer> pages = new ArrayList<>(4);
+
+    /**
+     * The writer of the slot pixels, or {@code null} to write them directly in the mapped pages.
+     */
+    @Nullable
+    private SlotWriter slotWriter;
+
+    /**
+     * Constructor.
+     *
+     * @param directory The directory of the atlas files.
+     */
+    public PreviewAtlas(final Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Loads the index of the atlas. The pages are mapped when they're used. The invalid lines are skipped, as well as
+     * the last line if it's not terminated (it may have been cut by a crash).
+     */
+    public synchronized void load() {
+        final Path indexPath = this.directory.resolve(INDEX_FILE_NAME);
+        if (!Files.isRegularFile(indexPath)) {
+            return;
+        }
+        final String index;
+        try {
+            index = Files.readString(indexPath, StandardCharsets.US_ASCII);
+        } catch (final IOException exception) {
+            LOG.warning("Unable to load the preview atlas index: " + exception);
+            return;
+        }
+        int skippedLines = 0;
+        int lineStart = 0;
+        int lineEnd;
+        while ((lineEnd = index.indexOf('\n', lineStart)) >= 0) {
+            final String line = index.substring(lineStart, lineEnd);
+            lineStart = lineEnd + 1;
+            final int separator = line.indexOf(' ');
+            final int slotNumber;
+            try {
+                slotNumber = (separator > 0) ? Integer.parseInt(line.substring(separator + 1)) : -1;
+            } catch (final NumberFormatException exception) {
+                ++skippedLines;
+                continue;
+            }
+            if (slotNumber < 0) {
+                ++skippedLines;
+                continue;
+            }
+            this.slots.put(line.substring(0, separator), slotNumber);
+            this.nextSlotNumber = Math.max(this.nextSlotNumber, slotNumber + 1);
+        }
+        if (lineStart < index.length()) {
+            ++skippedLines;
+        }
+        if (skippedLines > 0) {
+            LOG.warning("Skipped " + skippedLines + " invalid lines of the preview atlas index");
+        }
+        LOG.fine(() -> "Loaded " + this.slots.size() + " previews in the atlas");
+    }
+
+    /**
+     * Sets the writer of the slot pixels, e.g. to write the pages that are displayed from the thread that displays
+     * them. It's called from the thread that puts the preview, without the atlas lock.
+     */
+    public synchronized void setSlotWriter(@Nullable final SlotWriter slotWriter) {
+        this.slotWriter = slotWriter;
+    }
+
+    /**
+     * Returns whether the atlas contains the preview of a wallpaper content.
+     *
+     * @param fileHash The wallpaper file hash.
+     */
+    public synchronized boolean contains(final String fileHash) {
+        return this.slots.containsKey(fileHash);
+    }
+
+    /**
+     * Returns the slot of a wallpaper content, or {@code null} if the atlas does not contain its preview.
+     *
+     * @param fileHash The wallpaper file hash.
+     */
+    @Nullable
+    public synchronized Slot getSlot(final String fileHash) {
+        final Integer slot = this.slots.get(fileHash);
+        return (slot != null) ? Slot.of(slot) : null;
+    }
+
+    /**
+     * Returns the number of pages of the atlas.
+     */
+    public synchronized int getPageCount() {
+        return this.slots.values().stream().mapToInt(slot -> slot / (COLUMNS * ROWS) + 1).max().orElse(0);
+    }
+
+    /**
+     * Returns the pixels of a page, as a view of the mapped page file ({@link #PAGE_WIDTH}x{@link #PAGE_HEIGHT}
+     * native-order premultiplied ARGB ints).
+     *
+     * @param page The page number.
+     * @throws IOException if the page file can't be mapped.
+     */
+    public synchronized IntBuffer getPagePixels(final int page) throws IOException {
+        return this.mapPage(page).duplicate().order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    /**
+     * Puts the preview of a wallpaper content in the atlas, in its slot or in a new one. With a slot writer, the pixels
+     * may be written and the new slot recorded after the return.
+     *
+     * @param fileHash The wallpaper file hash.
+     * @param preview  The preview, of {@link PreviewGenerator#WIDTH}x{@link PreviewGenerator#HEIGHT} pixels.
+     * @throws IOException if the atlas can't be written.
+     */
+    public void put(final String fileHash, final BufferedImage preview) throws IOException {
+        if (preview.getWidth() != PreviewGenerator.WIDTH || preview.getHeight() != PreviewGenerator.HEIGHT) {
+            throw new IllegalArgumentException("The preview has an unexpected size");
+        }
+        final int[] slotPixels = preview.getRGB(0, 0, PreviewGenerator.WIDTH, PreviewGenerator.HEIGHT, null, 0,
+                                                PreviewGenerator.WIDTH);
+        for (int i = 0; i < slotPixels.length; ++i) {
+            slotPixels[i] |= 0xFF000000;
+        }
+        final int slotNumber;
+        final boolean isNewSlot;
+        final Slot slot;
+        final IntBuffer pagePixels;
+        final SlotWriter writer;
+        synchronized (this) {
+            final Integer usedSlotNumber = this.slots.get(fileHash);
+            isNewSlot = (usedSlotNumber == null);
+            if (isNewSlot) {
+                slotNumber = this.reservedSlots.computeIfAbsent(fileHash, hash -> this.nextSlotNumber++);
+            } else {
+                slotNumber = usedSlotNumber;
+            }
+            slot = Slot.of(slotNumber);
+            pagePixels = this.getPagePixels(slot.page());
+            writer = this.slotWriter;
+            if (writer == null) {
+                writeSlot(pagePixels, slot, slotPixels);
+            }
+        }
+        if (writer == null) {
+            if (isNewSlot) {
+                this.recordSlot(fileHash, slotNumber);
+            }
+            return;
+        }
+        // The writer may run the write later, in another thread that may need the atlas lock
+        writer.write(slot, () -> {
+            writeSlot(pagePixels, slot, slotPixels);
+            if (isNewSlot) {
+                try {
+                    this.recordSlot(fileHash, slotNumber);
+                } catch (final IOException exception) {
+                    LOG.warning("Unable to record the preview atlas slot of " + fileHash + ": " + exception);
+                }
+            }
+        });
+    }
+
+    /**
+     * Records a new slot in the index, once its pixels have been written.
+     *
+     * @param fileHash   The wallpaper file hash.
+     * @param slotNumber The reserved slot number.
+     * @throws IOException if the index can't be written.
+     */
+    private synchronized void recordSlot(final String fileHash, final int slotNumber) throws IOException {
+        if (this.slots.containsKey(fileHash)) {
+            // A concurrent put has recorded it
+            return;
+        }
+        Files.writeString(this.directory.resolve(INDEX_FILE_NAME),
+                          fileHash + ' ' + slotNumber + '\n',
+                          StandardCharsets.US_ASCII,
+                          StandardOpenOption.CREATE,
+                          StandardOpenOption.WRITE,
+                          StandardOpenOption.APPEND);
+        this.slots.put(fileHash, slotNumber);
+        this.reservedSlots.remove(fileHash);
+    }
+
+    /**
+     * Puts a preview file in the atlas, e.g. a preview that has been generated before the atlas existed.
+     *
+     * @param fileHash    The wallpaper file hash.
+     * @param previewPath The preview file.
+     * @throws IOException if the preview can't be read or the atlas can't be written.
+     */
+    public void putFile(final String fileHash, final Path previewPath) throws IOException {
+        final BufferedImage preview = ImageIO.read(previewPath.toFile());
+        if (preview == null) {
+            throw new IOException("The preview " + previewPath + " has an unsupported format");
+        }
+        this.put(fileHash, preview);
+    }
+
+    /**
+     * Copies the pixels of a slot in a page.
+     *
+     * @param pagePixels The pixels of the page.
+     * @param slot       The slot.
+     * @param slotPixels The pixels of the slot, row by row.
+     */
+    private static void writeSlot(final IntBuffer pagePixels, final Slot slot, final int[] slotPixels) {
+        for (int y = 0; y < PreviewGenerator.HEIGHT; ++y) {
+            pagePixels.put((slot.y() + y) * PAGE_WIDTH + slot.x(),
+                           slotPixels,
+                           y * PreviewGenerator.WIDTH,
+                           PreviewGenerator.WIDTH);
+        }
+    }
+
+    /**
+     * Maps a page file, that is created if needed.
+     */
+    private MappedByteBuffer mapPage(final int page) throws IOException {
+        while (this.pages.size() <= page) {
+            final Path pagePath = this.directory.resolve(String.format(PAGE_FILE_NAME_FORMAT, this.pages.size()));
+            Files.createDirectories(this.directory);
+            try (final FileChannel channel = FileChannel.open(pagePath,
+                                                              StandardOpenOption.CREATE,
+                                                              StandardOpenOption.READ,
+                                                              StandardOpenOption.WRITE)) {
+                // The mapping outlives the channel; a new page file is extended with zeros (transparent pixels)
+                this.pages.add(channel.map(FileChannel.MapMode.READ_WRITE, 0, 4L * PAGE_WIDTH * PAGE_HEIGHT));
+            }
+        }
+        return this.pages.get(page);
+    }
+
+    /**
+     * A writer of the slot pixels, that runs the write of a slot when its page may be written. It may run the write
+     * later, in another thread, but it shall run it once; it shall not wait for it, as the caller may be the thread
+     * that runs it.
+     */
+    @FunctionalInterface
+    public interface SlotWriter {
+        void write(Slot slot, Runnable write);
+    }
+
+    /**
+     * The slot of a preview in the atlas.
+     *
+     * @param page The page number.
+     * @param x    The left of the slot in the page, in pixels.
+     * @param y    The top of the slot in the page, in pixels.
+     */
+    public record Slot(int page,
+                       int x,
+                       int y) {
+
+        private static Slot of(final int slotNumber) {
+            final int slotInPage = slotNumber % (COLUMNS * ROWS);
+            return new Slot(slotNumber / (COLUMNS * ROWS),
+                            (slotInPage % COLUMNS) * PreviewGenerator.WIDTH,
+                            (slotInPage / COLUMNS) * PreviewGenerator.HEIGHT);
+        }
+    }
+}
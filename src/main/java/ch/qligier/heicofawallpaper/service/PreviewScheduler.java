@@ -0,0 +1,294 @@
+package ch.qligier.heicofawallpaper.service;
+
+import ch.qligier.heicofawallpaper.model.DynWallDefinition;
+import ch.qligier.heicofawallpaper.utils.heic.FramePyramid;
+import ch.qligier.heicofawallpaper.utils.heic.PreviewGenerator;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * The scheduler of the preview generations. The previews of many wallpapers are generated in parallel, but each
+ * generation is only admitted when its decoded pixels fit in a global memory budget: a generation acquires as many
+ * permits of a fair semaphore as the kilobytes of its working set (see
+ * {@link PreviewGenerator#estimateWorkingSetBytes(short, short)}), and releases them when it's done. Small previews run
+ * concurrently; a very large one waits until enough memory is released, without starving.
+ * <p>
+ * The previews are written in the wallpaper cache directories and in the {@link PreviewAtlas}. The frame pyramids
+ * ({@link FramePyramid}) are generated under the same budget.
+ *
+ * @author Quentin Ligier
+ **/
+public class PreviewScheduler {
+    private static final Logger LOG = Logger.getLogger("PreviewScheduler");
+
+    /**
+     * The default budget is this fraction of the maximum heap size.
+     */
+    private static final int DEFAULT_BUDGET_DIVISOR = 4;
+
+    /**
+     * The atlas of the previews.
+     */
+    private final PreviewAtlas previewAtlas;
+
+    /**
+     * The memory budget of the generations, in kilobytes.
+     */
+    private final Semaphore budget;
+
+    /**
+     * The memory budget of the generations, in kilobytes.
+     */
+    private final int budgetKb;
+
+    /**
+     * The threads that run the submitted generations.
+     */
+    private final ExecutorService executor;
+
+    // Metrics of the generations
+    private final LongAdder generated = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder admissionWaitNanos = new LongAdder();
+    private final AtomicInteger peakUsedKb = new AtomicInteger();
+
+    /**
+     * Constructor, with a budget of a quarter of the maximum heap size and one thread per processor.
+     *
+     * @param previewAtlas The atlas of the previews.
+     */
+    public PreviewScheduler(final PreviewAtlas previewAtlas) {
+        this(previewAtlas,
+             Runtime.getRuntime().maxMemory() / DEFAULT_BUDGET_DIVISOR,
+             Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param previewAtlas The atlas of the previews.
+     * @param budgetBytes  The memory budget of the generations, in bytes.
+     * @param threads      The number of threads that run the submitted generations.
+     */
+    public PreviewScheduler(final PreviewAtlas previewAtlas, final long budgetBytes, final int threads) {
+        this.previewAtlas = Objects.requireNonNull(previewAtlas);
+        if (budgetBytes < 1024 || threads < 1) {
+            throw new IllegalArgumentException("The budget and the number of threads shall be positive");
+        }
+        this.budgetKb = (int) Math.min(Integer.MAX_VALUE, budgetBytes / 1024);
+        this.budget = new Semaphore(this.budgetKb, true);
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, "PreviewScheduler-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Generates the preview of a wallpaper in the calling thread, once it's admitted in the memory budget, and writes
+     * it in the wallpaper cache directory.
+     *
+     * @param definition The wallpaper definition; its frames shall be extracted.
+     * @throws IOException          if the preview can't be generated or written.
+     * @throws InterruptedException if the thread is interrupted while waiting for the admission.
+     */
+    public void generate(final DynWallDefinition definition) throws IOException, InterruptedException {
+        this.admit(PreviewGenerator.estimateWorkingSetBytes(definition.width(), definition.height()),
+                   () -> this.store(definition, PreviewGenerator.generate(definition)));
+    }
+
+    /**
+     * Generates the missing levels of the frame pyramids of a wallpaper in the calling thread, one frame at a time,
+     * each one once it's admitted in the memory budget.
+     *
+     * @param definition The wallpaper definition; its frames shall be extracted.
+     * @throws IOException          if a frame can't be read or a level can't be written.
+     * @throws InterruptedException if the thread is interrupted while waiting for an admission.
+     * @see FramePyramid
+     */
+    public void generatePyramids(final DynWallDefinition definition) throws IOException, InterruptedException {
+        final Path cacheDirectory = FileSystemService.getDataPath().resolve(definition.fileHash());
+        final long costBytes = FramePyramid.estimateWorkingSetBytes(definition.width(), definition.height());
+        for (int frameIndex = 0; frameIndex < definition.numberOfFrames(); ++frameIndex) {
+            if (FramePyramid.exists(cacheDirectory, frameIndex)) {
+                continue;
+            }
+            final int index = frameIndex;
+            this.admit(costBytes,
+                       () -> FramePyramid.generate(cacheDirectory, index, definition.width(), definition.height()));
+        }
+    }
+
+    /**
+     * Submits the generation of the missing levels of the frame pyramids of a wallpaper.
+     *
+     * @param definition The wallpaper definition; its frames shall be extracted.
+     * @return the future of the generation.
+     */
+    public Future<DynWallDefinition> submitPyramids(final DynWallDefinition definition) {
+        return this.executor.submit(() -> {
+            this.generatePyramids(definition);
+            return definition;
+        });
+    }
+
+    /**
+     * Stores the preview of a wallpaper, in its cache directory and in the atlas.
+     *
+     * @param definition   The wallpaper definition.
+     * @param previewImage The preview image.
+     * @throws IOException if the preview can't be written.
+     */
+    public void store(final DynWallDefinition definition, final BufferedImage previewImage) throws IOException {
+        final Path previewPath = FileSystemService.getDataPath()
+            .resolve(definition.fileHash())
+            .resolve(FileSystemService.PREVIEW_FILE_NAME);
+        // The preview may be read at any time, it's replaced atomically
+        final Path temporaryPath = previewPath.resolveSibling(FileSystemService.PREVIEW_FILE_NAME + ".tmp");
+        ImageIO.write(previewImage, "png", temporaryPath.toFile());
+        Files.move(temporaryPath, previewPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.previewAtlas.put(definition.fileHash(), previewImage);
+    }
+
+    /**
+     * Submits the generation of the preview of a wallpaper.
+     *
+     * @param definition The wallpaper definition; its frames shall be extracted.
+     * @return the future of the generation.
+     */
+    public Future<DynWallDefinition> submit(final DynWallDefinition definition) {
+        return this.executor.submit(() -> {
+            this.generate(definition);
+            return definition;
+        });
+    }
+
+    /**
+     * Generates the previews of many wallpapers in parallel, and waits until they are all done.
+     *
+     * @param definitions The wallpaper definitions.
+     * @return the generation report.
+     * @throws InterruptedException if the thread is interrupted while waiting; the pending generations are cancelled.
+     */
+    public Report generateAll(final Collection<DynWallDefinition> definitions) throws InterruptedException {
+        final long start = System.nanoTime();
+        final Map<DynWallDefinition, Future<DynWallDefinition>> futures = new LinkedHashMap<>(definitions.size());
+        for (final DynWallDefinition definition : definitions) {
+            futures.put(definition, this.submit(definition));
+        }
+
+        int generatedPreviews = 0;
+        final Map<String, Throwable> failures = new LinkedHashMap<>(4);
+        try {
+            for (final Map.Entry<DynWallDefinition, Future<DynWallDefinition>> entry : futures.entrySet()) {
+                try {
+                    entry.getValue().get();
+                    ++generatedPreviews;
+                } catch (final ExecutionException exception) {
+                    failures.put(entry.getKey().filename(), exception.getCause());
+                }
+            }
+        } finally {
+            futures.values().forEach(future -> future.cancel(true));
+        }
+
+        final Report report = new Report(generatedPreviews, failures, (System.nanoTime() - start) / 1_000_000);
+        LOG.info(() -> String.format("Generated %d previews in %d ms, %d failed; %s",
+                                     report.generated(),
+                                     report.durationMs(),
+                                     report.failures().size(),
+                                     this.getMetrics()));
+        return report;
+    }
+
+    /**
+     * Returns the current metrics of the generations.
+     */
+    public Metrics getMetrics() {
+        return new Metrics(this.generated.sum(),
+                           this.failed.sum(),
+                           this.budgetKb,
+                           this.peakUsedKb.get(),
+                           this.admissionWaitNanos.sum() / 1_000_000);
+    }
+
+    /**
+     * Cancels the submitted generations.
+     */
+    public void close() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Runs a generation in the calling thread, once it's admitted in the memory budget.
+     *
+     * @param costBytes  The estimated working set of the generation, in bytes. It's capped to the budget, so that a
+     *                   generation larger than the budget runs alone instead of never.
+     * @param generation The generation.
+     * @throws IOException          if the generation has failed.
+     * @throws InterruptedException if the thread is interrupted while waiting for the admission.
+     */
+    public void admit(final long costBytes, final Generation generation) throws IOException, InterruptedException {
+        final int costKb = (int) Math.max(1, Math.min(this.budgetKb, (costBytes + 1023) / 1024));
+        final long start = System.nanoTime();
+        this.budget.acquire(costKb);
+        this.admissionWaitNanos.add(System.nanoTime() - start);
+        this.peakUsedKb.accumulateAndGet(this.budgetKb - this.budget.availablePermits(), Math::max);
+        try {
+            generation.run();
+            this.generated.increment();
+        } catch (final Throwable throwable) {
+            this.failed.increment();
+            throw throwable;
+        } finally {
+            this.budget.release(costKb);
+        }
+    }
+
+    /**
+     * A generation, that writes its result.
+     */
+    @FunctionalInterface
+    public interface Generation {
+        void run() throws IOException;
+    }
+
+    /**
+     * The report of the generation of many previews.
+     *
+     * @param generated  The number of generated previews.
+     * @param failures   The failures, keyed by wallpaper filename.
+     * @param durationMs The duration of the generation, in milliseconds.
+     */
+    public record Report(int generated,
+                         Map<String, Throwable> failures,
+                         long durationMs) {
+    }
+
+    /**
+     * The metrics of the preview generations.
+     *
+     * @param generated       The number of completed generations (previews and frame pyramids).
+     * @param failed          The number of failed generations.
+     * @param budgetKb        The memory budget, in kilobytes.
+     * @param peakUsedKb      The maximum part of the budget that has been used at once, in kilobytes.
+     * @param admissionWaitMs The total time spent waiting for the admission, in milliseconds.
+     */
+    public record Metrics(long generated,
+                          long failed,
+                          int budgetKb,
+                          int peakUsedKb,
+                          long admissionWaitMs) {
+    }
+}
@@ -0,0 +1,311 @@
+package ch.qligier.heicofawallpaper.service;
+
+import ch.qligier.heicofawallpaper.model.DynWallDefinition;
+import ch.qligier.heicofawallpaper.model.DynWallType;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.time.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A simulator of the wallpaper schedules. It computes the timeline of the frames that dynamic wallpapers show over a
+ * period, without waiting in real time: it jumps from a transition to the next one, with the same evaluation as the
+ * wallpaper refreshes.
+ * <p>
+ * The current time is given by the clock, whose time zone is the one of the phases, and the environment (the location
+ * and the theme) is set on the simulator. The wallpapers are split in groups that are simulated in parallel; each
+ * group is simulated day by day with its own evaluator, so that the path of the sun is computed once a day for all
+ * wallpapers of the group.
+ *
+ * @author Quentin Ligier
+ **/
+public class ScheduleSimulator {
+
+    /**
+     * The clock that gives the current time and the time zone.
+     */
+    private final Clock clock;
+
+    /**
+     * The location latitude, in degrees, or {@code null}.
+     */
+    @Nullable
+    private final Double latitude;
+
+    /**
+     * The location longitude, in degrees, or {@code null}.
+     */
+    @Nullable
+    private final Double longitude;
+
+    /**
+     * Whether the light or dark theme is enabled.
+     */
+    private final boolean lightThemeEnabled;
+
+    /**
+     * Constructor.
+     *
+     * @param clock             The clock that gives the current time and the time zone of the phases.
+     * @param latitude          The location latitude, in degrees (positive to the north), or {@code null}.
+     * @param longitude         The location longitude, in degrees (positive to the east), or {@code null}.
+     * @param lightThemeEnabled Whether the light or dark theme is enabled.
+     */
+    public ScheduleSimulator(final Clock clock,
+                             @Nullable final Double latitude,
+                             @Nullable final Double longitude,
+                             final boolean lightThemeEnabled) {
+        this.clock = Objects.requireNonNull(clock);
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.lightThemeEnabled = lightThemeEnabled;
+    }
+
+    /**
+     * Simulates the upcoming transitions of dynamic wallpapers, from the current time of the clock.
+     *
+     * @param definitions The definitions of the dynamic wallpapers.
+     * @param horizon     The duration of the simulation.
+     * @return the timelines of each type of each definition.
+     */
+    public List<Timeline> simulateUpcoming(final Collection<DynWallDefinition> definitions,
+                                           final Duration horizon) {
+        final Instant now = this.clock.instant();
+        return this.simulate(definitions, now, now.plus(horizon));
+    }
+
+    /**
+     * Simulates the transitions of dynamic wallpapers over a period.
+     *
+     * @param definitions The definitions of the dynamic wallpapers.
+     * @param from        The start of the period (inclusive).
+     * @param to          The end of the period (exclusive).
+     * @return the timelines of each type of each definition.
+     */
+    public List<Timeline> simulate(final Collection<DynWallDefinition> definitions,
+                                   final Instant from,
+                                   final Instant to) {
+        if (!from.isBefore(to)) {
+            throw new IllegalArgumentException("The period shall not be empty");
+        }
+        final List<Cursor> cursors = new ArrayList<>(definitions.size());
+        // The cursors of a definition share its phase plan, they're kept in the same group
+        final int numberOfGroups = Math.max(1, Math.min(definitions.size(),
+                                                        Runtime.getRuntime().availableProcessors()));
+        final List<List<Cursor>> groups = new ArrayList<>(numberOfGroups);
+        for (int group = 0; group < numberOfGroups; ++group) {
+            groups.add(new ArrayList<>());
+        }
+        int definitionIndex = 0;
+        for (final DynWallDefinition definition : definitions) {
+            // The definitions are compiled again, not to replace the solar tables of the refreshed phase plans
+            final PhasePlan plan = PhasePlan.compile(definition);
+            for (final DynWallType type : DynWallType.values()) {
+                if (isOfType(definition, type)) {
+                    final Cursor cursor = new Cursor(definition, type, plan);
+                    cursors.add(cursor);
+                    groups.get(definitionIndex % numberOfGroups).add(cursor);
+                }
+            }
+            ++definitionIndex;
+        }
+        groups.parallelStream().forEach(group -> this.simulateGroup(group, from, to));
+
+        final List<Timeline> timelines = new ArrayList<>(cursors.size());
+        for (final Cursor cursor : cursors) {
+            timelines.add(new Timeline(cursor.definition,
+                                       cursor.type,
+                                       Arrays.copyOf(cursor.instants, cursor.size),
+                                       Arrays.copyOf(cursor.frameIndices, cursor.size)));
+        }
+        return timelines;
+    }
+
+    /**
+     * Simulates a group of cursors over a period, day by day, with its own evaluator.
+     *
+     * @param cursors The cursors of the group.
+     * @param from    The start of the period (inclusive).
+     * @param to      The end of the period (exclusive).
+     */
+    private void simulateGroup(final List<Cursor> cursors, final Instant from, final Instant to) {
+        final ZoneId zone = this.clock.getZone();
+        final PhaseEvaluator evaluator = new PhaseEvaluator(zone);
+        evaluator.setLocation(this.latitude, this.longitude);
+        evaluator.setLightThemeEnabled(this.lightThemeEnabled);
+        final long toMillis = to.toEpochMilli();
+        long dayStart = from.toEpochMilli();
+        LocalDate date = from.atZone(zone).toLocalDate();
+        while (dayStart < toMillis) {
+            date = date.plusDays(1);
+            final long dayEnd = Math.min(toMillis, date.atStartOfDay(zone).toInstant().toEpochMilli());
+            for (final Cursor cursor : cursors) {
+                cursor.advance(evaluator, dayStart, dayEnd);
+            }
+            dayStart = dayEnd;
+        }
+    }
+
+    private static boolean isOfType(final DynWallDefinition definition, final DynWallType type) {
+        return switch (type) {
+            case APPEARANCE -> definition.isAppearance();
+            case SOLAR -> definition.isSolar();
+            case TIME -> definition.isTime();
+        };
+    }
+
+    /**
+     * The progress of the simulation of a type of a dynamic wallpaper. The transitions are stored in primitive arrays,
+     * as a year of hundreds of wallpapers has about a million of them.
+     */
+    private static final class Cursor {
+        private final DynWallDefinition definition;
+        private final DynWallType type;
+        private final PhasePlan plan;
+        private long[] instants = new long[16];
+        private short[] frameIndices = new short[16];
+        private int size;
+        private short frameIndex = PhasePlan.NO_FRAME;
+
+        private Cursor(final DynWallDefinition definition, final DynWallType type, final PhasePlan plan) {
+            this.definition = definition;
+            this.type = type;
+            this.plan = plan;
+        }
+
+        /**
+         * Simulates the transitions of a period that is contained in a local day.
+         *
+         * @param evaluator The evaluator of the phases, with the simulated environment.
+         * @param start     The start of the period, in milliseconds since the epoch (inclusive).
+         * @param end       The end of the period, in milliseconds since the epoch (exclusive).
+         */
+        private void advance(final PhaseEvaluator evaluator, final long start, final long end) {
+            long instant = start;
+            while (instant < end) {
+                final short frame = evaluator.evaluateFrame(this.plan, this.type, instant);
+                if (frame != this.frameIndex) {
+                    this.frameIndex = frame;
+                    this.add(instant, frame);
+                }
+                instant = switch (this.type) {
+                    // The appearance only changes with the theme
+                    case APPEARANCE -> end;
+                    case SOLAR -> evaluator.getNextSolarTransition(this.plan, instant);
+                    case TIME -> evaluator.getNextTimeTransition(this.plan, instant);
+                };
+            }
+        }
+
+        private void add(final long instant, final short frame) {
+            if (this.size == this.instants.length) {
+                this.instants = Arrays.copyOf(this.instants, 2 * this.size);
+                this.frameIndices = Arrays.copyOf(this.frameIndices, 2 * this.size);
+            }
+            this.instants[this.size] = instant;
+            this.frameIndices[this.size] = frame;
+            ++this.size;
+        }
+    }
+
+    /**
+     * The timeline of a type of a dynamic wallpaper: its transitions, in chronological order. The first one is the
+     * start of the simulated period.
+     *
+     * @author Quentin Ligier
+     **/
+    public static final class Timeline {
+
+        /**
+         * The definition of the dynamic wallpaper.
+         */
+        private final DynWallDefinition definition;
+
+        /**
+         * The simulated type.
+         */
+        private final DynWallType type;
+
+        /**
+         * The instants of the transitions, in milliseconds since the epoch.
+         */
+        private final long[] instants;
+
+        /**
+         * The frame indices shown from the transitions.
+         */
+        private final short[] frameIndices;
+
+        private Timeline(final DynWallDefinition definition,
+                         final DynWallType type,
+                         final long[] instants,
+                         final short[] frameIndices) {
+            this.definition = definition;
+            this.type = type;
+            this.instants = instants;
+            this.frameIndices = frameIndices;
+        }
+
+        public DynWallDefinition getDefinition() {
+            return this.definition;
+        }
+
+        public DynWallType getType() {
+            return this.type;
+        }
+
+        /**
+         * Returns the number of transitions.
+         */
+        public int size() {
+            return this.instants.length;
+        }
+
+        /**
+         * Returns a transition.
+         *
+         * @param index The index of the transition.
+         */
+        public Transition getTransition(final int index) {
+            return new Transition(Instant.ofEpochMilli(this.instants[index]), this.frameIndices[index]);
+        }
+
+        /**
+         * Returns the transitions.
+         */
+        public List<Transition> getTransitions() {
+            final List<Transition> transitions = new ArrayList<>(this.instants.length);
+            for (int i = 0; i < this.instants.length; ++i) {
+                transitions.add(this.getTransition(i));
+            }
+            return transitions;
+        }
+
+        /**
+         * Returns the frame shown at an instant of the simulated period.
+         *
+         * @param instant The instant.
+         * @return the frame index, or {@link PhasePlan#NO_FRAME} if the instant is before the period.
+         */
+        public short getFrameAt(final Instant instant) {
+            final int index = Arrays.binarySearch(this.instants, instant.toEpochMilli());
+            // Before an insertion point, the previous transition is the one in effect
+            final int transition = (index >= 0) ? index : -index - 2;
+            return (transition >= 0) ? this.frameIndices[transition] : PhasePlan.NO_FRAME;
+        }
+    }
+
+    /**
+     * A transition of a dynamic wallpaper.
+     *
+     * @param instant    The instant of the transition.
+     * @param frameIndex The index of the frame shown from that instant.
+     */
+    public record Transition(Instant instant,
+                             short frameIndex) {
+    }
+}
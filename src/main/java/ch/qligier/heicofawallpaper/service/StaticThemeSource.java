@@ -0,0 +1,83 @@
+package ch.qligier.heicofawallpaper.service;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * A theme source whose theme is only changed by the application, for the tests and the systems without a theme
+ * setting. The changes are notified synchronously, from the calling thread.
+ *
+ * @author Quentin Ligier
+ **/
+public class StaticThemeSource implements ThemeSource {
+
+    /**
+     * Whether the light or dark theme is enabled.
+     */
+    private boolean lightThemeEnabled;
+
+    /**
+     * The theme that has been returned by the last call to {@link #isLightThemeEnabled()}, to notify on the start a
+     * change that has happened since.
+     */
+    private boolean readLightThemeEnabled;
+
+    /**
+     * The listener of the theme changes, or {@code null} if the source isn't started.
+     */
+    @Nullable
+    private Listener listener;
+
+    /**
+     * Constructor.
+     *
+     * @param lightThemeEnabled Whether the light or dark theme is initially enabled.
+     */
+    public StaticThemeSource(final boolean lightThemeEnabled) {
+        this.lightThemeEnabled = lightThemeEnabled;
+        this.readLightThemeEnabled = lightThemeEnabled;
+    }
+
+    @Override
+    public synchronized boolean isLightThemeEnabled() {
+        this.readLightThemeEnabled = this.lightThemeEnabled;
+        return this.lightThemeEnabled;
+    }
+
+    /**
+     * Changes the theme, and notifies the listener if it's different.
+     *
+     * @param lightThemeEnabled Whether the light or dark theme is enabled.
+     */
+    public void setLightThemeEnabled(final boolean lightThemeEnabled) {
+        final Listener listenerToNotify;
+        synchronized (this) {
+            if (lightThemeEnabled == this.lightThemeEnabled) {
+                return;
+            }
+            this.lightThemeEnabled = lightThemeEnabled;
+            listenerToNotify = this.listener;
+        }
+        if (listenerToNotify != null) {
+            listenerToNotify.onThemeChanged(lightThemeEnabled);
+        }
+    }
+
+    @Override
+    public void start(final Listener listener) {
+        final boolean lightThemeEnabled;
+        synchronized (this) {
+            this.listener = listener;
+            if (this.lightThemeEnabled == this.readLightThemeEnabled) {
+                return;
+            }
+            lightThemeEnabled = this.lightThemeEnabled;
+            this.readLightThemeEnabled = lightThemeEnabled;
+        }
+        listener.onThemeChanged(lightThemeEnabled);
+    }
+
+    @Override
+    public synchronized void close() {
+        this.listener = null;
+    }
+}
@@ -0,0 +1,207 @@
+package ch.qligier.heicofawallpaper.service;
+
+import ch.qligier.heicofawallpaper.utils.SolarCalculator;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+
+/**
+ * The path of the sun in the sky during a local day, at a location. The sun direction is precomputed for each step of
+ * the day, so that the solar wallpapers are evaluated with a table lookup. The day may be shorter or longer than 24
+ * hours, on the days of a time zone offset change.
+ * <p>
+ * The slowly varying position of the sun on the celestial sphere is only computed once per hour, and the direction is
+ * the geometric one: the atmospheric refraction, below a degree, is neglected.
+ *
+ * @author Quentin Ligier
+ **/
+public final class SunPath {
+
+    /**
+     * The duration of a step of the path, in seconds. The sun moves by about a quarter of a degree in a minute.
+     */
+    public static final int STEP_SECONDS = 60;
+
+    /**
+     * The number of steps between two computations of the position of the sun on the celestial sphere.
+     */
+    private static final int EPHEMERIS_STEPS = 60;
+
+    /**
+     * The local day, as an epoch day.
+     */
+    private final long epochDay;
+
+    /**
+     * The location latitude, in degrees.
+     */
+    private final double latitude;
+
+    /**
+     * The location longitude, in degrees.
+     */
+    private final double longitude;
+
+    /**
+     * The epoch second of the start of the local day.
+     */
+    private final long startEpochSecond;
+
+    /**
+     * The epoch second of the end of the local day (exclusive).
+     */
+    private final long endEpochSecond;
+
+    /**
+     * The unit vectors of the sun direction, for each step: east, north and zenith components.
+     */
+    private final float[] east;
+    private final float[] north;
+    private final float[] zenith;
+
+    /**
+     * Constructor.
+     */
+    private SunPath(final long epochDay,
+                    final double latitude,
+                    final double longitude,
+                    final long startEpochSecond,
+                    final long endEpochSecond) {
+        this.epochDay = epochDay;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.startEpochSecond = startEpochSecond;
+        this.endEpochSecond = endEpochSecond;
+        final int size = (int) ((endEpochSecond - startEpochSecond + STEP_SECONDS - 1) / STEP_SECONDS);
+        this.east = new float[size];
+        this.north = new float[size];
+        this.zenith = new float[size];
+    }
+
+    /**
+     * Computes the path of the sun during a local day.
+     *
+     * @param date      The local date.
+     * @param zone      The time zone of the local date.
+     * @param latitude  The location latitude, in degrees (positive to the north).
+     * @param longitude The location longitude, in degrees (positive to the east).
+     * @return the path of the sun.
+     */
+    public static SunPath compute(final LocalDate date,
+                                  final ZoneId zone,
+                                  final double latitude,
+                                  final double longitude) {
+        final SunPath path = new SunPath(date.toEpochDay(),
+                                         latitude,
+                                         longitude,
+                                         date.atStartOfDay(zone).toEpochSecond(),
+                                         date.plusDays(1).atStartOfDay(zone).toEpochSecond());
+        final double sinLatitude = Math.sin(Math.toRadians(latitude));
+        final double cosLatitude = Math.cos(Math.toRadians(latitude));
+        // The hour angle increases by a constant step, the sun direction is rotated rather than computed again
+        final double sinStep = Math.sin(Math.toRadians(STEP_SECONDS / 240.0));
+        final double cosStep = Math.cos(Math.toRadians(STEP_SECONDS / 240.0));
+        double sinDeclination = 0;
+        double cosDeclination = 0;
+        double sinHourAngle = 0;
+        double cosHourAngle = 0;
+        for (int i = 0; i < path.size(); ++i) {
+            if (i % EPHEMERIS_STEPS == 0) {
+                // The ephemeris is computed in the middle of its steps
+                final long epochMillis = path.getEpochSecond(i) * 1000;
+                final SolarCalculator.Ephemeris ephemeris =
+                    SolarCalculator.computeEphemeris(epochMillis + EPHEMERIS_STEPS * STEP_SECONDS * 500L);
+                final double hourAngle = SolarCalculator.computeHourAngle(epochMillis, ephemeris, longitude);
+                sinDeclination = Math.sin(ephemeris.declination());
+                cosDeclination = Math.cos(ephemeris.declination());
+                sinHourAngle = Math.sin(hourAngle);
+                cosHourAngle = Math.cos(hourAngle);
+            } else {
+                final double sinPrevious = sinHourAngle;
+                sinHourAngle = sinPrevious * cosStep + cosHourAngle * sinStep;
+                cosHourAngle = cosHourAngle * cosStep - sinPrevious * sinStep;
+            }
+            path.east[i] = (float) (-cosDeclination * sinHourAngle);
+            path.north[i] = (float) (sinDeclination * cosLatitude - cosDeclination * cosHourAngle * sinLatitude);
+            path.zenith[i] = (float) (sinDeclination * sinLatitude + cosDeclination * cosHourAngle * cosLatitude);
+        }
+        return path;
+    }
+
+    /**
+     * Converts a direction in the sky to a unit vector.
+     *
+     * @param elevation The elevation above the horizon, in degrees.
+     * @param azimuth   The azimuth, in degrees clockwise from the north.
+     * @param vector    The array that receives the east, north and zenith components.
+     */
+    public static void toVector(final double elevation, final double azimuth, final float[] vector) {
+        final double elevationRad = Math.toRadians(elevation);
+        final double azimuthRad = Math.toRadians(azimuth);
+        vector[0] = (float) (Math.cos(elevationRad) * Math.sin(azimuthRad));
+        vector[1] = (float) (Math.cos(elevationRad) * Math.cos(azimuthRad));
+        vector[2] = (float) Math.sin(elevationRad);
+    }
+
+    /**
+     * Returns whether the path covers an instant, at a location.
+     *
+     * @param epochSecond The instant, in seconds since the epoch.
+     * @param latitude    The location latitude, in degrees.
+     * @param longitude   The location longitude, in degrees.
+     */
+    public boolean covers(final long epochSecond, final double latitude, final double longitude) {
+        return epochSecond >= this.startEpochSecond && epochSecond < this.endEpochSecond
+            && latitude == this.latitude && longitude == this.longitude;
+    }
+
+    /**
+     * Returns whether this path directly follows another one, at the same location.
+     */
+    public boolean follows(final SunPath previous) {
+        return this.epochDay == previous.epochDay + 1
+            && this.latitude == previous.latitude && this.longitude == previous.longitude;
+    }
+
+    /**
+     * Returns the index of the step that contains an instant of the day.
+     *
+     * @param epochSecond The instant, in seconds since the epoch.
+     */
+    public int getIndex(final long epochSecond) {
+        return (int) ((epochSecond - this.startEpochSecond) / STEP_SECONDS);
+    }
+
+    /**
+     * Returns the epoch second of the start of a step.
+     */
+    public long getEpochSecond(final int index) {
+        return this.startEpochSecond + (long) index * STEP_SECONDS;
+    }
+
+    /**
+     * Returns the epoch second of the end of the local day (exclusive).
+     */
+    public long getEndEpochSecond() {
+        return this.endEpochSecond;
+    }
+
+    /**
+     * Returns the number of steps.
+     */
+    public int size() {
+        return this.east.length;
+    }
+
+    public float getEast(final int index) {
+        return this.east[index];
+    }
+
+    public float getNorth(final int index) {
+        return this.north[index];
+    }
+
+    public float getZenith(final int index) {
+        return this.zenith[index];
+    }
+}
@@ -0,0 +1,38 @@
+package ch.qligier.heicofawallpaper.service;
+
+/**
+ * A source of the system theme, that notifies its changes instead of being polled.
+ *
+ * @author Quentin Ligier
+ **/
+public interface ThemeSource extends AutoCloseable {
+
+    /**
+     * Returns whether the light or dark theme is currently enabled.
+     *
+     * @return {@code true} if the light theme is enabled, {@code false} if the dark theme is enabled.
+     */
+    boolean isLightThemeEnabled();
+
+    /**
+     * Starts notifying the theme changes to the listener. A change that happens after the last call to
+     * {@link #isLightThemeEnabled()} and before the start is notified too.
+     *
+     * @param listener The listener of the theme changes.
+     */
+    void start(Listener listener);
+
+    /**
+     * Stops notifying the theme changes and releases the resources.
+     */
+    @Override
+    void close();
+
+    /**
+     * A listener of the theme changes. It's called from the notifying thread of the source.
+     */
+    @FunctionalInterface
+    interface Listener {
+        void onThemeChanged(boolean lightThemeEnabled);
+    }
+}
@@ -0,0 +1,312 @@
+package ch.qligier.heicofawallpaper.service;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.time.*;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * The scheduler of the wallpaper refreshes. Instead of refreshing the wallpapers periodically, it computes the instant
+ * of the next phase transition of the selected wallpapers, and sleeps until then. It's also woken up by external
+ * triggers (e.g. a new wallpaper choice or a display change), that refresh the wallpapers immediately.
+ * <p>
+ * The sleeps are capped, to {@link #MAX_SLEEP} by default: a wake-up that is not due only checks the wall clock. If the
+ * wall clock has jumped (e.g. after a sleep or hibernation, or a manual change) or the time zone offset has changed
+ * (e.g. a daylight saving time shift), the wallpapers are refreshed and the next transition is computed again.
+ *
+ * @author Quentin Ligier
+ **/
+public class WallpaperScheduler implements AutoCloseable {
+    private static final Logger LOG = Logger.getLogger("WallpaperScheduler");
+
+    /**
+     * The default maximum duration of a sleep, after which the wall clock is checked.
+     */
+    public static final Duration MAX_SLEEP = Duration.ofMinutes(15);
+
+    /**
+     * The difference between the elapsed wall clock time and the elapsed monotonic time above which the wall clock is
+     * considered to have jumped.
+     */
+    private static final Duration CLOCK_JUMP_TOLERANCE = Duration.ofSeconds(2);
+
+    /**
+     * The refresh of the wallpapers.
+     */
+    private final Runnable refresh;
+
+    /**
+     * The computation of the next transition.
+     */
+    private final NextTransition nextTransition;
+
+    /**
+     * The wall clock.
+     */
+    private final Clock clock;
+
+    /**
+     * The maximum duration of a sleep, after which the wall clock is checked.
+     */
+    private final Duration maxSleep;
+
+    /**
+     * The lock that guards the trigger and the thread state.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * The number of wake-ups of the scheduler thread.
+     */
+    private final AtomicLong wakeups = new AtomicLong();
+
+    /**
+     * The number of refreshes.
+     */
+    private final AtomicLong refreshes = new AtomicLong();
+
+    /**
+     * The number of external triggers.
+     */
+    private final AtomicLong triggers = new AtomicLong();
+
+    /**
+     * The number of detected wall clock jumps and time zone offset changes.
+     */
+    private final AtomicLong clockJumps = new AtomicLong();
+
+    /**
+     * The reason of the pending trigger, or {@code null} if there is none.
+     */
+    @Nullable
+    private String pendingTrigger;
+
+    /**
+     * The scheduler thread, or {@code null} if it's not started.
+     */
+    @Nullable
+    private Thread thread;
+
+    /**
+     * The next transition, or {@code null} if there is none.
+     */
+    @Nullable
+    private volatile Instant scheduledTransition;
+
+    /**
+     * Constructor.
+     *
+     * @param refresh        The refresh of the wallpapers.
+     * @param nextTransition The computation of the next transition.
+     * @param clock          The wall clock, with the time zone of the phases.
+     */
+    public WallpaperScheduler(final Runnable refresh,
+                              final NextTransition nextTransition,
+                              final Clock clock) {
+        this(refresh, nextTransition, clock, MAX_SLEEP);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param refresh        The refresh of the wallpapers.
+     * @param nextTransition The computation of the next transition.
+     * @param clock          The wall clock, with the time zone of the phases.
+     * @param maxSleep       The maximum duration of a sleep, after which the wall clock is checked.
+     */
+    public WallpaperScheduler(final Runnable refresh,
+                              final NextTransition nextTransition,
+                              final Clock clock,
+                              final Duration maxSleep) {
+        this.refresh = Objects.requireNonNull(refresh);
+        this.nextTransition = Objects.requireNonNull(nextTransition);
+        this.clock = Objects.requireNonNull(clock);
+        this.maxSleep = Objects.requireNonNull(maxSleep);
+    }
+
+    /**
+     * Starts the scheduler thread. The wallpapers are refreshed immediately.
+     */
+    public void start() {
+        synchronized (this.lock) {
+            if (this.thread != null) {
+                return;
+            }
+            this.pendingTrigger = "start";
+            this.thread = new Thread(this::run, "WallpaperScheduler");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+    }
+
+    /**
+     * Wakes the scheduler up to refresh the wallpapers now, and compute the next transition again.
+     *
+     * @param reason The reason of the trigger, for logging.
+     */
+    public void trigger(final String reason) {
+        this.triggers.incrementAndGet();
+        synchronized (this.lock) {
+            this.pendingTrigger = reason;
+            this.lock.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the next scheduled transition, or {@code null} if there is none.
+     */
+    @Nullable
+    public Instant getScheduledTransition() {
+        return this.scheduledTransition;
+    }
+
+    /**
+     * Returns the metrics of the scheduler.
+     */
+    public Metrics getMetrics() {
+        return new Metrics(this.wakeups.get(), this.refreshes.get(), this.triggers.get(), this.clockJumps.get());
+    }
+
+    /**
+     * Stops the scheduler thread.
+     */
+    @Override
+    public void close() {
+        final Thread schedulerThread;
+        synchronized (this.lock) {
+            schedulerThread = this.thread;
+            this.thread = null;
+        }
+        if (schedulerThread != null) {
+            schedulerThread.interrupt();
+        }
+    }
+
+    /**
+     * The loop of the scheduler thread.
+     */
+    private void run() {
+        String reason = null;
+        while (!Thread.currentThread().isInterrupted()) {
+            synchronized (this.lock) {
+                if (this.pendingTrigger != null) {
+                    reason = this.pendingTrigger;
+                    this.pendingTrigger = null;
+                }
+            }
+            if (reason != null) {
+                final String refreshReason = reason;
+                LOG.fine(() -> "Refreshing the wallpapers (" + refreshReason + ")");
+                this.refreshes.incrementAndGet();
+                try {
+                    this.refresh.run();
+                } catch (final RuntimeException exception) {
+                    LOG.warning("The wallpaper refresh has failed: " + exception);
+                }
+            }
+
+            final ZonedDateTime now = ZonedDateTime.now(this.clock);
+            Instant next;
+            try {
+                next = this.nextTransition.compute(now);
+            } catch (final RuntimeException exception) {
+                LOG.warning("Unable to compute the next transition: " + exception);
+                next = null;
+            }
+            this.scheduledTransition = next;
+            final Instant scheduled = next;
+            LOG.fine(() -> "Next transition: " + scheduled);
+
+            try {
+                reason = this.sleepUntil(next, now);
+            } catch (final InterruptedException exception) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sleeps until the given instant, an external trigger, or a wall clock jump, whichever comes first.
+     *
+     * @param next The instant of the next transition, or {@code null} to sleep until a trigger.
+     * @param now  The current time.
+     * @return the reason of the wake-up.
+     * @throws InterruptedException if the thread is interrupted.
+     */
+    private String sleepUntil(@Nullable final Instant next, final ZonedDateTime now) throws InterruptedException {
+        final ZoneOffset offset = now.getOffset();
+        Instant wallStart = this.clock.instant();
+        long monotonicStart = System.nanoTime();
+        while (true) {
+            final Instant wallNow = this.clock.instant();
+            if (next != null && !wallNow.isBefore(next)) {
+                return "transition";
+            }
+            final long waitMs = (next == null)
+                ? this.maxSleep.toMillis()
+                : Math.min(this.maxSleep.toMillis(), Duration.between(wallNow, next).toMillis() + 1);
+            synchronized (this.lock) {
+                if (this.pendingTrigger == null) {
+                    this.lock.wait(Math.max(1, waitMs));
+                }
+                if (this.pendingTrigger != null) {
+                    final String reason = this.pendingTrigger;
+                    this.pendingTrigger = null;
+                    return reason;
+                }
+            }
+            this.wakeups.incrementAndGet();
+
+            // The monotonic clock keeps on counting the elapsed time, the wall clock may jump
+            final Instant wallAfter = this.clock.instant();
+            final long monotonicAfter = System.nanoTime();
+            final long driftMs = Duration.between(wallStart, wallAfter).toMillis()
+                - TimeUnit.NANOSECONDS.toMillis(monotonicAfter - monotonicStart);
+            if (Math.abs(driftMs) > CLOCK_JUMP_TOLERANCE.toMillis()) {
+                this.clockJumps.incrementAndGet();
+                LOG.info(() -> "The wall clock has jumped by " + driftMs + " ms");
+                return "clock jump";
+            }
+            if (!this.clock.getZone().getRules().getOffset(wallAfter).equals(offset)) {
+                this.clockJumps.incrementAndGet();
+                LOG.info("The time zone offset has changed");
+                return "time zone offset change";
+            }
+            wallStart = wallAfter;
+            monotonicStart = monotonicAfter;
+        }
+    }
+
+    /**
+     * The computation of the next transition of the selected wallpapers.
+     */
+    @FunctionalInterface
+    public interface NextTransition {
+
+        /**
+         * Computes the instant of the next transition, across all monitors.
+         *
+         * @param now The current time.
+         * @return the instant of the next transition, or {@code null} if no selected wallpaper changes by itself.
+         */
+        @Nullable
+        Instant compute(ZonedDateTime now);
+    }
+
+    /**
+     * The metrics of the scheduler.
+     *
+     * @param wakeups    The number of wake-ups of the scheduler thread.
+     * @param refreshes  The number of refreshes.
+     * @param triggers   The number of external triggers.
+     * @param clockJumps The number of detected wall clock jumps and time zone offset changes.
+     */
+    public record Metrics(long wakeups,
+                          long refreshes,
+                          long triggers,
+                          long clockJumps) {
+    }
+}
@@ -0,0 +1,170 @@
+package ch.qligier.heicofawallpaper.utils;
+
+/**
+ * A calculator of the sun position, with the NOAA solar equations. They are accurate to about a minute of arc for
+ * the years 1800 to 2100, which is far more than what the wallpaper phases need.
+ *
+ * @author Quentin Ligier
+ * @see <a href="https://gml.noaa.gov/grad/solcalc/calcdetails.html">NOAA solar calculation details</a>
+ **/
+public class SolarCalculator {
+
+    /**
+     * The Julian day of the Unix epoch.
+     */
+    private static final double JULIAN_DAY_UNIX_EPOCH = 2_440_587.5;
+
+    /**
+     * The Julian day of the J2000 epoch.
+     */
+    private static final double JULIAN_DAY_J2000 = 2_451_545.0;
+
+    /**
+     * This class is not instantiable.
+     */
+    private SolarCalculator() {
+    }
+
+    /**
+     * Computes the position of the sun, as seen from a location on Earth.
+     *
+     * @param epochMillis The instant, in milliseconds since the epoch.
+     * @param latitude    The location latitude, in degrees (positive to the north).
+     * @param longitude   The location longitude, in degrees (positive to the east).
+     * @return the apparent position of the sun, corrected for the atmospheric refraction.
+     */
+    public static Position computePosition(final long epochMillis, final double latitude, final double longitude) {
+        final Ephemeris ephemeris = computeEphemeris(epochMillis);
+        final double declination = ephemeris.declination();
+        final double hourAngle = computeHourAngle(epochMillis, ephemeris, longitude);
+
+        final double latitudeRad = Math.toRadians(latitude);
+        final double cosZenith = clamp(Math.sin(latitudeRad) * Math.sin(declination)
+                                           + Math.cos(latitudeRad) * Math.cos(declination) * Math.cos(hourAngle));
+        final double zenith = Math.acos(cosZenith);
+        final double elevation = 90 - Math.toDegrees(zenith);
+
+        final double azimuth;
+        final double sinZenith = Math.sin(zenith);
+        if (Math.abs(Math.cos(latitudeRad) * sinZenith) < 1e-12) {
+            // At the poles or at the zenith, the azimuth is not defined
+            azimuth = 180;
+        } else {
+            final double cosAzimuth = clamp((Math.sin(latitudeRad) * cosZenith - Math.sin(declination))
+                                                / (Math.cos(latitudeRad) * sinZenith));
+            final double angle = Math.toDegrees(Math.acos(cosAzimuth));
+            azimuth = (hourAngle > 0) ? mod360(angle + 180) : mod360(540 - angle);
+        }
+        return new Position(elevation + refraction(elevation), azimuth);
+    }
+
+    /**
+     * Computes the position of the sun on the celestial sphere. It varies slowly: the declination by less than half a
+     * degree a day, and the equation of time by less than half a minute a day.
+     *
+     * @param epochMillis The instant, in milliseconds since the epoch.
+     * @return the solar declination and the equation of time.
+     */
+    public static Ephemeris computeEphemeris(final long epochMillis) {
+        final double julianDay = epochMillis / 86_400_000.0 + JULIAN_DAY_UNIX_EPOCH;
+        final double julianCentury = (julianDay - JULIAN_DAY_J2000) / 36_525.0;
+
+        final double meanLongitude = mod360(280.46646 + julianCentury * (36_000.76983 + julianCentury * 0.0003032));
+        final double meanAnomaly = 357.52911 + julianCentury * (35_999.05029 - 0.0001537 * julianCentury);
+        final double eccentricity = 0.016708634 - julianCentury * (0.000042037 + 0.0000001267 * julianCentury);
+        final double meanAnomalyRad = Math.toRadians(meanAnomaly);
+        final double equationOfCenter =
+            Math.sin(meanAnomalyRad) * (1.914602 - julianCentury * (0.004817 + 0.000014 * julianCentury))
+                + Math.sin(2 * meanAnomalyRad) * (0.019993 - 0.000101 * julianCentury)
+                + Math.sin(3 * meanAnomalyRad) * 0.000289;
+        final double trueLongitude = meanLongitude + equationOfCenter;
+        final double omega = Math.toRadians(125.04 - 1934.136 * julianCentury);
+        final double apparentLongitude = trueLongitude - 0.00569 - 0.00478 * Math.sin(omega);
+
+        final double meanObliquity = 23 + (26 + (21.448 - julianCentury * (46.815 + julianCentury
+            * (0.00059 - julianCentury * 0.001813))) / 60) / 60;
+        final double obliquity = Math.toRadians(meanObliquity + 0.00256 * Math.cos(omega));
+        final double declination = Math.asin(Math.sin(obliquity) * Math.sin(Math.toRadians(apparentLongitude)));
+
+        final double y = Math.pow(Math.tan(obliquity / 2), 2);
+        final double meanLongitudeRad = Math.toRadians(meanLongitude);
+        final double equationOfTime = 4 * Math.toDegrees(
+            y * Math.sin(2 * meanLongitudeRad)
+                - 2 * eccentricity * Math.sin(meanAnomalyRad)
+                + 4 * eccentricity * y * Math.sin(meanAnomalyRad) * Math.cos(2 * meanLongitudeRad)
+                - 0.5 * y * y * Math.sin(4 * meanLongitudeRad)
+                - 1.25 * eccentricity * eccentricity * Math.sin(2 * meanAnomalyRad));
+        return new Ephemeris(declination, equationOfTime);
+    }
+
+    /**
+     * Computes the hour angle of the sun, i.e. the angle between the meridian of a location and the sun.
+     *
+     * @param epochMillis The instant, in milliseconds since the epoch.
+     * @param ephemeris   The position of the sun on the celestial sphere, near that instant.
+     * @param longitude   The location longitude, in degrees (positive to the east).
+     * @return the hour angle, in radians, between -pi (midnight) and pi (midnight), 0 being the solar noon.
+     */
+    public static double computeHourAngle(final long epochMillis,
+                                          final Ephemeris ephemeris,
+                                          final double longitude) {
+        // The true solar time, in minutes, from the UTC time of day
+        final double utcMinutes = Math.floorMod(epochMillis, 86_400_000L) / 60_000.0;
+        final double trueSolarTime = mod(utcMinutes + ephemeris.equationOfTime() + 4 * longitude, 1440);
+        return Math.toRadians(trueSolarTime / 4 - 180);
+    }
+
+    /**
+     * Returns the approximate atmospheric refraction of the sun, in degrees.
+     *
+     * @param elevation The geometric sun elevation, in degrees.
+     */
+    private static double refraction(final double elevation) {
+        if (elevation > 85) {
+            return 0;
+        }
+        final double tanElevation = Math.tan(Math.toRadians(elevation));
+        final double arcSeconds;
+        if (elevation > 5) {
+            arcSeconds = 58.1 / tanElevation - 0.07 / Math.pow(tanElevation, 3) + 0.000086 / Math.pow(tanElevation, 5);
+        } else if (elevation > -0.575) {
+            arcSeconds = 1735 + elevation * (-518.2 + elevation * (103.4 + elevation * (-12.79 + elevation * 0.711)));
+        } else {
+            arcSeconds = -20.772 / tanElevation;
+        }
+        return arcSeconds / 3600;
+    }
+
+    private static double mod(final double value, final double modulus) {
+        final double result = value % modulus;
+        return (result < 0) ? result + modulus : result;
+    }
+
+    private static double mod360(final double degrees) {
+        return mod(degrees, 360);
+    }
+
+    private static double clamp(final double cosine) {
+        return Math.max(-1, Math.min(1, cosine));
+    }
+
+    /**
+     * The position of the sun on the celestial sphere.
+     *
+     * @param declination    The solar declination, in radians.
+     * @param equationOfTime The equation of time, in minutes.
+     */
+    public record Ephemeris(double declination,
+                            double equationOfTime) {
+    }
+
+    /**
+     * A position of the sun in the sky.
+     *
+     * @param elevation The elevation above the horizon, in degrees.
+     * @param azimuth   The azimuth, in degrees clockwise from the north.
+     */
+    public record Position(double elevation,
+                           double azimuth) {
+    }
+}
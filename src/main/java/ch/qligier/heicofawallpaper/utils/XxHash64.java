@@ -0,0 +1,191 @@
+package ch.qligier.heicofawallpaper.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * An implementation of the XXH64 non-cryptographic hash function. It is much faster than SHA-256 and is meant to
+ * identify content quickly, not to resist collisions crafted on purpose.
+ *
+ * @author Quentin Ligier
+ * @see <a href="https://github.com/Cyan4973/xxHash/blob/dev/doc/xxhash_spec.md">xxHash specification</a>
+ **/
+public class XxHash64 {
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+    /**
+     * This class is not instantiable.
+     */
+    private XxHash64() {
+    }
+
+    /**
+     * Hashes the remaining bytes of a buffer. The buffer position is not modified.
+     *
+     * @param input The buffer to hash, from its position to its limit.
+     * @param seed  The hash seed.
+     * @return the 64-bit hash.
+     */
+    public static long hash(final ByteBuffer input, final long seed) {
+        final ByteBuffer buffer = input.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        final int end = buffer.limit();
+        int position = buffer.position();
+        final int length = end - position;
+
+        long hash;
+        if (length >= 32) {
+            long v1 = seed + PRIME64_1 + PRIME64_2;
+            long v2 = seed + PRIME64_2;
+            long v3 = seed;
+            long v4 = seed - PRIME64_1;
+            final int stripeLimit = end - 32;
+            do {
+                v1 = round(v1, buffer.getLong(position));
+                v2 = round(v2, buffer.getLong(position + 8));
+                v3 = round(v3, buffer.getLong(position + 16));
+                v4 = round(v4, buffer.getLong(position + 24));
+                position += 32;
+            } while (position <= stripeLimit);
+
+            hash = converge(v1, v2, v3, v4);
+        } else {
+            hash = seed + PRIME64_5;
+        }
+        return finish(hash + length, buffer, position, end);
+    }
+
+    /**
+     * Merges the four accumulators of the stripes.
+     */
+    private static long converge(final long v1, final long v2, final long v3, final long v4) {
+        long hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12)
+            + Long.rotateLeft(v4, 18);
+        hash = mergeRound(hash, v1);
+        hash = mergeRound(hash, v2);
+        hash = mergeRound(hash, v3);
+        return mergeRound(hash, v4);
+    }
+
+    /**
+     * Consumes the last bytes (less than a stripe) and mixes the final hash.
+     *
+     * @param hash     The hash of the stripes and of the total length.
+     * @param buffer   The little-endian buffer of the last bytes.
+     * @param position The position of the last bytes in the buffer.
+     * @param end      The end of the last bytes in the buffer (exclusive).
+     */
+    private static long finish(long hash, final ByteBuffer buffer, int position, final int end) {
+        while (position + 8 <= end) {
+            hash ^= round(0, buffer.getLong(position));
+            hash = Long.rotateLeft(hash, 27) * PRIME64_1 + PRIME64_4;
+            position += 8;
+        }
+        if (position + 4 <= end) {
+            hash ^= (buffer.getInt(position) & 0xFFFF_FFFFL) * PRIME64_1;
+            hash = Long.rotateLeft(hash, 23) * PRIME64_2 + PRIME64_3;
+            position += 4;
+        }
+        while (position < end) {
+            hash ^= (buffer.get(position) & 0xFF) * PRIME64_5;
+            hash = Long.rotateLeft(hash, 11) * PRIME64_1;
+            ++position;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME64_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME64_3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    /**
+     * A streaming hash, for contents that are read by chunks. It gives the same hash as {@link #hash(ByteBuffer, long)}
+     * on the concatenated chunks.
+     */
+    public static final class Streaming {
+        private final long seed;
+        private long v1;
+        private long v2;
+        private long v3;
+        private long v4;
+        private long totalLength = 0;
+
+        /**
+         * The bytes that don't fill a stripe yet.
+         */
+        private final ByteBuffer pending = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+
+        /**
+         * Constructor.
+         *
+         * @param seed The hash seed.
+         */
+        public Streaming(final long seed) {
+            this.seed = seed;
+            this.v1 = seed + PRIME64_1 + PRIME64_2;
+            this.v2 = seed + PRIME64_2;
+            this.v3 = seed;
+            this.v4 = seed - PRIME64_1;
+        }
+
+        /**
+         * Hashes the remaining bytes of a buffer. The buffer position is not modified.
+         *
+         * @param input The chunk to hash, from its position to its limit.
+         */
+        public void update(final ByteBuffer input) {
+            final ByteBuffer buffer = input.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            this.totalLength += buffer.remaining();
+            if (this.pending.position() > 0) {
+                while (this.pending.hasRemaining() && buffer.hasRemaining()) {
+                    this.pending.put(buffer.get());
+                }
+                if (this.pending.hasRemaining()) {
+                    return;
+                }
+                this.consumeStripe(this.pending, 0);
+                this.pending.clear();
+            }
+            int position = buffer.position();
+            final int stripeLimit = buffer.limit() - 32;
+            while (position <= stripeLimit) {
+                this.consumeStripe(buffer, position);
+                position += 32;
+            }
+            this.pending.put(buffer.position(position));
+        }
+
+        /**
+         * Returns the hash of all the hashed chunks.
+         */
+        public long digest() {
+            final long hash = (this.totalLength >= 32)
+                ? converge(this.v1, this.v2, this.v3, this.v4)
+                : this.seed + PRIME64_5;
+            return finish(hash + this.totalLength, this.pending, 0, this.pending.position());
+        }
+
+        private void consumeStripe(final ByteBuffer buffer, final int position) {
+            this.v1 = round(this.v1, buffer.getLong(position));
+            this.v2 = round(this.v2, buffer.getLong(position + 8));
+            this.v3 = round(this.v3, buffer.getLong(position + 16));
+            this.v4 = round(this.v4, buffer.getLong(position + 24));
+        }
+    }
+
+    private static long round(long accumulator, final long input) {
+        accumulator += input * PRIME64_2;
+        accumulator = Long.rotateLeft(accumulator, 31);
+        return accumulator * PRIME64_1;
+    }
+
+    private static long mergeRound(long accumulator, final long value) {
+        accumulator ^= round(0, value);
+        return accumulator * PRIME64_1 + PRIME64_4;
+    }
+}
@@ -0,0 +1,179 @@
+package ch.qligier.heicofawallpaper.utils.heic;
+
+import ch.qligier.heicofawallpaper.service.FileSystemService;
+import ch.qligier.heicofawallpaper.utils.image.RasterPool;
+import ch.qligier.heicofawallpaper.utils.image.Resampler;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Logger;
+
+/**
+ * The pyramid of downscaled copies of the extracted frames of a wallpaper, so that the frames can be displayed
+ * without decoding their full resolution. Each level is a JPEG file of a fixed width (see {@link #LEVEL_WIDTHS}), with
+ * the aspect ratio of the frame.
+ * <p>
+ * A frame is decoded once, with a source subsampling that keeps it at least twice as wide as the largest level, and
+ * the levels are resampled from each other, from the largest to the smallest.
+ *
+ * @author Quentin Ligier
+ **/
+public class FramePyramid {
+    private static final Logger LOG = Logger.getLogger("FramePyramid");
+
+    /**
+     * The widths of the levels, in increasing order.
+     */
+    public static final int[] LEVEL_WIDTHS = {128, 256, 1024};
+
+    /**
+     * The file name format of the levels, with the frame index and the level width.
+     */
+    public static final String LEVEL_FILE_NAME_FORMAT = "frame-%d-w%d.jpg";
+
+    private static final float JPEG_QUALITY = 0.85f;
+
+    private FramePyramid() {
+    }
+
+    /**
+     * Generates the levels of a frame.
+     *
+     * @param cacheDirectory The cache directory of the wallpaper.
+     * @param frameIndex     The frame index.
+     * @param width          The frame width.
+     * @param height         The frame height.
+     * @throws IOException if the frame can't be read or a level can't be written.
+     */
+    public static void generate(final Path cacheDirectory,
+                                final int frameIndex,
+                                final short width,
+                                final short height) throws IOException {
+        final Path framePath = cacheDirectory.resolve(String.format(FileSystemService.FRAME_FILE_NAME_FORMAT,
+                                                                    frameIndex));
+        final int subsampling = getSubsampling(width);
+        final int decodedWidth = (width + subsampling - 1) / subsampling;
+        final int decodedHeight = (height + subsampling - 1) / subsampling;
+
+        final RasterPool pool = RasterPool.shared();
+        int[] source = pool.acquire(decodedWidth * decodedHeight);
+        int sourceWidth = decodedWidth;
+        int sourceHeight = decodedHeight;
+        try {
+            PreviewGenerator.loadFrame(framePath,
+                                       new Rectangle(0, 0, width, height),
+                                       subsampling,
+                                       RasterPool.wrap(source, decodedWidth, decodedHeight));
+
+            for (int level = LEVEL_WIDTHS.length - 1; level >= 0; --level) {
+                final int levelWidth = Math.min(LEVEL_WIDTHS[level], sourceWidth);
+                final int levelHeight = Math.max(1, (int) Math.round((double) levelWidth * height / width));
+                final int[] levelRaster = pool.acquire(levelWidth * levelHeight);
+                Resampler.downscale(source, sourceWidth, sourceHeight, levelRaster, levelWidth, levelHeight, pool);
+                writeJpeg(RasterPool.wrap(levelRaster, levelWidth, levelHeight),
+                          getLevelPath(cacheDirectory, frameIndex, LEVEL_WIDTHS[level]));
+
+                // The next level is resampled from this one
+                pool.release(source);
+                source = levelRaster;
+                sourceWidth = levelWidth;
+                sourceHeight = levelHeight;
+            }
+        } finally {
+            pool.release(source);
+        }
+        LOG.fine(() -> "Generated the pyramid of frame " + frameIndex + " in " + cacheDirectory);
+    }
+
+    /**
+     * Returns whether all levels of a frame exist.
+     *
+     * @param cacheDirectory The cache directory of the wallpaper.
+     * @param frameIndex     The frame index.
+     */
+    public static boolean exists(final Path cacheDirectory, final int frameIndex) {
+        for (final int levelWidth : LEVEL_WIDTHS) {
+            if (!Files.isRegularFile(getLevelPath(cacheDirectory, frameIndex, levelWidth))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the path of the smallest level that is at least as wide as a display width, or of the largest level if
+     * none is.
+     *
+     * @param cacheDirectory The cache directory of the wallpaper.
+     * @param frameIndex     The frame index.
+     * @param displayWidth   The display width, in pixels.
+     */
+    public static Path getLevelPathFor(final Path cacheDirectory, final int frameIndex, final int displayWidth) {
+        for (final int levelWidth : LEVEL_WIDTHS) {
+            if (levelWidth >= displayWidth) {
+                return getLevelPath(cacheDirectory, frameIndex, levelWidth);
+            }
+        }
+        return getLevelPath(cacheDirectory, frameIndex, LEVEL_WIDTHS[LEVEL_WIDTHS.length - 1]);
+    }
+
+    /**
+     * Returns the path of a level.
+     *
+     * @param cacheDirectory The cache directory of the wallpaper.
+     * @param frameIndex     The frame index.
+     * @param levelWidth     The level width, one of {@link #LEVEL_WIDTHS}.
+     */
+    public static Path getLevelPath(final Path cacheDirectory, final int frameIndex, final int levelWidth) {
+        return cacheDirectory.resolve(String.format(LEVEL_FILE_NAME_FORMAT, frameIndex, levelWidth));
+    }
+
+    /**
+     * Estimates the memory used by the generation of the levels of a frame: the decoded frame, and the intermediate
+     * rasters of the resampling.
+     *
+     * @param width  The frame width.
+     * @param height The frame height.
+     * @return the estimated working set, in bytes.
+     */
+    public static long estimateWorkingSetBytes(final short width, final short height) {
+        final int subsampling = getSubsampling(width);
+        final long decodedBytes = 4L * ((width + subsampling - 1) / subsampling)
+            * ((height + subsampling - 1) / subsampling);
+        return decodedBytes + decodedBytes / 3 + 3L * width * 16 * 2;
+    }
+
+    /**
+     * Returns the source subsampling that keeps the decoded frame at least twice as wide as the largest level.
+     */
+    private static int getSubsampling(final short width) {
+        return Math.max(1, width / (2 * LEVEL_WIDTHS[LEVEL_WIDTHS.length - 1]));
+    }
+
+    /**
+     * Writes a JPEG file atomically.
+     */
+    private static void writeJpeg(final BufferedImage image, final Path path) throws IOException {
+        final Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+        final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (final ImageOutputStream output = ImageIO.createImageOutputStream(temporaryPath.toFile())) {
+            final ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,295 @@
+package ch.qligier.heicofawallpaper.utils.heic;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * The structure of a HEIF file, as described by its {@code meta} box: the items, their locations, properties and
+ * references. It does not contain any item data.
+ *
+ * @author Quentin Ligier
+ * @see HeifReader
+ **/
+public class HeifContainer {
+
+    /**
+     * The item types that are coded images.
+     */
+    private static final Set<String> IMAGE_ITEM_TYPES = Set.of("hvc1", "av01", "jpeg", "grid", "iden", "iovl", "unci");
+
+    /**
+     * The major brand of the file.
+     */
+    private final String majorBrand;
+
+    /**
+     * The ID of the primary item.
+     */
+    private final int primaryItemId;
+
+    /**
+     * The items, in declaration order.
+     */
+    private final List<Item> items;
+
+    /**
+     * The item locations, keyed by item ID.
+     */
+    private final Map<Integer, ItemLocation> locations;
+
+    /**
+     * The item properties, in declaration order (property indexes are 1-based in the file).
+     */
+    private final List<Property> properties;
+
+    /**
+     * The indexes of the properties associated to each item (0-based), keyed by item ID.
+     */
+    private final Map<Integer, List<Integer>> associations;
+
+    /**
+     * The item references.
+     */
+    private final List<ItemReference> references;
+
+    /**
+     * The content of the {@code idat} box, or {@code null}.
+     */
+    @Nullable
+    private final ByteBuffer itemData;
+
+    HeifContainer(final String majorBrand,
+                  final int primaryItemId,
+                  final List<Item> items,
+                  final Map<Integer, ItemLocation> locations,
+                  final List<Property> properties,
+                  final Map<Integer, List<Integer>> associations,
+                  final List<ItemReference> references,
+                  @Nullable final ByteBuffer itemData) {
+        this.majorBrand = majorBrand;
+        this.primaryItemId = primaryItemId;
+        this.items = List.copyOf(items);
+        this.locations = Map.copyOf(locations);
+        this.properties = List.copyOf(properties);
+        this.associations = Map.copyOf(associations);
+        this.references = List.copyOf(references);
+        this.itemData = itemData;
+    }
+
+    public String getMajorBrand() {
+        return this.majorBrand;
+    }
+
+    public int getPrimaryItemId() {
+        return this.primaryItemId;
+    }
+
+    public List<Item> getItems() {
+        return this.items;
+    }
+
+    @Nullable
+    public Item getItem(final int itemId) {
+        for (final Item item : this.items) {
+            if (item.id() == itemId) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    public ItemLocation getLocation(final int itemId) {
+        return this.locations.get(itemId);
+    }
+
+    @Nullable
+    public ByteBuffer getItemData() {
+        return this.itemData != null ? this.itemData.asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * Returns the first property of the given type associated to an item, or {@code null}.
+     *
+     * @param itemId The item ID.
+     * @param type   The property box type (e.g. {@code ispe}).
+     */
+    @Nullable
+    public Property getProperty(final int itemId, final String type) {
+        for (final int index : this.associations.getOrDefault(itemId, List.of())) {
+            if (index < this.properties.size() && type.equals(this.properties.get(index).type())) {
+                return this.properties.get(index);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns all properties associated to an item, in association order.
+     *
+     * @param itemId The item ID.
+     */
+    public List<Property> getProperties(final int itemId) {
+        final List<Property> itemProperties = new ArrayList<>(4);
+        for (final int index : this.associations.getOrDefault(itemId, List.of())) {
+            if (index < this.properties.size()) {
+                itemProperties.add(this.properties.get(index));
+            }
+        }
+        return itemProperties;
+    }
+
+    /**
+     * Returns the references of the given type.
+     *
+     * @param type The reference type (e.g. {@code thmb}, {@code dimg}).
+     */
+    public List<ItemReference> getReferences(final String type) {
+        return this.references.stream()
+            .filter(reference -> type.equals(reference.type()))
+            .toList();
+    }
+
+    /**
+     * Returns the image size of an item, as given by its {@code ispe} property, or {@code null}.
+     *
+     * @param itemId The item ID.
+     * @return an array of two values: the width and the height.
+     */
+    public int @Nullable [] getImageSize(final int itemId) {
+        final Property ispe = this.getProperty(itemId, "ispe");
+        if (ispe == null || ispe.content().remaining() < 12) {
+            return null;
+        }
+        final ByteBuffer content = ispe.content();
+        // FullBox header, then image_width and image_height
+        return new int[]{content.getInt(content.position() + 4), content.getInt(content.position() + 8)};
+    }
+
+    /**
+     * Returns the IDs of the master images, in declaration order. These are the displayable images of the file, i.e.
+     * the frames of a dynamic wallpaper. Thumbnails, auxiliary images and the tiles of derived images are excluded;
+     * the hidden flag is ignored, as some tools set it on every frame but the primary one.
+     */
+    public List<Integer> getMasterImageIds() {
+        final Set<Integer> excluded = new HashSet<>(16);
+        for (final ItemReference reference : this.references) {
+            switch (reference.type()) {
+                case "thmb", "auxl", "cdsc" -> excluded.add(reference.fromItemId());
+                case "dimg" -> excluded.addAll(reference.toItemIds());
+                default -> {
+                }
+            }
+        }
+        return this.items.stream()
+            .filter(item -> IMAGE_ITEM_TYPES.contains(item.type()))
+            .map(Item::id)
+            .filter(id -> !excluded.contains(id))
+            .toList();
+    }
+
+    /**
+     * Returns the ID of the largest thumbnail of an image item, or {@code null} if it has none.
+     *
+     * @param itemId The image item ID.
+     */
+    @Nullable
+    public Integer getThumbnailId(final int itemId) {
+        Integer thumbnailId = null;
+        long thumbnailArea = -1;
+        for (final ItemReference reference : this.getReferences("thmb")) {
+            if (!reference.toItemIds().contains(itemId)) {
+                continue;
+            }
+            final int[] size = this.getImageSize(reference.fromItemId());
+            final long area = (size != null) ? (long) size[0] * size[1] : 0;
+            if (area > thumbnailArea) {
+                thumbnailId = reference.fromItemId();
+                thumbnailArea = area;
+            }
+        }
+        return thumbnailId;
+    }
+
+    /**
+     * Returns the first item with the given MIME content type, or {@code null}.
+     *
+     * @param contentType The content type (e.g. {@code application/rdf+xml} for XMP).
+     */
+    @Nullable
+    public Item findMimeItem(final String contentType) {
+        for (final Item item : this.items) {
+            if ("mime".equals(item.type()) && contentType.equals(item.contentType())) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * An item info entry.
+     *
+     * @param id          The item ID.
+     * @param type        The item type (e.g. {@code hvc1}, {@code grid}, {@code mime}).
+     * @param name        The item name, possibly empty.
+     * @param contentType The MIME content type of {@code mime} items, or {@code null}.
+     * @param hidden      Whether the item is hidden (not intended to be displayed).
+     */
+    public record Item(int id,
+                       String type,
+                       String name,
+                       @Nullable String contentType,
+                       boolean hidden) {
+    }
+
+    /**
+     * An item location.
+     *
+     * @param constructionMethod 0 for file offsets, 1 for offsets in the {@code idat} box.
+     * @param baseOffset         The base offset of the extents.
+     * @param extents            The extents, to be concatenated.
+     */
+    public record ItemLocation(int constructionMethod,
+                               long baseOffset,
+                               List<Extent> extents) {
+    }
+
+    /**
+     * An item extent.
+     *
+     * @param offset The extent offset, relative to the base offset.
+     * @param length The extent length, or 0 for 'until the end of the file'.
+     */
+    public record Extent(long offset,
+                         long length) {
+    }
+
+    /**
+     * An item property.
+     *
+     * @param type    The property box type.
+     * @param content The property box payload, after the box header.
+     */
+    public record Property(String type,
+                           ByteBuffer content) {
+
+        @Override
+        public ByteBuffer content() {
+            return this.content.asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * An item reference.
+     *
+     * @param type       The reference type.
+     * @param fromItemId The referencing item ID.
+     * @param toItemIds  The referenced item IDs.
+     */
+    public record ItemReference(String type,
+                                int fromItemId,
+                                List<Integer> toItemIds) {
+    }
+}
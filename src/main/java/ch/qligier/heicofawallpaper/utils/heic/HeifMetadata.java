@@ -0,0 +1,71 @@
+package ch.qligier.heicofawallpaper.utils.heic;
+
+import ch.qligier.heicofawallpaper.exception.InvalidDynamicWallpaperException;
+import com.thebuzzmedia.exiftool.Tag;
+import com.thebuzzmedia.exiftool.core.StandardTag;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.Map;
+
+/**
+ * The metadata of a dynamic wallpaper file that are useful for this application.
+ *
+ * @param width          The image width.
+ * @param height         The image height.
+ * @param numberOfFrames The number of frames.
+ * @param solarBplist    The "apple_desktop:solar" base64-encoded bplist, or {@code null}.
+ * @param h24Bplist      The "apple_desktop:h24" base64-encoded bplist, or {@code null}.
+ * @param aprBplist      The "apple_desktop:apr" base64-encoded bplist, or {@code null}.
+ * @author Quentin Ligier
+ **/
+public record HeifMetadata(short width,
+                           short height,
+                           short numberOfFrames,
+                           @Nullable String solarBplist,
+                           @Nullable String h24Bplist,
+                           @Nullable String aprBplist) {
+
+    /**
+     * Builds the metadata from the tags extracted by exiftool.
+     *
+     * @param metadata The map of tag name and value.
+     * @return the typed metadata.
+     * @throws InvalidDynamicWallpaperException if the tags are inconsistent.
+     */
+    public static HeifMetadata fromExifTool(final Map<Tag, String> metadata) throws InvalidDynamicWallpaperException {
+        if (!metadata.containsKey(StandardTag.IMAGE_WIDTH) || !metadata.containsKey(StandardTag.IMAGE_HEIGHT)) {
+            throw new InvalidDynamicWallpaperException("The image size is missing");
+        }
+        final short width = Short.parseShort(metadata.get(StandardTag.IMAGE_WIDTH));
+        final short height = Short.parseShort(metadata.get(StandardTag.IMAGE_HEIGHT));
+
+        final short numberOfFrames;
+        if (metadata.containsKey(CustomTag.QUICKTIME_METAIMAGESIZE)) {
+            final String[] metaImageSizes = metadata.get(CustomTag.QUICKTIME_METAIMAGESIZE).split(" ");
+            if (metaImageSizes.length % 4 != 0) {
+                throw new InvalidDynamicWallpaperException("The MetaImageSize has a number of values not divisible by 4");
+            }
+            numberOfFrames = (short) (metaImageSizes.length / 4);
+            for (int i = 0; i < numberOfFrames; ) {
+                i = i + 2;
+                if (Short.parseShort(metaImageSizes[i]) != width) {
+                    throw new InvalidDynamicWallpaperException("One of the frame has a different width");
+                }
+                ++i;
+                if (Short.parseShort(metaImageSizes[i]) != height) {
+                    throw new InvalidDynamicWallpaperException("One of the frame has a different height");
+                }
+                ++i;
+            }
+        } else {
+            numberOfFrames = 0;
+        }
+
+        return new HeifMetadata(width,
+                                height,
+                                numberOfFrames,
+                                metadata.get(CustomTag.XMP_SOLAR),
+                                metadata.get(CustomTag.XMP_H24),
+                                metadata.get(CustomTag.XMP_APR));
+    }
+}
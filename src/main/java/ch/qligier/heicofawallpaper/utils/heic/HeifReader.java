@@ -0,0 +1,527 @@
+package ch.qligier.heicofawallpaper.utils.heic;
+
+import ch.qligier.heicofawallpaper.exception.InvalidDynamicWallpaperException;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A reader of HEIF files (ISO/IEC 23008-12), based on the ISO base media file format (ISO/IEC 14496-12). It only
+ * parses the boxes needed by the application ({@code ftyp}, {@code meta} and its children {@code pitm}, {@code iinf},
+ * {@code iloc}, {@code iref}, {@code iprp} and {@code idat}) and never decodes images.
+ * <p>
+ * The file is never read sequentially: the first {@value #PREFETCH_SIZE} bytes are read at once, as they usually
+ * contain the {@code ftyp} and {@code meta} boxes; the other top-level box headers are read positionally and their
+ * payloads (notably {@code mdat}) are skipped. Only the extents of the items that are explicitly requested, like the
+ * XMP packet, are read from the {@code mdat} box.
+ *
+ * @author Quentin Ligier
+ **/
+public class HeifReader {
+    private static final Logger LOG = Logger.getLogger("HeifReader");
+
+    /**
+     * The number of bytes read at once at the start of the file.
+     */
+    private static final int PREFETCH_SIZE = 16 * 1024;
+
+    /**
+     * The size above which a box is memory-mapped instead of being read in the heap. Mapping keeps the file locked on
+     * Windows until the buffer is garbage-collected, so it is reserved for unusually large boxes.
+     */
+    private static final int MAP_THRESHOLD = 512 * 1024;
+
+    /**
+     * The MIME content type of XMP items.
+     */
+    private static final String XMP_CONTENT_TYPE = "application/rdf+xml";
+
+    /**
+     * The maximum size of a {@code meta} box that is read in memory.
+     */
+    private static final int MAX_META_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The maximum size of the XMP item that is read in memory.
+     */
+    private static final int MAX_XMP_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The pattern of the Apple desktop properties in the XMP packet, either as attribute or as element.
+     */
+    private static final Pattern APPLE_DESKTOP_PATTERN = Pattern.compile(
+        "apple_desktop:(solar|h24|apr)\\s*(?:=\\s*\"([^\"]*)\"|>([^<]*)</apple_desktop:\\1>)");
+
+    /**
+     * This class is not instantiable.
+     */
+    private HeifReader() {
+    }
+
+    /**
+     * Reads the typed metadata of a dynamic wallpaper file.
+     *
+     * @param path The HEIF file path.
+     * @return the metadata needed to build the wallpaper definition.
+     * @throws IOException                      if the file can't be read.
+     * @throws InvalidDynamicWallpaperException if the file is not a valid HEIF file.
+     */
+    public static HeifMetadata readMetadata(final Path path) throws IOException, InvalidDynamicWallpaperException {
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final Source source = new Source(channel);
+            final HeifContainer container = readContainer(source);
+
+            final int[] primarySize = container.getImageSize(container.getPrimaryItemId());
+            if (primarySize == null) {
+                throw new InvalidDynamicWallpaperException("The primary item has no image size");
+            }
+            final List<Integer> masterImageIds = container.getMasterImageIds();
+            for (final int itemId : masterImageIds) {
+                final int[] size = container.getImageSize(itemId);
+                if (size == null || size[0] != primarySize[0] || size[1] != primarySize[1]) {
+                    throw new InvalidDynamicWallpaperException("One of the frame has a different size");
+                }
+            }
+
+            String solar = null;
+            String h24 = null;
+            String apr = null;
+            final HeifContainer.Item xmpItem = container.findMimeItem(XMP_CONTENT_TYPE);
+            if (xmpItem != null) {
+                final ByteBuffer xmpData = readItemData(source, container, xmpItem.id(), MAX_XMP_SIZE);
+                final String xmp = StandardCharsets.UTF_8.decode(xmpData).toString();
+                final Matcher matcher = APPLE_DESKTOP_PATTERN.matcher(xmp);
+                while (matcher.find()) {
+                    final String value = (matcher.group(2) != null ? matcher.group(2) : matcher.group(3))
+                        .replaceAll("\\s", "");
+                    switch (matcher.group(1)) {
+                        case "solar" -> solar = value;
+                        case "h24" -> h24 = value;
+                        case "apr" -> apr = value;
+                        default -> {
+                        }
+                    }
+                }
+            }
+
+            LOG.fine(() -> "Read " + source.getBytesRead() + " bytes out of " + source.getSize() + " in " + path);
+            return new HeifMetadata((short) primarySize[0],
+                                    (short) primarySize[1],
+                                    (short) masterImageIds.size(),
+                                    solar,
+                                    h24,
+                                    apr);
+        }
+    }
+
+    /**
+     * Reads the structure of a HEIF file.
+     *
+     * @param channel The channel of the HEIF file.
+     * @return the parsed container.
+     * @throws IOException                      if the file can't be read.
+     * @throws InvalidDynamicWallpaperException if the file is not a valid HEIF file.
+     */
+    public static HeifContainer readContainer(final FileChannel channel)
+        throws IOException, InvalidDynamicWallpaperException {
+        return readContainer(new Source(channel));
+    }
+
+    private static HeifContainer readContainer(final Source source)
+        throws IOException, InvalidDynamicWallpaperException {
+        final long fileSize = source.getSize();
+        String majorBrand = null;
+        long position = 0;
+        while (position + 8 <= fileSize) {
+            final ByteBuffer header = source.read(position, (int) Math.min(16, fileSize - position));
+            long size = header.getInt() & 0xFFFF_FFFFL;
+            final String type = readFourCc(header);
+            int headerSize = 8;
+            if (size == 1) {
+                if (header.remaining() < 8) {
+                    throw new InvalidDynamicWallpaperException("The box '" + type + "' is truncated");
+                }
+                size = header.getLong();
+                headerSize = 16;
+            } else if (size == 0) {
+                size = fileSize - position;
+            }
+            if (size < headerSize || position + size > fileSize) {
+                throw new InvalidDynamicWallpaperException("The box '" + type + "' has an invalid size");
+            }
+
+            if ("ftyp".equals(type)) {
+                if (size - headerSize < 4) {
+                    throw new InvalidDynamicWallpaperException("The 'ftyp' box is truncated");
+                }
+                majorBrand = readFourCc(source.read(position + headerSize, 4));
+            } else if ("meta".equals(type)) {
+                if (majorBrand == null) {
+                    throw new InvalidDynamicWallpaperException("The file has no 'ftyp' box");
+                }
+                if (size - headerSize > MAX_META_SIZE) {
+                    throw new InvalidDynamicWallpaperException("The 'meta' box is too large");
+                }
+                return parseMeta(majorBrand, source.read(position + headerSize, (int) (size - headerSize)));
+            }
+            // Other boxes, including 'mdat', are skipped without being read
+            position += size;
+        }
+        throw new InvalidDynamicWallpaperException("The file has no 'meta' box");
+    }
+
+    /**
+     * Reads the data of an item, by concatenating its extents.
+     *
+     * @param channel   The channel of the HEIF file.
+     * @param container The parsed container.
+     * @param itemId    The item ID.
+     * @param maxSize   The maximum data size.
+     * @return the item data.
+     * @throws IOException                      if the file can't be read.
+     * @throws InvalidDynamicWallpaperException if the item has no valid location.
+     */
+    public static ByteBuffer readItemData(final FileChannel channel,
+                                          final HeifContainer container,
+                                          final int itemId,
+                                          final int maxSize) throws IOException, InvalidDynamicWallpaperException {
+        return readItemData(new Source(channel), container, itemId, maxSize);
+    }
+
+    private static ByteBuffer readItemData(final Source source,
+                                           final HeifContainer container,
+                                           final int itemId,
+                                           final int maxSize) throws IOException, InvalidDynamicWallpaperException {
+        final HeifContainer.ItemLocation location = container.getLocation(itemId);
+        if (location == null) {
+            throw new InvalidDynamicWallpaperException("The item " + itemId + " has no location");
+        }
+        final ByteBuffer idat = container.getItemData();
+        final long sourceSize = switch (location.constructionMethod()) {
+            case 0 -> source.getSize();
+            case 1 -> {
+                if (idat == null) {
+                    throw new InvalidDynamicWallpaperException("The item " + itemId + " is in a missing 'idat'");
+                }
+                yield idat.remaining();
+            }
+            default -> throw new InvalidDynamicWallpaperException("The construction method of item " + itemId
+                                                                      + " is not supported");
+        };
+
+        long totalLength = 0;
+        for (final HeifContainer.Extent extent : location.extents()) {
+            final long offset = location.baseOffset() + extent.offset();
+            final long length = extent.length() == 0 ? sourceSize - offset : extent.length();
+            if (offset < 0 || length < 0 || offset + length > sourceSize) {
+                throw new InvalidDynamicWallpaperException("The item " + itemId + " has an invalid extent");
+            }
+            totalLength += length;
+        }
+        if (totalLength > maxSize) {
+            throw new InvalidDynamicWallpaperException("The item " + itemId + " is too large");
+        }
+
+        final ByteBuffer data = ByteBuffer.allocate((int) totalLength);
+        for (final HeifContainer.Extent extent : location.extents()) {
+            final long offset = location.baseOffset() + extent.offset();
+            final long length = extent.length() == 0 ? sourceSize - offset : extent.length();
+            if (location.constructionMethod() == 0) {
+                data.put(source.read(offset, (int) length));
+            } else {
+                data.put(idat.slice(idat.position() + (int) offset, (int) length));
+            }
+        }
+        data.flip();
+        return data;
+    }
+
+    /**
+     * Parses the payload of the {@code meta} box.
+     */
+    private static HeifContainer parseMeta(final String majorBrand,
+                                           final ByteBuffer meta) throws InvalidDynamicWallpaperException {
+        // FullBox header
+        skipFullBoxHeader(meta);
+
+        int primaryItemId = -1;
+        final List<HeifContainer.Item> items = new ArrayList<>(64);
+        final Map<Integer, HeifContainer.ItemLocation> locations = new HashMap<>(64);
+        final List<HeifContainer.Property> properties = new ArrayList<>(64);
+        final Map<Integer, List<Integer>> associations = new HashMap<>(64);
+        final List<HeifContainer.ItemReference> references = new ArrayList<>(64);
+        ByteBuffer itemData = null;
+
+        try {
+            while (meta.remaining() >= 8) {
+                final Box box = nextBox(meta);
+                switch (box.type()) {
+                    case "pitm" -> {
+                        final int version = box.payload().get() & 0xFF;
+                        box.payload().position(box.payload().position() + 3);
+                        primaryItemId = readId(box.payload(), version == 0);
+                    }
+                    case "iinf" -> parseItemInfos(box.payload(), items);
+                    case "iloc" -> parseItemLocations(box.payload(), locations);
+                    case "iref" -> parseItemReferences(box.payload(), references);
+                    case "iprp" -> parseItemProperties(box.payload(), properties, associations);
+                    case "idat" -> itemData = box.payload();
+                    default -> {
+                    }
+                }
+            }
+        } catch (final RuntimeException exception) {
+            // Buffer underflows and the like
+            throw new InvalidDynamicWallpaperException("The 'meta' box is invalid", exception);
+        }
+
+        if (primaryItemId < 0) {
+            throw new InvalidDynamicWallpaperException("The file has no primary item");
+        }
+        return new HeifContainer(majorBrand, primaryItemId, items, locations, properties, associations, references,
+                                 itemData);
+    }
+
+    private static void parseItemInfos(final ByteBuffer iinf,
+                                       final List<HeifContainer.Item> items) {
+        final int version = iinf.get() & 0xFF;
+        iinf.position(iinf.position() + 3);
+        final long entryCount = version == 0 ? (iinf.getShort() & 0xFFFF) : (iinf.getInt() & 0xFFFF_FFFFL);
+        for (long i = 0; i < entryCount && iinf.remaining() >= 8; ++i) {
+            final Box infe = nextBox(iinf);
+            if (!"infe".equals(infe.type())) {
+                continue;
+            }
+            final ByteBuffer payload = infe.payload();
+            final int infeVersion = payload.get() & 0xFF;
+            final int flags = ((payload.get() & 0xFF) << 16) | ((payload.get() & 0xFF) << 8) | (payload.get() & 0xFF);
+            final boolean hidden = (flags & 1) != 0;
+            if (infeVersion >= 2) {
+                final int itemId = readId(payload, infeVersion == 2);
+                payload.getShort(); // item_protection_index
+                final String itemType = readFourCc(payload);
+                final String itemName = readString(payload);
+                final String contentType = "mime".equals(itemType) ? readString(payload) : null;
+                items.add(new HeifContainer.Item(itemId, itemType, itemName, contentType, hidden));
+            } else {
+                final int itemId = payload.getShort() & 0xFFFF;
+                payload.getShort(); // item_protection_index
+                final String itemName = readString(payload);
+                final String contentType = readString(payload);
+                items.add(new HeifContainer.Item(itemId, "mime", itemName, contentType, hidden));
+            }
+        }
+    }
+
+    private static void parseItemLocations(final ByteBuffer iloc,
+                                           final Map<Integer, HeifContainer.ItemLocation> locations) {
+        final int version = iloc.get() & 0xFF;
+        iloc.position(iloc.position() + 3);
+        final int sizes = iloc.getShort() & 0xFFFF;
+        final int offsetSize = (sizes >> 12) & 0xF;
+        final int lengthSize = (sizes >> 8) & 0xF;
+        final int baseOffsetSize = (sizes >> 4) & 0xF;
+        final int indexSize = (version == 1 || version == 2) ? sizes & 0xF : 0;
+        final long itemCount = version < 2 ? (iloc.getShort() & 0xFFFF) : (iloc.getInt() & 0xFFFF_FFFFL);
+        for (long i = 0; i < itemCount; ++i) {
+            final int itemId = readId(iloc, version < 2);
+            final int constructionMethod = (version == 1 || version == 2) ? iloc.getShort() & 0xF : 0;
+            iloc.getShort(); // data_reference_index
+            final long baseOffset = readUnsigned(iloc, baseOffsetSize);
+            final int extentCount = iloc.getShort() & 0xFFFF;
+            final List<HeifContainer.Extent> extents = new ArrayList<>(extentCount);
+            for (int j = 0; j < extentCount; ++j) {
+                readUnsigned(iloc, indexSize); // extent_index
+                final long offset = readUnsigned(iloc, offsetSize);
+                final long length = readUnsigned(iloc, lengthSize);
+                extents.add(new HeifContainer.Extent(offset, length));
+            }
+            locations.put(itemId, new HeifContainer.ItemLocation(constructionMethod, baseOffset, extents));
+        }
+    }
+
+    private static void parseItemReferences(final ByteBuffer iref,
+                                            final List<HeifContainer.ItemReference> references) {
+        final int version = iref.get() & 0xFF;
+        iref.position(iref.position() + 3);
+        while (iref.remaining() >= 8) {
+            final Box reference = nextBox(iref);
+            final ByteBuffer payload = reference.payload();
+            final int fromItemId = readId(payload, version == 0);
+            final int referenceCount = payload.getShort() & 0xFFFF;
+            final List<Integer> toItemIds = new ArrayList<>(referenceCount);
+            for (int i = 0; i < referenceCount; ++i) {
+                toItemIds.add(readId(payload, version == 0));
+            }
+            references.add(new HeifContainer.ItemReference(reference.type(), fromItemId, toItemIds));
+        }
+    }
+
+    private static void parseItemProperties(final ByteBuffer iprp,
+                                            final List<HeifContainer.Property> properties,
+                                            final Map<Integer, List<Integer>> associations) {
+        while (iprp.remaining() >= 8) {
+            final Box box = nextBox(iprp);
+            final ByteBuffer payload = box.payload();
+            if ("ipco".equals(box.type())) {
+                while (payload.remaining() >= 8) {
+                    final Box property = nextBox(payload);
+                    properties.add(new HeifContainer.Property(property.type(), property.payload()));
+                }
+            } else if ("ipma".equals(box.type())) {
+                final int version = payload.get() & 0xFF;
+                final int flags = ((payload.get() & 0xFF) << 16) | ((payload.get() & 0xFF) << 8)
+                    | (payload.get() & 0xFF);
+                final long entryCount = payload.getInt() & 0xFFFF_FFFFL;
+                for (long i = 0; i < entryCount; ++i) {
+                    final int itemId = readId(payload, version < 1);
+                    final int associationCount = payload.get() & 0xFF;
+                    final List<Integer> indexes = associations.computeIfAbsent(itemId, id -> new ArrayList<>(4));
+                    for (int j = 0; j < associationCount; ++j) {
+                        // The essential bit is followed by a 1-based property index; 0 means no property
+                        final int index = (flags & 1) != 0 ? payload.getShort() & 0x7FFF : payload.get() & 0x7F;
+                        if (index > 0) {
+                            indexes.add(index - 1);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the next child box of a parent box payload, and advances the parent position after it.
+     */
+    private static Box nextBox(final ByteBuffer parent) {
+        final int start = parent.position();
+        long size = parent.getInt() & 0xFFFF_FFFFL;
+        final String type = readFourCc(parent);
+        if (size == 1) {
+            size = parent.getLong();
+        } else if (size == 0) {
+            size = parent.limit() - start;
+        }
+        final int payloadStart = parent.position();
+        if (size < payloadStart - start || start + size > parent.limit()) {
+            throw new IllegalStateException("The box '" + type + "' has an invalid size");
+        }
+        final int end = (int) (start + size);
+        final ByteBuffer payload = parent.slice(payloadStart, end - payloadStart);
+        parent.position(end);
+        return new Box(type, payload);
+    }
+
+    private static void skipFullBoxHeader(final ByteBuffer buffer) {
+        buffer.position(buffer.position() + 4);
+    }
+
+    private static int readId(final ByteBuffer buffer, final boolean isShort) {
+        return isShort ? buffer.getShort() & 0xFFFF : buffer.getInt();
+    }
+
+    private static long readUnsigned(final ByteBuffer buffer, final int size) {
+        return switch (size) {
+            case 0 -> 0;
+            case 4 -> buffer.getInt() & 0xFFFF_FFFFL;
+            case 8 -> buffer.getLong();
+            default -> throw new IllegalStateException("Invalid field size: " + size);
+        };
+    }
+
+    private static String readFourCc(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[4];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Reads a null-terminated UTF-8 string. A missing terminator at the end of the buffer is tolerated.
+     */
+    private static String readString(final ByteBuffer buffer) {
+        final int start = buffer.position();
+        int end = start;
+        while (end < buffer.limit() && buffer.get(end) != 0) {
+            ++end;
+        }
+        final String value = StandardCharsets.UTF_8.decode(buffer.slice(start, end - start)).toString();
+        buffer.position(Math.min(end + 1, buffer.limit()));
+        return value;
+    }
+
+    private static void readFully(final FileChannel channel,
+                                  final ByteBuffer buffer,
+                                  long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * A positional reader of a HEIF file. Reads at the start of the file are served from a prefetched window, and the
+     * number of bytes read from the file is counted.
+     */
+    private static final class Source {
+        private final FileChannel channel;
+        private final long size;
+        private final ByteBuffer window;
+        private long bytesRead;
+
+        private Source(final FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+            this.window = ByteBuffer.allocate((int) Math.min(PREFETCH_SIZE, this.size));
+            readFully(channel, this.window, 0);
+            this.window.flip();
+            this.bytesRead = this.window.limit();
+        }
+
+        /**
+         * Returns {@code length} bytes of the file, starting at {@code position}. The returned buffer may be a view of
+         * the prefetched window or a memory-mapped region; it must not be modified.
+         */
+        private ByteBuffer read(final long position, final int length) throws IOException {
+            if (position + length <= this.window.limit()) {
+                return this.window.slice((int) position, length);
+            }
+            this.bytesRead += length;
+            if (length >= MAP_THRESHOLD) {
+                return this.channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            }
+            final ByteBuffer buffer = ByteBuffer.allocate(length);
+            readFully(this.channel, buffer, position);
+            buffer.flip();
+            return buffer;
+        }
+
+        private long getSize() {
+            return this.size;
+        }
+
+        private long getBytesRead() {
+            return this.bytesRead;
+        }
+    }
+
+    /**
+     * A box, with its type and payload (content after the box header).
+     */
+    private record Box(String type,
+                       ByteBuffer payload) {
+    }
+}
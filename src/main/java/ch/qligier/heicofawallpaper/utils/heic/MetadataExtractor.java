@@ -1,5 +1,6 @@
 package ch.qligier.heicofawallpaper.utils.heic;
 
+import ch.qligier.heicofawallpaper.exception.InvalidDynamicWallpaperException;
 import com.thebuzzmedia.exiftool.ExifTool;
 import com.thebuzzmedia.exiftool.ExifToolBuilder;
 import com.thebuzzmedia.exiftool.Tag;
@@ -8,15 +9,39 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.io.File;
 import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
 
 /**
  * The extractor of metadata for dynamic wallpaper files. It only extracts useful metadata for this application.
+ * <p>
+ * The metadata are read in-process by the {@link HeifReader}. ExifTool is only used as a fallback, for files that the
+ * reader can't parse; its pool is started on the first fallback if it has not been started before.
+ * <p>
+ * Folder scans should use the batch method {@link #getMetadata(Collection)}: the files are read in-process one after
+ * the other, and the files that need ExifTool are dispatched concurrently to the whole pool instead of waiting for
+ * each other.
+ * <p>
+ * The ExifTool pool is long-lived: it's sized from the number of cores, is reused across scans and is only closed
+ * after having been idle for the configured idle timeout. It's restarted transparently on the next fallback; no
+ * process is spawned for a library that the reader parses entirely.
  *
  * @author Quentin Ligier
  **/
 public class MetadataExtractor {
+    private static final Logger LOG = Logger.getLogger("MetadataExtractor");
+
+    /**
+     * The default idle period after which the ExifTool pool is closed.
+     */
+    public static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofMinutes(5);
 
     /**
      * The list of useful tags to extract.
@@ -29,36 +54,127 @@ public class MetadataExtractor {
                                                               StandardTag.IMAGE_HEIGHT
     );
 
+    /**
+     * The number of ExifTool processes in the pool.
+     */
+    private final int poolSize;
+
+    /**
+     * The permits of the pool, one per ExifTool process. A caller holds a permit for the duration of its call, which
+     * allows measuring the time spent waiting for a free process.
+     */
+    private final Semaphore permits;
+
+    /**
+     * The threads that call ExifTool for the batches, one per ExifTool process.
+     */
+    private final ExecutorService callerExecutor;
+
+    /**
+     * The scheduler of the idle eviction.
+     */
+    private final ScheduledExecutorService evictionScheduler;
+
     /**
      * The ExifTool interface, {@code null} when it has not been started.
      */
     @Nullable
     private ExifTool exifTool;
 
+    /**
+     * The idle eviction task, {@code null} when the pool has not been started.
+     */
+    @Nullable
+    private ScheduledFuture<?> evictionTask;
+
+    /**
+     * The idle period after which the ExifTool pool is closed.
+     */
+    private volatile Duration idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    /**
+     * The time (from {@link System#nanoTime()}) at which the pool has been used for the last time.
+     */
+    private volatile long lastUsedNanos = System.nanoTime();
+
+    /**
+     * The time (from {@link System#nanoTime()}) at which the pool has been started.
+     */
+    private volatile long startedNanos = System.nanoTime();
+
+    // Metrics of the ExifTool calls
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder busyNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * Constructor, with a pool size derived from the number of available cores.
+     */
+    public MetadataExtractor() {
+        this(Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors() / 2)));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param poolSize The number of ExifTool processes in the pool.
+     */
+    public MetadataExtractor(final int poolSize) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("The pool size shall be positive");
+        }
+        this.poolSize = poolSize;
+        this.permits = new Semaphore(poolSize, true);
+        this.callerExecutor = Executors.newFixedThreadPool(poolSize, runnable -> {
+            final Thread thread = new Thread(runnable, "MetadataExtractor-caller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.evictionScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "MetadataExtractor-eviction");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
     /**
      * Creates a pool of ExifTool services.
      */
-    public void start() {
+    public synchronized void start() {
+        if (this.exifTool != null) {
+            return;
+        }
         this.exifTool = new ExifToolBuilder()
             .enableStayOpen()
-            .withPoolSize(8)
+            .withPoolSize(this.poolSize)
             .build();
+        this.startedNanos = System.nanoTime();
+        this.lastUsedNanos = this.startedNanos;
+        this.busyNanos.reset();
+        this.scheduleEviction();
+        LOG.info(() -> "Started the ExifTool pool with " + this.poolSize + " processes");
     }
 
     /**
      * Clears a pool of ExifTool services.
      */
-    public void close() {
+    public synchronized void close() {
+        if (this.evictionTask != null) {
+            this.evictionTask.cancel(false);
+            this.evictionTask = null;
+        }
         if (this.exifTool == null) {
             return;
         }
         try {
             this.exifTool.close();
         } catch (final Exception exception) {
-            // Log that failure
+            LOG.warning(() -> "Unable to close the ExifTool pool: " + exception);
         } finally {
             this.exifTool = null;
         }
+        LOG.info(() -> "Closed the ExifTool pool: " + this.getPoolMetrics());
     }
 
     /**
@@ -69,16 +185,203 @@ public class MetadataExtractor {
     }
 
     /**
-     * Gets a list of useful metadata of a HEIF file.
+     * Sets the idle period after which the ExifTool pool is closed. It's taken into account at the next start of the
+     * pool.
+     *
+     * @param idleTimeout The idle period.
+     */
+    public void setIdleTimeout(final Duration idleTimeout) {
+        if (idleTimeout.isNegative() || idleTimeout.isZero()) {
+            throw new IllegalArgumentException("The idle timeout shall be positive");
+        }
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Returns the current metrics of the ExifTool pool.
+     */
+    public PoolMetrics getPoolMetrics() {
+        final long totalCalls = this.calls.sum();
+        final long uptimeNanos = Math.max(1, System.nanoTime() - this.startedNanos);
+        return new PoolMetrics(this.poolSize,
+                               this.poolSize - this.permits.availablePermits(),
+                               totalCalls,
+                               totalCalls == 0 ? 0 : this.waitNanos.sum() / 1_000_000.0 / totalCalls,
+                               this.maxWaitNanos.get() / 1_000_000.0,
+                               this.isStarted() ? (double) this.busyNanos.sum() / uptimeNanos / this.poolSize : 0);
+    }
+
+    /**
+     * Gets the useful metadata of a HEIF file.
+     *
+     * @param imageFile The HEIF file.
+     * @return the typed metadata.
+     * @throws IOException                      if something bad happens during I/O operations.
+     * @throws InvalidDynamicWallpaperException if the metadata are inconsistent.
+     */
+    public HeifMetadata getMetadata(final File imageFile) throws IOException, InvalidDynamicWallpaperException {
+        try {
+            return HeifReader.readMetadata(imageFile.toPath());
+        } catch (final IOException | InvalidDynamicWallpaperException exception) {
+            LOG.info(() -> "Falling back to ExifTool for '" + imageFile + "': " + exception.getMessage());
+        }
+        return HeifMetadata.fromExifTool(this.getExifToolMetadata(imageFile));
+    }
+
+    /**
+     * Gets the useful metadata of a batch of HEIF files. A failure on one file does not prevent the others from being
+     * read, it's reported in the file result.
+     *
+     * @param imageFiles The HEIF files.
+     * @return the results, in the iteration order of {@code imageFiles}.
+     */
+    public List<Result> getMetadata(final Collection<File> imageFiles) {
+        final long start = System.nanoTime();
+        final List<Result> results = new ArrayList<>(imageFiles.size());
+        final List<Integer> fallbackIndexes = new ArrayList<>(4);
+        for (final File imageFile : imageFiles) {
+            try {
+                results.add(new Result(imageFile, HeifReader.readMetadata(imageFile.toPath()), null));
+            } catch (final IOException | InvalidDynamicWallpaperException exception) {
+                LOG.info(() -> "Falling back to ExifTool for '" + imageFile + "': " + exception.getMessage());
+                fallbackIndexes.add(results.size());
+                results.add(new Result(imageFile, null, exception));
+            }
+        }
+
+        final List<Future<HeifMetadata>> futures = new ArrayList<>(fallbackIndexes.size());
+        for (final int index : fallbackIndexes) {
+            final File imageFile = results.get(index).file();
+            futures.add(this.callerExecutor.submit(() -> HeifMetadata.fromExifTool(this.getExifToolMetadata(imageFile))));
+        }
+        for (int i = 0; i < fallbackIndexes.size(); ++i) {
+            final int index = fallbackIndexes.get(i);
+            final File imageFile = results.get(index).file();
+            try {
+                results.set(index, new Result(imageFile, futures.get(i).get(), null));
+            } catch (final ExecutionException exception) {
+                results.set(index, new Result(imageFile,
+                                              null,
+                                              exception.getCause() instanceof final Exception cause
+                                                  ? cause : exception));
+            } catch (final InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                futures.forEach(future -> future.cancel(true));
+                break;
+            }
+        }
+
+        final long durationMs = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+        LOG.info(() -> String.format("Read the metadata of %d files in %d ms (%.1f files/s, %d with ExifTool)",
+                                     results.size(),
+                                     durationMs,
+                                     results.size() * 1000.0 / durationMs,
+                                     fallbackIndexes.size()));
+        if (!fallbackIndexes.isEmpty()) {
+            LOG.info(() -> "ExifTool pool: " + this.getPoolMetrics());
+        }
+        return results;
+    }
+
+    /**
+     * Gets the list of useful tags of a HEIF file with ExifTool.
      *
      * @param imageFile The HEIF file.
      * @return a map of tag name and value.
      * @throws IOException if something bad happens during I/O operations.
      */
-    public Map<Tag, String> getMetadata(final File imageFile) throws IOException {
-        if (this.exifTool == null) {
-            throw new RuntimeException("Exiftool is not running");
+    public Map<Tag, String> getExifToolMetadata(final File imageFile) throws IOException {
+        final long waitStart = System.nanoTime();
+        try {
+            this.permits.acquire();
+        } catch (final InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for an ExifTool process", exception);
+        }
+        final long callStart = System.nanoTime();
+        try {
+            this.waitNanos.add(callStart - waitStart);
+            this.maxWaitNanos.accumulateAndGet(callStart - waitStart, Math::max);
+            // The permit is held, so the idle eviction can't close the pool before the call
+            final ExifTool runningExifTool;
+            synchronized (this) {
+                if (this.exifTool == null) {
+                    this.start();
+                }
+                runningExifTool = this.exifTool;
+            }
+            return runningExifTool.getImageMeta(imageFile, TAGS_OF_INTEREST);
+        } finally {
+            final long callEnd = System.nanoTime();
+            this.calls.increment();
+            this.busyNanos.add(callEnd - callStart);
+            this.lastUsedNanos = callEnd;
+            this.permits.release();
+        }
+    }
+
+    /**
+     * Schedules the periodic check of the idle eviction. Must be called with the lock held.
+     */
+    private void scheduleEviction() {
+        final long periodMs = Math.max(1000, this.idleTimeout.toMillis() / 4);
+        this.evictionTask = this.evictionScheduler.scheduleAtFixedRate(this::evictIfIdle,
+                                                                       periodMs,
+                                                                       periodMs,
+                                                                       TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes the ExifTool pool if no process is in use and the pool has been idle for the idle timeout.
+     */
+    private synchronized void evictIfIdle() {
+        if (this.exifTool == null || this.permits.availablePermits() != this.poolSize) {
+            return;
+        }
+        if (System.nanoTime() - this.lastUsedNanos >= this.idleTimeout.toNanos()) {
+            LOG.info("Closing the idle ExifTool pool");
+            this.close();
+        }
+    }
+
+    /**
+     * The metadata extraction result of a file in a batch.
+     *
+     * @param file      The HEIF file.
+     * @param metadata  The metadata, or {@code null} if the extraction has failed.
+     * @param exception The cause of the failure, or {@code null} if the extraction has succeeded.
+     */
+    public record Result(File file,
+                         @Nullable HeifMetadata metadata,
+                         @Nullable Exception exception) {
+    }
+
+    /**
+     * The metrics of the ExifTool pool.
+     *
+     * @param poolSize      The number of ExifTool processes in the pool.
+     * @param activeCalls   The number of calls in progress.
+     * @param totalCalls    The number of calls since the creation of the extractor.
+     * @param averageWaitMs The average time spent waiting for a free process, in milliseconds.
+     * @param maxWaitMs     The maximum time spent waiting for a free process, in milliseconds.
+     * @param utilisation   The share of the pool capacity that has been busy since the pool start, from 0 to 1.
+     */
+    public record PoolMetrics(int poolSize,
+                              int activeCalls,
+                              long totalCalls,
+                              double averageWaitMs,
+                              double maxWaitMs,
+                              double utilisation) {
+
+        @Override
+        public String toString() {
+            return String.format("%d/%d busy, %d calls, %.1f ms average wait, %.1f ms max wait, %.0f%% utilisation",
+                                 this.activeCalls,
+                                 this.poolSize,
+                                 this.totalCalls,
+                                 this.averageWaitMs,
+                                 this.maxWaitMs,
+                                 this.utilisation * 100);
         }
-        return this.exifTool.getImageMeta(imageFile, TAGS_OF_INTEREST);
     }
 }
@@ -2,12 +2,22 @@ package ch.qligier.heicofawallpaper.utils.heic;
 
 import ch.qligier.heicofawallpaper.model.DynWallDefinition;
 import ch.qligier.heicofawallpaper.service.FileSystemService;
+import ch.qligier.heicofawallpaper.utils.image.Compositor;
+import ch.qligier.heicofawallpaper.utils.image.RasterPool;
+import ch.qligier.heicofawallpaper.utils.image.Resampler;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.IntFunction;
 import java.util.logging.Logger;
 
 /**
@@ -30,102 +40,262 @@ public class PreviewGenerator {
     private static final short MAX_FRAMES = 6;
 
 
+    /**
+     * Generates the preview of a wallpaper from its extracted frames: the first frame is shown entirely, and each next
+     * frame (up to {@link #MAX_FRAMES}) covers a diagonal strip on the right of the previous one.
+     * <p>
+     * The frames are never decoded at full resolution: they are decoded with a source subsampling that gives roughly
+     * twice the preview resolution, and only within the bounding box of their visible strip.
+     *
+     * @param wallpaper The wallpaper definition.
+     * @return the preview image, of {@link #WIDTH}x{@link #HEIGHT} pixels.
+     * @throws IOException if a frame can't be read.
+     */
     public static BufferedImage generate(final DynWallDefinition wallpaper) throws IOException {
-        final Path cacheDirectory = FileSystemService.getDataPath().resolve(wallpaper.fileHash());
-
-        // All calcules are made with the original size of the wallpaper. Resizing is done at the end
-        final float wallpaperRatio = (float) wallpaper.width() / wallpaper.height();
-        final float previewRatio = (float) WIDTH / HEIGHT;
-        final short minX;
-        final short maxX;
-        final short minY;
-        final short maxY;
-        final short croppedWidth;
-        final short croppedHeight;
-        if (wallpaperRatio == previewRatio) {
-            croppedWidth = wallpaper.width();
-            croppedHeight = wallpaper.height();
-            minX = 0;
-            maxX = (short) (wallpaper.width() - 1);
-            minY = 0;
-            maxY = (short) (wallpaper.height() - 1);
-        } else if (wallpaperRatio > previewRatio) {
-            croppedWidth = (short) Math.round(previewRatio * wallpaper.height());
-            croppedHeight = wallpaper.height();
-            minX = (short) Math.round((float) (wallpaper.width() - croppedWidth) / 2);
-            maxX = (short) (minX + croppedWidth);
-            minY = 0;
-            maxY = (short) (wallpaper.height() - 1);
-        } else {
-            croppedWidth = wallpaper.width();
-            croppedHeight = (short) Math.round(wallpaper.width() / previewRatio);
-            minX = 0;
-            maxX = (short) (wallpaper.width() - 1);
-            minY = (short) Math.round((float) (wallpaper.height() - croppedHeight) / 2);
-            maxY = (short) (minY + croppedHeight);
+        return generate(wallpaper, FileSystemService.getDataPath().resolve(wallpaper.fileHash()));
+    }
+
+    /**
+     * Generates the preview of a wallpaper from the frames of a cache directory.
+     * <p>
+     * The frames are decoded directly into pooled {@code int[]} rasters, composed with row copies and downscaled with
+     * the {@link Resampler}; no intermediate image is allocated.
+     *
+     * @param wallpaper      The wallpaper definition.
+     * @param cacheDirectory The cache directory that contains the extracted frames.
+     * @return the preview image, of {@link #WIDTH}x{@link #HEIGHT} pixels.
+     * @throws IOException if a frame can't be read.
+     */
+    public static BufferedImage generate(final DynWallDefinition wallpaper,
+                                         final Path cacheDirectory) throws IOException {
+        return generate(wallpaper.width(),
+                        wallpaper.height(),
+                        wallpaper.numberOfFrames(),
+                        frameIndex -> cacheDirectory.resolve(String.format(FileSystemService.FRAME_FILE_NAME_FORMAT,
+                                                                           frameIndex)));
+    }
+
+    /**
+     * Generates the preview of a wallpaper from its embedded thumbnails, before its frames are extracted. The frames
+     * without thumbnail are left out of the preview.
+     *
+     * @param wallpaper  The wallpaper definition.
+     * @param thumbnails The thumbnail files, keyed by frame index. The first frame shall have a thumbnail.
+     * @return the preview image, of {@link #WIDTH}x{@link #HEIGHT} pixels.
+     * @throws IOException if a thumbnail can't be read.
+     * @see ThumbnailExtractor
+     */
+    public static BufferedImage generateFromThumbnails(final DynWallDefinition wallpaper,
+                                                       final Map<Integer, Path> thumbnails) throws IOException {
+        final Path firstThumbnail = thumbnails.get(0);
+        if (firstThumbnail == null) {
+            throw new IOException("The first frame of " + wallpaper.filename() + " has no thumbnail");
         }
+        final Dimension size = readSize(firstThumbnail);
+        return generate((short) size.width, (short) size.height, wallpaper.numberOfFrames(), thumbnails::get);
+    }
 
-        final short effectiveFrameNumber = (short) Math.min(wallpaper.numberOfFrames(), MAX_FRAMES);
-        final short frameWidth = (short) Math.round((1. / effectiveFrameNumber) * croppedWidth);
-        final short boundaryDeltaX = (short) Math.round(0.08 * croppedWidth);
-
-        // Frame 0: copy the whole image
-        final BufferedImage preview = loadFrame((short) 0, cacheDirectory);
-
-        // For the next frames, copy only part of the image
-        for (short frameIndex = 1; frameIndex < effectiveFrameNumber; ++frameIndex) {
-            final Graphics2D graphics = preview.createGraphics();
-            final BufferedImage frame = loadFrame(frameIndex, cacheDirectory);
-
-            final short boundaryX = (short) (frameIndex * frameWidth + minX);
-            final Shape shape = new Polygon(new int[]{boundaryX + boundaryDeltaX, boundaryX - boundaryDeltaX, maxX,
-                maxX},
-                                            new int[]{minY, maxY, maxY, minY},
-                                            4);
-            graphics.setClip(shape);
-            graphics.drawImage(frame, 0, 0, null);
-            graphics.dispose();
+    /**
+     * Generates a preview from frame images.
+     *
+     * @param width          The frame width.
+     * @param height         The frame height.
+     * @param numberOfFrames The number of frames of the wallpaper.
+     * @param framePaths     The provider of the frame image paths; it may return {@code null} for the frames that
+     *                       are to be left out, except the first one.
+     */
+    private static BufferedImage generate(final short width,
+                                          final short height,
+                                          final short numberOfFrames,
+                                          final IntFunction<@Nullable Path> framePaths) throws IOException {
+        final Crop crop = Crop.of(width, height);
+        final short minX = crop.minX();
+        final short minY = crop.minY();
+        final short croppedWidth = crop.width();
+        final short croppedHeight = crop.height();
+        final int maxX = minX + croppedWidth;
+
+        // The frames are composed on a canvas of the cropped region, at the subsampled resolution
+        final int subsampling = crop.getSubsampling();
+        final int canvasWidth = crop.getCanvasWidth();
+        final int canvasHeight = crop.getCanvasHeight();
+        final RasterPool pool = RasterPool.shared();
+        final int[] canvas = pool.acquire(canvasWidth * canvasHeight);
+        final int[] layer = pool.acquire(canvasWidth * canvasHeight);
+        try {
+            final BufferedImage canvasImage = RasterPool.wrap(canvas, canvasWidth, canvasHeight);
+            final BufferedImage layerImage = RasterPool.wrap(layer, canvasWidth, canvasHeight);
+
+            final short effectiveFrameNumber = (short) Math.min(numberOfFrames, MAX_FRAMES);
+            final short frameWidth = (short) Math.round((1. / effectiveFrameNumber) * croppedWidth);
+            final short boundaryDeltaX = (short) Math.round(0.08 * croppedWidth);
+
+            // The first frame is decoded directly in the canvas
+            final Path firstFrame = framePaths.apply(0);
+            if (firstFrame == null) {
+                throw new IOException("The first frame is missing");
+            }
+            loadFrame(firstFrame,
+                      new Rectangle(minX, minY, croppedWidth, croppedHeight),
+                      subsampling,
+                      canvasImage);
+
+            for (short frameIndex = 1; frameIndex < effectiveFrameNumber; ++frameIndex) {
+                final Path framePath = framePaths.apply(frameIndex);
+                if (framePath == null) {
+                    continue;
+                }
+                // The visible strip of the frame is between its boundary and the boundary of the next frame, which
+                // covers the rest
+                final int boundaryX = frameIndex * frameWidth + minX;
+                final int regionMinX = Math.max(minX, boundaryX - boundaryDeltaX);
+                final int regionMaxX = (frameIndex == effectiveFrameNumber - 1)
+                    ? maxX : Math.min(maxX, boundaryX + frameWidth + boundaryDeltaX);
+                final Rectangle region = new Rectangle(regionMinX, minY, regionMaxX - regionMinX, croppedHeight);
+                final Dimension decoded = loadFrame(framePath, region, subsampling, layerImage);
+
+                final int canvasBoundaryX = (boundaryX - minX) / subsampling;
+                final int canvasDeltaX = boundaryDeltaX / subsampling;
+                Compositor.copyRightOfLine(layer,
+                                           canvasWidth,
+                                           (regionMinX - minX) / subsampling,
+                                           decoded.width,
+                                           decoded.height,
+                                           canvas,
+                                           canvasWidth,
+                                           canvasHeight,
+                                           canvasBoundaryX + canvasDeltaX,
+                                           canvasBoundaryX - canvasDeltaX);
+            }
+
+            // At this point, we resize the composed canvas to the thumbnail size
+            final int[] thumbnail = new int[WIDTH * HEIGHT];
+            Resampler.downscale(canvas, canvasWidth, canvasHeight, thumbnail, WIDTH, HEIGHT, pool);
+            return RasterPool.wrap(thumbnail, WIDTH, HEIGHT);
+        } finally {
+            pool.release(layer);
+            pool.release(canvas);
         }
+    }
 
-        // At this point, we cut and resize the full-size preview to the thumbnail size
-        // The aspect ratio may not match, so we need to calculate the right thumbnail dimensions and the cropping to
-        // apply.
-        final short rescaledWidth;
-        final short rescaledHeight;
-        final short rescaledDeltaX;
-        final short rescaledDeltaY;
-        if (wallpaperRatio == previewRatio) {
-            rescaledWidth = WIDTH;
-            rescaledHeight = HEIGHT;
-            rescaledDeltaX = 0;
-            rescaledDeltaY = 0;
-        } else if (wallpaperRatio > previewRatio) {
-            rescaledWidth = (short) Math.round(wallpaperRatio * HEIGHT);
-            rescaledHeight = HEIGHT;
-            rescaledDeltaX = (short) -Math.round((float) (rescaledWidth - WIDTH) / 2);
-            rescaledDeltaY = 0;
-        } else {
-            rescaledWidth = WIDTH;
-            rescaledHeight = (short) Math.round(WIDTH / wallpaperRatio);
-            rescaledDeltaX = 0;
-            rescaledDeltaY = (short) -Math.round((float) (rescaledHeight - HEIGHT) / 2);
+    /**
+     * Decodes a region of a frame, with a source subsampling, in the top-left corner of a destination image.
+     *
+     * @param framePath   The frame image path.
+     * @param region      The region to decode, in frame pixels. It's clamped to the frame bounds.
+     * @param subsampling The horizontal and vertical subsampling factor.
+     * @param destination The destination image, large enough for the subsampled region.
+     * @return the size of the decoded region in the destination image.
+     * @throws IOException if the frame can't be read.
+     */
+    protected static Dimension loadFrame(final Path framePath,
+                                         final Rectangle region,
+                                         final int subsampling,
+                                         final BufferedImage destination) throws IOException {
+        return read(framePath, reader -> {
+            final Rectangle sourceRegion = region.intersection(new Rectangle(reader.getWidth(0),
+                                                                             reader.getHeight(0)));
+            final ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(sourceRegion);
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            param.setDestination(destination);
+            reader.read(0, param);
+            return new Dimension((sourceRegion.width + subsampling - 1) / subsampling,
+                                 (sourceRegion.height + subsampling - 1) / subsampling);
+        });
+    }
+
+    /**
+     * Reads the size of an image, without decoding it.
+     */
+    private static Dimension readSize(final Path imagePath) throws IOException {
+        return read(imagePath, reader -> new Dimension(reader.getWidth(0), reader.getHeight(0)));
+    }
+
+    /**
+     * Opens an image file with an {@link ImageReader}, and runs a read operation with it.
+     */
+    private static <T> T read(final Path imagePath, final ReadOperation<T> operation) throws IOException {
+        try (final ImageInputStream input = ImageIO.createImageInputStream(imagePath.toFile())) {
+            if (input == null) {
+                throw new IOException("The image " + imagePath + " can't be opened");
+            }
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("The image " + imagePath + " has an unsupported format");
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                return operation.read(reader);
+            } finally {
+                reader.dispose();
+            }
         }
+    }
 
-        // The destination image that will be saved
-        final BufferedImage thumbnail = new BufferedImage(WIDTH, HEIGHT, preview.getType());
-        final Graphics2D graphics = thumbnail.createGraphics();
+    /**
+     * Estimates the memory used by the generation of a preview: the canvas and layer rasters, the intermediate rasters
+     * of the resampling, and the buffers of the JPEG decoder.
+     *
+     * @param width  The frame width.
+     * @param height The frame height.
+     * @return the estimated working set, in bytes.
+     */
+    public static long estimateWorkingSetBytes(final short width, final short height) {
+        final Crop crop = Crop.of(width, height);
+        final long canvasBytes = 4L * crop.getCanvasWidth() * crop.getCanvasHeight();
+        // The halvings of the canvas sum to a third of it; the decoder works on a few full-width MCU rows
+        return 2 * canvasBytes + canvasBytes / 3 + 3L * width * 16 * 2;
+    }
+
+    /**
+     * The region of the wallpaper that has the aspect ratio of the preview, in wallpaper pixels.
+     *
+     * @param minX   The left of the region.
+     * @param minY   The top of the region.
+     * @param width  The region width.
+     * @param height The region height.
+     */
+    private record Crop(short minX,
+                        short minY,
+                        short width,
+                        short height) {
+
+        private static Crop of(final short width, final short height) {
+            final float wallpaperRatio = (float) width / height;
+            final float previewRatio = (float) WIDTH / HEIGHT;
+            if (wallpaperRatio == previewRatio) {
+                return new Crop((short) 0, (short) 0, width, height);
+            } else if (wallpaperRatio > previewRatio) {
+                final short croppedWidth = (short) Math.round(previewRatio * height);
+                return new Crop((short) Math.round((float) (width - croppedWidth) / 2), (short) 0, croppedWidth,
+                                height);
+            } else {
+                final short croppedHeight = (short) Math.round(width / previewRatio);
+                return new Crop((short) 0, (short) Math.round((float) (height - croppedHeight) / 2), width,
+                                croppedHeight);
+            }
+        }
 
-        // The rescaled image that we'll paste in the new buffer
-        final Image rescaled = preview.getScaledInstance(rescaledWidth, rescaledHeight, Image.SCALE_AREA_AVERAGING);
-        graphics.drawImage(rescaled, rescaledDeltaX, rescaledDeltaY, null);
-        graphics.dispose();
+        /**
+         * Returns the source subsampling that decodes the region at roughly twice the preview resolution.
+         */
+        private int getSubsampling() {
+            return Math.max(1, this.height / (2 * HEIGHT));
+        }
 
-        return thumbnail;
+        private int getCanvasWidth() {
+            return (this.width + this.getSubsampling() - 1) / this.getSubsampling();
+        }
+
+        private int getCanvasHeight() {
+            return (this.height + this.getSubsampling() - 1) / this.getSubsampling();
+        }
     }
 
-    protected static BufferedImage loadFrame(final short frameIndex,
-                                             final Path cacheDirectory) throws IOException {
-        final String filename = String.format("frame-%d.jpg", frameIndex);
-        return ImageIO.read(cacheDirectory.resolve(filename).toFile());
+    @FunctionalInterface
+    private interface ReadOperation<T> {
+        T read(ImageReader reader) throws IOException;
     }
 }
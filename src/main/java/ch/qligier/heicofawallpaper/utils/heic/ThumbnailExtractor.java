@@ -0,0 +1,301 @@
+package ch.qligier.heicofawallpaper.utils.heic;
+
+import ch.qligier.heicofawallpaper.exception.InvalidDynamicWallpaperException;
+import ch.qligier.heicofawallpaper.service.FileSystemService;
+import ch.qligier.heicofawallpaper.utils.process.ProcessResult;
+import ch.qligier.heicofawallpaper.utils.process.ProcessRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * The extractor of the thumbnails that are embedded in a HEIF file, next to the master images (items that reference
+ * them with a {@code thmb} reference). They are small enough to be decoded in a few milliseconds, and give a preview
+ * of the wallpaper long before its frames are extracted.
+ * <p>
+ * JPEG thumbnails are written as is. HEVC thumbnails can't be decoded in Java: each one is wrapped in a minimal HEIF
+ * file (its coded data and its properties), and they are all decoded by a single ImageMagick process.
+ *
+ * @author Quentin Ligier
+ **/
+public class ThumbnailExtractor {
+    private static final Logger LOG = Logger.getLogger("ThumbnailExtractor");
+
+    /**
+     * The maximum size of the coded data of a thumbnail.
+     */
+    private static final int MAX_THUMBNAIL_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The maximum duration of the decoding of the HEVC thumbnails.
+     */
+    private static final Duration DECODE_TIMEOUT = Duration.ofSeconds(30);
+
+    private final ProcessRunner processRunner;
+
+    /**
+     * Constructor.
+     *
+     * @param processRunner The runner of the ImageMagick process.
+     */
+    public ThumbnailExtractor(final ProcessRunner processRunner) {
+        this.processRunner = Objects.requireNonNull(processRunner);
+    }
+
+    /**
+     * Extracts the embedded thumbnails of the frames of a wallpaper, as JPEG files named after
+     * {@link FileSystemService#THUMBNAIL_FILE_NAME_FORMAT}. The frames without thumbnail are skipped.
+     *
+     * @param heicFile        The dynamic wallpaper file.
+     * @param outputDirectory The directory of the thumbnail files.
+     * @return the thumbnail files, keyed by frame index; empty if the file has no thumbnail.
+     * @throws IOException                      if the file can't be read or the thumbnails can't be decoded.
+     * @throws InvalidDynamicWallpaperException if the file is not a valid HEIF file.
+     * @throws InterruptedException             if the thread is interrupted while waiting for ImageMagick.
+     */
+    public SortedMap<Integer, Path> extract(final Path heicFile,
+                                            final Path outputDirectory)
+        throws IOException, InvalidDynamicWallpaperException, InterruptedException {
+        final long start = System.nanoTime();
+        final SortedMap<Integer, Path> thumbnails = new TreeMap<>();
+        final Map<Integer, byte[]> hevcThumbnails = new TreeMap<>();
+        try (final FileChannel channel = FileChannel.open(heicFile, StandardOpenOption.READ)) {
+            final HeifContainer container = HeifReader.readContainer(channel);
+            final List<Integer> masterImageIds = container.getMasterImageIds();
+            for (int frameIndex = 0; frameIndex < masterImageIds.size(); ++frameIndex) {
+                final Integer thumbnailId = container.getThumbnailId(masterImageIds.get(frameIndex));
+                final HeifContainer.Item thumbnail = (thumbnailId != null) ? container.getItem(thumbnailId) : null;
+                if (thumbnail == null) {
+                    continue;
+                }
+                switch (thumbnail.type()) {
+                    case "jpeg" -> {
+                        final Path thumbnailPath = getThumbnailPath(outputDirectory, frameIndex);
+                        writeAtomically(thumbnailPath,
+                                        toArray(HeifReader.readItemData(channel, container, thumbnailId,
+                                                                        MAX_THUMBNAIL_SIZE)));
+                        thumbnails.put(frameIndex, thumbnailPath);
+                    }
+                    case "hvc1" -> hevcThumbnails.put(frameIndex, wrapAsHeif(container, thumbnail,
+                                                                             HeifReader.readItemData(channel,
+                                                                                                     container,
+                                                                                                     thumbnailId,
+                                                                                                     MAX_THUMBNAIL_SIZE)));
+                    default -> LOG.fine(() -> "Unsupported thumbnail type '" + thumbnail.type() + "' in " + heicFile);
+                }
+            }
+        }
+
+        if (!hevcThumbnails.isEmpty()) {
+            thumbnails.putAll(this.decodeHevcThumbnails(hevcThumbnails, outputDirectory));
+        }
+        LOG.fine(() -> "Extracted " + thumbnails.size() + " thumbnails of " + heicFile + " in "
+            + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return thumbnails;
+    }
+
+    /**
+     * Returns the path of the thumbnail of a frame.
+     *
+     * @param directory  The directory of the thumbnail files.
+     * @param frameIndex The frame index.
+     */
+    public static Path getThumbnailPath(final Path directory, final int frameIndex) {
+        return directory.resolve(String.format(FileSystemService.THUMBNAIL_FILE_NAME_FORMAT, frameIndex));
+    }
+
+    /**
+     * Decodes the wrapped HEVC thumbnails with a single ImageMagick process.
+     */
+    private Map<Integer, Path> decodeHevcThumbnails(final Map<Integer, byte[]> hevcThumbnails,
+                                                    final Path outputDirectory)
+        throws IOException, InterruptedException {
+        final Path stagingDirectory = Files.createTempDirectory(outputDirectory, "thumbnails");
+        try {
+            final List<String> command = new ArrayList<>(hevcThumbnails.size() + 6);
+            command.add("magick");
+            command.add("convert");
+            for (final Map.Entry<Integer, byte[]> entry : hevcThumbnails.entrySet()) {
+                final Path wrappedPath = stagingDirectory.resolve(entry.getKey() + ".heic");
+                Files.write(wrappedPath, entry.getValue());
+                command.add('"' + wrappedPath.toString() + '"');
+            }
+            command.add("-quality");
+            command.add("90");
+            command.add('"' + stagingDirectory.resolve("decoded-%d.jpg").toString() + '"');
+
+            final ProcessResult result = this.processRunner.run(command, DECODE_TIMEOUT);
+            if (!result.isSuccess()) {
+                throw new IOException("ImageMagick has failed to decode the thumbnails (exit code "
+                                          + result.exitCode() + "): " + result.stderr().strip());
+            }
+
+            // The decoded files are numbered in the order of the inputs
+            final Map<Integer, Path> thumbnails = new TreeMap<>();
+            int decodedIndex = 0;
+            for (final int frameIndex : hevcThumbnails.keySet()) {
+                final Path decodedPath = stagingDirectory.resolve("decoded-" + decodedIndex++ + ".jpg");
+                if (!Files.isRegularFile(decodedPath)) {
+                    throw new IOException("ImageMagick has not decoded the thumbnail of frame " + frameIndex);
+                }
+                final Path thumbnailPath = getThumbnailPath(outputDirectory, frameIndex);
+                Files.move(decodedPath, thumbnailPath, StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+                thumbnails.put(frameIndex, thumbnailPath);
+            }
+            return thumbnails;
+        } finally {
+            try (final var stagedFiles = Files.list(stagingDirectory)) {
+                stagedFiles.forEach(path -> path.toFile().delete());
+            }
+            stagingDirectory.toFile().delete();
+        }
+    }
+
+    /**
+     * Wraps a coded image item in a minimal HEIF file: a {@code meta} box that describes a single primary item with
+     * the properties of the original item, and a {@code mdat} box with its coded data.
+     *
+     * @param container The container of the original file.
+     * @param item      The image item.
+     * @param data      The coded data of the item.
+     * @return the content of the HEIF file.
+     * @throws IOException if the item has too many properties.
+     */
+    public static byte[] wrapAsHeif(final HeifContainer container,
+                             final HeifContainer.Item item,
+                             final ByteBuffer data) throws IOException {
+        final List<HeifContainer.Property> properties = container.getProperties(item.id());
+        if (properties.size() > 127) {
+            throw new IOException("The item " + item.id() + " has too many properties");
+        }
+
+        final byte[] ftyp = box("ftyp", payload -> {
+            payload.writeBytes("heic");
+            payload.writeInt(0);
+            payload.writeBytes("mif1");
+            payload.writeBytes("heic");
+        });
+        final byte[] hdlr = fullBox("hdlr", payload -> {
+            payload.writeInt(0);
+            payload.writeBytes("pict");
+            payload.write(new byte[13]);
+        });
+        final byte[] pitm = fullBox("pitm", payload -> payload.writeShort(1));
+        final byte[] infe = box("infe", payload -> {
+            payload.writeInt(0x02000000);
+            payload.writeShort(1);
+            payload.writeShort(0);
+            payload.writeBytes(item.type());
+            payload.writeByte(0);
+        });
+        final byte[] iinf = fullBox("iinf", payload -> {
+            payload.writeShort(1);
+            payload.write(infe);
+        });
+        final byte[] ipco = box("ipco", payload -> {
+            for (final HeifContainer.Property property : properties) {
+                final ByteBuffer content = property.content();
+                payload.writeInt(8 + content.remaining());
+                payload.writeBytes(property.type());
+                payload.write(toArray(content));
+            }
+        });
+        final byte[] ipma = fullBox("ipma", payload -> {
+            payload.writeInt(1);
+            payload.writeShort(1);
+            payload.writeByte(properties.size());
+            for (int index = 0; index < properties.size(); ++index) {
+                // The decoder configuration is essential, the other properties are descriptive
+                final boolean essential = "hvcC".equals(properties.get(index).type());
+                payload.writeByte((essential ? 0x80 : 0) | (index + 1));
+            }
+        });
+        final byte[] iprp = box("iprp", payload -> {
+            payload.write(ipco);
+            payload.write(ipma);
+        });
+        // The iloc box has a fixed size, its extent offset is known once the meta box size is known
+        final int ilocSize = 8 + 4 + 2 + 2 + 2 + 2 + 2 + 4 + 4;
+        final int metaSize = 8 + 4 + hdlr.length + pitm.length + iinf.length + iprp.length + ilocSize;
+        final long dataOffset = (long) ftyp.length + metaSize + 8;
+        final byte[] iloc = fullBox("iloc", payload -> {
+            payload.writeByte(0x44);
+            payload.writeByte(0x00);
+            payload.writeShort(1);
+            payload.writeShort(1);
+            payload.writeShort(0);
+            payload.writeShort(1);
+            payload.writeInt((int) dataOffset);
+            payload.writeInt(data.remaining());
+        });
+        final byte[] meta = fullBox("meta", payload -> {
+            payload.write(hdlr);
+            payload.write(pitm);
+            payload.write(iinf);
+            payload.write(iloc);
+            payload.write(iprp);
+        });
+        if (meta.length != metaSize) {
+            throw new IllegalStateException("Unexpected meta box size");
+        }
+        final byte[] mdat = box("mdat", payload -> payload.write(toArray(data)));
+
+        final ByteArrayOutputStream file = new ByteArrayOutputStream(ftyp.length + meta.length + mdat.length);
+        file.writeBytes(ftyp);
+        file.writeBytes(meta);
+        file.writeBytes(mdat);
+        return file.toByteArray();
+    }
+
+    private static byte[] box(final String type, final BoxWriter writer) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        final DataOutputStream payload = new DataOutputStream(bytes);
+        payload.writeInt(0);
+        payload.write(type.getBytes(StandardCharsets.US_ASCII));
+        writer.write(payload);
+        payload.flush();
+        final byte[] box = bytes.toByteArray();
+        ByteBuffer.wrap(box).putInt(0, box.length);
+        return box;
+    }
+
+    private static byte[] fullBox(final String type, final BoxWriter writer) throws IOException {
+        return box(type, payload -> {
+            // Version 0, no flag
+            payload.writeInt(0);
+            writer.write(payload);
+        });
+    }
+
+    private static byte[] toArray(final ByteBuffer buffer) {
+        final byte[] array = new byte[buffer.remaining()];
+        buffer.duplicate().get(array);
+        return array;
+    }
+
+    private static void writeAtomically(final Path path, final byte[] content) throws IOException {
+        final Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temporaryPath, content);
+        Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * The writer of a box payload.
+     */
+    @FunctionalInterface
+    private interface BoxWriter {
+        void write(DataOutputStream payload) throws IOException;
+    }
+}
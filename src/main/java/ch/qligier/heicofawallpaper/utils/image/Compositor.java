@@ -0,0 +1,56 @@
+package ch.qligier.heicofawallpaper.utils.image;
+
+/**
+ * A compositor of RGB rasters, stored as packed {@code int[]}.
+ *
+ * @author Quentin Ligier
+ **/
+public final class Compositor {
+
+    private Compositor() {
+    }
+
+    /**
+     * Copies the part of a layer that is on the right of a diagonal line onto a canvas. The line goes from
+     * {@code (topX, 0)} to {@code (bottomX, canvasHeight)}; a pixel is copied if its center is on the right of the line,
+     * as a polygon clip would do.
+     *
+     * @param layer        The layer raster.
+     * @param layerStride  The number of pixels between two rows of the layer raster.
+     * @param layerX       The horizontal position of the layer on the canvas.
+     * @param layerWidth   The layer width.
+     * @param layerHeight  The layer height; the layer is aligned with the top of the canvas.
+     * @param canvas       The canvas raster.
+     * @param canvasWidth  The canvas width.
+     * @param canvasHeight The canvas height.
+     * @param topX         The horizontal position of the line at the top of the canvas.
+     * @param bottomX      The horizontal position of the line at the bottom of the canvas.
+     */
+    public static void copyRightOfLine(final int[] layer,
+                                       final int layerStride,
+                                       final int layerX,
+                                       final int layerWidth,
+                                       final int layerHeight,
+                                       final int[] canvas,
+                                       final int canvasWidth,
+                                       final int canvasHeight,
+                                       final int topX,
+                                       final int bottomX) {
+        final int rows = Math.min(layerHeight, canvasHeight);
+        final int layerEndX = Math.min(layerX + layerWidth, canvasWidth);
+        Resampler.forEachStrip(rows, layerWidth, (fromRow, toRow) -> {
+            for (int y = fromRow; y < toRow; ++y) {
+                // The line position at the center of the row, and the first pixel whose center is on its right
+                final double lineX = topX + (bottomX - topX) * (y + 0.5) / canvasHeight;
+                final int startX = Math.max(Math.max(0, layerX), (int) Math.floor(lineX - 0.5) + 1);
+                if (startX < layerEndX) {
+                    System.arraycopy(layer,
+                                     y * layerStride + (startX - layerX),
+                                     canvas,
+                                     y * canvasWidth + startX,
+                                     layerEndX - startX);
+                }
+            }
+        });
+    }
+}
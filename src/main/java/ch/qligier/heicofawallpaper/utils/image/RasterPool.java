@@ -0,0 +1,138 @@
+package ch.qligier.heicofawallpaper.utils.image;
+
+import java.awt.image.*;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of the {@code int[]} scratch rasters used by the compositing and the resampling, to avoid allocating (and
+ * zeroing) several megabytes for each preview.
+ * <p>
+ * The rasters are pooled by exact length: the canvas sizes only depend on the wallpaper resolutions, that are few. The
+ * memory retained by the pool is bounded, the rasters that are released above the limit are left to the garbage
+ * collector. A raster that is acquired has an unspecified content.
+ *
+ * @author Quentin Ligier
+ **/
+public class RasterPool {
+
+    /**
+     * The default maximum number of bytes retained by the pool.
+     */
+    public static final long DEFAULT_MAX_RETAINED_BYTES = 128L * 1024 * 1024;
+
+    /**
+     * The pool shared by the preview generation.
+     */
+    private static final RasterPool SHARED = new RasterPool(DEFAULT_MAX_RETAINED_BYTES);
+
+    /**
+     * The pooled rasters, keyed by length.
+     */
+    private final Map<Integer, Queue<int[]>> rasters = new ConcurrentHashMap<>();
+
+    /**
+     * The maximum number of bytes retained by the pool.
+     */
+    private final long maxRetainedBytes;
+
+    /**
+     * The number of bytes retained by the pool.
+     */
+    private final AtomicLong retainedBytes = new AtomicLong();
+
+    // Metrics of the pool
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Constructor.
+     *
+     * @param maxRetainedBytes The maximum number of bytes retained by the pool.
+     */
+    public RasterPool(final long maxRetainedBytes) {
+        this.maxRetainedBytes = maxRetainedBytes;
+    }
+
+    /**
+     * Returns the pool shared by the preview generation.
+     */
+    public static RasterPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Acquires a raster, either from the pool or newly allocated.
+     *
+     * @param length The raster length, in pixels.
+     * @return a raster of exactly {@code length} pixels, with an unspecified content.
+     */
+    public int[] acquire(final int length) {
+        final Queue<int[]> queue = this.rasters.get(length);
+        final int[] raster = (queue != null) ? queue.poll() : null;
+        if (raster != null) {
+            this.retainedBytes.addAndGet(-4L * length);
+            this.hits.increment();
+            return raster;
+        }
+        this.misses.increment();
+        return new int[length];
+    }
+
+    /**
+     * Releases a raster to the pool. It shall not be used anymore by the caller.
+     *
+     * @param raster The raster to release.
+     */
+    public void release(final int[] raster) {
+        final long bytes = 4L * raster.length;
+        if (this.retainedBytes.addAndGet(bytes) > this.maxRetainedBytes) {
+            this.retainedBytes.addAndGet(-bytes);
+            return;
+        }
+        this.rasters.computeIfAbsent(raster.length, length -> new ConcurrentLinkedQueue<>()).offer(raster);
+    }
+
+    /**
+     * Returns the current metrics of the pool.
+     */
+    public Metrics getMetrics() {
+        return new Metrics(this.hits.sum(), this.misses.sum(), this.retainedBytes.get());
+    }
+
+    /**
+     * Wraps a raster in an RGB {@link BufferedImage}, without copy. The image may be given as the destination of an
+     * {@link javax.imageio.ImageReader}, the decoded pixels are then written directly in the raster.
+     *
+     * @param raster The raster, of at least {@code width * height} pixels.
+     * @param width  The image width.
+     * @param height The image height.
+     * @return the image that is backed by the raster.
+     */
+    public static BufferedImage wrap(final int[] raster, final int width, final int height) {
+        final DirectColorModel colorModel = new DirectColorModel(24, 0xFF0000, 0x00FF00, 0x0000FF);
+        final WritableRaster writableRaster = Raster.createPackedRaster(new DataBufferInt(raster, width * height),
+                                                                        width,
+                                                                        height,
+                                                                        width,
+                                                                        colorModel.getMasks(),
+                                                                        null);
+        return new BufferedImage(colorModel, writableRaster, false, null);
+    }
+
+    /**
+     * The metrics of a raster pool.
+     *
+     * @param hits          The number of acquisitions served by the pool.
+     * @param misses        The number of acquisitions that have allocated a raster.
+     * @param retainedBytes The number of bytes retained by the pool.
+     */
+    public record Metrics(long hits,
+                          long misses,
+                          long retainedBytes) {
+    }
+}
@@ -0,0 +1,258 @@
+package ch.qligier.heicofawallpaper.utils.image;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * A resampler of RGB rasters, stored as packed {@code int[]} (one pixel per int, {@code 0xRRGGBB}).
+ * <p>
+ * Large reductions are done in multiple steps: the raster is first halved with a 2x2 box filter until it's less than
+ * four times larger than the target, then resampled with a separable Lanczos filter (horizontal pass, then vertical
+ * pass). The rows are processed in strips, in parallel.
+ *
+ * @author Quentin Ligier
+ **/
+public final class Resampler {
+
+    /**
+     * The radius of the Lanczos kernel, in source pixels at scale 1.
+     */
+    private static final int LANCZOS_RADIUS = 3;
+
+    /**
+     * The minimum number of pixels processed by a strip task; smaller rasters are processed by the calling thread.
+     */
+    private static final int MIN_STRIP_PIXELS = 64 * 1024;
+
+    private Resampler() {
+    }
+
+    /**
+     * Downscales a raster. A target that is larger than the source is also supported (e.g. for a tiny thumbnail), it's
+     * only resampled by the Lanczos filter.
+     *
+     * @param source       The source raster.
+     * @param sourceWidth  The source width.
+     * @param sourceHeight The source height.
+     * @param target       The target raster, of at least {@code targetWidth * targetHeight} pixels.
+     * @param targetWidth  The target width.
+     * @param targetHeight The target height.
+     * @param pool         The pool of the intermediate rasters.
+     */
+    public static void downscale(final int[] source,
+                                 final int sourceWidth,
+                                 final int sourceHeight,
+                                 final int[] target,
+                                 final int targetWidth,
+                                 final int targetHeight,
+                                 final RasterPool pool) {
+        // Multistep reduction with a box filter
+        int[] current = source;
+        int width = sourceWidth;
+        int height = sourceHeight;
+        while (width >= 4 * targetWidth && height >= 4 * targetHeight) {
+            final int[] halved = pool.acquire((width / 2) * (height / 2));
+            halve(current, width, height, halved);
+            if (current != source) {
+                pool.release(current);
+            }
+            current = halved;
+            width /= 2;
+            height /= 2;
+        }
+
+        // Separable Lanczos resampling
+        final int[] horizontal = pool.acquire(targetWidth * height);
+        resampleHorizontally(current, width, height, horizontal, targetWidth);
+        if (current != source) {
+            pool.release(current);
+        }
+        resampleVertically(horizontal, targetWidth, height, target, targetHeight);
+        pool.release(horizontal);
+    }
+
+    /**
+     * Halves a raster with a 2x2 box filter. The last column and row of odd-sized rasters are dropped.
+     */
+    static void halve(final int[] source, final int width, final int height, final int[] target) {
+        final int targetWidth = width / 2;
+        forEachStrip(height / 2, targetWidth, (fromRow, toRow) -> {
+            for (int y = fromRow; y < toRow; ++y) {
+                int top = 2 * y * width;
+                int bottom = top + width;
+                int index = y * targetWidth;
+                for (int x = 0; x < targetWidth; ++x, top += 2, bottom += 2, ++index) {
+                    final int p0 = source[top];
+                    final int p1 = source[top + 1];
+                    final int p2 = source[bottom];
+                    final int p3 = source[bottom + 1];
+                    // The red and blue channels are summed together, they can't overflow in their 10 bits
+                    final int redBlue = (p0 & 0xFF00FF) + (p1 & 0xFF00FF) + (p2 & 0xFF00FF) + (p3 & 0xFF00FF)
+                        + 0x020002;
+                    final int green = (p0 & 0x00FF00) + (p1 & 0x00FF00) + (p2 & 0x00FF00) + (p3 & 0x00FF00) + 0x000200;
+                    target[index] = ((redBlue >>> 2) & 0xFF00FF) | ((green >>> 2) & 0x00FF00);
+                }
+            }
+        });
+    }
+
+    /**
+     * Resamples the rows of a raster to another width.
+     */
+    private static void resampleHorizontally(final int[] source,
+                                             final int width,
+                                             final int height,
+                                             final int[] target,
+                                             final int targetWidth) {
+        final Kernel kernel = new Kernel(width, targetWidth);
+        forEachStrip(height, width, (fromRow, toRow) -> {
+            for (int y = fromRow; y < toRow; ++y) {
+                final int sourceRow = y * width;
+                final int targetRow = y * targetWidth;
+                for (int x = 0; x < targetWidth; ++x) {
+                    final int start = kernel.starts[x];
+                    final int offset = x * kernel.taps;
+                    float red = 0;
+                    float green = 0;
+                    float blue = 0;
+                    for (int tap = 0; tap < kernel.taps; ++tap) {
+                        final float weight = kernel.weights[offset + tap];
+                        final int pixel = source[sourceRow + kernel.clamp(start + tap)];
+                        red += weight * ((pixel >>> 16) & 0xFF);
+                        green += weight * ((pixel >>> 8) & 0xFF);
+                        blue += weight * (pixel & 0xFF);
+                    }
+                    target[targetRow + x] = pack(red, green, blue);
+                }
+            }
+        });
+    }
+
+    /**
+     * Resamples the columns of a raster to another height. The source rows are accumulated in row order, to keep the
+     * accesses sequential.
+     */
+    private static void resampleVertically(final int[] source,
+                                           final int width,
+                                           final int height,
+                                           final int[] target,
+                                           final int targetHeight) {
+        final Kernel kernel = new Kernel(height, targetHeight);
+        forEachStrip(targetHeight, width * kernel.taps, (fromRow, toRow) -> {
+            final float[] accumulator = new float[3 * width];
+            for (int y = fromRow; y < toRow; ++y) {
+                Arrays.fill(accumulator, 0);
+                final int start = kernel.starts[y];
+                final int offset = y * kernel.taps;
+                for (int tap = 0; tap < kernel.taps; ++tap) {
+                    final float weight = kernel.weights[offset + tap];
+                    final int sourceRow = kernel.clamp(start + tap) * width;
+                    for (int x = 0, channel = 0; x < width; ++x, channel += 3) {
+                        final int pixel = source[sourceRow + x];
+                        accumulator[channel] += weight * ((pixel >>> 16) & 0xFF);
+                        accumulator[channel + 1] += weight * ((pixel >>> 8) & 0xFF);
+                        accumulator[channel + 2] += weight * (pixel & 0xFF);
+                    }
+                }
+                final int targetRow = y * width;
+                for (int x = 0, channel = 0; x < width; ++x, channel += 3) {
+                    target[targetRow + x] = pack(accumulator[channel], accumulator[channel + 1],
+                                                 accumulator[channel + 2]);
+                }
+            }
+        });
+    }
+
+    /**
+     * Packs three channel values, rounded and clamped to [0, 255].
+     */
+    private static int pack(final float red, final float green, final float blue) {
+        return (clamp(red) << 16) | (clamp(green) << 8) | clamp(blue);
+    }
+
+    private static int clamp(final float value) {
+        final int rounded = Math.round(value);
+        return rounded < 0 ? 0 : Math.min(rounded, 255);
+    }
+
+    /**
+     * Runs a task on strips of rows, in parallel if the raster is large enough.
+     *
+     * @param rows        The number of rows.
+     * @param rowCost     The number of pixels processed for a row.
+     * @param stripAction The task, that is given the first row (inclusive) and the last row (exclusive) of a strip.
+     */
+    static void forEachStrip(final int rows, final int rowCost, final StripAction stripAction) {
+        final int rowsPerStrip = Math.max(1, MIN_STRIP_PIXELS / Math.max(1, rowCost));
+        final int strips = (rows + rowsPerStrip - 1) / rowsPerStrip;
+        if (strips <= 1) {
+            stripAction.run(0, rows);
+            return;
+        }
+        IntStream.range(0, strips).parallel().forEach(strip -> stripAction.run(strip * rowsPerStrip,
+                                                                               Math.min(rows,
+                                                                                        (strip + 1) * rowsPerStrip)));
+    }
+
+    /**
+     * A task that processes a strip of rows.
+     */
+    @FunctionalInterface
+    interface StripAction {
+        void run(int fromRow, int toRow);
+    }
+
+    /**
+     * The precomputed weights of a one-dimensional Lanczos resampling.
+     */
+    private static final class Kernel {
+        private final int sourceLength;
+        private final int taps;
+        private final int[] starts;
+        private final float[] weights;
+
+        private Kernel(final int sourceLength, final int targetLength) {
+            this.sourceLength = sourceLength;
+            final double scale = (double) sourceLength / targetLength;
+            final double filterScale = Math.max(1, scale);
+            final double support = LANCZOS_RADIUS * filterScale;
+            this.taps = (int) Math.ceil(2 * support) + 1;
+            this.starts = new int[targetLength];
+            this.weights = new float[targetLength * this.taps];
+
+            for (int i = 0; i < targetLength; ++i) {
+                final double center = (i + 0.5) * scale - 0.5;
+                final int start = (int) Math.floor(center - support) + 1;
+                this.starts[i] = start;
+                double sum = 0;
+                for (int tap = 0; tap < this.taps; ++tap) {
+                    final double weight = lanczos((start + tap - center) / filterScale);
+                    this.weights[i * this.taps + tap] = (float) weight;
+                    sum += weight;
+                }
+                // The weights are normalized, so that a uniform area keeps its color
+                for (int tap = 0; tap < this.taps; ++tap) {
+                    this.weights[i * this.taps + tap] /= (float) sum;
+                }
+            }
+        }
+
+        /**
+         * Clamps a source index to the raster, i.e. the edge pixels are repeated.
+         */
+        private int clamp(final int index) {
+            return index < 0 ? 0 : Math.min(index, this.sourceLength - 1);
+        }
+
+        private static double lanczos(final double x) {
+            if (x == 0) {
+                return 1;
+            }
+            if (x <= -LANCZOS_RADIUS || x >= LANCZOS_RADIUS) {
+                return 0;
+            }
+            final double piX = Math.PI * x;
+            return LANCZOS_RADIUS * Math.sin(piX) * Math.sin(piX / LANCZOS_RADIUS) / (piX * piX);
+        }
+    }
+}
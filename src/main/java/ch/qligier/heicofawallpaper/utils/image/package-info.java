@@ -0,0 +1,6 @@
+/**
+ * Classes related to the processing of raster images (compositing, resampling).
+ *
+ * @author Quentin Ligier
+ **/
+package ch.qligier.heicofawallpaper.utils.image;
@@ -0,0 +1,30 @@
+package ch.qligier.heicofawallpaper.utils.process;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * The result of an external process that has completed.
+ *
+ * @param command         The command line.
+ * @param exitCode        The exit code.
+ * @param stdout          The captured standard output, possibly truncated.
+ * @param stderr          The captured standard error, possibly truncated.
+ * @param duration        The duration of the process.
+ * @param outputTruncated Whether the standard output or error has been truncated.
+ * @author Quentin Ligier
+ **/
+public record ProcessResult(List<String> command,
+                            int exitCode,
+                            String stdout,
+                            String stderr,
+                            Duration duration,
+                            boolean outputTruncated) {
+
+    /**
+     * Returns whether the process has exited with the code 0.
+     */
+    public boolean isSuccess() {
+        return this.exitCode == 0;
+    }
+}
@@ -0,0 +1,256 @@
+package ch.qligier.heicofawallpaper.utils.process;
+
+import ch.qligier.heicofawallpaper.exception.ProcessTimeoutException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * The runner of external processes, shared by all the components that start processes.
+ * <p>
+ * For each process, the standard output and error are drained concurrently (a child process that fills an undrained
+ * pipe blocks forever), and only their first bytes are kept. A process that exceeds its timeout is killed with its
+ * descendants, as is a process whose waiting thread is interrupted: cancelling the task that runs a process cancels
+ * the process.
+ * <p>
+ * The draining runs on a shared pool of daemon threads; virtual threads would fit better but are still a preview
+ * feature of the Java release targeted by the application.
+ *
+ * @author Quentin Ligier
+ **/
+public class ProcessRunner {
+    private static final Logger LOG = Logger.getLogger("ProcessRunner");
+
+    /**
+     * The default maximum number of bytes kept from each of the standard output and error.
+     */
+    public static final int DEFAULT_MAX_OUTPUT_BYTES = 64 * 1024;
+
+    /**
+     * The time given to the draining threads to reach the end of the streams once the process has exited.
+     */
+    private static final long DRAIN_COMPLETION_TIMEOUT_MS = 2000;
+
+    /**
+     * The threads that drain the process outputs.
+     */
+    private final ExecutorService drainExecutor = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "ProcessRunner-drain");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The processes that are running.
+     */
+    private final Set<Process> runningProcesses = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The maximum number of bytes kept from each of the standard output and error.
+     */
+    private final int maxOutputBytes;
+
+    // Metrics of the processes
+    private final LongAdder started = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder totalDurationNanos = new LongAdder();
+    private final AtomicLong maxDurationNanos = new AtomicLong();
+    private final Map<Integer, LongAdder> exitCodes = new ConcurrentHashMap<>(4);
+
+    /**
+     * Constructor, with the default output limit.
+     */
+    public ProcessRunner() {
+        this(DEFAULT_MAX_OUTPUT_BYTES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxOutputBytes The maximum number of bytes kept from each of the standard output and error.
+     */
+    public ProcessRunner(final int maxOutputBytes) {
+        if (maxOutputBytes < 0) {
+            throw new IllegalArgumentException("The output limit shall not be negative");
+        }
+        this.maxOutputBytes = maxOutputBytes;
+    }
+
+    /**
+     * Runs a process and waits for its completion.
+     *
+     * @param command The command line.
+     * @param timeout The maximum duration of the process.
+     * @return the process result, whatever its exit code.
+     * @throws ProcessTimeoutException if the process has exceeded its timeout; it has been killed.
+     * @throws IOException             if the process can't be started.
+     * @throws InterruptedException    if the thread is interrupted while waiting; the process has been killed.
+     */
+    public ProcessResult run(final List<String> command,
+                             final Duration timeout) throws IOException, InterruptedException {
+        final long start = System.nanoTime();
+        final Process process = new ProcessBuilder(command).start();
+        this.started.increment();
+        this.runningProcesses.add(process);
+        try {
+            process.getOutputStream().close();
+            final Future<BoundedOutput> stdout = this.drainExecutor.submit(() -> this.drain(process.getInputStream()));
+            final Future<BoundedOutput> stderr = this.drainExecutor.submit(() -> this.drain(process.getErrorStream()));
+
+            final boolean exited;
+            try {
+                exited = process.waitFor(timeout.toNanos(), TimeUnit.NANOSECONDS);
+            } catch (final InterruptedException exception) {
+                this.cancelled.increment();
+                LOG.info(() -> "Cancelled " + command.get(0) + " (pid " + process.pid() + ")");
+                throw exception;
+            }
+            if (!exited) {
+                this.timedOut.increment();
+                throw new ProcessTimeoutException("The process " + command.get(0) + " has not completed within "
+                                                      + timeout.toMillis() + " ms");
+            }
+
+            final BoundedOutput stdoutOutput = this.awaitDrain(stdout);
+            final BoundedOutput stderrOutput = this.awaitDrain(stderr);
+            final long durationNanos = System.nanoTime() - start;
+            this.totalDurationNanos.add(durationNanos);
+            this.maxDurationNanos.accumulateAndGet(durationNanos, Math::max);
+            this.exitCodes.computeIfAbsent(process.exitValue(), code -> new LongAdder()).increment();
+            return new ProcessResult(List.copyOf(command),
+                                     process.exitValue(),
+                                     stdoutOutput.toString(),
+                                     stderrOutput.toString(),
+                                     Duration.ofNanos(durationNanos),
+                                     stdoutOutput.truncated || stderrOutput.truncated);
+        } finally {
+            this.runningProcesses.remove(process);
+            if (process.isAlive()) {
+                kill(process);
+            }
+        }
+    }
+
+    /**
+     * Kills all the processes that are running, e.g. when the application quits.
+     */
+    public void cancelAll() {
+        for (final Process process : this.runningProcesses) {
+            kill(process);
+        }
+    }
+
+    /**
+     * Returns the current metrics of the processes.
+     */
+    public Metrics getMetrics() {
+        final Map<Integer, Long> exitCodeCounts = new TreeMap<>();
+        this.exitCodes.forEach((code, count) -> exitCodeCounts.put(code, count.sum()));
+        final long completed = exitCodeCounts.values().stream().mapToLong(Long::longValue).sum();
+        return new Metrics(this.started.sum(),
+                           this.runningProcesses.size(),
+                           this.timedOut.sum(),
+                           this.cancelled.sum(),
+                           exitCodeCounts,
+                           completed == 0 ? 0 : this.totalDurationNanos.sum() / 1_000_000.0 / completed,
+                           this.maxDurationNanos.get() / 1_000_000.0);
+    }
+
+    /**
+     * Reads a process stream until its end, and keeps its first bytes.
+     */
+    private BoundedOutput drain(final InputStream stream) throws IOException {
+        final BoundedOutput output = new BoundedOutput(this.maxOutputBytes);
+        final byte[] buffer = new byte[8192];
+        try (stream) {
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                output.write(buffer, read);
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Waits for a draining task, that should complete shortly after the process exit.
+     */
+    private BoundedOutput awaitDrain(final Future<BoundedOutput> drain) throws IOException, InterruptedException {
+        try {
+            return drain.get(DRAIN_COMPLETION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (final ExecutionException exception) {
+            throw new IOException("Unable to read the process output", exception.getCause());
+        } catch (final TimeoutException exception) {
+            // A descendant process may still hold the pipe open
+            drain.cancel(true);
+            return new BoundedOutput(0);
+        }
+    }
+
+    /**
+     * Kills a process and its descendants.
+     */
+    private static void kill(final Process process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
+    /**
+     * A byte sink that keeps its first bytes, and counts the others.
+     */
+    private static final class BoundedOutput {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final int limit;
+        private boolean truncated;
+
+        private BoundedOutput(final int limit) {
+            this.limit = limit;
+        }
+
+        private void write(final byte[] buffer, final int length) {
+            final int kept = Math.min(length, this.limit - this.bytes.size());
+            if (kept > 0) {
+                this.bytes.write(buffer, 0, kept);
+            }
+            if (kept < length) {
+                this.truncated = true;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return this.bytes.toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * The metrics of the processes started by a runner.
+     *
+     * @param started           The number of started processes.
+     * @param running           The number of processes that are running.
+     * @param timedOut          The number of processes that have been killed after their timeout.
+     * @param cancelled         The number of processes that have been killed after a cancellation.
+     * @param exitCodes         The number of completed processes, by exit code.
+     * @param averageDurationMs The average duration of the completed processes, in milliseconds.
+     * @param maxDurationMs     The maximum duration of the completed processes, in milliseconds.
+     */
+    public record Metrics(long started,
+                          int running,
+                          long timedOut,
+                          long cancelled,
+                          Map<Integer, Long> exitCodes,
+                          double averageDurationMs,
+                          double maxDurationMs) {
+    }
+}
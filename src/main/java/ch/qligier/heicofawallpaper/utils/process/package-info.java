@@ -0,0 +1,6 @@
+/**
+ * Classes related to the execution of external processes (ImageMagick, ExifTool).
+ *
+ * @author Quentin Ligier
+ **/
+package ch.qligier.heicofawallpaper.utils.process;
@@ -13,7 +13,7 @@ public class RegistryManager {
     /**
      * The Registry path for the light theme setting.
      */
-    private static final String LIGHT_THEME_PATH = "Software\\Microsoft\\Windows\\CurrentVersion\\Themes\\Personalize";
+    static final String LIGHT_THEME_PATH = "Software\\Microsoft\\Windows\\CurrentVersion\\Themes\\Personalize";
 
     /**
      * The Registry value name for the light theme setting. There is also 'SystemUsesLightTheme'.
@@ -0,0 +1,132 @@
+package ch.qligier.heicofawallpaper.utils.win32;
+
+import ch.qligier.heicofawallpaper.service.ThemeSource;
+import com.sun.jna.platform.win32.Advapi32;
+import com.sun.jna.platform.win32.Kernel32;
+import com.sun.jna.platform.win32.W32Errors;
+import com.sun.jna.platform.win32.WinBase;
+import com.sun.jna.platform.win32.WinNT;
+import com.sun.jna.platform.win32.WinReg;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The theme source of the Windows Registry. A thread waits for the change notifications of the theme key (with
+ * {@code RegNotifyChangeKeyValue}), and reads the theme setting again when it's changed. It doesn't poll the Registry.
+ *
+ * @author Quentin Ligier
+ **/
+public class RegistryThemeSource implements ThemeSource {
+    private static final Logger LOG = Logger.getLogger("RegistryThemeSource");
+
+    /**
+     * Whether the light or dark theme is enabled, as last read from the Registry.
+     */
+    private volatile boolean lightThemeEnabled;
+
+    /**
+     * The event that stops the notification thread, or {@code null} if the thread isn't running.
+     */
+    @Nullable
+    private WinNT.HANDLE stopEvent;
+
+    /**
+     * Whether the source has been closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * Constructor. The theme setting is read immediately.
+     */
+    public RegistryThemeSource() {
+        this.lightThemeEnabled = RegistryManager.isLightThemeEnabled();
+    }
+
+    @Override
+    public boolean isLightThemeEnabled() {
+        return this.lightThemeEnabled;
+    }
+
+    @Override
+    public synchronized void start(final Listener listener) {
+        if (this.closed || this.stopEvent != null) {
+            return;
+        }
+        final WinNT.HANDLE event = Kernel32.INSTANCE.CreateEvent(null, true, false, null);
+        if (event == null) {
+            LOG.warning("The stop event can't be created, the theme changes won't be notified");
+            return;
+        }
+        this.stopEvent = event;
+        final Thread thread = new Thread(() -> this.watch(listener, event), "RegistryThemeSource");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public synchronized void close() {
+        this.closed = true;
+        if (this.stopEvent != null) {
+            Kernel32.INSTANCE.SetEvent(this.stopEvent);
+        }
+    }
+
+    /**
+     * Waits for the changes of the theme key, and notifies the theme changes, until the stop event is set.
+     *
+     * @param listener  The listener of the theme changes.
+     * @param stopEvent The event that stops the thread.
+     */
+    private void watch(final Listener listener, final WinNT.HANDLE stopEvent) {
+        final WinReg.HKEYByReference key = new WinReg.HKEYByReference();
+        WinNT.HANDLE changeEvent = null;
+        try {
+            int rc = Advapi32.INSTANCE.RegOpenKeyEx(WinReg.HKEY_CURRENT_USER, RegistryManager.LIGHT_THEME_PATH, 0,
+                                                    WinNT.KEY_NOTIFY | WinNT.KEY_READ, key);
+            if (rc != W32Errors.ERROR_SUCCESS) {
+                LOG.warning("The theme key can't be opened (error " + rc + "), the theme changes won't be notified");
+                return;
+            }
+            changeEvent = Kernel32.INSTANCE.CreateEvent(null, false, false, null);
+            final WinNT.HANDLE[] events = {changeEvent, stopEvent};
+            while (true) {
+                // The notification is registered before the value is read, so that no change is missed in between
+                rc = Advapi32.INSTANCE.RegNotifyChangeKeyValue(key.getValue(), false,
+                                                               WinNT.REG_NOTIFY_CHANGE_LAST_SET, changeEvent, true);
+                if (rc != W32Errors.ERROR_SUCCESS) {
+                    LOG.warning("The theme key can't be watched (error " + rc + "), the theme changes won't be "
+                                    + "notified");
+                    return;
+                }
+                final boolean enabled = RegistryManager.isLightThemeEnabled();
+                if (enabled != this.lightThemeEnabled) {
+                    this.lightThemeEnabled = enabled;
+                    try {
+                        listener.onThemeChanged(enabled);
+                    } catch (final RuntimeException exception) {
+                        LOG.log(Level.WARNING, "The theme change can't be handled", exception);
+                    }
+                }
+                final int signaled = Kernel32.INSTANCE.WaitForMultipleObjects(events.length, events, false,
+                                                                             WinBase.INFINITE);
+                if (signaled != WinBase.WAIT_OBJECT_0) {
+                    // The source is closed, or the wait has failed
+                    return;
+                }
+            }
+        } finally {
+            if (changeEvent != null) {
+                Kernel32.INSTANCE.CloseHandle(changeEvent);
+            }
+            if (key.getValue() != null) {
+                Advapi32.INSTANCE.RegCloseKey(key.getValue());
+            }
+            synchronized (this) {
+                Kernel32.INSTANCE.CloseHandle(stopEvent);
+                this.stopEvent = null;
+            }
+        }
+    }
+}
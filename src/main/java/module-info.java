@@ -28,6 +28,8 @@ module ch.qligier.heicofawallpaper {
     exports ch.qligier.heicofawallpaper.configuration;
     exports ch.qligier.heicofawallpaper.exception;
     exports ch.qligier.heicofawallpaper.utils.heic;
+    exports ch.qligier.heicofawallpaper.utils.image;
+    exports ch.qligier.heicofawallpaper.utils.process;
     exports ch.qligier.heicofawallpaper.model;
     exports ch.qligier.heicofawallpaper.service;
     exports ch.qligier.heicofawallpaper.utils.win32;
@@ -35,5 +37,6 @@ module ch.qligier.heicofawallpaper {
     opens ch.qligier.heicofawallpaper.gui.main to javafx.fxml, eventbus.java;
     opens ch.qligier.heicofawallpaper.gui.wallpaper_detail to javafx.fxml;
     opens ch.qligier.heicofawallpaper.model to com.google.gson;
+    opens ch.qligier.heicofawallpaper.service to com.google.gson;
     exports ch.qligier.heicofawallpaper.utils;
 }
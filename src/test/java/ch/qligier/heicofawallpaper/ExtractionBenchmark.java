@@ -0,0 +1,77 @@
+package ch.qligier.heicofawallpaper;
+
+import ch.qligier.heicofawallpaper.service.DynamicWallpaperService;
+import ch.qligier.heicofawallpaper.service.FileHashCache;
+import ch.qligier.heicofawallpaper.service.FileSystemService;
+import ch.qligier.heicofawallpaper.utils.heic.MetadataExtractor;
+import ch.qligier.heicofawallpaper.utils.process.ProcessRunner;
+import com.google.gson.Gson;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * A benchmark of the frame extraction, that compares a single decoder process with frame ranges decoded by concurrent
+ * processes.
+ * <p>
+ * Usage: {@code ExtractionBenchmark <file> [processes] [iterations]}.
+ *
+ * @author Quentin Ligier
+ **/
+public class ExtractionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final var file = new File(args.length > 0 ? args[0] :
+                                      "D:\\Programmation\\Java\\HeicOfAWallpaper\\src\\main\\resources\\heic\\Catalina.heic");
+        final int processes = args.length > 1 ? Integer.parseInt(args[1]) :
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        final int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        final var extractor = new MetadataExtractor();
+        final var cache = new FileHashCache(FileSystemService.getFileHashCachePath(), new Gson());
+        final var service = new DynamicWallpaperService(extractor, cache, new ProcessRunner());
+        final int numberOfFrames = extractor.getMetadata(file).numberOfFrames();
+        System.out.printf("%s: %d frames%n", file.getName(), numberOfFrames);
+
+        run("1 process  ", service, file, numberOfFrames, 1, iterations);
+        run(processes + " processes", service, file, numberOfFrames, processes, iterations);
+        extractor.close();
+    }
+
+    private static void run(final String name,
+                            final DynamicWallpaperService service,
+                            final File file,
+                            final int numberOfFrames,
+                            final int processes,
+                            final int iterations) throws Exception {
+        final String hash = "benchmark-" + processes;
+        long bestNs = Long.MAX_VALUE;
+        long totalNs = 0;
+        for (int i = 0; i < iterations; ++i) {
+            deleteFolder(FileSystemService.getDataPath().resolve(hash));
+            final long start = System.nanoTime();
+            service.extract(file, hash, numberOfFrames, processes);
+            final long elapsedNs = System.nanoTime() - start;
+            bestNs = Math.min(bestNs, elapsedNs);
+            totalNs += elapsedNs;
+        }
+        deleteFolder(FileSystemService.getDataPath().resolve(hash));
+        System.out.printf("%s: best %6d ms, average %6d ms%n",
+                          name,
+                          bestNs / 1_000_000,
+                          totalNs / iterations / 1_000_000);
+    }
+
+    private static void deleteFolder(final Path folder) throws IOException {
+        if (!folder.toFile().exists()) {
+            return;
+        }
+        try (final Stream<Path> paths = Files.walk(folder)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package ch.qligier.heicofawallpaper;
+
+import ch.qligier.heicofawallpaper.service.FileHashCache;
+import ch.qligier.heicofawallpaper.service.FileSystemService;
+import com.google.gson.Gson;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the {@link FileHashCache} class.
+ *
+ * @author Quentin Ligier
+ **/
+class FileHashCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void newContentsAreIdentifiedByQuickHashAndVerified() throws Exception {
+        // The two files only differ between the sampled blocks, they have the same quick hash
+        final File first = this.write("first.heic", (byte) 1);
+        final File second = this.write("second.heic", (byte) 2);
+        final String quickHash = FileSystemService.quickHashFile(first);
+        assertEquals(quickHash, FileSystemService.quickHashFile(second));
+
+        final FileHashCache cache = new FileHashCache(this.tempDir.resolve("hashes.json"), new Gson());
+        final CompletableFuture<File> mismatch = new CompletableFuture<>();
+        cache.setMismatchListener(mismatch::complete);
+        try {
+            // The new content is not fully hashed, it takes its quick hash as identity
+            assertEquals(quickHash, cache.getIdentity(first));
+            assertEquals(0, cache.getMisses());
+            // The other content borrows that identity, until it's verified
+            assertEquals(quickHash, cache.getIdentity(second));
+
+            assertEquals(second, mismatch.get(10, TimeUnit.SECONDS));
+            assertEquals(1, cache.getMismatches());
+            assertEquals(quickHash, cache.getIdentity(first));
+            assertEquals(FileSystemService.sha256File(second), cache.getIdentity(second));
+
+            // The quick hash still identifies the first content, not the colliding one
+            final File copy = Files.copy(first.toPath(), this.tempDir.resolve("copy.heic")).toFile();
+            assertEquals(quickHash, cache.getIdentity(copy));
+        } finally {
+            cache.close();
+        }
+    }
+
+    private File write(final String filename, final byte marker) throws IOException {
+        final byte[] content = new byte[400 * 1024];
+        content[100 * 1024] = marker;
+        return Files.write(this.tempDir.resolve(filename), content).toFile();
+    }
+}
@@ -0,0 +1,136 @@
+package ch.qligier.heicofawallpaper;
+
+import ch.qligier.heicofawallpaper.service.DynamicWallpaperService;
+import ch.qligier.heicofawallpaper.service.FileHashCache;
+import ch.qligier.heicofawallpaper.service.FrameCacheManager;
+import ch.qligier.heicofawallpaper.service.FrameManifest;
+import ch.qligier.heicofawallpaper.utils.heic.MetadataExtractor;
+import ch.qligier.heicofawallpaper.utils.process.ProcessRunner;
+import com.google.gson.Gson;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the {@link FrameCacheManager} class, with frames of 1000 bytes.
+ *
+ * @author Quentin Ligier
+ **/
+class FrameCacheManagerTest {
+    private static final int FRAME_SIZE = 1000;
+    private static final int NUMBER_OF_FRAMES = 4;
+
+    @TempDir
+    Path tempDir;
+
+    private final MutableClock clock = new MutableClock(Instant.parse("2026-01-01T00:00:00Z"), ZoneOffset.UTC);
+
+    private final Map<String, FrameManifest> manifests = new ConcurrentHashMap<>(2);
+
+    @Test
+    void evictsTheLeastRecentlyThenLeastFrequentlyUsedFrames() throws Exception {
+        final FrameCacheManager manager = this.createManager(8 * FRAME_SIZE);
+        this.publishFrames(manager, "aaaa");
+        this.publishFrames(manager, "bbbb");
+        assertEquals(8 * FRAME_SIZE, manager.getUsedBytes());
+        assertEquals(0, manager.enforceQuota());
+
+        this.clock.advance(Duration.ofMinutes(1));
+        this.useFrame(manager, "aaaa", 0);
+        this.useFrame(manager, "aaaa", 0);
+        this.useFrame(manager, "aaaa", 1);
+        this.clock.advance(Duration.ofMinutes(1));
+        for (int frameIndex = 0; frameIndex < NUMBER_OF_FRAMES; ++frameIndex) {
+            this.useFrame(manager, "bbbb", frameIndex);
+        }
+
+        // The cache goes under 90% of the quota: 5400 bytes
+        manager.setQuotaBytes(6 * FRAME_SIZE);
+        assertEquals(3 * FRAME_SIZE, manager.enforceQuota());
+        assertEquals(5 * FRAME_SIZE, manager.getUsedBytes());
+        final FrameManifest manifest = this.manifests.get("aaaa");
+        assertEquals(List.of(1, 2, 3), manifest.getMissingFrames());
+        assertTrue(this.manifests.get("bbbb").isComplete());
+        assertEquals(3, manager.getMetrics().evictedFrames());
+        assertEquals(7, manager.getMetrics().hits());
+    }
+
+    @Test
+    void keepsThePinnedFramesAndTheFramesInUse() throws Exception {
+        final FrameCacheManager manager = this.createManager(2 * FRAME_SIZE);
+        this.publishFrames(manager, "aaaa");
+        this.publishFrames(manager, "bbbb");
+        manager.setPinned(List.of("aaaa"));
+
+        manager.holdEviction();
+        manager.holdEviction();
+        assertEquals(0, manager.enforceQuota());
+        manager.releaseEviction();
+        assertEquals(0, manager.enforceQuota());
+        manager.releaseEviction();
+        assertThrows(IllegalStateException.class, manager::releaseEviction);
+
+        // The cache stays over the quota, only the pinned frames are left
+        assertEquals(4 * FRAME_SIZE, manager.enforceQuota());
+        assertTrue(this.manifests.get("aaaa").isComplete());
+        assertEquals(NUMBER_OF_FRAMES, this.manifests.get("bbbb").getMissingFrames().size());
+        assertEquals(0, manager.enforceQuota());
+    }
+
+    private FrameCacheManager createManager(final long quotaBytes) {
+        final Path dataPath = this.tempDir.resolve("data");
+        final var service = new DynamicWallpaperService(new MetadataExtractor(1),
+                                                        new FileHashCache(this.tempDir.resolve("hashes.json"),
+                                                                          new Gson()),
+                                                        new ProcessRunner()) {
+            @Override
+            public FrameManifest getManifest(final String hash, final int numberOfFrames) {
+                return FrameCacheManagerTest.this.manifests.computeIfAbsent(
+                    hash, key -> FrameManifest.load(dataPath.resolve(key), numberOfFrames));
+            }
+        };
+        return new FrameCacheManager(service,
+                                     this.tempDir.resolve("frames.json"),
+                                     new Gson(),
+                                     quotaBytes,
+                                     this.clock);
+    }
+
+    /**
+     * Publishes all frames of a wallpaper, as if they had been extracted.
+     */
+    private void publishFrames(final FrameCacheManager manager, final String hash) throws IOException {
+        final FrameManifest manifest = this.manifests.computeIfAbsent(
+            hash, key -> FrameManifest.load(this.tempDir.resolve("data").resolve(key), NUMBER_OF_FRAMES));
+        Files.createDirectories(manifest.getDirectory());
+        for (int frameIndex = 0; frameIndex < NUMBER_OF_FRAMES; ++frameIndex) {
+            final byte[] jpeg = new byte[FRAME_SIZE];
+            jpeg[0] = (byte) 0xFF;
+            jpeg[1] = (byte) 0xD8;
+            jpeg[FRAME_SIZE - 2] = (byte) 0xFF;
+            jpeg[FRAME_SIZE - 1] = (byte) 0xD9;
+            final Path stagedPath = Files.write(manifest.getDirectory().resolve("staged.jpg"), jpeg);
+            manifest.publish(frameIndex, stagedPath);
+            manager.onFramePublished(manifest, frameIndex);
+        }
+    }
+
+    private void useFrame(final FrameCacheManager manager,
+                          final String hash,
+                          final int frameIndex) throws IOException, InterruptedException {
+        // The frame is extracted, the wallpaper file is not read
+        manager.getFrame(new File("unused.heic"), hash, NUMBER_OF_FRAMES, frameIndex);
+    }
+}
@@ -0,0 +1,74 @@
+package ch.qligier.heicofawallpaper;
+
+import ch.qligier.heicofawallpaper.service.FileSystemService;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.function.Function;
+
+/**
+ * A benchmark of the file hashing, that compares the streamed {@link FileSystemService#sha256File(File)} with the
+ * former implementation reading the whole file in memory.
+ * <p>
+ * Usage: {@code HashBenchmark <file> [iterations]}.
+ *
+ * @author Quentin Ligier
+ **/
+public class HashBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final var file = new File(args.length > 0 ? args[0] :
+                                      "D:\\Programmation\\Java\\HeicOfAWallpaper\\src\\main\\resources\\heic\\Catalina.heic");
+        final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        // Warm-up both paths
+        readAllBytesSha256(file);
+        FileSystemService.sha256File(file);
+
+        run("readAllBytes", file, iterations, HashBenchmark::readAllBytesSha256);
+        run("streamed    ", file, iterations, FileSystemService::sha256File);
+    }
+
+    private static void run(final String name,
+                            final File file,
+                            final int iterations,
+                            final Function<File, String> hasher) {
+        final var threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().threadId();
+        final Runtime runtime = Runtime.getRuntime();
+
+        System.gc();
+        final long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        long peakHeap = heapBefore;
+        final long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            hasher.apply(file);
+            peakHeap = Math.max(peakHeap, runtime.totalMemory() - runtime.freeMemory());
+        }
+        final long elapsedNs = System.nanoTime() - start;
+        final long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        final double megabytes = (double) file.length() * iterations / (1024 * 1024);
+        System.out.printf("%s: %8.1f MB/s, %10d bytes allocated per hash, peak heap growth %d MB%n",
+                          name,
+                          megabytes / (elapsedNs / 1e9),
+                          allocated / iterations,
+                          (peakHeap - heapBefore) / (1024 * 1024));
+    }
+
+    /**
+     * The former implementation of {@link FileSystemService#sha256File(File)}.
+     */
+    private static String readAllBytesSha256(final File file) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(Files.readAllBytes(file.toPath())));
+        } catch (final Exception exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package ch.qligier.heicofawallpaper;
+
+import ch.qligier.heicofawallpaper.model.*;
+import ch.qligier.heicofawallpaper.service.LibraryCatalog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalTime;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the {@link LibraryCatalog} class.
+ *
+ * @author Quentin Ligier
+ **/
+class LibraryCatalogTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void storeAndLoad() throws IOException {
+        final Path catalogPath = this.tempDir.resolve("library.catalog");
+        final LibraryCatalog catalog = new LibraryCatalog(catalogPath);
+        catalog.load();
+        assertTrue(catalog.isEmpty());
+        catalog.put("aaaa", timeDefinition("Mojave \u00e9.heic"));
+        catalog.put("bbbb", solarDefinition("Catalina.heic"));
+
+        final LibraryCatalog reloaded = new LibraryCatalog(catalogPath);
+        reloaded.load();
+        final List<LibraryCatalog.Summary> summaries = reloaded.getSummaries();
+        assertEquals(2, summaries.size());
+        assertEquals("Mojave \u00e9.heic", summaries.get(0).filename());
+        assertEquals(Set.of(DynWallType.TIME), summaries.get(0).types());
+        assertEquals(Set.of(DynWallType.SOLAR, DynWallType.APPEARANCE), summaries.get(1).types());
+
+        final DynWallDefinition time = reloaded.getDefinition("aaaa");
+        assertNotNull(time);
+        assertEquals("aaaa", time.fileHash());
+        assertEquals(5120, time.width());
+        assertEquals(16, time.numberOfFrames());
+        assertEquals("YnBsaXN0MDA=", time.bplist());
+        assertNotNull(time.timePhases());
+        assertEquals(LocalTime.of(6, 30), time.timePhases().get(0).time());
+        assertEquals(3, time.timePhases().get(1).frameIndex());
+
+        final DynWallDefinition solar = reloaded.getDefinition("bbbb");
+        assertNotNull(solar);
+        assertEquals(new PhaseAppearance((short) 0, (short) 1), solar.appearancePhase());
+        assertEquals(new PhaseSolar((short) 1, -12.5f, 270f), solar.solarPhases().get(1));
+        assertNull(reloaded.getDefinition("cccc"));
+    }
+
+    @Test
+    void lastRecordWinsAndIncompleteRecordIsOverwritten() throws IOException {
+        final Path catalogPath = this.tempDir.resolve("library.catalog");
+        final LibraryCatalog catalog = new LibraryCatalog(catalogPath);
+        catalog.load();
+        catalog.put("aaaa", timeDefinition("Old.heic"));
+        catalog.put("aaaa", timeDefinition("New.heic"));
+        // A record that has not been written completely
+        Files.write(catalogPath, new byte[]{0, 0, 1, 0, 42}, StandardOpenOption.APPEND);
+
+        final LibraryCatalog reloaded = new LibraryCatalog(catalogPath);
+        reloaded.load();
+        assertEquals(1, reloaded.getSummaries().size());
+        assertEquals("New.heic", reloaded.getDefinition("aaaa").filename());
+
+        reloaded.put("bbbb", solarDefinition("Catalina.heic"));
+        final LibraryCatalog again = new LibraryCatalog(catalogPath);
+        again.load();
+        assertEquals(2, again.getDefinitions().size());
+        assertEquals("Catalina.heic", again.getDefinition("bbbb").filename());
+    }
+
+    @Test
+    void invalidDetailsAreNotReturned() throws IOException {
+        final Path catalogPath = this.tempDir.resolve("library.catalog");
+        final LibraryCatalog catalog = new LibraryCatalog(catalogPath);
+        catalog.load();
+        catalog.put("aaaa", timeDefinition("Mojave.heic"));
+        catalog.put("bbbb", solarDefinition("Catalina.heic"));
+        // The details of the first record are damaged: its time phase count, after the bplist, is now zero
+        try (final FileChannel details = FileChannel.open(this.tempDir.resolve("library.catalog.details"),
+                                                          StandardOpenOption.WRITE)) {
+            details.write(ByteBuffer.allocate(Short.BYTES), Integer.BYTES + "YnBsaXN0MDA=".length());
+        }
+
+        final LibraryCatalog reloaded = new LibraryCatalog(catalogPath);
+        reloaded.load();
+        assertEquals(2, reloaded.getSummaries().size());
+        assertNull(reloaded.getDefinition("aaaa"));
+        assertEquals(List.of("Catalina.heic"),
+                     reloaded.getDefinitions().stream().map(DynWallDefinition::filename).toList());
+    }
+
+    @Test
+    void replacedRecordsAreCompacted() throws IOException {
+        final Path catalogPath = this.tempDir.resolve("library.catalog");
+        final LibraryCatalog catalog = new LibraryCatalog(catalogPath, 2);
+        catalog.load();
+        catalog.put("aaaa", timeDefinition("Old.heic"));
+        catalog.put("bbbb", solarDefinition("Catalina.heic"));
+        catalog.put("aaaa", timeDefinition("Older.heic"));
+        catalog.put("aaaa", timeDefinition("New.heic"));
+        final long size = Files.size(catalogPath);
+
+        // Two replaced records are kept
+        final LibraryCatalog kept = new LibraryCatalog(catalogPath, 2);
+        kept.load();
+        assertEquals(size, Files.size(catalogPath));
+
+        kept.put("bbbb", solarDefinition("Catalina 2.heic"));
+        final LibraryCatalog compacted = new LibraryCatalog(catalogPath, 2);
+        compacted.load();
+        assertTrue(Files.size(catalogPath) < size);
+        assertEquals(List.of("New.heic", "Catalina 2.heic"),
+                     compacted.getSummaries().stream().map(LibraryCatalog.Summary::filename).toList());
+        assertEquals(LocalTime.of(6, 30), compacted.getDefinition("aaaa").timePhases().get(0).time());
+        assertEquals(new PhaseSolar((short) 1, -12.5f, 270f), compacted.getDefinition("bbbb").solarPhases().get(1));
+
+        // The compacted catalog is appended as usual
+        compacted.put("cccc", timeDefinition("Mojave.heic"));
+        final LibraryCatalog reloaded = new LibraryCatalog(catalogPath, 2);
+        reloaded.load();
+        assertEquals(3, reloaded.getDefinitions().size());
+        assertEquals("Mojave.heic", reloaded.getDefinition("cccc").filename());
+        assertEquals("Catalina 2.heic", reloaded.getDefinition("bbbb").filename());
+    }
+
+    private static CachedDynWallDefinition timeDefinition(final String filename) {
+        return new CachedDynWallDefinition((short) 2880,
+                                           (short) 5120,
+                                           filename,
+                                           "YnBsaXN0MDA=",
+                                           (short) 16,
+                                           null,
+                                           null,
+                                           List.of(new PhaseTime((short) 3, LocalTime.of(18, 0)),
+                                                   new PhaseTime((short) 0, LocalTime.of(6, 30))));
+    }
+
+    private static CachedDynWallDefinition solarDefinition(final String filename) {
+        return new CachedDynWallDefinition((short) 1080,
+                                           (short) 1920,
+                                           filename,
+                                           "YnBsaXN0MDA=",
+                                           (short) 2,
+                                           new PhaseAppearance((short) 0, (short) 1),
+                                           List.of(new PhaseSolar((short) 0, 45f, 180f),
+                                                   new PhaseSolar((short) 1, -12.5f, 270f)),
+                                           null);
+    }
+}
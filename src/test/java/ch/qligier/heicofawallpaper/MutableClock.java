@@ -0,0 +1,49 @@
+package ch.qligier.heicofawallpaper;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+
+/**
+ * A clock whose instant is set by the tests.
+ *
+ * @author Quentin Ligier
+ **/
+class MutableClock extends Clock {
+
+    private final ZoneId zone;
+
+    private volatile Instant instant;
+
+    MutableClock(final Instant instant, final ZoneId zone) {
+        this.instant = instant;
+        this.zone = zone;
+    }
+
+    /**
+     * Moves the clock forward or backward.
+     */
+    void advance(final Duration duration) {
+        this.instant = this.instant.plus(duration);
+    }
+
+    void setInstant(final Instant instant) {
+        this.instant = instant;
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return this.zone;
+    }
+
+    @Override
+    public Clock withZone(final ZoneId zone) {
+        return new MutableClock(this.instant, zone);
+    }
+
+    @Override
+    public Instant instant() {
+        return this.instant;
+    }
+}
@@ -0,0 +1,146 @@
+package ch.qligier.heicofawallpaper;
+
+import ch.qligier.heicofawallpaper.model.DynWallType;
+import ch.qligier.heicofawallpaper.service.PhaseEvaluator;
+import ch.qligier.heicofawallpaper.service.PhasePlan;
+import ch.qligier.heicofawallpaper.utils.SolarCalculator;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+import static ch.qligier.heicofawallpaper.TestDefinitions.CATALINA;
+import static ch.qligier.heicofawallpaper.TestDefinitions.MOJAVE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the {@link PhasePlan} and {@link PhaseEvaluator} classes.
+ *
+ * @author Quentin Ligier
+ **/
+class PhasePlanTest {
+
+    private static final PhasePlan PLAN = PhasePlan.compile(MOJAVE);
+
+    private static final PhasePlan SOLAR_PLAN = PhasePlan.compile(CATALINA);
+
+    private static final ZoneId ZURICH = ZoneId.of("Europe/Zurich");
+
+    @Test
+    void evaluateTime() {
+        // The frame of the last phase that has started, not the first one
+        assertEquals(1, PLAN.evaluateTime(LocalTime.of(12, 0).toSecondOfDay()));
+        assertEquals(2, PLAN.evaluateTime(LocalTime.of(23, 0).toSecondOfDay()));
+        assertEquals(0, PLAN.evaluateTime(LocalTime.of(2, 30).toSecondOfDay()));
+        // Before the first phase, the last phase of the previous day goes on
+        assertEquals(2, PLAN.evaluateTime(LocalTime.of(1, 0).toSecondOfDay()));
+        assertEquals(3, PLAN.evaluateAppearance(true));
+        assertEquals(0, PLAN.evaluateAppearance(false));
+    }
+
+    @Test
+    void nextTimeTransition() {
+        assertEquals(LocalTime.of(8, 0).toSecondOfDay(),
+                     PLAN.getNextTimeTransition(LocalTime.of(2, 30).toSecondOfDay()));
+        assertEquals(LocalTime.of(20, 0).toSecondOfDay(),
+                     PLAN.getNextTimeTransition(LocalTime.of(19, 59, 59).toSecondOfDay()));
+        // After the last phase, the next transition is the first phase of the next day
+        assertEquals(LocalTime.of(2, 30).toSecondOfDay(),
+                     PLAN.getNextTimeTransition(LocalTime.of(20, 0).toSecondOfDay()));
+    }
+
+    @Test
+    void solarPosition() {
+        // The solar noon of the summer solstice in Zurich, at 13:27 CEST
+        final long noon = ZonedDateTime.of(2024, 6, 21, 13, 27, 0, 0, ZURICH).toInstant().toEpochMilli();
+        final SolarCalculator.Position position = SolarCalculator.computePosition(noon, 47.37, 8.54);
+        assertEquals(90 - 47.37 + 23.44, position.elevation(), 0.1);
+        assertEquals(180, position.azimuth(), 1);
+        // The sunrise, at 5:29 CEST, in the north-east
+        final long sunrise = ZonedDateTime.of(2024, 6, 21, 5, 29, 0, 0, ZURICH).toInstant().toEpochMilli();
+        final SolarCalculator.Position rising = SolarCalculator.computePosition(sunrise, 47.37, 8.54);
+        assertEquals(-0.3, rising.elevation(), 0.5);
+        assertEquals(54, rising.azimuth(), 2);
+    }
+
+    @Test
+    void evaluateSolar() {
+        final PhaseEvaluator evaluator = new PhaseEvaluator(ZURICH);
+        evaluator.setLocation(47.37, 8.54);
+        final ZonedDateTime midnight = ZonedDateTime.of(2024, 6, 21, 0, 0, 0, 0, ZURICH);
+        assertEquals(0, evaluator.evaluateFrame(SOLAR_PLAN, DynWallType.SOLAR, midnight.toInstant().toEpochMilli()));
+        assertEquals(1, evaluator.evaluateFrame(SOLAR_PLAN, DynWallType.SOLAR,
+                                                midnight.withHour(7).toInstant().toEpochMilli()));
+        assertEquals(2, evaluator.evaluateFrame(SOLAR_PLAN, DynWallType.SOLAR,
+                                                midnight.withHour(13).toInstant().toEpochMilli()));
+
+        // The frames change at each transition, and only then
+        long instant = midnight.toInstant().toEpochMilli();
+        final long end = midnight.plusDays(1).toInstant().toEpochMilli();
+        int transitions = 0;
+        short frame = evaluator.evaluateFrame(SOLAR_PLAN, DynWallType.SOLAR, instant);
+        while (true) {
+            final long next = evaluator.getNextSolarTransition(SOLAR_PLAN, instant);
+            assertEquals(frame, evaluator.evaluateFrame(SOLAR_PLAN, DynWallType.SOLAR, next - 1000));
+            if (next >= end) {
+                break;
+            }
+            final short nextFrame = evaluator.evaluateFrame(SOLAR_PLAN, DynWallType.SOLAR, next);
+            assertTrue(nextFrame != frame);
+            frame = nextFrame;
+            instant = next;
+            ++transitions;
+        }
+        // From the night to the morning, the day, and the night again
+        assertEquals(3, transitions);
+    }
+
+    @Test
+    void secondOfDayAcrossOffsetChange() {
+        final PhaseEvaluator evaluator = new PhaseEvaluator(ZURICH);
+        final ZonedDateTime beforeShift = ZonedDateTime.of(2024, 3, 31, 1, 59, 0, 0, ZURICH);
+        assertEquals(LocalTime.of(1, 59).toSecondOfDay(),
+                     evaluator.getSecondOfDay(beforeShift.toInstant().toEpochMilli()));
+        assertEquals(LocalTime.of(3, 1).toSecondOfDay(),
+                     evaluator.getSecondOfDay(beforeShift.plusMinutes(2).toInstant().toEpochMilli()));
+        // Going back in time
+        assertEquals(LocalTime.of(1, 59).toSecondOfDay(),
+                     evaluator.getSecondOfDay(beforeShift.toInstant().toEpochMilli()));
+    }
+
+    @Test
+    void steadyStateEvaluationDoesNotAllocate() {
+        final com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().threadId();
+        final PhaseEvaluator evaluator = new PhaseEvaluator(ZURICH);
+        final long start = ZonedDateTime.of(2024, 6, 1, 0, 0, 0, 0, ZURICH).toInstant().toEpochMilli();
+
+        // Warm up the evaluation, the offset cache and the allocation measurement
+        long checksum = evaluate(evaluator, start);
+        threadBean.getThreadAllocatedBytes(threadId);
+
+        final long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+        checksum += evaluate(evaluator, start);
+        final long allocatedAfter = threadBean.getThreadAllocatedBytes(threadId);
+
+        assertEquals(0, allocatedAfter - allocatedBefore);
+        // The evaluations have been used
+        assertTrue(checksum > 0);
+    }
+
+    private static long evaluate(final PhaseEvaluator evaluator, final long start) {
+        long checksum = 0;
+        // One evaluation per second of the day
+        for (long i = 0; i < 86_400; ++i) {
+            evaluator.setLightThemeEnabled((i & 1) == 0);
+            checksum += evaluator.evaluateFrame(PLAN, DynWallType.TIME, start + i * 1000);
+            checksum += evaluator.evaluateFrame(PLAN, DynWallType.APPEARANCE, start + i * 1000);
+            checksum += evaluator.evaluateFrame(SOLAR_PLAN, DynWallType.SOLAR, start + i * 1000);
+        }
+        return checksum;
+    }
+}
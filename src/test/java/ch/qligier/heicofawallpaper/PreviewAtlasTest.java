@@ -0,0 +1,87 @@
+package ch.qligier.heicofawallpaper;
+
+import ch.qligier.heicofawallpaper.service.PreviewAtlas;
+import ch.qligier.heicofawallpaper.utils.heic.PreviewGenerator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the {@link PreviewAtlas} class.
+ *
+ * @author Quentin Ligier
+ **/
+class PreviewAtlasTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void putAndReloadWithDamagedIndex() throws IOException {
+        final PreviewAtlas atlas = new PreviewAtlas(this.tempDir);
+        atlas.load();
+        atlas.put("aaaa", preview(0x112233));
+        atlas.put("bbbb", preview(0x445566));
+        assertEquals(new PreviewAtlas.Slot(0, PreviewGenerator.WIDTH, 0), atlas.getSlot("bbbb"));
+
+        // An invalid line, and a line cut by a crash
+        Files.writeString(this.tempDir.resolve("index.txt"), "cccc x\ndddd 7",
+                          StandardCharsets.US_ASCII, StandardOpenOption.APPEND);
+        final PreviewAtlas reloaded = new PreviewAtlas(this.tempDir);
+        reloaded.load();
+        assertTrue(reloaded.contains("aaaa"));
+        assertTrue(reloaded.contains("bbbb"));
+        assertFalse(reloaded.contains("cccc"));
+        assertFalse(reloaded.contains("dddd"));
+
+        // The new slot doesn't overwrite a used one
+        reloaded.put("eeee", preview(0x778899));
+        assertEquals(new PreviewAtlas.Slot(0, 2 * PreviewGenerator.WIDTH, 0), reloaded.getSlot("eeee"));
+        final IntBuffer pixels = reloaded.getPagePixels(0);
+        assertEquals(0xFF112233, pixels.get(0));
+        assertEquals(0xFF445566, pixels.get(PreviewGenerator.WIDTH));
+        assertEquals(0xFF778899, pixels.get(2 * PreviewGenerator.WIDTH + PreviewAtlas.PAGE_WIDTH));
+    }
+
+    @Test
+    void slotIsRecordedOnceTheWriterHasWrittenIt() throws IOException {
+        final PreviewAtlas atlas = new PreviewAtlas(this.tempDir);
+        atlas.load();
+        // The writer defers the writes, as the JavaFX application thread does
+        final List<Runnable> writes = new ArrayList<>(1);
+        atlas.setSlotWriter((slot, write) -> writes.add(write));
+        atlas.put("aaaa", preview(0x112233));
+        assertEquals(1, writes.size());
+        assertFalse(atlas.contains("aaaa"));
+        assertEquals(0, atlas.getPagePixels(0).get(0));
+
+        writes.get(0).run();
+        assertTrue(atlas.contains("aaaa"));
+        assertEquals(0xFF112233, atlas.getPagePixels(0).get(0));
+        final PreviewAtlas reloaded = new PreviewAtlas(this.tempDir);
+        reloaded.load();
+        assertEquals(new PreviewAtlas.Slot(0, 0, 0), reloaded.getSlot("aaaa"));
+    }
+
+    private static BufferedImage preview(final int rgb) {
+        final BufferedImage image = new BufferedImage(PreviewGenerator.WIDTH, PreviewGenerator.HEIGHT,
+                                                      BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < image.getHeight(); ++y) {
+            for (int x = 0; x < image.getWidth(); ++x) {
+                image.setRGB(x, y, rgb);
+            }
+        }
+        return image;
+    }
+}
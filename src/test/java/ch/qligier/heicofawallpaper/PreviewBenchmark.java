@@ -0,0 +1,170 @@
+package ch.qligier.heicofawallpaper;
+
+import ch.qligier.heicofawallpaper.model.DynWallDefinition;
+import ch.qligier.heicofawallpaper.service.FileSystemService;
+import ch.qligier.heicofawallpaper.utils.heic.PreviewGenerator;
+import ch.qligier.heicofawallpaper.utils.image.RasterPool;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * A benchmark of the preview generation, that compares the raster compositing engine with the former implementation
+ * based on {@link Graphics2D} clips and {@link Image#getScaledInstance(int, int, int)}.
+ * <p>
+ * The frames are synthesized in a temporary directory. Usage: {@code PreviewBenchmark [width] [height] [frames]
+ * [iterations]}.
+ *
+ * @author Quentin Ligier
+ **/
+public class PreviewBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final short width = args.length > 0 ? Short.parseShort(args[0]) : 5120;
+        final short height = args.length > 1 ? Short.parseShort(args[1]) : 2880;
+        final short frames = args.length > 2 ? Short.parseShort(args[2]) : 16;
+        final int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        final Path directory = Files.createTempDirectory("preview-benchmark");
+        try {
+            for (short frameIndex = 0; frameIndex < Math.min(frames, 6); ++frameIndex) {
+                writeFrame(directory, frameIndex, width, height);
+            }
+            final var wallpaper = new DynWallDefinition(height, width, "benchmark", "benchmark.heic", "", frames, null,
+                                                        null, null);
+
+            // Warm-up both paths
+            for (int i = 0; i < 2; ++i) {
+                legacyGenerate(wallpaper, directory);
+                PreviewGenerator.generate(wallpaper, directory);
+            }
+            final BufferedImage legacy = run("Graphics2D", iterations, () -> legacyGenerate(wallpaper, directory));
+            final BufferedImage raster = run("raster    ", iterations,
+                                             () -> PreviewGenerator.generate(wallpaper, directory));
+            final double[] difference = difference(legacy, raster);
+            System.out.printf("Channel difference: mean %.2f, maximum %.0f%n", difference[0], difference[1]);
+            System.out.println("Raster pool: " + RasterPool.shared().getMetrics());
+        } finally {
+            try (final Stream<Path> paths = Files.walk(directory)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static BufferedImage run(final String name,
+                                     final int iterations,
+                                     final Generator generator) throws Exception {
+        final var threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().threadId();
+
+        BufferedImage preview = null;
+        long bestNs = Long.MAX_VALUE;
+        long totalNs = 0;
+        final long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < iterations; ++i) {
+            final long start = System.nanoTime();
+            preview = generator.generate();
+            final long elapsedNs = System.nanoTime() - start;
+            bestNs = Math.min(bestNs, elapsedNs);
+            totalNs += elapsedNs;
+        }
+        final long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        System.out.printf("%s: best %5d ms, average %5d ms, %6d kB allocated per preview by the calling thread%n",
+                          name,
+                          bestNs / 1_000_000,
+                          totalNs / iterations / 1_000_000,
+                          allocated / iterations / 1024);
+        return preview;
+    }
+
+    /**
+     * Writes a synthetic frame, with gradients and a frame-dependent tint.
+     */
+    private static void writeFrame(final Path directory,
+                                   final short frameIndex,
+                                   final short width,
+                                   final short height) throws Exception {
+        final var image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D graphics = image.createGraphics();
+        graphics.setPaint(new GradientPaint(0, 0, new Color(40 * frameIndex, 60, 200 - 30 * frameIndex),
+                                            width, height, new Color(255 - 40 * frameIndex, 180, 20 * frameIndex)));
+        graphics.fillRect(0, 0, width, height);
+        graphics.setColor(Color.WHITE);
+        for (int x = 0; x < width; x += 97) {
+            graphics.drawLine(x, 0, x + height / 3, height);
+        }
+        graphics.dispose();
+        ImageIO.write(image, "jpg",
+                      directory.resolve(String.format(FileSystemService.FRAME_FILE_NAME_FORMAT, frameIndex)).toFile());
+    }
+
+    /**
+     * Returns the mean and the maximum difference of the channels of two images.
+     */
+    private static double[] difference(final BufferedImage first, final BufferedImage second) {
+        long sum = 0;
+        int max = 0;
+        for (int y = 0; y < first.getHeight(); ++y) {
+            for (int x = 0; x < first.getWidth(); ++x) {
+                final int a = first.getRGB(x, y);
+                final int b = second.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    final int difference = Math.abs(((a >> shift) & 0xFF) - ((b >> shift) & 0xFF));
+                    sum += difference;
+                    max = Math.max(max, difference);
+                }
+            }
+        }
+        return new double[]{(double) sum / (3 * first.getWidth() * first.getHeight()), max};
+    }
+
+    /**
+     * The former preview generation: full frames drawn through polygon clips, then an area-averaging rescale.
+     */
+    private static BufferedImage legacyGenerate(final DynWallDefinition wallpaper,
+                                                final Path directory) throws Exception {
+        final int width = PreviewGenerator.WIDTH;
+        final int height = PreviewGenerator.HEIGHT;
+        final float previewRatio = (float) width / height;
+        final int croppedWidth = Math.min(wallpaper.width(), Math.round(previewRatio * wallpaper.height()));
+        final int croppedHeight = Math.min(wallpaper.height(), Math.round(wallpaper.width() / previewRatio));
+        final int minX = (wallpaper.width() - croppedWidth) / 2;
+        final int minY = (wallpaper.height() - croppedHeight) / 2;
+        final int maxX = minX + croppedWidth;
+        final int maxY = minY + croppedHeight;
+
+        final BufferedImage image = ImageIO.read(directory.resolve(
+            String.format(FileSystemService.FRAME_FILE_NAME_FORMAT, 0)).toFile());
+        final Graphics2D graphics = image.createGraphics();
+        final int frames = Math.min(wallpaper.numberOfFrames(), 6);
+        final int frameWidth = Math.round((1f / frames) * croppedWidth);
+        final int deltaX = Math.round(0.08f * croppedWidth);
+        for (int frameIndex = 1; frameIndex < frames; ++frameIndex) {
+            final int boundaryX = frameIndex * frameWidth + minX;
+            graphics.setClip(new Polygon(new int[]{boundaryX + deltaX, boundaryX - deltaX, maxX, maxX},
+                                         new int[]{minY, maxY, maxY, minY},
+                                         4));
+            graphics.drawImage(ImageIO.read(directory.resolve(
+                String.format(FileSystemService.FRAME_FILE_NAME_FORMAT, frameIndex)).toFile()), 0, 0, null);
+        }
+        graphics.dispose();
+
+        final BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D thumbnailGraphics = thumbnail.createGraphics();
+        thumbnailGraphics.drawImage(image.getSubimage(minX, minY, croppedWidth, croppedHeight)
+                                        .getScaledInstance(width, height, Image.SCALE_AREA_AVERAGING), 0, 0, null);
+        thumbnailGraphics.dispose();
+        return thumbnail;
+    }
+
+    @FunctionalInterface
+    private interface Generator {
+        BufferedImage generate() throws Exception;
+    }
+}
@@ -0,0 +1,81 @@
+package ch.qligier.heicofawallpaper;
+
+import ch.qligier.heicofawallpaper.service.PreviewAtlas;
+import ch.qligier.heicofawallpaper.service.PreviewScheduler;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the {@link PreviewScheduler} class.
+ *
+ * @author Quentin Ligier
+ **/
+class PreviewSchedulerTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void admissionStaysInBudget() throws Exception {
+        final var scheduler = new PreviewScheduler(new PreviewAtlas(this.tempDir), 1000 * 1024, 1);
+        final AtomicInteger usedKb = new AtomicInteger();
+        final AtomicInteger peakKb = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+        final ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<?>> futures = new ArrayList<>(25);
+            for (int i = 0; i < 24; ++i) {
+                // Only three generations of 300 kB fit in the budget of 1000 kB at once
+                futures.add(threads.submit(() -> admit(scheduler, 300, usedKb, peakKb, completed)));
+            }
+            // A generation larger than the budget runs alone
+            futures.add(threads.submit(() -> admit(scheduler, 5000, usedKb, peakKb, completed)));
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            threads.shutdownNow();
+            scheduler.close();
+        }
+        assertEquals(25, completed.get());
+        assertEquals(1000, peakKb.get());
+        assertEquals(0, usedKb.get());
+        final PreviewScheduler.Metrics metrics = scheduler.getMetrics();
+        assertEquals(25, metrics.generated());
+        assertEquals(0, metrics.failed());
+        assertEquals(1000, metrics.budgetKb());
+        assertTrue(metrics.peakUsedKb() <= metrics.budgetKb());
+    }
+
+    private static Void admit(final PreviewScheduler scheduler,
+                              final int costKb,
+                              final AtomicInteger usedKb,
+                              final AtomicInteger peakKb,
+                              final AtomicInteger completed) throws Exception {
+        scheduler.admit(costKb * 1024L, () -> {
+            // The cost is capped to the budget
+            final int admittedKb = Math.min(costKb, 1000);
+            final int nowUsedKb = usedKb.addAndGet(admittedKb);
+            assertTrue(nowUsedKb <= 1000, "The budget is exceeded: " + nowUsedKb + " kB");
+            peakKb.accumulateAndGet(nowUsedKb, Math::max);
+            try {
+                Thread.sleep(10);
+            } catch (final InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+            usedKb.addAndGet(-admittedKb);
+            completed.incrementAndGet();
+        });
+        return null;
+    }
+}
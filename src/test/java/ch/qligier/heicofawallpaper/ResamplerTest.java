@@ -0,0 +1,58 @@
+package ch.qligier.heicofawallpaper;
+
+import ch.qligier.heicofawallpaper.utils.image.Compositor;
+import ch.qligier.heicofawallpaper.utils.image.RasterPool;
+import ch.qligier.heicofawallpaper.utils.image.Resampler;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests of the {@link Resampler} and {@link Compositor} classes.
+ *
+ * @author Quentin Ligier
+ **/
+class ResamplerTest {
+
+    @Test
+    void downscaleKeepsUniformColors() {
+        final int[] source = new int[1920 * 1080];
+        Arrays.fill(source, 0x3C80F0);
+        final int[] target = new int[160 * 90];
+        Resampler.downscale(source, 1920, 1080, target, 160, 90, new RasterPool(0));
+        for (final int pixel : target) {
+            assertEquals(0x3C80F0, pixel);
+        }
+    }
+
+    @Test
+    void downscaleAveragesBlocks() {
+        // Alternating black and white columns give a mid gray
+        final int[] source = new int[64 * 16];
+        for (int i = 0; i < source.length; ++i) {
+            source[i] = (i % 2 == 0) ? 0xFFFFFF : 0x000000;
+        }
+        final int[] target = new int[4];
+        Resampler.downscale(source, 64, 16, target, 2, 2, new RasterPool(1024 * 1024));
+        for (final int pixel : target) {
+            assertEquals(0x80, pixel & 0xFF, 1);
+            assertEquals(pixel & 0xFF, (pixel >>> 8) & 0xFF);
+            assertEquals(pixel & 0xFF, (pixel >>> 16) & 0xFF);
+        }
+    }
+
+    @Test
+    void copyRightOfLine() {
+        final int[] canvas = new int[8 * 2];
+        final int[] layer = new int[8 * 2];
+        Arrays.fill(layer, 1);
+        // A vertical line at x = 4, then a diagonal from x = 6 to x = 2
+        Compositor.copyRightOfLine(layer, 8, 0, 8, 2, canvas, 8, 2, 4, 4);
+        assertEquals("[0, 0, 0, 0, 1, 1, 1, 1, 0, 0, 0, 0, 1, 1, 1, 1]", Arrays.toString(canvas));
+        Arrays.fill(canvas, 0);
+        Compositor.copyRightOfLine(layer, 8, 2, 4, 2, canvas, 8, 2, 6, 2);
+        assertEquals("[0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 1, 1, 1, 0, 0]", Arrays.toString(canvas));
+    }
+}
@@ -0,0 +1,76 @@
+package ch.qligier.heicofawallpaper;
+
+import ch.qligier.heicofawallpaper.model.DynWallDefinition;
+import ch.qligier.heicofawallpaper.model.PhaseAppearance;
+import ch.qligier.heicofawallpaper.model.PhaseSolar;
+import ch.qligier.heicofawallpaper.model.PhaseTime;
+import ch.qligier.heicofawallpaper.service.ScheduleSimulator;
+
+import java.time.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A benchmark of the schedule simulator, that simulates a year of synthetic wallpapers: a third of time wallpapers,
+ * a third of solar wallpapers, and a third of solar wallpapers with an appearance phase. Each has 16 phases.
+ * <p>
+ * Usage: {@code ScheduleBenchmark [wallpapers] [iterations]}.
+ *
+ * @author Quentin Ligier
+ **/
+public class ScheduleBenchmark {
+
+    public static void main(final String[] args) {
+        final int numberOfWallpapers = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        final List<DynWallDefinition> definitions = new ArrayList<>(numberOfWallpapers);
+        final Random random = new Random(42);
+        for (int i = 0; i < numberOfWallpapers; ++i) {
+            definitions.add(createDefinition(i, random));
+        }
+        final ZoneId zone = ZoneId.of("Europe/Zurich");
+        final Instant from = LocalDate.of(2024, 1, 1).atStartOfDay(zone).toInstant();
+        final Instant to = LocalDate.of(2025, 1, 1).atStartOfDay(zone).toInstant();
+
+        long bestNs = Long.MAX_VALUE;
+        long totalNs = 0;
+        int transitions = 0;
+        for (int i = 0; i < iterations; ++i) {
+            final var simulator = new ScheduleSimulator(Clock.system(zone), 47.37, 8.54, true);
+            final long start = System.nanoTime();
+            final List<ScheduleSimulator.Timeline> timelines = simulator.simulate(definitions, from, to);
+            final long elapsedNs = System.nanoTime() - start;
+            bestNs = Math.min(bestNs, elapsedNs);
+            totalNs += elapsedNs;
+            transitions = timelines.stream().mapToInt(ScheduleSimulator.Timeline::size).sum();
+        }
+        System.out.printf("%d wallpapers over a year: best %d ms, average %d ms, %d transitions%n",
+                          numberOfWallpapers,
+                          bestNs / 1_000_000,
+                          totalNs / iterations / 1_000_000,
+                          transitions);
+    }
+
+    /**
+     * Creates a synthetic definition with 16 phases.
+     */
+    private static DynWallDefinition createDefinition(final int index, final Random random) {
+        if (index % 3 == 0) {
+            final List<PhaseTime> timePhases = new ArrayList<>(16);
+            for (short frameIndex = 0; frameIndex < 16; ++frameIndex) {
+                timePhases.add(new PhaseTime(frameIndex, LocalTime.ofSecondOfDay(random.nextInt(86_400))));
+            }
+            return new DynWallDefinition((short) 2880, (short) 5120, "hash" + index, index + ".heic", "", (short) 16,
+                                         null, null, timePhases);
+        }
+        final List<PhaseSolar> solarPhases = new ArrayList<>(16);
+        for (short frameIndex = 0; frameIndex < 16; ++frameIndex) {
+            solarPhases.add(new PhaseSolar(frameIndex, random.nextFloat() * 140 - 70, random.nextFloat() * 360));
+        }
+        final PhaseAppearance appearancePhase = (index % 3 == 2) ? new PhaseAppearance((short) 0, (short) 15) : null;
+        return new DynWallDefinition((short) 2880, (short) 5120, "hash" + index, index + ".heic", "", (short) 16,
+                                     appearancePhase, solarPhases, null);
+    }
+}
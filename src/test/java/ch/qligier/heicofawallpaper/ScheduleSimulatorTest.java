@@ -0,0 +1,117 @@
+package ch.qligier.heicofawallpaper;
+
+import ch.qligier.heicofawallpaper.model.DynWallType;
+import ch.qligier.heicofawallpaper.service.PhaseEvaluator;
+import ch.qligier.heicofawallpaper.service.PhasePlan;
+import ch.qligier.heicofawallpaper.service.ScheduleSimulator;
+import org.junit.jupiter.api.Test;
+
+import java.time.*;
+import java.util.List;
+
+import static ch.qligier.heicofawallpaper.TestDefinitions.CATALINA;
+import static ch.qligier.heicofawallpaper.TestDefinitions.MOJAVE;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the {@link ScheduleSimulator} class, and of the {@link PhaseEvaluator} class through it.
+ *
+ * @author Quentin Ligier
+ **/
+class ScheduleSimulatorTest {
+
+    private static final ZoneId ZURICH = ZoneId.of("Europe/Zurich");
+
+    @Test
+    void timeTransitionsAcrossOffsetChange() {
+        final var simulator = new ScheduleSimulator(Clock.system(ZURICH), 47.37, 8.54, true);
+        final List<ScheduleSimulator.Timeline> timelines = simulator.simulate(
+            List.of(MOJAVE),
+            Instant.parse("2024-03-29T23:00:00Z"),
+            Instant.parse("2024-03-31T22:00:00Z"));
+        assertEquals(2, timelines.size());
+        assertEquals(List.of(transition("2024-03-29T23:00:00Z", 3)),
+                     find(timelines, DynWallType.APPEARANCE).getTransitions());
+        assertEquals(List.of(transition("2024-03-29T23:00:00Z", 2),
+                             transition("2024-03-30T01:30:00Z", 0),
+                             transition("2024-03-30T07:00:00Z", 1),
+                             transition("2024-03-30T19:00:00Z", 2),
+                             // 02:30 doesn't exist, the local time jumps from 02:00 to 03:00 over it
+                             transition("2024-03-31T01:00:00Z", 0),
+                             transition("2024-03-31T06:00:00Z", 1),
+                             transition("2024-03-31T18:00:00Z", 2)),
+                     find(timelines, DynWallType.TIME).getTransitions());
+    }
+
+    @Test
+    void timelinesMatchEvaluator() {
+        // Both offset changes of the year, and the summer solstice
+        for (final LocalDate date : List.of(LocalDate.of(2024, 3, 30),
+                                            LocalDate.of(2024, 6, 20),
+                                            LocalDate.of(2024, 10, 26))) {
+            final Instant from = date.atStartOfDay(ZURICH).toInstant();
+            final Instant to = date.plusDays(2).atStartOfDay(ZURICH).toInstant();
+            final var simulator = new ScheduleSimulator(Clock.system(ZURICH), 47.37, 8.54, false);
+            final List<ScheduleSimulator.Timeline> timelines = simulator.simulate(List.of(MOJAVE, CATALINA), from,
+                                                                                  to);
+            assertEquals(3, timelines.size());
+
+            for (final ScheduleSimulator.Timeline timeline : timelines) {
+                final PhaseEvaluator evaluator = new PhaseEvaluator(ZURICH);
+                evaluator.setLocation(47.37, 8.54);
+                final PhasePlan plan = PhasePlan.compile(timeline.getDefinition());
+                for (long instant = from.toEpochMilli(); instant < to.toEpochMilli(); instant += 30_000) {
+                    assertEquals(evaluator.evaluateFrame(plan, timeline.getType(), instant),
+                                 timeline.getFrameAt(Instant.ofEpochMilli(instant)));
+                }
+            }
+        }
+    }
+
+    @Test
+    void solarYearWithoutFlicker() {
+        final var simulator = new ScheduleSimulator(Clock.system(ZURICH), 47.37, 8.54, true);
+        final List<ScheduleSimulator.Timeline> timelines = simulator.simulate(
+            List.of(CATALINA),
+            LocalDate.of(2024, 1, 1).atStartOfDay(ZURICH).toInstant(),
+            LocalDate.of(2025, 1, 1).atStartOfDay(ZURICH).toInstant());
+        assertEquals(1, timelines.size());
+        final ScheduleSimulator.Timeline timeline = timelines.get(0);
+
+        // From the night to the morning, the day, and the night again, every day of the year
+        assertEquals(1 + 3 * 366, timeline.size());
+        for (int i = 1; i < timeline.size(); ++i) {
+            final ScheduleSimulator.Transition previous = timeline.getTransition(i - 1);
+            final ScheduleSimulator.Transition transition = timeline.getTransition(i);
+            assertNotEquals(previous.frameIndex(), transition.frameIndex());
+            assertTrue(Duration.between(previous.instant(), transition.instant()).toHours() >= 3);
+        }
+    }
+
+    @Test
+    void simulateUpcoming() {
+        final Instant now = Instant.parse("2024-03-30T12:00:00Z");
+        final var simulator = new ScheduleSimulator(Clock.fixed(now, ZURICH), null, null, true);
+        final ScheduleSimulator.Timeline time = find(simulator.simulateUpcoming(List.of(MOJAVE), Duration.ofDays(1)),
+                                                     DynWallType.TIME);
+        assertEquals(List.of(transition("2024-03-30T12:00:00Z", 1),
+                             transition("2024-03-30T19:00:00Z", 2),
+                             transition("2024-03-31T01:00:00Z", 0),
+                             transition("2024-03-31T06:00:00Z", 1)),
+                     time.getTransitions());
+        assertEquals(PhasePlan.NO_FRAME, time.getFrameAt(now.minusSeconds(1)));
+        assertEquals(2, time.getFrameAt(Instant.parse("2024-03-31T00:59:59Z")));
+
+        assertThrows(IllegalArgumentException.class,
+                     () -> simulator.simulateUpcoming(List.of(MOJAVE), Duration.ZERO));
+    }
+
+    private static ScheduleSimulator.Timeline find(final List<ScheduleSimulator.Timeline> timelines,
+                                                   final DynWallType type) {
+        return timelines.stream().filter(timeline -> timeline.getType() == type).findFirst().orElseThrow();
+    }
+
+    private static ScheduleSimulator.Transition transition(final String instant, final int frameIndex) {
+        return new ScheduleSimulator.Transition(Instant.parse(instant), (short) frameIndex);
+    }
+}
@@ -0,0 +1,51 @@
+package ch.qligier.heicofawallpaper;
+
+import ch.qligier.heicofawallpaper.service.StaticThemeSource;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the {@link StaticThemeSource} class.
+ *
+ * @author Quentin Ligier
+ **/
+class StaticThemeSourceTest {
+
+    @Test
+    void notifiesOnlyTheChanges() {
+        final List<Boolean> notifications = new ArrayList<>();
+        try (final var source = new StaticThemeSource(true)) {
+            // The changes that have been read before the start are not notified
+            source.setLightThemeEnabled(false);
+            assertFalse(source.isLightThemeEnabled());
+
+            source.start(notifications::add);
+            source.setLightThemeEnabled(false);
+            source.setLightThemeEnabled(true);
+            source.setLightThemeEnabled(true);
+            source.setLightThemeEnabled(false);
+            assertEquals(List.of(true, false), notifications);
+
+            source.close();
+            source.setLightThemeEnabled(true);
+            assertTrue(source.isLightThemeEnabled());
+            assertEquals(List.of(true, false), notifications);
+        }
+    }
+
+    @Test
+    void notifiesTheChangeSinceTheLastRead() {
+        final List<Boolean> notifications = new ArrayList<>();
+        try (final var source = new StaticThemeSource(true)) {
+            assertTrue(source.isLightThemeEnabled());
+            source.setLightThemeEnabled(false);
+
+            source.start(notifications::add);
+            assertEquals(List.of(false), notifications);
+        }
+    }
+}
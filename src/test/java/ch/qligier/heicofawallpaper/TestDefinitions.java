@@ -0,0 +1,55 @@
+package ch.qligier.heicofawallpaper;
+
+import ch.qligier.heicofawallpaper.model.DynWallDefinition;
+import ch.qligier.heicofawallpaper.model.PhaseAppearance;
+import ch.qligier.heicofawallpaper.model.PhaseSolar;
+import ch.qligier.heicofawallpaper.model.PhaseTime;
+
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The dynamic wallpaper definitions that are shared by the tests of the phases.
+ *
+ * @author Quentin Ligier
+ **/
+final class TestDefinitions {
+
+    /**
+     * A time wallpaper with an appearance phase, whose time phases are not sorted.
+     */
+    static final DynWallDefinition MOJAVE = new DynWallDefinition(
+        (short) 1080,
+        (short) 1920,
+        "aaaa",
+        "Mojave.heic",
+        "YnBsaXN0MDA=",
+        (short) 4,
+        new PhaseAppearance((short) 3, (short) 0),
+        null,
+        new ArrayList<>(List.of(new PhaseTime((short) 2, LocalTime.of(20, 0)),
+                                new PhaseTime((short) 0, LocalTime.of(2, 30)),
+                                new PhaseTime((short) 1, LocalTime.of(8, 0))))
+    );
+
+    /**
+     * A solar wallpaper, with a phase in the night, in the morning and at noon.
+     */
+    static final DynWallDefinition CATALINA = new DynWallDefinition(
+        (short) 1080,
+        (short) 1920,
+        "bbbb",
+        "Catalina.heic",
+        "YnBsaXN0MDA=",
+        (short) 3,
+        null,
+        List.of(new PhaseSolar((short) 0, -40f, 0f),
+                new PhaseSolar((short) 1, 5f, 90f),
+                new PhaseSolar((short) 2, 60f, 180f)),
+        null
+    );
+
+    private TestDefinitions() {
+    }
+}
@@ -0,0 +1,115 @@
+package ch.qligier.heicofawallpaper;
+
+import ch.qligier.heicofawallpaper.service.WallpaperScheduler;
+import org.junit.jupiter.api.Test;
+
+import java.time.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the {@link WallpaperScheduler} class, with a clock that only moves when the tests set it and sleeps capped
+ * to {@link #MAX_SLEEP}.
+ *
+ * @author Quentin Ligier
+ **/
+class WallpaperSchedulerTest {
+    private static final ZoneId ZURICH = ZoneId.of("Europe/Zurich");
+    private static final Duration MAX_SLEEP = Duration.ofMillis(100);
+
+    private final MutableClock clock = new MutableClock(Instant.parse("2024-06-01T10:00:00Z"), ZURICH);
+
+    private final AtomicInteger refreshes = new AtomicInteger();
+
+    @Test
+    void refreshesOnStartAndTriggers() throws Exception {
+        try (final WallpaperScheduler scheduler = this.createScheduler(now -> null)) {
+            scheduler.start();
+            waitFor(() -> this.refreshes.get() == 1);
+            assertNull(scheduler.getScheduledTransition());
+
+            scheduler.trigger("test");
+            waitFor(() -> this.refreshes.get() == 2);
+            assertEquals(1, scheduler.getMetrics().triggers());
+            assertEquals(0, scheduler.getMetrics().clockJumps());
+        }
+    }
+
+    @Test
+    void refreshesOnTransition() throws Exception {
+        final Instant transition = this.clock.instant().plusSeconds(1);
+        try (final WallpaperScheduler scheduler = this.createScheduler(
+            now -> now.toInstant().isBefore(transition) ? transition : null)) {
+            scheduler.start();
+            waitForSleep(scheduler);
+            assertEquals(transition, scheduler.getScheduledTransition());
+            assertEquals(1, this.refreshes.get());
+
+            // The clock moves by less than the jump tolerance
+            this.clock.advance(Duration.ofSeconds(1));
+            waitFor(() -> this.refreshes.get() == 2);
+            waitFor(() -> scheduler.getScheduledTransition() == null);
+            assertEquals(0, scheduler.getMetrics().clockJumps());
+        }
+    }
+
+    @Test
+    void capsTheSleepsUntilADistantTransition() throws Exception {
+        final Instant transition = this.clock.instant().plus(Duration.ofHours(1));
+        try (final WallpaperScheduler scheduler = this.createScheduler(now -> transition)) {
+            scheduler.start();
+            // Each capped sleep only checks the wall clock
+            waitFor(() -> scheduler.getMetrics().wakeups() >= 3);
+            assertEquals(1, this.refreshes.get());
+            assertEquals(transition, scheduler.getScheduledTransition());
+        }
+    }
+
+    @Test
+    void refreshesOnClockJumpAndOffsetChange() throws Exception {
+        try (final WallpaperScheduler scheduler = this.createScheduler(now -> now.toInstant().plusSeconds(3600))) {
+            scheduler.start();
+            waitForSleep(scheduler);
+
+            // As after a hibernation, the wall clock jumps by 10 minutes while the monotonic clock doesn't
+            this.clock.advance(Duration.ofMinutes(10));
+            waitFor(() -> this.refreshes.get() == 2);
+            waitForSleep(scheduler);
+            assertEquals(1, scheduler.getMetrics().clockJumps());
+
+            // The daylight saving time ends at 01:00 UTC, the offset changes without a jump
+            this.clock.setInstant(Instant.parse("2024-10-27T00:59:59.500Z"));
+            waitFor(() -> this.refreshes.get() == 3);
+            waitForSleep(scheduler);
+            assertEquals(2, scheduler.getMetrics().clockJumps());
+            this.clock.advance(Duration.ofSeconds(1));
+            waitFor(() -> this.refreshes.get() == 4);
+            assertEquals(3, scheduler.getMetrics().clockJumps());
+        }
+    }
+
+    private WallpaperScheduler createScheduler(final WallpaperScheduler.NextTransition nextTransition) {
+        return new WallpaperScheduler(this.refreshes::incrementAndGet, nextTransition, this.clock, MAX_SLEEP);
+    }
+
+    /**
+     * Waits until the scheduler has woken up from a capped sleep, so that it's sleeping since the last refresh.
+     */
+    private static void waitForSleep(final WallpaperScheduler scheduler) throws InterruptedException {
+        final long wakeups = scheduler.getMetrics().wakeups();
+        waitFor(() -> scheduler.getMetrics().wakeups() > wakeups);
+    }
+
+    /**
+     * Waits until a condition is met, or fails after 10 seconds.
+     */
+    private static void waitFor(final BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "The condition has not been met in time");
+            Thread.sleep(10);
+        }
+    }
+}
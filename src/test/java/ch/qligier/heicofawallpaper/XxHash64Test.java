@@ -0,0 +1,54 @@
+package ch.qligier.heicofawallpaper;
+
+import ch.qligier.heicofawallpaper.utils.XxHash64;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests of the {@link XxHash64} class, with the reference values of the xxHash implementation.
+ *
+ * @author Quentin Ligier
+ **/
+class XxHash64Test {
+
+    @Test
+    void hash() {
+        assertEquals(0xEF46DB3751D8E999L, hash(""));
+        assertEquals(0xD24EC4F1A98C6E5BL, hash("a"));
+        assertEquals(0x44BC2CF5AD770999L, hash("abc"));
+        assertEquals(0xFBCEA83C8A378BF1L, hash("Nobody inspects the spammish repetition"));
+    }
+
+    @Test
+    void hashIgnoresBytesOutsideTheRemainingRange() {
+        final ByteBuffer buffer = ByteBuffer.wrap("__abc__".getBytes(StandardCharsets.US_ASCII));
+        buffer.position(2).limit(5);
+        assertEquals(0x44BC2CF5AD770999L, XxHash64.hash(buffer, 0));
+        assertEquals(2, buffer.position());
+    }
+
+    @Test
+    void streamingHashMatchesTheHash() {
+        final byte[] input = new byte[1000];
+        for (int i = 0; i < input.length; ++i) {
+            input[i] = (byte) (i * 31 + 7);
+        }
+        final long expected = XxHash64.hash(ByteBuffer.wrap(input), 42);
+        for (final int chunkSize : new int[]{1, 5, 32, 33, 1000}) {
+            final XxHash64.Streaming streaming = new XxHash64.Streaming(42);
+            for (int from = 0; from < input.length; from += chunkSize) {
+                streaming.update(ByteBuffer.wrap(input, from, Math.min(chunkSize, input.length - from)));
+            }
+            assertEquals(expected, streaming.digest());
+        }
+        assertEquals(0xEF46DB3751D8E999L, new XxHash64.Streaming(0).digest());
+    }
+
+    private static long hash(final String input) {
+        return XxHash64.hash(ByteBuffer.wrap(input.getBytes(StandardCharsets.US_ASCII)), 0);
+    }
+}
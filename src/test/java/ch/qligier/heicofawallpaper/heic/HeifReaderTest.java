@@ -0,0 +1,165 @@
+package ch.qligier.heicofawallpaper.heic;
+
+import ch.qligier.heicofawallpaper.exception.InvalidDynamicWallpaperException;
+import ch.qligier.heicofawallpaper.utils.heic.HeifContainer;
+import ch.qligier.heicofawallpaper.utils.heic.HeifMetadata;
+import ch.qligier.heicofawallpaper.utils.heic.HeifReader;
+import ch.qligier.heicofawallpaper.utils.heic.ThumbnailExtractor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the {@link HeifReader} class, on a synthetic HEIF file.
+ *
+ * @author Quentin Ligier
+ **/
+class HeifReaderTest {
+
+    private static final String XMP = """
+        <x:xmpmeta xmlns:x="adobe:ns:meta/"><rdf:RDF xmlns:rdf="http://www.w3.org/1999/02/22-rdf-syntax-ns#">
+        <rdf:Description rdf:about="" xmlns:apple_desktop="http://ns.apple.com/namespace/1.0/"
+         apple_desktop:apr="YnBsaXN0MDDS">
+        <apple_desktop:h24>YnBsaXN0
+         MDDSAQID</apple_desktop:h24>
+        </rdf:Description></rdf:RDF></x:xmpmeta>""";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void readMetadata() throws IOException, InvalidDynamicWallpaperException {
+        final Path file = this.tempDir.resolve("wallpaper.heic");
+        Files.write(file, buildHeif(XMP.getBytes(StandardCharsets.UTF_8)));
+
+        final HeifMetadata metadata = HeifReader.readMetadata(file);
+        assertEquals(6016, metadata.width());
+        assertEquals(4000, metadata.height());
+        assertEquals(2, metadata.numberOfFrames());
+        assertNull(metadata.solarBplist());
+        assertEquals("YnBsaXN0MDDSAQID", metadata.h24Bplist());
+        assertEquals("YnBsaXN0MDDS", metadata.aprBplist());
+    }
+
+    @Test
+    void readMetadataOfInvalidFile() throws IOException {
+        final Path file = this.tempDir.resolve("invalid.heic");
+        Files.write(file, box("mdat", new byte[64]));
+        assertThrows(InvalidDynamicWallpaperException.class, () -> HeifReader.readMetadata(file));
+    }
+
+    @Test
+    void wrapThumbnail() throws IOException, InvalidDynamicWallpaperException {
+        final Path file = this.tempDir.resolve("wallpaper.heic");
+        Files.write(file, buildHeif(XMP.getBytes(StandardCharsets.UTF_8)));
+        final HeifContainer container;
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            container = HeifReader.readContainer(channel);
+        }
+        assertEquals(Integer.valueOf(4), container.getThumbnailId(1));
+        assertNull(container.getThumbnailId(2));
+
+        // The thumbnail is wrapped in a HEIF file of its own, with its properties and data
+        final Path wrapped = this.tempDir.resolve("thumbnail.heic");
+        Files.write(wrapped, ThumbnailExtractor.wrapAsHeif(container,
+                                                           container.getItem(4),
+                                                           ByteBuffer.wrap(ascii("coded data"))));
+        try (final FileChannel channel = FileChannel.open(wrapped, StandardOpenOption.READ)) {
+            final HeifContainer thumbnail = HeifReader.readContainer(channel);
+            assertEquals(1, thumbnail.getPrimaryItemId());
+            assertEquals("hvc1", thumbnail.getItem(1).type());
+            assertArrayEquals(new int[]{320, 213}, thumbnail.getImageSize(1));
+            assertEquals(ByteBuffer.wrap(ascii("coded data")), HeifReader.readItemData(channel, thumbnail, 1, 64));
+        }
+    }
+
+    /**
+     * Builds a HEIF file with two grid frames (items 1 and 2), a tile (item 3), a thumbnail (item 4) and an XMP item
+     * (item 5) stored in the {@code mdat} box.
+     */
+    static byte[] buildHeif(final byte[] xmp) throws IOException {
+        final byte[] ftyp = box("ftyp", concat(ascii("heic"), u32(0), ascii("mif1"), ascii("heic")));
+        // The meta box size does not depend on the XMP offset, so it's built twice
+        final int metaSize = buildMeta(0, xmp.length).length;
+        final int xmpOffset = ftyp.length + metaSize + 8;
+        return concat(ftyp, buildMeta(xmpOffset, xmp.length), box("mdat", xmp));
+    }
+
+    private static byte[] buildMeta(final int xmpOffset, final int xmpLength) throws IOException {
+        final byte[] hdlr = fullBox("hdlr", 0, 0, concat(u32(0), ascii("pict"), new byte[12], new byte[1]));
+        final byte[] pitm = fullBox("pitm", 0, 0, u16(1));
+        final byte[] iinf = fullBox("iinf", 0, 0, concat(
+            u16(5),
+            infe(1, "grid", null),
+            infe(2, "grid", null),
+            infe(3, "hvc1", null),
+            infe(4, "hvc1", null),
+            infe(5, "mime", "application/rdf+xml")
+        ));
+        final byte[] iref = fullBox("iref", 0, 0, concat(
+            box("dimg", concat(u16(1), u16(1), u16(3))),
+            box("thmb", concat(u16(4), u16(1), u16(1)))
+        ));
+        final byte[] ipco = box("ipco", concat(
+            fullBox("ispe", 0, 0, concat(u32(6016), u32(4000))),
+            fullBox("ispe", 0, 0, concat(u32(320), u32(213)))
+        ));
+        final byte[] ipma = fullBox("ipma", 0, 0, concat(
+            u32(4),
+            u16(1), new byte[]{1, (byte) 0x81},
+            u16(2), new byte[]{1, (byte) 0x81},
+            u16(3), new byte[]{1, 2},
+            u16(4), new byte[]{1, 2}
+        ));
+        final byte[] iloc = fullBox("iloc", 1, 0, concat(
+            u16(0x4400),
+            u16(1),
+            u16(5), u16(0), u16(0), u16(1), u32(xmpOffset), u32(xmpLength)
+        ));
+        return fullBox("meta", 0, 0, concat(hdlr, pitm, iinf, iref, box("iprp", concat(ipco, ipma)), iloc));
+    }
+
+    private static byte[] infe(final int itemId, final String type, final String contentType) throws IOException {
+        final byte[] payload = concat(u16(itemId), u16(0), ascii(type), new byte[1]);
+        return fullBox("infe", 2, 0, contentType == null ? payload : concat(payload, ascii(contentType), new byte[1]));
+    }
+
+    static byte[] box(final String type, final byte[] payload) throws IOException {
+        return concat(u32(8 + payload.length), ascii(type), payload);
+    }
+
+    static byte[] fullBox(final String type, final int version, final int flags, final byte[] payload)
+        throws IOException {
+        return box(type, concat(u32((version << 24) | flags), payload));
+    }
+
+    static byte[] concat(final byte[]... parts) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (final byte[] part : parts) {
+            output.write(part);
+        }
+        return output.toByteArray();
+    }
+
+    static byte[] ascii(final String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static byte[] u16(final int value) {
+        return ByteBuffer.allocate(2).putShort((short) value).array();
+    }
+
+    static byte[] u32(final int value) {
+        return ByteBuffer.allocate(4).putInt(value).array();
+    }
+}